@@ -0,0 +1,13 @@
+package com.r2src.dyad;
+
+/**
+ * Stands in for the resource class that the Android build generates from
+ * ../res, so that the client sources compile here. The benchmarks never
+ * touch resources.
+ */
+public final class R {
+	public static final class string {
+		public static final int account_invalid_dialog_message = 0x7f040004;
+		public static final int account_invalid_dialog_title = 0x7f040005;
+	}
+}
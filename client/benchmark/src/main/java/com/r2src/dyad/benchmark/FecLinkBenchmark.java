@@ -0,0 +1,108 @@
+package com.r2src.dyad.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.r2src.dyad.stream.FecLink;
+import com.r2src.dyad.stream.PacketHandler;
+
+/**
+ * Sends packets through a {@link FecLink} over a {@link LossSimulator}, with
+ * the parity following the loss or turned off. JMH measures the CPU cost per
+ * packet; the share of packets that still got lost and the parity overhead
+ * are printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FecLinkBenchmark {
+
+	@Param({ "0", "0.02", "0.1" })
+	public double loss;
+
+	@Param({ "1", "3" })
+	public double burst;
+
+	@Param({ "adaptive", "off" })
+	public String parity;
+
+	@Param({ "160" })
+	public int size;
+
+	private LossSimulator out;
+	private LossSimulator back;
+	private FecLink sender;
+	private FecLink receiver;
+	private long delivered;
+	private long packets;
+	private final byte[] payload = new byte[1472];
+
+	@Setup
+	public void setUp() {
+		out = new LossSimulator(loss, burst, 1);
+		back = new LossSimulator(0, 1, 2);
+		sender = new FecLink(out);
+		receiver = new FecLink(back);
+		out.setPeer(receiver);
+		back.setPeer(sender);
+		if ("off".equals(parity))
+			sender.setParityRange(0, 0);
+		receiver.setHandler(new PacketHandler() {
+			@Override
+			public void onPacket(ByteBuffer packet) {
+				delivered++;
+			}
+
+			@Override
+			public long onTimer() {
+				return -1;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.println();
+		System.out.printf("%d packets, %.3f%% lost on the way, %.3f%% "
+				+ "after FEC, %.1f%% parity overhead, %d parity per group%n",
+				packets, 100.0 * out.getLost() / out.getSent(),
+				100.0 * (packets - delivered) / packets,
+				100.0 * sender.getParitySent() / sender.getDataSent(),
+				sender.getParityCount());
+	}
+
+	@Benchmark
+	public long send() throws IOException {
+		ByteBuffer packet = sender.obtainBuffer();
+		packet.put(payload, 0, size).flip();
+		sender.send(packet);
+		// timers every group or so, for the loss reports
+		if (++packets % 16 == 0) {
+			sender.onTimer();
+			receiver.onTimer();
+		}
+		return delivered;
+	}
+}
@@ -0,0 +1,68 @@
+package com.r2src.dyad.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.r2src.dyad.stream.JitterBuffer;
+
+/**
+ * Puts packets through a {@link JitterBuffer}, out of order, and plays them.
+ * The GC profiler should report no allocations per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JitterBufferBenchmark {
+
+	@Param({ "160" })
+	public int size;
+
+	private JitterBuffer jitter;
+	private final ByteBuffer[] packets = new ByteBuffer[4];
+	private final ByteBuffer frame = ByteBuffer.allocate(1472);
+	private short number;
+
+	@Setup
+	public void setUp() {
+		jitter = new JitterBuffer(new LossSimulator(0, 1, 0));
+		for (int i = 0; i < packets.length; i++)
+			packets[i] = ByteBuffer.allocate(6 + size);
+	}
+
+	/**
+	 * Receives four packets, the middle two swapped, and plays them.
+	 */
+	@Benchmark
+	public int reorderAndPlay() throws InterruptedException {
+		for (int i = 0; i < packets.length; i++) {
+			int swapped = i == 1 ? 2 : i == 2 ? 1 : i;
+			ByteBuffer packet = packets[i];
+			packet.clear();
+			packet.putShort(0, (short) (number + swapped)).putInt(2, 0);
+			jitter.onPacket(packet);
+		}
+		number += packets.length;
+
+		int played = 0;
+		for (int i = 0; i < packets.length; i++) {
+			frame.clear();
+			played += jitter.take(frame, 1);
+		}
+		return played;
+	}
+}
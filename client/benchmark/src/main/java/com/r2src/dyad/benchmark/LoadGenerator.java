@@ -0,0 +1,845 @@
+package com.r2src.dyad.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.RequestLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.SignallingServer;
+import com.r2src.dyad.request.BinaryBodyCodec;
+import com.r2src.dyad.request.BodyCodec;
+import com.r2src.dyad.request.BondRequest;
+import com.r2src.dyad.request.GetSdpMessageRequest;
+import com.r2src.dyad.request.JsonBodyCodec;
+import com.r2src.dyad.request.RegisterGCMRequest;
+import com.r2src.dyad.request.RegisterRequest;
+import com.r2src.dyad.request.Request;
+import com.r2src.dyad.request.SdpMessageRequest;
+
+/**
+ * Drives simulated device pairs through the signalling sequence of a Dyad,
+ * register &rarr; register_gcm &rarr; bond &rarr; SDP offer and answer, and
+ * reports the latency percentiles and throughput of every endpoint:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.r2src.dyad.benchmark.LoadGenerator \
+ *     --pairs 10000 --concurrency 2000 --wait 30
+ * </pre>
+ *
+ * Without a --host, the pairs go to an embedded {@link SignallingServer}. A
+ * real Dyad Server has to accept the made-up OAuth2 tokens, for instance by
+ * pointing its $GOOGLE_URL at a stand-in.
+ * <p>
+ * All devices are driven by one thread with a {@link Selector}, each over a
+ * keep-alive connection of its own, so --concurrency pairs cost twice as
+ * many connections and no threads. The requests are the client's own: their
+ * bodies are encoded by its {@link BodyCodec} and the responses are read by
+ * their onFinished, only the HTTP is done here. The connections of a pair
+ * that is done are reused by the next one.
+ * <p>
+ * By default the devices of a pair take turns, so the GETs of the SDP
+ * messages find them right away. With --wait, the receiving device long-polls
+ * first, for at most that many seconds, and the other device posts its
+ * message --delay milliseconds later, so that every GET is parked at the
+ * server until the message arrives. The time from the start of the post to
+ * the end of the GET is reported as the delivery.
+ */
+public class LoadGenerator {
+
+	private static final String AUTHORIZATION = "X-Dyad-Authorization";
+
+	/**
+	 * Extra time to allow for a response, in seconds.
+	 */
+	private static final int TIMEOUT = 10;
+
+	/**
+	 * The calls of the sequence, in order, and the delivery of an SDP message
+	 * to a device that waits for it.
+	 */
+	private enum Endpoint {
+		REGISTER("POST /v1/register"),
+		REGISTER_GCM("POST /v1/register_gcm"),
+		BOND("POST /v1/bond"),
+		SDP_MESSAGE("POST /v1/sdp_message"),
+		GET_SDP_MESSAGE("GET /v1/sdp_message"),
+		DELIVERY("SDP delivery");
+
+		final String label;
+
+		Endpoint(String label) {
+			this.label = label;
+		}
+	}
+
+	/**
+	 * The latencies of all calls, in nanoseconds.
+	 */
+	private static class Latencies {
+		final long[][] samples = new long[Endpoint.values().length][];
+		final int[] counts = new int[samples.length];
+		final int[] errors = new int[samples.length];
+
+		Latencies() {
+			for (int i = 0; i < samples.length; i++)
+				samples[i] = new long[256];
+		}
+
+		void add(Endpoint endpoint, long nanos) {
+			int i = endpoint.ordinal();
+			if (counts[i] == samples[i].length)
+				samples[i] = Arrays.copyOf(samples[i], counts[i] * 2);
+			samples[i][counts[i]++] = nanos;
+		}
+	}
+
+	/**
+	 * A request that didn't have the outcome the sequence expects.
+	 */
+	private static class UnexpectedResult extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		UnexpectedResult(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * What to do with the result of a request.
+	 */
+	private interface Then<T> {
+		void run(T result) throws Exception;
+	}
+
+	/**
+	 * Something to do on the selector thread once its time has come.
+	 */
+	private static class Timer implements Comparable<Timer> {
+		final long at;
+		final Runnable action;
+		boolean cancelled;
+
+		Timer(long at, Runnable action) {
+			this.at = at;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return Long.compare(at, other.at);
+		}
+	}
+
+	/**
+	 * A request of a pair that is on its way.
+	 */
+	private static class Call<T> {
+		final Pair pair;
+		final Device device;
+		final Endpoint endpoint;
+		final Request<T> request;
+		final Then<? super T> then;
+		final long start = System.nanoTime();
+		Timer timeout;
+
+		Call(Pair pair, Device device, Endpoint endpoint, Request<T> request,
+				Then<? super T> then) {
+			this.pair = pair;
+			this.device = device;
+			this.endpoint = endpoint;
+			this.request = request;
+			this.then = then;
+		}
+	}
+
+	/**
+	 * A simulated device, with its account and its connection, if any.
+	 */
+	private class Device {
+		final Account account = new Account(host, null);
+		Connection connection;
+	}
+
+	private final HttpHost host;
+	private final InetSocketAddress address;
+	private final int pairs;
+	private final int concurrency;
+	private final int wait;
+	private final long delay;
+	private final String sdp;
+	private final String run = Long.toString(System.currentTimeMillis(), 36);
+	private final Selector selector;
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+	private final Latencies latencies = new Latencies();
+	private BodyCodec codec = JsonBodyCodec.INSTANCE;
+	private int started;
+	private int finished;
+	private int failed;
+	private Exception firstFailure;
+	private long requests;
+	private long reused;
+	private int connections;
+
+	/**
+	 * @param pairs
+	 *            The number of device pairs to run through the sequence.
+	 * @param concurrency
+	 *            The number of pairs that are run at the same time.
+	 * @param wait
+	 *            How many seconds the GETs of the SDP messages may wait, or 0
+	 *            to let the devices take turns.
+	 * @param delay
+	 *            How many milliseconds after the GET the other device posts
+	 *            its message, if the GET waits.
+	 */
+	public LoadGenerator(HttpHost host, int pairs, int concurrency, int wait,
+			long delay) throws IOException {
+		if (pairs <= 0 || concurrency <= 0)
+			throw new IllegalArgumentException("counts must be positive");
+		if (wait < 0 || wait > GetSdpMessageRequest.MAX_WAIT)
+			throw new IllegalArgumentException("wait should be between 0 and "
+					+ GetSdpMessageRequest.MAX_WAIT);
+		if (delay < 0 || wait > 0 && delay >= wait * 1000L)
+			throw new IllegalArgumentException("delay should be less than "
+					+ "the wait");
+		this.host = host;
+		address = new InetSocketAddress(host.getHostName(),
+				host.getPort() < 0 ? 80 : host.getPort());
+		this.pairs = pairs;
+		this.concurrency = concurrency;
+		this.wait = wait;
+		this.delay = delay;
+		sdp = SdpCompressorBenchmark.read("offer.sdp");
+		selector = Selector.open();
+	}
+
+	/**
+	 * Sets how request bodies are encoded, JSON by default.
+	 */
+	public void setBodyCodec(BodyCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Runs all pairs and prints the results.
+	 */
+	public void run(PrintStream out) throws IOException {
+		long start = System.nanoTime();
+		while (started < Math.min(pairs, concurrency))
+			startPair();
+
+		while (finished < pairs) {
+			long now = System.nanoTime();
+			Timer timer;
+			while ((timer = timers.peek()) != null
+					&& (timer.cancelled || timer.at - now <= 0)) {
+				timers.poll();
+				if (!timer.cancelled)
+					timer.action.run();
+			}
+			if (finished == pairs)
+				break;
+
+			// every call has a timeout, so there always is a timer
+			timer = timers.peek();
+			selector.select(Math.max(1, (timer.at - now) / 1000000));
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				((Connection) key.attachment()).ready();
+			}
+		}
+
+		report(out, System.nanoTime() - start);
+		for (Connection c : idle.toArray(new Connection[idle.size()]))
+			c.close();
+		selector.close();
+	}
+
+	private Timer after(long millis, Runnable action) {
+		Timer timer = new Timer(System.nanoTime() + millis * 1000000, action);
+		timers.add(timer);
+		return timer;
+	}
+
+	private void startPair() {
+		new Pair(started++).start();
+	}
+
+	/**
+	 * Starts the next pair, if any, once the current call chain is done, so
+	 * that pairs that fail right away don't pile up on the stack.
+	 */
+	private void done(Pair pair) {
+		finished++;
+		if (!pair.aborted)
+			pair.release();
+		after(0, () -> {
+			if (started < pairs)
+				startPair();
+		});
+	}
+
+	private void fail(Pair pair, Endpoint endpoint, Exception e) {
+		if (endpoint != null)
+			latencies.errors[endpoint.ordinal()]++;
+		if (pair.aborted)
+			return;
+		pair.aborted = true;
+		if (failed++ == 0)
+			firstFailure = e;
+		// the other device may have a request on its way, which is dropped
+		for (Device device : pair.devices)
+			if (device.connection != null)
+				device.connection.close();
+		done(pair);
+	}
+
+	/**
+	 * The signalling sequence of two devices, as a chain of calls.
+	 */
+	private class Pair {
+		final String id;
+		final String secret;
+		final Device offerer = new Device();
+		final Device answerer = new Device();
+		final Device[] devices = { offerer, answerer };
+		boolean aborted;
+		long posted;
+
+		Pair(int number) {
+			id = run + "-" + number;
+			secret = "secret-" + id;
+		}
+
+		void start() {
+			join(offerer, "-a", false, () -> join(answerer, "-b", true,
+					() -> exchange(offerer, answerer,
+							() -> exchange(answerer, offerer,
+									() -> done(this)))));
+		}
+
+		void join(Device device, String suffix, boolean bonds, Runnable then) {
+			String googleId = id + suffix;
+			call(this, device, Endpoint.REGISTER, new RegisterRequest(
+					googleId), token -> call(this, device,
+					Endpoint.REGISTER_GCM, new RegisterGCMRequest("gcm-"
+							+ googleId), none -> call(this, device,
+							Endpoint.BOND, new BondRequest(secret),
+							bonded -> {
+								expect(bonds, bonded);
+								then.run();
+							})));
+		}
+
+		/**
+		 * Sends an SDP message from one device to the other.
+		 */
+		void exchange(Device from, Device to, Runnable then) {
+			if (wait == 0) {
+				call(this, from, Endpoint.SDP_MESSAGE, new SdpMessageRequest(
+						sdp), none -> call(this, to,
+						Endpoint.GET_SDP_MESSAGE, new GetSdpMessageRequest(),
+						message -> {
+							expect(sdp, message);
+							then.run();
+						}));
+				return;
+			}
+
+			// the post and the GET both have to be done
+			int[] left = { 2 };
+			Runnable both = () -> {
+				if (--left[0] == 0)
+					then.run();
+			};
+			call(this, to, Endpoint.GET_SDP_MESSAGE, new GetSdpMessageRequest(
+					wait), message -> {
+				expect(sdp, message);
+				latencies.add(Endpoint.DELIVERY, System.nanoTime() - posted);
+				both.run();
+			});
+			after(delay, () -> {
+				if (aborted)
+					return;
+				posted = System.nanoTime();
+				call(this, from, Endpoint.SDP_MESSAGE, new SdpMessageRequest(
+						sdp), none -> both.run());
+			});
+		}
+
+		/**
+		 * Hands the connections of the devices to the next pairs.
+		 */
+		void release() {
+			for (Device device : devices) {
+				Connection c = device.connection;
+				if (c != null && c.channel.isOpen() && c.call == null)
+					idle.add(c);
+				device.connection = null;
+			}
+		}
+	}
+
+	private <T> void call(Pair pair, Device device, Endpoint endpoint,
+			Request<T> request, Then<? super T> then) {
+		Call<T> call = new Call<T>(pair, device, endpoint, request, then);
+		try {
+			byte[] bytes = encode(request, device.account);
+			Connection c = device.connection;
+			if (c == null || !c.channel.isOpen()) {
+				c = idle.poll();
+				if (c == null)
+					c = new Connection();
+				device.connection = c;
+			}
+			requests++;
+			if (c.requests++ > 0)
+				reused++;
+			call.timeout = after((TIMEOUT + wait) * 1000L, () -> {
+				Connection timedOut = device.connection;
+				if (timedOut != null)
+					timedOut.close();
+				fail(pair, endpoint, new SocketTimeoutException(
+						endpoint.label + " timed out"));
+			});
+			c.send(call, bytes);
+		} catch (IOException e) {
+			if (device.connection != null)
+				device.connection.close();
+			fail(pair, endpoint, e);
+		}
+	}
+
+	/**
+	 * Hands a response to its request, and the result to the next call.
+	 */
+	private <T> void complete(Call<T> call, HttpResponse response) {
+		T result;
+		try {
+			result = call.request.onFinished(response, call.device.account);
+		} catch (Exception e) {
+			fail(call.pair, call.endpoint, e);
+			return;
+		}
+		latencies.add(call.endpoint, System.nanoTime() - call.start);
+		try {
+			call.then.run(result);
+		} catch (Exception e) {
+			fail(call.pair, null, e);
+		}
+	}
+
+	/**
+	 * Writes out a request the way a {@link com.r2src.dyad.request.Requester}
+	 * sends it.
+	 */
+	private byte[] encode(Request<?> request, Account account)
+			throws IOException {
+		HttpRequest http = request.getHttpRequest();
+		RequestLine line = http.getRequestLine();
+		StringBuilder head = new StringBuilder();
+		head.append(line.getMethod()).append(' ').append(line.getUri())
+				.append(" HTTP/1.1\r\nHost: ").append(host.toHostString())
+				.append("\r\n");
+		for (Header header : http.getAllHeaders())
+			head.append(header.getName()).append(": ")
+					.append(header.getValue()).append("\r\n");
+		String token = account.getSessionToken();
+		if (token != null)
+			head.append(AUTHORIZATION).append(": ").append(token)
+					.append("\r\n");
+
+		byte[] body = new byte[0];
+		if (request.getBody() != null) {
+			HttpEntity entity = codec.encode(request.getBody());
+			body = EntityUtils.toByteArray(entity);
+			head.append("Content-Type: ").append(
+					entity.getContentType() != null ? entity.getContentType()
+							.getValue() : codec.getContentType())
+					.append("\r\nContent-Length: ").append(body.length)
+					.append("\r\n");
+		}
+		head.append("\r\n");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		bytes.write(body);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A keep-alive HTTP/1.1 connection to the server, with at most one
+	 * request on it at a time.
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		final SelectionKey key;
+		ByteBuffer out;
+		ByteBuffer in = ByteBuffer.allocate(4096);
+		Call<?> call;
+		int requests;
+		boolean closing;
+
+		Connection() throws IOException {
+			channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				key = channel.register(selector, 0, this);
+				channel.connect(address);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			connections++;
+		}
+
+		void send(Call<?> call, byte[] bytes) throws IOException {
+			this.call = call;
+			out = ByteBuffer.wrap(bytes);
+			if (channel.isConnectionPending())
+				key.interestOps(SelectionKey.OP_CONNECT);
+			else
+				flush();
+		}
+
+		void ready() {
+			// closed by an earlier key of the same select
+			if (!key.isValid())
+				return;
+			try {
+				if (key.isConnectable()) {
+					channel.finishConnect();
+					flush();
+				} else if (key.isWritable()) {
+					flush();
+				} else if (key.isReadable()) {
+					read();
+				}
+			} catch (IOException e) {
+				broken(e);
+			}
+		}
+
+		void flush() throws IOException {
+			channel.write(out);
+			key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE
+					: SelectionKey.OP_READ);
+		}
+
+		void read() throws IOException {
+			if (!in.hasRemaining())
+				in = ByteBuffer.allocate(in.capacity() * 2).put(
+						(ByteBuffer) in.flip());
+			boolean eof = channel.read(in) < 0;
+			HttpResponse response = parse(eof);
+			if (response != null) {
+				Call<?> done = call;
+				call = null;
+				done.timeout.cancelled = true;
+				if (closing || eof)
+					close();
+				complete(done, response);
+			} else if (eof) {
+				if (call != null)
+					broken(new IOException("the server closed the connection"));
+				else
+					close();
+			}
+		}
+
+		/**
+		 * Returns the response in the input buffer, or null if it isn't all
+		 * there yet.
+		 */
+		HttpResponse parse(boolean eof) throws IOException {
+			byte[] data = in.array();
+			int length = in.position();
+			int headEnd = indexOf(data, 0, length, "\r\n\r\n");
+			if (headEnd < 0)
+				return null;
+			String[] lines = new String(data, 0, headEnd,
+					StandardCharsets.ISO_8859_1).split("\r\n");
+			String[] status = lines[0].split(" ", 3);
+			if (status.length < 2 || !status[0].startsWith("HTTP/"))
+				throw new IOException("bad status line: " + lines[0]);
+			int code;
+			try {
+				code = Integer.parseInt(status[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("bad status line: " + lines[0]);
+			}
+			BasicHttpResponse response = new BasicHttpResponse(
+					HttpVersion.HTTP_1_1, code, status.length > 2 ? status[2]
+							: "");
+			String contentLength = null;
+			boolean chunked = false;
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon < 0)
+					throw new IOException("bad header: " + lines[i]);
+				String name = lines[i].substring(0, colon).trim();
+				String value = lines[i].substring(colon + 1).trim();
+				response.addHeader(name, value);
+				if (name.equalsIgnoreCase("Content-Length"))
+					contentLength = value;
+				else if (name.equalsIgnoreCase("Transfer-Encoding"))
+					chunked = value.equalsIgnoreCase("chunked");
+				else if (name.equalsIgnoreCase("Connection"))
+					closing = value.equalsIgnoreCase("close");
+			}
+
+			int start = headEnd + 4;
+			int end;
+			byte[] body;
+			if (code / 100 == 1) {
+				// interim, wait for the real one
+				consume(start);
+				return parse(eof);
+			} else if (chunked) {
+				ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+				end = start;
+				while (true) {
+					int lineEnd = indexOf(data, end, length, "\r\n");
+					if (lineEnd < 0)
+						return null;
+					String size = new String(data, end, lineEnd - end,
+							StandardCharsets.ISO_8859_1);
+					int semicolon = size.indexOf(';');
+					int chunk;
+					try {
+						chunk = Integer.parseInt((semicolon < 0 ? size : size
+								.substring(0, semicolon)).trim(), 16);
+					} catch (NumberFormatException e) {
+						throw new IOException("bad chunk size: " + size);
+					}
+					end = lineEnd + 2;
+					if (chunk == 0) {
+						// no trailers are sent to us
+						if (length < end + 2)
+							return null;
+						end += 2;
+						break;
+					}
+					if (length < end + chunk + 2)
+						return null;
+					chunks.write(data, end, chunk);
+					end += chunk + 2;
+				}
+				body = chunks.toByteArray();
+			} else if (contentLength != null) {
+				try {
+					end = start + Integer.parseInt(contentLength);
+				} catch (NumberFormatException e) {
+					throw new IOException("bad Content-Length: "
+							+ contentLength);
+				}
+				if (length < end)
+					return null;
+				body = Arrays.copyOfRange(data, start, end);
+			} else if (code == 204 || code == 304) {
+				end = start;
+				body = new byte[0];
+			} else {
+				// the body ends with the connection
+				if (!eof)
+					return null;
+				end = length;
+				body = Arrays.copyOfRange(data, start, end);
+				closing = true;
+			}
+
+			ByteArrayEntity entity = new ByteArrayEntity(body);
+			Header type = response.getFirstHeader("Content-Type");
+			if (type != null)
+				entity.setContentType(type);
+			response.setEntity(entity);
+			consume(end);
+			return response;
+		}
+
+		private void consume(int count) {
+			in.flip();
+			in.position(count);
+			in.compact();
+		}
+
+		void broken(IOException e) {
+			Call<?> failedCall = call;
+			close();
+			if (failedCall != null)
+				fail(failedCall.pair, failedCall.endpoint, e);
+		}
+
+		void close() {
+			if (call != null) {
+				call.timeout.cancelled = true;
+				call = null;
+			}
+			idle.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// closed anyway
+			}
+		}
+	}
+
+	private static int indexOf(byte[] data, int from, int to, String what) {
+		outer: for (int i = from; i <= to - what.length(); i++) {
+			for (int j = 0; j < what.length(); j++)
+				if (data[i + j] != what.charAt(j))
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	private static void expect(Object expected, Object actual)
+			throws UnexpectedResult {
+		if (!expected.equals(actual))
+			throw new UnexpectedResult("expected " + expected + ", got "
+					+ actual);
+	}
+
+	private void report(PrintStream out, long elapsed) {
+		double seconds = elapsed / 1e9;
+		out.println(String.format(Locale.US,
+				"%d pairs, %d failed, in %.2f s, %d at a time, %s", pairs,
+				failed, seconds, concurrency, wait == 0 ? "taking turns"
+						: "long-polling for " + wait + " s, posting after "
+								+ delay + " ms"));
+		if (firstFailure != null)
+			out.println("first failure: " + firstFailure);
+		out.println(String.format(Locale.US,
+				"%-22s %8s %7s %9s %8s %8s %8s %8s %8s", "endpoint", "count",
+				"errors", "req/s", "p50", "p90", "p99", "p99.9", "max"));
+
+		long total = 0;
+		for (Endpoint endpoint : Endpoint.values()) {
+			int i = endpoint.ordinal();
+			long[] all = Arrays.copyOf(latencies.samples[i],
+					latencies.counts[i]);
+			Arrays.sort(all);
+			if (endpoint != Endpoint.DELIVERY)
+				total += all.length;
+			else if (wait == 0)
+				continue;
+			out.println(String.format(Locale.US,
+					"%-22s %8d %7d %9.1f %8.2f %8.2f %8.2f %8.2f %8.2f",
+					endpoint.label, all.length, latencies.errors[i],
+					all.length / seconds, percentile(all, 50),
+					percentile(all, 90), percentile(all, 99),
+					percentile(all, 99.9), percentile(all, 100)));
+		}
+		out.println(String.format(Locale.US, "%-22s %8d %7s %9.1f", "all",
+				total, "", total / seconds));
+		out.println(String.format(Locale.US, "%d of %d requests reused a "
+				+ "connection, %d connections", reused, requests,
+				connections));
+		out.println("latencies in milliseconds");
+	}
+
+	/**
+	 * Returns a percentile of sorted latencies in milliseconds, by the
+	 * nearest-rank method.
+	 */
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return Double.NaN;
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(0, rank - 1)] / 1e6;
+	}
+
+	public static void main(String[] args) throws Exception {
+		HttpHost host = null;
+		int pairs = 1000;
+		int concurrency = 64;
+		int wait = 0;
+		long delay = 50;
+		boolean binary = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--binary")) {
+					binary = true;
+					continue;
+				}
+				if (i + 1 == args.length)
+					throw new IllegalArgumentException(arg + " needs a value");
+				String value = args[++i];
+				if (arg.equals("--host")) {
+					int colon = value.lastIndexOf(':');
+					host = colon < 0 ? new HttpHost(value) : new HttpHost(
+							value.substring(0, colon),
+							Integer.parseInt(value.substring(colon + 1)));
+				} else if (arg.equals("--pairs")) {
+					pairs = Integer.parseInt(value);
+				} else if (arg.equals("--concurrency")) {
+					concurrency = Integer.parseInt(value);
+				} else if (arg.equals("--wait")) {
+					wait = Integer.parseInt(value);
+				} else if (arg.equals("--delay")) {
+					delay = Long.parseLong(value);
+				} else {
+					throw new IllegalArgumentException("unknown option " + arg);
+				}
+			}
+			if (wait < 0 || wait > GetSdpMessageRequest.MAX_WAIT)
+				throw new IllegalArgumentException("--wait should be between "
+						+ "0 and " + GetSdpMessageRequest.MAX_WAIT);
+			if (delay < 0 || wait > 0 && delay >= wait * 1000L)
+				throw new IllegalArgumentException("--delay should be less "
+						+ "than --wait");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: LoadGenerator [--host name:port] "
+					+ "[--pairs n] [--concurrency n] [--wait seconds] "
+					+ "[--delay ms] [--binary]");
+			System.exit(2);
+		}
+
+		SignallingServer server = null;
+		if (host == null) {
+			server = new SignallingServer();
+			host = server.getHost();
+		}
+		try {
+			LoadGenerator generator = new LoadGenerator(host, pairs,
+					concurrency, wait, delay);
+			if (binary)
+				generator.setBodyCodec(BinaryBodyCodec.INSTANCE);
+			generator.run(System.out);
+		} finally {
+			if (server != null)
+				server.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.r2src.dyad.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.HttpHost;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the Dyad Server, so that round trips can be
+ * measured without the network or the server's own cost getting in the way.
+ * It answers with canned responses like those of the real server and keeps
+ * connections alive.
+ */
+public class LocalServer {
+
+	static final String SESSION_TOKEN = "3f1c9a0b2e7d4c55a1b8e6f0d2c4a7b9";
+
+	private static final byte[] REGISTER = ("{\"session_token\":\""
+			+ SESSION_TOKEN + "\"}").getBytes();
+	private static final byte[] BOND = "{\"status\":\"waiting\"}".getBytes();
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	public LocalServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+		server.createContext("/v1/register", new Canned(200, REGISTER));
+		server.createContext("/v1/bond", new Canned(202, BOND));
+		executor = Executors.newFixedThreadPool(4);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public HttpHost getHost() {
+		return new HttpHost("127.0.0.1", server.getAddress().getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private static class Canned implements HttpHandler {
+		private final int status;
+		private final byte[] body;
+
+		Canned(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			// read the whole request, or the connection can't be reused
+			InputStream in = exchange.getRequestBody();
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) != -1)
+				;
+			in.close();
+
+			exchange.getResponseHeaders().set("Content-Type",
+					"application/json");
+			exchange.sendResponseHeaders(status, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+}
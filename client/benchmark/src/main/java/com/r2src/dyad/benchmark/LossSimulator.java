@@ -0,0 +1,82 @@
+package com.r2src.dyad.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.r2src.dyad.stream.Link;
+import com.r2src.dyad.stream.PacketHandler;
+
+/**
+ * A loopback {@link Link} that hands packets straight to a handler, and loses
+ * some of them on the way the way a cellular link does: in bursts. A
+ * two-state (Gilbert-Elliott) model switches between a good state, in which
+ * nothing is lost, and a bad state, in which everything is.
+ */
+public class LossSimulator implements Link {
+
+	private static final int MAX_PACKET_SIZE = 1472;
+
+	private final Random random;
+	private final double toBad;
+	private final double toGood;
+	private final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+	private PacketHandler peer;
+	private boolean bad;
+	private long sent;
+	private long lost;
+
+	/**
+	 * @param loss
+	 *            The share of packets that are lost in the long run.
+	 * @param burst
+	 *            The average number of packets lost in a row.
+	 */
+	public LossSimulator(double loss, double burst, long seed) {
+		if (loss < 0 || loss >= 1)
+			throw new IllegalArgumentException("loss should be in [0, 1)");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst should be at least 1");
+		random = new Random(seed);
+		toGood = 1 / burst;
+		toBad = loss * toGood / (1 - loss);
+	}
+
+	public void setPeer(PacketHandler peer) {
+		this.peer = peer;
+	}
+
+	@Override
+	public ByteBuffer obtainBuffer() {
+		buffer.clear();
+		return buffer;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+	}
+
+	@Override
+	public boolean send(ByteBuffer packet) throws IOException {
+		sent++;
+		bad = random.nextDouble() < (bad ? 1 - toGood : toBad);
+		if (bad)
+			lost++;
+		else
+			peer.onPacket(packet);
+		return true;
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return MAX_PACKET_SIZE;
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	public long getLost() {
+		return lost;
+	}
+}
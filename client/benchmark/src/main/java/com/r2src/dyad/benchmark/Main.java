@@ -0,0 +1,25 @@
+package com.r2src.dyad.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like JMH's own main class does, but always with the GC
+ * profiler, so that allocations per operation are reported along with the
+ * throughput (gc.alloc.rate.norm, in bytes).
+ */
+public class Main {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.shouldHelp() || cmd.shouldList()
+				|| cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		new Runner(new OptionsBuilder().parent(cmd)
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,94 @@
+package com.r2src.dyad.benchmark;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+import com.r2src.dyad.request.BinaryBodyCodec;
+import com.r2src.dyad.request.BondRequest;
+import com.r2src.dyad.request.JsonBodyCodec;
+import com.r2src.dyad.request.RegisterRequest;
+
+/**
+ * Measures building requests and handling their responses, without any I/O.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+	private static final String AUTH_TOKEN = "ya29.AHES6ZRVmB7fkLtd1XTmq6mo0S1wqZZi3-Lh_s-6Uw7p8vtgSwg";
+	private static final String SECRET = "4 8 15 16 23 42";
+
+	private Account account;
+	private final RegisterRequest register = new RegisterRequest(AUTH_TOKEN);
+	private final BondRequest bond = new BondRequest(SECRET);
+	private HttpResponse registerResponse;
+	private HttpResponse bondResponse;
+
+	@Setup
+	public void setUp() {
+		account = new Account(new HttpHost("localhost"), null);
+		registerResponse = response(200, "{\"session_token\":\""
+				+ LocalServer.SESSION_TOKEN + "\"}");
+		bondResponse = response(202, "{\"status\":\"waiting\"}");
+	}
+
+	private static HttpResponse response(int status, String body) {
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+				status, null);
+		// a ByteArrayEntity can be read again and again
+		ByteArrayEntity entity = new ByteArrayEntity(body.getBytes());
+		entity.setContentType(JsonBodyCodec.CONTENT_TYPE);
+		response.setEntity(entity);
+		return response;
+	}
+
+	@Benchmark
+	public HttpEntity registerRequestJson() throws IOException {
+		return JsonBodyCodec.INSTANCE.encode(new RegisterRequest(AUTH_TOKEN)
+				.getBody());
+	}
+
+	@Benchmark
+	public HttpEntity registerRequestBinary() throws IOException {
+		return BinaryBodyCodec.INSTANCE.encode(new RegisterRequest(AUTH_TOKEN)
+				.getBody());
+	}
+
+	@Benchmark
+	public HttpEntity bondRequestJson() throws IOException {
+		return JsonBodyCodec.INSTANCE.encode(new BondRequest(SECRET).getBody());
+	}
+
+	@Benchmark
+	public HttpEntity bondRequestBinary() throws IOException {
+		return BinaryBodyCodec.INSTANCE.encode(new BondRequest(SECRET)
+				.getBody());
+	}
+
+	@Benchmark
+	public String registerResponse() throws ServerException, IOException {
+		return register.onFinished(registerResponse, account);
+	}
+
+	@Benchmark
+	public Boolean bondResponse() throws ServerException, IOException {
+		return bond.onFinished(bondResponse, account);
+	}
+}
@@ -0,0 +1,65 @@
+package com.r2src.dyad.benchmark;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+import com.r2src.dyad.request.BinaryBodyCodec;
+import com.r2src.dyad.request.BondRequest;
+import com.r2src.dyad.request.JsonBodyCodec;
+import com.r2src.dyad.request.RegisterRequest;
+import com.r2src.dyad.request.Requester;
+
+/**
+ * Measures {@link Requester#execute} round trips to a {@link LocalServer},
+ * over pooled keep-alive connections.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequesterBenchmark {
+
+	@Param({ "json", "binary" })
+	public String codec;
+
+	private LocalServer server;
+	private Requester requester;
+	private Account account;
+
+	@Setup
+	public void setUp() throws IOException {
+		server = new LocalServer();
+		requester = new Requester();
+		// the stand-in doesn't look at the body, so any codec will do
+		requester.setBodyCodec("binary".equals(codec) ? BinaryBodyCodec.INSTANCE
+				: JsonBodyCodec.INSTANCE);
+		account = new Account(server.getHost(), null);
+	}
+
+	@TearDown
+	public void tearDown() {
+		requester.executor.shutdownNow();
+		server.stop();
+	}
+
+	@Benchmark
+	public String register() throws IOException, ServerException {
+		return requester.execute(new RegisterRequest("token"), account);
+	}
+
+	@Benchmark
+	public Boolean bond() throws IOException, ServerException {
+		return requester.execute(new BondRequest("secret"), account);
+	}
+}
@@ -0,0 +1,106 @@
+package com.r2src.dyad.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.r2src.dyad.request.SdpCompressor;
+
+/**
+ * Compares sending an SDP message as raw text with compressing it, with and
+ * without the preset dictionary of {@link SdpCompressor}. The sizes are
+ * printed when the benchmark starts, the CPU cost is what JMH measures.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SdpCompressorBenchmark {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Sample messages, in the resources next to this class: the ICE
+	 * description that IceAgent sends, which the dictionary is made for, and
+	 * a browser's offer.
+	 */
+	@Param({ "description.sdp", "offer.sdp" })
+	public String sample;
+
+	private String sdp;
+	private byte[] deflated;
+	private final Deflater plain = new Deflater(Deflater.BEST_COMPRESSION,
+			true);
+	private final byte[] chunk = new byte[8192];
+
+	@Setup
+	public void setUp() throws IOException {
+		sdp = read(sample);
+		deflated = SdpCompressor.deflate(sdp);
+		if (!sdp.equals(SdpCompressor.inflate(deflated)))
+			throw new IllegalStateException("round trip failed");
+
+		System.out.println();
+		System.out.println(sample + ": " + raw() + " bytes raw, "
+				+ deflateWithoutDictionary() + " deflated, "
+				+ deflated.length + " deflated with dictionary");
+	}
+
+	@Benchmark
+	public int raw() {
+		return sdp.getBytes(UTF_8).length;
+	}
+
+	@Benchmark
+	public int deflateWithoutDictionary() {
+		plain.reset();
+		plain.setInput(sdp.getBytes(UTF_8));
+		plain.finish();
+		int length = 0;
+		while (!plain.finished())
+			length += plain.deflate(chunk);
+		return length;
+	}
+
+	@Benchmark
+	public byte[] deflate() {
+		return SdpCompressor.deflate(sdp);
+	}
+
+	@Benchmark
+	public String inflate() {
+		return SdpCompressor.inflate(deflated);
+	}
+
+	static String read(String name) throws IOException {
+		InputStream in = SdpCompressorBenchmark.class.getResourceAsStream(name);
+		if (in == null)
+			throw new IOException("no such sample: " + name);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int n; (n = in.read(buffer)) > 0;)
+				out.write(buffer, 0, n);
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
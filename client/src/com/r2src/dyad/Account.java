@@ -18,6 +18,7 @@ import android.support.v4.app.DialogFragment;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
 
+import com.r2src.dyad.ice.PathCache;
 import com.r2src.dyad.request.DyadRequestCallback;
 import com.r2src.dyad.request.RegisterRequest;
 import com.r2src.dyad.request.Request;
@@ -49,12 +50,26 @@ public class Account {
 
 	Requester client = new Requester();
 
+	// the paths that Dyads connected over, to reconnect faster
+	final PathCache paths = new PathCache();
+
 	private volatile static Account singleton;
 
 	private volatile DyadListener dyadListener;
 	
 	public static final String ACTION_REGISTERED = "com.r2src.dyad.ACTION_REGISTERED";
 
+	/**
+	 * Creates an account that is already registered, without an Activity. The
+	 * host is set for all accounts, like {@link #setHost} does.
+	 */
+	public Account(HttpHost host, String sessionToken) {
+		if (host == null)
+			throw new IllegalArgumentException("host is null");
+		HOST = host;
+		this.sessionToken = sessionToken;
+	}
+
 	private Account(final FragmentActivity activity) {
 		Log.d(TAG, "Creating dyad account singleton object...");
 		
@@ -164,6 +179,18 @@ public class Account {
 	 */
 	public static final String KEY_EXCEPTION = "exception";
 
+	/**
+	 * Broadcasted when the other device of a Dyad has sent an SDP message. The
+	 * Intent includes a field {@link #KEY_SDP_MESSAGE} if the message was
+	 * small enough to be pushed.
+	 */
+	public static final String ACTION_SDP_MESSAGE_INTENT = "com.r2src.dyad.SDP_MESSAGE";
+
+	/**
+	 * Bundle key used to communicate an SDP message.
+	 */
+	public static final String KEY_SDP_MESSAGE = "message";
+
 	/**
 	 * Registers the Dyad Account with the Dyad Server.
 	 * <p>
@@ -269,6 +296,14 @@ public class Account {
 		}
 	}
 
+	/**
+	 * Returns the cache of the paths that Dyads connected over, for its
+	 * statistics.
+	 */
+	public PathCache getPathCache() {
+		return paths;
+	}
+
 	/**
 	 * Returns the host for this account
 	 */
@@ -350,7 +385,7 @@ public class Account {
 	}
 
 	private void registerGCM(final String regId) {
-		Request request = new RegisterGCMRequest(regId);
+		Request<Void> request = new RegisterGCMRequest(regId);
 		client.asyncExecute(request, this, new DyadRequestCallback() {
 			@Override
 			public void onFinished() {
@@ -383,7 +418,7 @@ public class Account {
 			@Override
 			public void onReceive(Context context, Intent intent) {
 				final String secret = intent.getStringExtra("secret");
-				Request request = new BondRequest(secret);
+				Request<Boolean> request = new BondRequest(secret);
 				try {
 					authenticate(request);
 				} catch (final NotRegisteredException e) {
@@ -410,7 +445,7 @@ public class Account {
 			Handler handler) {
 		if (sessionToken == null)
 			throw new IllegalArgumentException("Session Token is null");
-		Request request = new DyadsRequest(sessionToken);
+		Request<List<Dyad>> request = new DyadsRequest(sessionToken);
 		client.asyncExecute(request, this, foo, handler);
 	}
 	*/
@@ -426,10 +461,10 @@ public class Account {
 	 *             If there is no session token. Handle this by calling
 	 *             {@link #register} first.
 	 */
-	public void authenticate(Request request) throws NotRegisteredException {
+	public void authenticate(Request<?> request) throws NotRegisteredException {
 		if (sessionToken == null)
 			throw new NotRegisteredException();
-		request.getHttpRequest().addHeader("X-Dyad-Authentication",
+		request.getHttpRequest().addHeader("X-Dyad-Authorization",
 				sessionToken.toString());
 	}
 	
@@ -457,7 +492,7 @@ public class Account {
 						.getString(AccountManager.KEY_ACCOUNT_NAME);
 
 				// perform the API request in a separate thread
-				Request request = new RegisterRequest(authToken);
+				Request<String> request = new RegisterRequest(authToken);
 				client.asyncExecute(request, Account.this,
 						new DyadRequestCallback() {
 
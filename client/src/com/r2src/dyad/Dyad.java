@@ -1,9 +1,15 @@
 package com.r2src.dyad;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 
-import com.r2src.dyad.request.Request;
-import com.r2src.dyad.request.DyadRequestCallback;
-import com.r2src.dyad.request.StreamRequest;
+import com.r2src.dyad.ice.CachedPath;
+import com.r2src.dyad.ice.IceAgent;
+import com.r2src.dyad.ice.IceConfiguration;
+import com.r2src.dyad.ice.PathCache;
+import com.r2src.dyad.request.GetSdpMessageRequest;
+import com.r2src.dyad.request.SdpMessageRequest;
 
 import android.os.Handler;
 
@@ -19,7 +25,10 @@ import android.os.Handler;
  * server will bond the devices and the Dyad is fully operational.
  * <p>
  * A fully operational Dyad can be used to request a {@link Stream} object
- * by calling {@link #getStream}.
+ * by calling {@link #getStream}. A single stream can carry several kinds of
+ * data, each with its own priority, through {@link Stream#openMultiplexer}.
+ * The stream is set up peer-to-peer by an {@link IceAgent}, with the Dyad
+ * server only passing the candidates of both devices along.
  */
 public class Dyad {
 	private Account account;
@@ -33,15 +42,139 @@ public class Dyad {
 		if (account == null)
 			throw new IllegalArgumentException("account can't be null");
 		this.account = account;
+		this.id = id;
 	}
 	
 	/**
-	 * Get a stream for communication
-	 * 
+	 * Sets up a stream to the other device, which has to call this at about
+	 * the same time. Blocks until the stream is ready.
+	 * <p>
+	 * The local credentials and host candidates are sent to the other device
+	 * through the server right away, and the other candidates are trickled
+	 * after them as they are gathered. Both devices check candidate pairs as
+	 * soon as they know of them, until one works.
+	 * <p>
+	 * The pair that worked is remembered for a while, see
+	 * {@link Account#getPathCache}. When the device is still on the same
+	 * network the next time, that pair is checked first, and a direct pair
+	 * spares the round trips to the STUN and TURN servers.
+	 *
+	 * @param timeoutMillis
+	 *            The longest time to wait for the other device and for a pair
+	 *            that works, altogether.
+	 * @throws SocketTimeoutException
+	 *             if the other device didn't answer in time, or no pair was
+	 *             found in time.
+	 * @throws IOException
+	 *             if the server can't be reached, or no pair works.
 	 */
-	public void getStream(DyadRequestCallback foo, Handler handler) {
-		Request request = new StreamRequest();
-		account.client.asyncExecute(request, account, foo, handler);
+	public Stream getStream(IceConfiguration config, long timeoutMillis)
+			throws IOException, ServerException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		String network = PathCache.currentNetwork();
+		CachedPath path = account.paths.get(id, network);
+		IceAgent agent = new IceAgent(config);
+		agent.setCachedPath(path);
+		Trickle trickle = new Trickle(account, agent);
+		agent.setListener(trickle);
+		try {
+			agent.start();
+			String description = agent.getLocalDescription();
+			account.client.execute(new SdpMessageRequest(description, true),
+					account);
+			trickle.start(description);
+
+			String remote = null;
+			while (remote == null) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					throw new SocketTimeoutException(
+							"the other device didn't answer");
+				int wait = (int) Math.min(GetSdpMessageRequest.MAX_WAIT,
+						Math.max(1, left / 1000));
+				long asked = System.currentTimeMillis();
+				remote = account.client.execute(new GetSdpMessageRequest(
+						wait), account);
+				if (remote == null)
+					pace(asked, deadline);
+			}
+			try {
+				agent.setRemoteDescription(remote);
+			} catch (IllegalArgumentException e) {
+				IOException failure = new IOException(
+						"the other device's description is invalid");
+				failure.initCause(e);
+				throw failure;
+			}
+			if (!agent.isRemoteCandidatesDone())
+				trickle.follow(deadline);
+			Stream stream = agent.connect(Math.max(1,
+					deadline - System.currentTimeMillis()));
+			account.paths.put(id, network, agent.getSelectedPath());
+			return stream;
+		} catch (IOException e) {
+			if (path != null)
+				account.paths.remove(id, network);
+			throw e;
+		} finally {
+			trickle.stop();
+			// the stream has taken over the socket if there is one
+			agent.close();
+		}
+	}
+
+	/**
+	 * Sleeps for what is left of {@link GetSdpMessageRequest#MIN_POLL_INTERVAL}
+	 * since a poll was sent, in case the server didn't wait, but not past the
+	 * deadline.
+	 */
+	static void pace(long asked, long deadline) throws InterruptedIOException {
+		long now = System.currentTimeMillis();
+		long pause = Math.min(asked + GetSdpMessageRequest.MIN_POLL_INTERVAL,
+				deadline) - now;
+		if (pause <= 0)
+			return;
+		try {
+			Thread.sleep(pause);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Sets up a stream to the other device on a thread of its own, see
+	 * {@link #getStream(IceConfiguration, long)}, and posts the outcome to the
+	 * callback on the given {@link Handler}. It long-polls the server for the
+	 * other device's description, which would take up one of the account's
+	 * worker threads for as long.
+	 */
+	public void getStream(final IceConfiguration config,
+			final long timeoutMillis, final StreamCallback callback,
+			final Handler handler) {
+		if (handler == null)
+			throw new IllegalArgumentException("handler is null");
+		if (callback == null)
+			throw new IllegalArgumentException("callback is null");
+
+		new Thread("Dyad stream") {
+			@Override
+			public void run() {
+				try {
+					final Stream stream = getStream(config, timeoutMillis);
+					handler.post(new Runnable() {
+						public void run() {
+							callback.onStream(stream);
+						}
+					});
+				} catch (final Exception e) {
+					handler.post(new Runnable() {
+						public void run() {
+							callback.onError(e);
+						}
+					});
+				}
+			}
+		}.start();
 	}
 
 	public String getId() {
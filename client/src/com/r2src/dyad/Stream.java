@@ -1,5 +1,283 @@
 package com.r2src.dyad;
 
-public class Stream {
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
+import com.r2src.dyad.stream.BufferPool;
+import com.r2src.dyad.stream.Driver;
+import com.r2src.dyad.stream.FecLink;
+import com.r2src.dyad.stream.JitterBuffer;
+import com.r2src.dyad.stream.Link;
+import com.r2src.dyad.stream.Multiplexer;
+import com.r2src.dyad.stream.ReliableChannel;
+
+/**
+ * A peer-to-peer datagram stream between the two devices of a {@link Dyad}.
+ * <p>
+ * A Stream wraps a connected {@link DatagramChannel}. Frames are sent and
+ * received through direct {@link ByteBuffer}s that are borrowed from a
+ * {@link BufferPool}, so that nothing is allocated per packet (but see
+ * {@link #receive} for non-blocking channels):
+ *
+ * <pre>
+ * ByteBuffer frame = stream.obtainBuffer();
+ * frame.put(payload).flip();
+ * stream.send(frame); // the buffer goes back to the pool
+ *
+ * ByteBuffer received = stream.receive();
+ * try {
+ * 	consume(received);
+ * } finally {
+ * 	stream.release(received);
+ * }
+ * </pre>
+ *
+ * A Stream may be used by one sending and one receiving thread at the same
+ * time.
+ * <p>
+ * Datagrams may be lost or arrive out of order. For data that needs to arrive
+ * complete and in order, use {@link #openReliableChannel} instead. To carry
+ * several kinds of data at once, use {@link #openMultiplexer}. To rebuild lost
+ * datagrams without waiting for them to be sent again, use {@link #openFec}.
+ * To play real-time media at a steady pace, use {@link #openJitterBuffer}.
+ */
+public class Stream implements Link {
+
+	/**
+	 * The largest UDP payload that fits in a single Ethernet frame.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 1472;
+
+	/**
+	 * The default number of pooled buffers.
+	 */
+	public static final int DEFAULT_POOL_SIZE = 64;
+
+	private final DatagramChannel channel;
+	private final BufferPool pool;
+
+	/**
+	 * Creates a stream over a channel that is bound to the local end of an
+	 * established ICE candidate pair.
+	 *
+	 * @param channel
+	 *            A bound datagram channel. It will be connected to the remote
+	 *            address if it isn't already.
+	 * @param remote
+	 *            The address of the other device.
+	 * @param pool
+	 *            The pool to borrow buffers from. Its buffers should be at
+	 *            least {@link #MAX_DATAGRAM_SIZE} bytes large.
+	 */
+	public Stream(DatagramChannel channel, SocketAddress remote,
+			BufferPool pool) throws IOException {
+		if (channel == null)
+			throw new IllegalArgumentException("channel is null");
+		if (pool == null)
+			throw new IllegalArgumentException("pool is null");
+
+		this.channel = channel;
+		this.pool = pool;
+		if (!channel.isConnected())
+			channel.connect(remote);
+	}
+
+	/**
+	 * Opens a new blocking stream from a local address to a remote address,
+	 * with a pool of {@link #DEFAULT_POOL_SIZE} buffers.
+	 */
+	public static Stream open(InetSocketAddress local, InetSocketAddress remote)
+			throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(local);
+			return new Stream(channel, remote, new BufferPool(
+					DEFAULT_POOL_SIZE, MAX_DATAGRAM_SIZE));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Switches this stream to reliable, ordered delivery of messages, and
+	 * starts a thread that reads from it. From then on the stream should only
+	 * be used through the returned channel. Both devices have to do this.
+	 */
+	public ReliableChannel openReliableChannel() throws IOException {
+		ReliableChannel reliable = new ReliableChannel(this);
+		final Driver driver = new Driver(this, reliable);
+		reliable.setWakeup(new Runnable() {
+			@Override
+			public void run() {
+				driver.wakeup();
+			}
+		});
+		driver.start();
+		return reliable;
+	}
+
+	/**
+	 * Splits this stream into sub-streams, and starts a thread that reads from
+	 * it. From then on the stream should only be used through the returned
+	 * multiplexer. Both devices have to do this.
+	 */
+	public Multiplexer openMultiplexer() throws IOException {
+		Multiplexer mux = new Multiplexer(this);
+		final Driver driver = new Driver(this, mux);
+		mux.setWakeup(new Runnable() {
+			@Override
+			public void run() {
+				driver.wakeup();
+			}
+		});
+		driver.start();
+		return mux;
+	}
+
+	/**
+	 * Adds forward error correction to this stream, and starts a thread that
+	 * reads from it. From then on the stream should only be used through the
+	 * returned link. Both devices have to do this.
+	 */
+	public FecLink openFec() throws IOException {
+		FecLink fec = new FecLink(this);
+		final Driver driver = new Driver(this, fec);
+		fec.setWakeup(new Runnable() {
+			@Override
+			public void run() {
+				driver.wakeup();
+			}
+		});
+		driver.start();
+		return fec;
+	}
+
+	/**
+	 * Puts a {@link JitterBuffer} on the receive path of this stream, and
+	 * starts a thread that reads from it. From then on the stream should only
+	 * be used through the returned buffer. Both devices have to do this.
+	 */
+	public JitterBuffer openJitterBuffer() throws IOException {
+		JitterBuffer jitter = new JitterBuffer(this);
+		new Driver(this, jitter).start();
+		return jitter;
+	}
+
+	/**
+	 * Borrows an empty buffer to write an outgoing frame into.
+	 */
+	@Override
+	public ByteBuffer obtainBuffer() {
+		return pool.acquire();
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #receive} or {@link #obtainBuffer}
+	 * to the pool.
+	 */
+	@Override
+	public void release(ByteBuffer buffer) {
+		pool.release(buffer);
+	}
+
+	/**
+	 * Sends the remaining bytes of a frame as a single datagram and releases
+	 * the buffer, whether sending succeeded or not.
+	 *
+	 * @return false if the channel is non-blocking and the datagram could not
+	 *         be sent right away.
+	 */
+	@Override
+	public boolean send(ByteBuffer frame) throws IOException {
+		try {
+			return channel.write(frame) > 0 || !frame.hasRemaining();
+		} finally {
+			pool.release(frame);
+		}
+	}
+
+	/**
+	 * Receives the next datagram into a pooled buffer, which is flipped and
+	 * ready to be read. The caller has to {@link #release} it.
+	 * <p>
+	 * Blocks until a datagram arrives, unless the channel is non-blocking, in
+	 * which case null is returned when there's nothing to read. An empty
+	 * datagram is an empty buffer.
+	 * <p>
+	 * Non-blocking, the sender's address is allocated for every datagram
+	 * (see {@link #readDatagram}).
+	 */
+	public ByteBuffer receive() throws IOException {
+		ByteBuffer buffer = pool.acquire();
+		try {
+			if (!readDatagram(buffer)) {
+				pool.release(buffer);
+				return null;
+			}
+		} catch (IOException e) {
+			pool.release(buffer);
+			throw e;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads the next datagram into a buffer.
+	 * <p>
+	 * A blocking read only returns with a datagram, so whatever it returns
+	 * for an empty one (0, or -1 on OpenJDK) is an empty buffer. A
+	 * non-blocking read returns 0 when there is none as well, so then
+	 * {@link DatagramChannel#receive} tells them apart, at the cost of the
+	 * sender's address (and on Android a DatagramPacket) per datagram.
+	 *
+	 * @return false if the channel is non-blocking and there was nothing to
+	 *         read.
+	 */
+	protected boolean readDatagram(ByteBuffer buffer) throws IOException {
+		if (!channel.isBlocking())
+			return channel.receive(buffer) != null;
+		// a datagram channel has no end of stream
+		channel.read(buffer);
+		return true;
+	}
+
+	/**
+	 * Returns the size of the pooled buffers, which limits the size of the
+	 * frames that can be sent.
+	 */
+	@Override
+	public int getMaxPacketSize() {
+		return pool.getBufferSize();
+	}
+
+	/**
+	 * Returns the underlying channel, for example to register it with a
+	 * {@link java.nio.channels.Selector}.
+	 */
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the pool that this stream borrows its buffers from.
+	 */
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Closes the underlying channel.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
 }
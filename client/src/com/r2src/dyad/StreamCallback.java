@@ -0,0 +1,14 @@
+package com.r2src.dyad;
+
+/**
+ * Receives the outcome of {@link Dyad#getStream(com.r2src.dyad.ice.IceConfiguration, long, StreamCallback, android.os.Handler)}.
+ */
+public interface StreamCallback {
+
+	/**
+	 * Called with a stream to the other device of the Dyad.
+	 */
+	public void onStream(Stream stream);
+
+	public void onError(Exception e);
+}
@@ -0,0 +1,160 @@
+package com.r2src.dyad;
+
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+
+import com.r2src.dyad.ice.Candidate;
+import com.r2src.dyad.ice.IceAgent;
+import com.r2src.dyad.request.CandidatesRequest;
+import com.r2src.dyad.request.GetCandidatesRequest;
+import com.r2src.dyad.request.GetSdpMessageRequest;
+
+/**
+ * Trickles the candidates of an {@link IceAgent} to the other device through
+ * the server, and the other device's candidates to the agent.
+ * <p>
+ * Candidates go out in batches: while one batch is on its way, the candidates
+ * that are gathered in the meantime wait for the next one. They are sent on
+ * the account's worker threads. The other device's candidates are followed
+ * with long polls on a thread of their own, which would otherwise take up a
+ * worker for up to {@link GetSdpMessageRequest#MAX_WAIT} seconds at a time.
+ */
+class Trickle implements IceAgent.Listener {
+
+	private final Account account;
+	private final IceAgent agent;
+
+	// guarded by this
+	private final Set<String> sent = new HashSet<String>();
+	private StringBuilder pending = new StringBuilder();
+	private boolean started;
+	private boolean sending;
+	private volatile boolean stopped;
+	private volatile Thread follower;
+	private volatile GetCandidatesRequest polling;
+
+	Trickle(Account account, IceAgent agent) {
+		this.account = account;
+		this.agent = agent;
+	}
+
+	/**
+	 * Starts sending candidates, once the description they follow has been
+	 * sent. The candidates in it aren't sent again.
+	 */
+	synchronized void start(String description) {
+		for (String line : description.split("\r?\n")) {
+			line = line.trim();
+			if (line.startsWith("a=candidate:")
+					|| line.equals("a=end-of-candidates"))
+				sent.add(line);
+		}
+		started = true;
+		flush();
+	}
+
+	/**
+	 * Starts following the candidates of the other device.
+	 */
+	void follow(final long deadline) {
+		Thread thread = new Thread("Dyad trickle") {
+			@Override
+			public void run() {
+				int since = 0;
+				try {
+					while (!stopped && !agent.isRemoteCandidatesDone()) {
+						long left = deadline - System.currentTimeMillis();
+						if (left <= 0)
+							return;
+						int wait = (int) Math.min(
+								GetSdpMessageRequest.MAX_WAIT,
+								Math.max(1, left / 1000));
+						GetCandidatesRequest request = new GetCandidatesRequest(
+								since, wait);
+						polling = request;
+						// stop() may have come before it could abort this one
+						if (stopped)
+							return;
+						long asked = System.currentTimeMillis();
+						GetCandidatesRequest.Batches batches = account.client
+								.execute(request, account);
+						if (batches == null) {
+							Dyad.pace(asked, deadline);
+							continue;
+						}
+						for (String batch : batches.candidates)
+							agent.addRemoteCandidates(batch);
+						since = batches.next;
+					}
+				} catch (InterruptedIOException e) {
+					// stopped
+				} catch (Exception e) {
+					// the checks go on with the candidates there are
+				} finally {
+					polling = null;
+				}
+			}
+		};
+		thread.setDaemon(true);
+		follower = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stops trickling in both directions. A long poll that is under way is
+	 * aborted.
+	 */
+	void stop() {
+		stopped = true;
+		GetCandidatesRequest request = polling;
+		if (request != null)
+			((AbortableHttpRequest) request.getHttpRequest()).abort();
+		Thread thread = follower;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	@Override
+	public synchronized void onCandidate(Candidate candidate) {
+		add("a=" + candidate);
+	}
+
+	@Override
+	public synchronized void onGatheringDone() {
+		add("a=end-of-candidates");
+	}
+
+	private void add(String line) {
+		if (sent.add(line)) {
+			pending.append(line).append("\r\n");
+			flush();
+		}
+	}
+
+	private void flush() {
+		if (!started || sending || stopped || pending.length() == 0)
+			return;
+		final String batch = pending.toString();
+		pending = new StringBuilder();
+		sending = true;
+		account.client.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					account.client.execute(new CandidatesRequest(batch),
+							account);
+				} catch (Exception e) {
+					// the other device may do without them
+				} finally {
+					synchronized (Trickle.this) {
+						sending = false;
+						flush();
+					}
+				}
+			}
+		});
+	}
+}
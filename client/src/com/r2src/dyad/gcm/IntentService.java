@@ -9,6 +9,7 @@ import com.google.android.gcm.GCMBaseIntentService;
 import com.r2src.dyad.Account;
 import com.r2src.dyad.request.RegisterGCMRequest;
 import com.r2src.dyad.request.Request;
+import com.r2src.dyad.request.SdpCompressor;
 
 
 /**
@@ -25,16 +26,32 @@ public class IntentService extends GCMBaseIntentService {
 						.putExtra(Account.KEY_EXCEPTION, error));
 	}
 
+	/**
+	 * Re-broadcasts SDP messages pushed by the server. If the message was too
+	 * large for the push, the broadcast contains no message and it has to be
+	 * fetched with a {@link com.r2src.dyad.request.GetSdpMessageRequest}.
+	 * Compressed messages are decompressed first.
+	 */
 	@Override
 	protected void onMessage(Context context, Intent intent) {
-		// TODO Auto-generated method stub
-
+		if ("sdp_message".equals(intent.getStringExtra("type"))) {
+			Intent broadcast = new Intent(Account.ACTION_SDP_MESSAGE_INTENT);
+			String message = intent.getStringExtra("message");
+			try {
+				message = SdpCompressor.decompress(message);
+			} catch (IllegalArgumentException e) {
+				message = null; // corrupt, so let it be fetched instead
+			}
+			if (message != null)
+				broadcast.putExtra(Account.KEY_SDP_MESSAGE, message);
+			LocalBroadcastManager.getInstance(context).sendBroadcast(broadcast);
+		}
 	}
 
 	@Override
 	protected void onRegistered(Context context, String regId) {
 		// TODO handle request from here (create dyadaccount)
-		Request request = new RegisterGCMRequest(regId);
+		Request<Void> request = new RegisterGCMRequest(regId);
 		
 		LocalBroadcastManager.getInstance(context).sendBroadcast(
 				new Intent(Account.ACTION_GCM_REGISTERED_INTENT).putExtra("regId", regId));
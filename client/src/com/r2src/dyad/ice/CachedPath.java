@@ -0,0 +1,72 @@
+package com.r2src.dyad.ice;
+
+/**
+ * The candidate pair that two devices connected over last time, remembered so
+ * that the next connection can try it first, see
+ * {@link IceAgent#setCachedPath}.
+ * <p>
+ * Besides the pair, it holds the local port, so that the same socket address
+ * can be bound again, and the TURN realm and nonce, so that a relay can be
+ * allocated without first being told them. Instances are immutable.
+ */
+public final class CachedPath {
+
+	private final Candidate.Type localType;
+	private final int localPort;
+	private final Candidate remote;
+	private final String realm;
+	private final String nonce;
+
+	/**
+	 * @param localType
+	 *            {@link Candidate.Type#HOST} for a direct pair or
+	 *            {@link Candidate.Type#RELAYED} for one through the relay.
+	 * @param realm
+	 *            The TURN realm, or null.
+	 * @param nonce
+	 *            The TURN nonce, or null.
+	 */
+	public CachedPath(Candidate.Type localType, int localPort,
+			Candidate remote, String realm, String nonce) {
+		if (localType != Candidate.Type.HOST
+				&& localType != Candidate.Type.RELAYED)
+			throw new IllegalArgumentException("not a local base: "
+					+ localType);
+		if (remote == null)
+			throw new IllegalArgumentException("remote is null");
+		this.localType = localType;
+		this.localPort = localPort;
+		this.remote = remote;
+		this.realm = realm;
+		this.nonce = nonce;
+	}
+
+	public Candidate.Type getLocalType() {
+		return localType;
+	}
+
+	public boolean isRelayed() {
+		return localType == Candidate.Type.RELAYED;
+	}
+
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	public Candidate getRemote() {
+		return remote;
+	}
+
+	public String getRealm() {
+		return realm;
+	}
+
+	public String getNonce() {
+		return nonce;
+	}
+
+	@Override
+	public String toString() {
+		return localType.name() + " :" + localPort + " -> " + remote;
+	}
+}
@@ -0,0 +1,195 @@
+package com.r2src.dyad.ice;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A transport address at which a device may be reachable, as gathered by an
+ * {@link IceAgent} and exchanged in SDP as an {@code a=candidate} line.
+ * <p>
+ * Only UDP candidates of a single component are supported.
+ */
+public class Candidate {
+
+	/**
+	 * The kinds of candidates, in order of preference.
+	 */
+	public enum Type {
+		/** An address of one of the device's own interfaces. */
+		HOST("host", 126),
+		/** An address of the device's own that the other device found. */
+		PEER_REFLEXIVE("prflx", 110),
+		/** The address a NAT maps the device to, as found through STUN. */
+		SERVER_REFLEXIVE("srflx", 100),
+		/** An address on a TURN server that relays to the device. */
+		RELAYED("relay", 0);
+
+		final String name;
+		final int preference;
+
+		Type(String name, int preference) {
+			this.name = name;
+			this.preference = preference;
+		}
+
+		static Type forName(String name) {
+			for (Type type : values()) {
+				if (type.name.equals(name))
+					return type;
+			}
+			return null;
+		}
+	}
+
+	private static final int COMPONENT = 1;
+
+	private final Type type;
+	private final InetSocketAddress address;
+	private final InetSocketAddress related;
+	private final long priority;
+	private final String foundation;
+
+	/**
+	 * Creates a candidate with the priority that RFC 8445 recommends.
+	 *
+	 * @param related
+	 *            The host address that a reflexive or relayed candidate
+	 *            derives from, or null.
+	 * @param localPreference
+	 *            Between 0 and 65535, to tell candidates of the same type
+	 *            apart.
+	 */
+	public Candidate(Type type, InetSocketAddress address,
+			InetSocketAddress related, int localPreference) {
+		this(type, address, related, priority(type, localPreference),
+				foundation(type, related != null ? related : address));
+	}
+
+	Candidate(Type type, InetSocketAddress address, InetSocketAddress related,
+			long priority, String foundation) {
+		if (type == null)
+			throw new IllegalArgumentException("type is null");
+		if (address == null)
+			throw new IllegalArgumentException("address is null");
+		this.type = type;
+		this.address = address;
+		this.related = related;
+		this.priority = priority;
+		this.foundation = foundation;
+	}
+
+	/**
+	 * Returns the priority of a candidate of a type:
+	 * 2^24 &times; type preference + 2^8 &times; local preference + 256 -
+	 * component.
+	 */
+	public static long priority(Type type, int localPreference) {
+		return ((long) type.preference << 24) + (localPreference << 8) + 256
+				- COMPONENT;
+	}
+
+	/**
+	 * Candidates of the same type from the same base share a foundation.
+	 */
+	private static String foundation(Type type, InetSocketAddress base) {
+		return Integer.toString(Math.abs((type.name + base.getAddress()
+				.getHostAddress()).hashCode()) % 100000000);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public InetSocketAddress getRelatedAddress() {
+		return related;
+	}
+
+	public long getPriority() {
+		return priority;
+	}
+
+	public String getFoundation() {
+		return foundation;
+	}
+
+	/**
+	 * Parses the value of an {@code a=candidate} line, with or without the
+	 * {@code a=}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the line can't be parsed, or isn't for UDP.
+	 */
+	public static Candidate parse(String line) {
+		String s = line.trim();
+		if (s.startsWith("a="))
+			s = s.substring(2);
+		if (!s.startsWith("candidate:"))
+			throw new IllegalArgumentException("not a candidate: " + line);
+		String[] f = s.substring("candidate:".length()).split(" +");
+		try {
+			if (f.length < 8 || !"udp".equalsIgnoreCase(f[2])
+					|| !"typ".equals(f[6]))
+				throw new IllegalArgumentException("unsupported candidate: "
+						+ line);
+			Type type = Type.forName(f[7]);
+			if (type == null)
+				throw new IllegalArgumentException("unknown type: " + line);
+			InetSocketAddress address = address(f[4], f[5]);
+			InetSocketAddress related = null;
+			for (int i = 8; i + 3 < f.length; i += 2) {
+				if ("raddr".equals(f[i]) && "rport".equals(f[i + 2]))
+					related = address(f[i + 1], f[i + 3]);
+			}
+			return new Candidate(type, address, related,
+					Long.parseLong(f[3]), f[0]);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid candidate: " + line);
+		}
+	}
+
+	private static InetSocketAddress address(String ip, String port) {
+		// only literal addresses, no lookups
+		if (!ip.matches("[0-9.]+|[0-9a-fA-F:.]*:[0-9a-fA-F:.]*"))
+			throw new IllegalArgumentException("not an IP address: " + ip);
+		try {
+			return new InetSocketAddress(InetAddress.getByName(ip),
+					Integer.parseInt(port));
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("not an IP address: " + ip);
+		}
+	}
+
+	/**
+	 * Returns the candidate as the value of an {@code a=candidate} line.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("candidate:").append(foundation)
+				.append(' ').append(COMPONENT).append(" udp ").append(priority)
+				.append(' ').append(address.getAddress().getHostAddress())
+				.append(' ').append(address.getPort()).append(" typ ")
+				.append(type.name);
+		if (related != null)
+			s.append(" raddr ").append(related.getAddress().getHostAddress())
+					.append(" rport ").append(related.getPort());
+		return s.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Candidate))
+			return false;
+		Candidate c = (Candidate) o;
+		return type == c.type && address.equals(c.address);
+	}
+
+	@Override
+	public int hashCode() {
+		return type.hashCode() * 31 + address.hashCode();
+	}
+}
@@ -0,0 +1,1298 @@
+package com.r2src.dyad.ice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.r2src.dyad.Stream;
+import com.r2src.dyad.stream.BufferPool;
+
+/**
+ * Finds a way for two devices to reach each other over UDP, with Interactive
+ * Connectivity Establishment (RFC 8445).
+ * <p>
+ * As soon as it is started, the agent gathers its candidates: the addresses
+ * of the device itself, the address that a STUN server sees it at, and a
+ * relay on a TURN server, all at once. The candidates and credentials are
+ * exchanged with the other device through the Dyad server, see
+ * {@link #getLocalDescription} and {@link #setRemoteDescription}, after which
+ * both agents check every pair of candidates, one new check every
+ * {@link IceConfiguration#getCheckInterval} milliseconds, best pairs first.
+ * <p>
+ * Nomination is aggressive: the controlling agent asks for every pair it
+ * checks to be used, so the first pair that works in both directions is the
+ * one that is selected, without another round of checks. Which agent
+ * controls is settled by the agents themselves.
+ *
+ * <pre>
+ * IceAgent agent = new IceAgent(configuration);
+ * agent.start();
+ * agent.awaitGathering(5000);
+ * send(agent.getLocalDescription());
+ * agent.setRemoteDescription(receive());
+ * Stream stream = agent.connect(10000);
+ * </pre>
+ *
+ * Candidates can also be trickled, so that checks start while gathering is
+ * still going on: send the description right after starting, send the
+ * candidates that the {@link Listener} hears about after it, and hand the ones
+ * of the other device to {@link #addRemoteCandidates} as they arrive.
+ * <p>
+ * All candidates share a single socket, which the returned stream takes over.
+ * <p>
+ * This class is thread-safe.
+ */
+public class IceAgent {
+
+	/**
+	 * Receives candidates as they are gathered, so that they can be sent to
+	 * the other device right away. Listeners are called from the agent's
+	 * thread, and may call the agent.
+	 */
+	public interface Listener {
+		void onCandidate(Candidate candidate);
+
+		void onGatheringDone();
+	}
+
+	private enum Kind {
+		BINDING, ALLOCATE, CHANNEL_BIND, CHECK
+	}
+
+	private enum State {
+		WAITING, IN_PROGRESS, SUCCEEDED, FAILED
+	}
+
+	/**
+	 * A STUN request that is waiting for its response.
+	 */
+	private static class Transaction {
+		final Kind kind;
+		final StunMessage request;
+		final byte[] key;
+		final InetSocketAddress to;
+		final int channel;
+		Pair pair;
+		long rto;
+		long next;
+		int sends;
+
+		Transaction(Kind kind, StunMessage request, byte[] key,
+				InetSocketAddress to, int channel, long rto) {
+			this.kind = kind;
+			this.request = request;
+			this.key = key;
+			this.to = to;
+			this.channel = channel;
+			this.rto = rto;
+		}
+	}
+
+	/**
+	 * A local base, direct or through the relay, and a remote candidate.
+	 */
+	private static class Pair {
+		final boolean relayed;
+		final Candidate remote;
+		long priority;
+		State state = State.WAITING;
+		boolean nominated;
+		// a check of the other agent on this pair succeeded
+		boolean answered;
+
+		Pair(boolean relayed, Candidate remote) {
+			this.relayed = relayed;
+			this.remote = remote;
+		}
+	}
+
+	private static final Comparator<Pair> BY_PRIORITY = new Comparator<Pair>() {
+		@Override
+		public int compare(Pair a, Pair b) {
+			return a.priority < b.priority ? 1 : a.priority > b.priority ? -1
+					: 0;
+		}
+	};
+
+	/**
+	 * The first retransmission timeout of a connectivity check, in
+	 * milliseconds.
+	 */
+	static final long CHECK_RTO = 100;
+
+	/**
+	 * The first retransmission timeout of a request to a server, in
+	 * milliseconds.
+	 */
+	static final long SERVER_RTO = 250;
+
+	static final long MAX_RTO = 1600;
+
+	/**
+	 * The number of times a request is sent before it is given up on.
+	 */
+	static final int MAX_SENDS = 7;
+
+	/**
+	 * How long a cached direct path gets to work before the STUN and TURN
+	 * servers are asked after all, in milliseconds from when the other
+	 * device's credentials arrive.
+	 */
+	static final long CACHED_PATH_GRACE = 1000;
+
+	static final int FIRST_CHANNEL = 0x4000;
+	static final int LAST_CHANNEL = 0x7fff;
+
+	// channel number, length
+	private static final int CHANNEL_HEADER = 4;
+	private static final int UDP = 17;
+	private static final String ICE_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+			+ "abcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	private final IceConfiguration config;
+	private final String localUfrag;
+	private final String localPassword;
+	private final byte[] localKey;
+	private final long tieBreaker;
+	private final Thread thread;
+	private DatagramChannel channel;
+	private Selector selector;
+	private int localPort;
+
+	// the agent's thread only
+	private final ByteBuffer in = ByteBuffer
+			.allocate(Stream.MAX_DATAGRAM_SIZE);
+	private final ByteBuffer out = ByteBuffer
+			.allocate(Stream.MAX_DATAGRAM_SIZE);
+
+	// guarded by this
+	private Listener listener;
+	private final List<Candidate> announced = new ArrayList<Candidate>();
+	private boolean announcedDone;
+	private boolean controlling = true;
+	private String remoteUfrag;
+	private byte[] remoteKey;
+	private boolean remoteDone;
+	private final List<Candidate> localCandidates = new ArrayList<Candidate>();
+	private final List<Candidate> remoteCandidates = new ArrayList<Candidate>();
+	private Candidate host;
+	private final List<Pair> pairs = new ArrayList<Pair>();
+	private final LinkedList<Pair> triggered = new LinkedList<Pair>();
+	private final Map<ByteBuffer, Transaction> transactions = new HashMap<ByteBuffer, Transaction>();
+	private long nextCheck;
+	private long gatheringDeadline;
+	private int gathering;
+	private boolean gatheringDone;
+	private Pair selected;
+	private IOException failure;
+	private boolean started;
+	private boolean closed;
+	private boolean handedOver;
+	private long checksSent;
+
+	// relay, guarded by this
+	private TurnAllocation allocation;
+	private Candidate relay;
+	private final Map<InetSocketAddress, Integer> channels = new HashMap<InetSocketAddress, Integer>();
+	private final Map<Integer, InetSocketAddress> peers = new HashMap<Integer, InetSocketAddress>();
+	private final List<Integer> bound = new ArrayList<Integer>();
+	private int nextChannel = FIRST_CHANNEL;
+
+	// a path that worked before, guarded by this
+	private CachedPath cachedPath;
+	private boolean serversDeferred;
+	private long fallbackAt;
+	private boolean cachedCredentials;
+
+	/**
+	 * Creates an agent. Nothing happens until it is {@link #start started}.
+	 */
+	public IceAgent(IceConfiguration config) {
+		if (config == null)
+			throw new IllegalArgumentException("configuration is null");
+		this.config = config;
+		SecureRandom random = new SecureRandom();
+		localUfrag = randomString(random, 8);
+		localPassword = randomString(random, 24);
+		localKey = StunMessage.shortTermKey(localPassword);
+		tieBreaker = random.nextLong();
+		thread = new Thread("Dyad ICE agent") {
+			@Override
+			public void run() {
+				loop();
+			}
+		};
+		thread.setDaemon(true);
+	}
+
+	private static String randomString(SecureRandom random, int length) {
+		StringBuilder s = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			s.append(ICE_CHARS.charAt(random.nextInt(ICE_CHARS.length())));
+		return s.toString();
+	}
+
+	/**
+	 * Sets the listener for gathered candidates. It has to be set before the
+	 * agent is started to hear about all of them.
+	 */
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Chooses whether this agent starts out controlling. It doesn't have to be
+	 * set: a conflict is resolved by the agents.
+	 */
+	public synchronized void setControlling(boolean controlling) {
+		this.controlling = controlling;
+	}
+
+	/**
+	 * Gives the agent the path that worked the last time, see
+	 * {@link #getSelectedPath}, before it is started. The same local port is
+	 * bound again if it is free, the pair is checked before any other, and
+	 * when it was a direct pair the STUN and TURN servers are only asked if it
+	 * doesn't work within {@link #CACHED_PATH_GRACE} milliseconds.
+	 */
+	public synchronized void setCachedPath(CachedPath path) {
+		if (started)
+			throw new IllegalStateException("already started");
+		cachedPath = path;
+	}
+
+	public synchronized boolean isControlling() {
+		return controlling;
+	}
+
+	public String getLocalUfrag() {
+		return localUfrag;
+	}
+
+	public String getLocalPassword() {
+		return localPassword;
+	}
+
+	/**
+	 * Opens the socket and starts gathering candidates, in the background.
+	 */
+	public synchronized void start() throws IOException {
+		if (started)
+			throw new IllegalStateException("already started");
+		started = true;
+		if (cachedPath != null
+				&& (cachedPath.isRelayed() ? config.getTurnServer() == null
+						: config.isRelayOnly()))
+			cachedPath = null;
+		channel = open(cachedPath != null ? cachedPath.getLocalPort() : 0);
+		try {
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			channel.close();
+			if (selector != null)
+				selector.close();
+			throw e;
+		}
+		localPort = channel.socket().getLocalPort();
+
+		if (!config.isRelayOnly())
+			gatherHosts(localPort);
+		if (cachedPath != null && !cachedPath.isRelayed() && host != null) {
+			// the direct pair will most likely work again
+			serversDeferred = true;
+		} else {
+			startServers(System.currentTimeMillis());
+		}
+		// the other device probably binds the same port again too
+		if (cachedPath != null
+				&& cachedPath.getRemote().getType() != Candidate.Type.RELAYED)
+			addRemoteCandidate(cachedPath.getRemote());
+		thread.start();
+	}
+
+	/**
+	 * Opens a channel on a port, or on any port if that one is taken.
+	 */
+	private static DatagramChannel open(int port) throws IOException {
+		if (port > 0) {
+			DatagramChannel channel = DatagramChannel.open();
+			try {
+				channel.socket().bind(new InetSocketAddress(port));
+				return channel;
+			} catch (IOException e) {
+				channel.close();
+			}
+		}
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(0));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Asks the STUN and TURN servers for candidates.
+	 */
+	private void startServers(long now) throws IOException {
+		gatheringDeadline = now + config.getGatheringTimeout();
+		if (config.getStunServer() != null && !config.isRelayOnly()) {
+			gathering++;
+			begin(new Transaction(Kind.BINDING,
+					StunMessage.request(StunMessage.BINDING), null,
+					config.getStunServer(), 0, SERVER_RTO), now);
+		}
+		if (config.getTurnServer() != null) {
+			gathering++;
+			if (cachedPath != null && cachedPath.getRealm() != null
+					&& cachedPath.getNonce() != null) {
+				// no need to be told the realm and nonce again
+				allocation = new TurnAllocation(config.getTurnServer(),
+						config.getTurnUsername(), cachedPath.getRealm(),
+						config.getTurnPassword(), cachedPath.getNonce());
+				cachedCredentials = true;
+				begin(allocateRequest(allocation), allocation.key, now);
+			} else {
+				begin(new Transaction(Kind.ALLOCATE, allocateRequest(), null,
+						config.getTurnServer(), 0, SERVER_RTO), now);
+			}
+		}
+	}
+
+	private void gatherHosts(int port) throws IOException {
+		List<InetAddress> addresses = new ArrayList<InetAddress>();
+		Enumeration<NetworkInterface> interfaces = NetworkInterface
+				.getNetworkInterfaces();
+		while (interfaces != null && interfaces.hasMoreElements()) {
+			NetworkInterface i = interfaces.nextElement();
+			if (!i.isUp())
+				continue;
+			for (Enumeration<InetAddress> e = i.getInetAddresses(); e
+					.hasMoreElements();) {
+				InetAddress address = e.nextElement();
+				// the socket is bound to the IPv4 wildcard address
+				if (!(address instanceof Inet4Address))
+					continue;
+				if (address.isLoopbackAddress() && !config.isLoopbackIncluded())
+					continue;
+				addresses.add(address);
+			}
+		}
+		// earlier interfaces are preferred
+		int preference = 65535;
+		for (InetAddress address : addresses) {
+			Candidate c = new Candidate(Candidate.Type.HOST,
+					new InetSocketAddress(address, port), null, preference);
+			preference = Math.max(0, preference - 1);
+			if (host == null)
+				host = c;
+			addLocal(c);
+		}
+	}
+
+	/**
+	 * Waits until all candidates are gathered, or the gathering timeout has
+	 * passed.
+	 *
+	 * @return false if gathering didn't finish in time.
+	 */
+	public synchronized boolean awaitGathering(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!gatheringDone && !closed) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			wait(wait);
+		}
+		return gatheringDone;
+	}
+
+	public synchronized boolean isGatheringDone() {
+		return gatheringDone;
+	}
+
+	/**
+	 * Returns the candidates gathered so far.
+	 */
+	public synchronized List<Candidate> getLocalCandidates() {
+		return new ArrayList<Candidate>(localCandidates);
+	}
+
+	/**
+	 * Returns the credentials and the candidates gathered so far as SDP
+	 * attribute lines, ending with {@code a=end-of-candidates} when gathering
+	 * is done.
+	 */
+	public synchronized String getLocalDescription() {
+		StringBuilder s = new StringBuilder();
+		s.append("a=ice-ufrag:").append(localUfrag).append("\r\n");
+		s.append("a=ice-pwd:").append(localPassword).append("\r\n");
+		for (Candidate c : localCandidates)
+			s.append("a=").append(c).append("\r\n");
+		if (gatheringDone)
+			s.append("a=end-of-candidates\r\n");
+		return s.toString();
+	}
+
+	/**
+	 * Takes in the SDP attribute lines of the other device, once the agent is
+	 * started. Lines that aren't about ICE, and candidates that can't be used,
+	 * are skipped. More candidates may follow, see
+	 * {@link #addRemoteCandidates}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the credentials are missing.
+	 */
+	public void setRemoteDescription(String description) {
+		String ufrag = null;
+		String password = null;
+		for (String line : description.split("\r?\n")) {
+			line = line.trim();
+			if (line.startsWith("a=ice-ufrag:"))
+				ufrag = line.substring(12);
+			else if (line.startsWith("a=ice-pwd:"))
+				password = line.substring(10);
+		}
+		if (ufrag == null || password == null)
+			throw new IllegalArgumentException("credentials are missing");
+		setRemoteCredentials(ufrag, password);
+		addRemoteCandidates(description);
+	}
+
+	/**
+	 * Takes in the {@code a=candidate} lines, and the
+	 * {@code a=end-of-candidates} line, that the other device trickles after
+	 * its description. Checks on them start right away.
+	 */
+	public void addRemoteCandidates(String lines) {
+		for (String line : lines.split("\r?\n")) {
+			line = line.trim();
+			if (line.equals("a=end-of-candidates")) {
+				setRemoteCandidatesDone();
+			} else if (line.startsWith("a=candidate:")) {
+				try {
+					addRemoteCandidate(Candidate.parse(line));
+				} catch (IllegalArgumentException ignore) {
+					// TCP, or a host name
+				}
+			}
+		}
+	}
+
+	public synchronized void setRemoteCredentials(String ufrag, String password) {
+		remoteUfrag = ufrag;
+		remoteKey = StunMessage.shortTermKey(password);
+		if (serversDeferred && fallbackAt == 0)
+			fallbackAt = System.currentTimeMillis() + CACHED_PATH_GRACE;
+		wakeup();
+	}
+
+	/**
+	 * Adds a candidate of the other device, and pairs it with the local
+	 * bases.
+	 */
+	public synchronized void addRemoteCandidate(Candidate candidate) {
+		if (closed || handedOver || findRemote(candidate.getAddress()) != null)
+			return;
+		remoteCandidates.add(candidate);
+		pair(candidate);
+		wakeup();
+	}
+
+	/**
+	 * Tells the agent that the other device won't send any more candidates, so
+	 * that it can give up as soon as all pairs have failed.
+	 */
+	public synchronized void setRemoteCandidatesDone() {
+		remoteDone = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isRemoteCandidatesDone() {
+		return remoteDone;
+	}
+
+	/**
+	 * Waits for a candidate pair to be selected, and hands the socket over to
+	 * a stream on it. The agent is done after this, whether it succeeds or
+	 * not.
+	 *
+	 * @throws SocketTimeoutException
+	 *             if no pair was selected in time.
+	 * @throws IOException
+	 *             if all pairs have failed.
+	 */
+	public Stream connect(long timeoutMillis) throws IOException {
+		Pair pair;
+		synchronized (this) {
+			try {
+				long deadline = System.currentTimeMillis() + timeoutMillis;
+				while (selected == null) {
+					if (closed)
+						throw new IOException("agent is closed");
+					if (failure != null)
+						throw failure;
+					if (hopeless())
+						throw new IOException("no candidate pair works");
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						throw new SocketTimeoutException(
+								"no candidate pair was selected in time");
+					wait(wait);
+				}
+			} catch (InterruptedException e) {
+				close();
+				throw new InterruptedIOException();
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			pair = selected;
+			handedOver = true;
+		}
+		selector.wakeup();
+		try {
+			thread.join();
+			channel.configureBlocking(true);
+			BufferPool pool = new BufferPool(Stream.DEFAULT_POOL_SIZE,
+					Stream.MAX_DATAGRAM_SIZE);
+			InetSocketAddress remote = pair.remote.getAddress();
+			if (!pair.relayed)
+				return new IceStream(channel, remote, pool, localKey);
+			synchronized (this) {
+				return new IceStream(channel, remote, pool, localKey,
+						allocation, channels.get(remote));
+			}
+		} catch (InterruptedException e) {
+			channel.close();
+			throw new InterruptedIOException();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the local candidate of the selected pair, or null.
+	 */
+	public synchronized Candidate getSelectedLocal() {
+		if (selected == null)
+			return null;
+		return selected.relayed ? relay : host;
+	}
+
+	/**
+	 * Returns the remote candidate of the selected pair, or null.
+	 */
+	public synchronized Candidate getSelectedRemote() {
+		return selected == null ? null : selected.remote;
+	}
+
+	/**
+	 * Returns the selected path, to try first the next time, or null.
+	 */
+	public synchronized CachedPath getSelectedPath() {
+		if (selected == null)
+			return null;
+		return new CachedPath(selected.relayed ? Candidate.Type.RELAYED
+				: Candidate.Type.HOST, localPort, selected.remote,
+				allocation != null ? allocation.realm : null,
+				allocation != null ? allocation.nonce : null);
+	}
+
+	/**
+	 * Returns the number of connectivity checks that were started.
+	 */
+	public synchronized long getChecksSent() {
+		return checksSent;
+	}
+
+	/**
+	 * Stops the agent and closes its socket, unless a stream has taken it
+	 * over.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed || handedOver)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		if (selector != null)
+			selector.wakeup();
+		if (!started || !thread.isAlive()) {
+			try {
+				if (channel != null)
+					channel.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private void wakeup() {
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	private void loop() {
+		try {
+			while (true) {
+				long wait;
+				synchronized (this) {
+					if (closed || handedOver)
+						break;
+					wait = onTimer(System.currentTimeMillis());
+				}
+				announce();
+				selector.select(wait < 0 ? 0 : Math.max(1, wait));
+				selector.selectedKeys().clear();
+				synchronized (this) {
+					if (closed || handedOver)
+						break;
+					read();
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+				notifyAll();
+			}
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException ignore) {
+			}
+			synchronized (this) {
+				if (!handedOver) {
+					closed = true;
+					try {
+						channel.close();
+					} catch (IOException ignore) {
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells the listener about new candidates, without holding the lock.
+	 */
+	private void announce() {
+		Listener l;
+		List<Candidate> candidates;
+		boolean done;
+		synchronized (this) {
+			if (announced.isEmpty() && !announcedDone)
+				return;
+			l = listener;
+			candidates = new ArrayList<Candidate>(announced);
+			done = announcedDone;
+			announced.clear();
+			announcedDone = false;
+		}
+		if (l == null)
+			return;
+		for (Candidate c : candidates)
+			l.onCandidate(c);
+		if (done)
+			l.onGatheringDone();
+	}
+
+	private void read() throws IOException {
+		while (true) {
+			in.clear();
+			InetSocketAddress from = (InetSocketAddress) channel.receive(in);
+			if (from == null)
+				return;
+			in.flip();
+			onPacket(in, from);
+		}
+	}
+
+	/**
+	 * Retransmits requests, starts the next check and finishes gathering
+	 * when it is time.
+	 *
+	 * @return the time until it has to be called again, or -1.
+	 */
+	private long onTimer(long now) throws IOException {
+		long wait = -1;
+
+		List<Transaction> due = new ArrayList<Transaction>();
+		for (Transaction t : transactions.values()) {
+			if (t.next <= now)
+				due.add(t);
+			else
+				wait = min(wait, t.next - now);
+		}
+		for (Transaction t : due) {
+			if (t.sends >= MAX_SENDS) {
+				transactions.remove(key(t.request));
+				onTimeout(t);
+				continue;
+			}
+			send(t);
+			t.rto = Math.min(t.rto * 2, MAX_RTO);
+			wait = min(wait, t.next - now);
+		}
+
+		if (serversDeferred) {
+			Pair cached = findPair(false, cachedPath.getRemote().getAddress());
+			if (selected == null
+					&& (fallbackAt > 0 && now >= fallbackAt || cached != null
+							&& cached.state == State.FAILED)) {
+				serversDeferred = false;
+				startServers(now);
+			} else if (fallbackAt > 0) {
+				wait = min(wait, Math.max(1, fallbackAt - now));
+			}
+		}
+
+		if (!gatheringDone && !serversDeferred) {
+			if (gathering == 0 || now >= gatheringDeadline)
+				finishGathering();
+			else
+				wait = min(wait, gatheringDeadline - now);
+		}
+
+		if (remoteKey != null && selected == null) {
+			if (now >= nextCheck) {
+				Pair pair = nextPair();
+				if (pair != null) {
+					check(pair, now);
+					nextCheck = now + config.getCheckInterval();
+				}
+			}
+			if (nextPairExists())
+				wait = min(wait, Math.max(1, nextCheck - now));
+		}
+		return wait;
+	}
+
+	private static long min(long wait, long other) {
+		return wait < 0 ? other : Math.min(wait, other);
+	}
+
+	private void onPacket(ByteBuffer packet, InetSocketAddress from)
+			throws IOException {
+		int channelNumber = 0;
+		InetSocketAddress source = from;
+		if (allocation != null && from.equals(allocation.server)
+				&& packet.remaining() >= CHANNEL_HEADER
+				&& (packet.get(0) & 0xc0) == 0x40) {
+			channelNumber = packet.getShort(0) & 0xffff;
+			source = peers.get(channelNumber);
+			if (source == null)
+				return;
+			int length = packet.getShort(2) & 0xffff;
+			packet.position(CHANNEL_HEADER);
+			packet.limit(Math.min(packet.limit(), CHANNEL_HEADER + length));
+		}
+		StunMessage message = StunMessage.decode(packet);
+		if (message == null)
+			return;
+
+		switch (message.getMessageClass()) {
+		case StunMessage.REQUEST:
+			if (message.getMethod() == StunMessage.BINDING)
+				onCheck(message, source, channelNumber);
+			break;
+		case StunMessage.SUCCESS:
+		case StunMessage.ERROR:
+			Transaction t = transactions.get(key(message));
+			if (t == null || !t.to.equals(source))
+				return;
+			// servers don't sign their errors, the other agent signs all
+			if (t.key != null && !message.verify(t.key)
+					&& (t.kind == Kind.CHECK || message
+							.getMessageClass() == StunMessage.SUCCESS))
+				return;
+			transactions.remove(key(message));
+			onResponse(t, message);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void onResponse(Transaction t, StunMessage response)
+			throws IOException {
+		boolean success = response.getMessageClass() == StunMessage.SUCCESS;
+		switch (t.kind) {
+		case BINDING:
+			if (success)
+				addReflexive(response);
+			gathering--;
+			break;
+		case ALLOCATE:
+			onAllocate(t, response);
+			break;
+		case CHANNEL_BIND:
+			if (success) {
+				int number = (int) (t.request.getInt(
+						StunMessage.CHANNEL_NUMBER, 0) >>> 16);
+				bound.add(number);
+			} else if (staleNonce(response)) {
+				InetSocketAddress peer = t.request
+						.getAddress(StunMessage.XOR_PEER_ADDRESS);
+				bindChannel(peer, channels.get(peer));
+			} else {
+				failRelayed(t.request.getAddress(StunMessage.XOR_PEER_ADDRESS));
+			}
+			break;
+		case CHECK:
+			onCheckResponse(t, response);
+			break;
+		}
+	}
+
+	private void onTimeout(Transaction t) {
+		switch (t.kind) {
+		case BINDING:
+		case ALLOCATE:
+			gathering--;
+			break;
+		case CHANNEL_BIND:
+			failRelayed(t.request.getAddress(StunMessage.XOR_PEER_ADDRESS));
+			break;
+		case CHECK:
+			t.pair.state = State.FAILED;
+			notifyAll();
+			break;
+		}
+	}
+
+	private boolean staleNonce(StunMessage response) {
+		if (response.getErrorCode() != 438
+				|| !response.has(StunMessage.NONCE))
+			return false;
+		allocation.nonce = response.getString(StunMessage.NONCE);
+		return true;
+	}
+
+	// gathering
+
+	private StunMessage allocateRequest() {
+		return StunMessage.request(StunMessage.ALLOCATE).addInt(
+				StunMessage.REQUESTED_TRANSPORT, UDP << 24);
+	}
+
+	private void onAllocate(Transaction t, StunMessage response)
+			throws IOException {
+		long now = System.currentTimeMillis();
+		if (response.getMessageClass() == StunMessage.ERROR) {
+			int code = response.getErrorCode();
+			if (code == 401 && (t.key == null || cachedCredentials)
+					&& response.has(StunMessage.REALM)
+					&& response.has(StunMessage.NONCE)) {
+				// the first request only asks for a realm and a nonce
+				cachedCredentials = false;
+				allocation = new TurnAllocation(config.getTurnServer(),
+						config.getTurnUsername(),
+						response.getString(StunMessage.REALM),
+						config.getTurnPassword(),
+						response.getString(StunMessage.NONCE));
+				begin(allocateRequest(allocation), allocation.key, now);
+				return;
+			}
+			if (code == 438 && allocation != null && staleNonce(response)) {
+				begin(allocateRequest(allocation), allocation.key, now);
+				return;
+			}
+			allocation = null;
+			gathering--;
+			return;
+		}
+		InetSocketAddress relayed = response
+				.getAddress(StunMessage.XOR_RELAYED_ADDRESS);
+		if (allocation == null || relayed == null) {
+			allocation = null;
+			gathering--;
+			return;
+		}
+		allocation.relayed = relayed;
+		allocation.lifetime = response.getInt(StunMessage.LIFETIME, 600);
+		if (!config.isRelayOnly())
+			addReflexive(response);
+		relay = new Candidate(Candidate.Type.RELAYED, relayed,
+				response.getAddress(StunMessage.XOR_MAPPED_ADDRESS), 65535);
+		addLocal(relay);
+		gathering--;
+		for (Candidate remote : remoteCandidates)
+			pairRelayed(remote);
+	}
+
+	private StunMessage allocateRequest(TurnAllocation allocation) {
+		return allocation.request(StunMessage.ALLOCATE).addInt(
+				StunMessage.REQUESTED_TRANSPORT, UDP << 24);
+	}
+
+	private void begin(StunMessage request, byte[] key, long now)
+			throws IOException {
+		begin(new Transaction(Kind.ALLOCATE, request, key,
+				config.getTurnServer(), 0, SERVER_RTO), now);
+	}
+
+	private void addReflexive(StunMessage response) {
+		InetSocketAddress mapped = response
+				.getAddress(StunMessage.XOR_MAPPED_ADDRESS);
+		if (mapped == null || host == null)
+			return;
+		for (Candidate c : localCandidates) {
+			// not behind a NAT, or already known
+			if (c.getAddress().equals(mapped))
+				return;
+		}
+		addLocal(new Candidate(Candidate.Type.SERVER_REFLEXIVE, mapped,
+				host.getAddress(), 65535));
+	}
+
+	private void addLocal(Candidate candidate) {
+		localCandidates.add(candidate);
+		announced.add(candidate);
+	}
+
+	private void finishGathering() {
+		gatheringDone = true;
+		// the servers that haven't answered are given up on
+		for (Iterator<Transaction> i = transactions.values().iterator(); i
+				.hasNext();) {
+			Kind kind = i.next().kind;
+			if (kind == Kind.BINDING || kind == Kind.ALLOCATE)
+				i.remove();
+		}
+		gathering = 0;
+		announcedDone = true;
+		notifyAll();
+	}
+
+	// pairs
+
+	private Candidate findRemote(InetSocketAddress address) {
+		for (Candidate c : remoteCandidates) {
+			if (c.getAddress().equals(address))
+				return c;
+		}
+		return null;
+	}
+
+	private Pair findPair(boolean relayed, InetSocketAddress remote) {
+		for (Pair p : pairs) {
+			if (p.relayed == relayed && p.remote.getAddress().equals(remote))
+				return p;
+		}
+		return null;
+	}
+
+	private void pair(Candidate remote) {
+		if (host != null && !config.isRelayOnly()
+				&& remote.getAddress().getAddress() instanceof Inet4Address)
+			addPair(new Pair(false, remote));
+		if (relay != null)
+			pairRelayed(remote);
+	}
+
+	private void pairRelayed(Candidate remote) {
+		InetSocketAddress peer = remote.getAddress();
+		if (findPair(true, peer) != null)
+			return;
+		if (!channels.containsKey(peer)) {
+			if (nextChannel > LAST_CHANNEL)
+				return;
+			int number = nextChannel++;
+			channels.put(peer, number);
+			peers.put(number, peer);
+			try {
+				bindChannel(peer, number);
+			} catch (IOException e) {
+				failure = e;
+				notifyAll();
+				return;
+			}
+		}
+		addPair(new Pair(true, remote));
+	}
+
+	private Pair addPair(Pair pair) {
+		pair.priority = pairPriority(pair);
+		pairs.add(pair);
+		Collections.sort(pairs, BY_PRIORITY);
+		return pair;
+	}
+
+	private void bindChannel(InetSocketAddress peer, int number)
+			throws IOException {
+		begin(new Transaction(Kind.CHANNEL_BIND, allocation.channelBind(
+				number, peer), allocation.key, allocation.server, 0,
+				SERVER_RTO), System.currentTimeMillis());
+	}
+
+	private void failRelayed(InetSocketAddress peer) {
+		Pair pair = findPair(true, peer);
+		if (pair != null) {
+			pair.state = State.FAILED;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the priority of a pair: the controlling agent's candidate
+	 * weighs most.
+	 */
+	private long pairPriority(Pair pair) {
+		long local = pair.relayed ? relay.getPriority() : host.getPriority();
+		long remote = pair.remote.getPriority();
+		long g = controlling ? local : remote;
+		long d = controlling ? remote : local;
+		return (Math.min(g, d) << 32) + 2 * Math.max(g, d) + (g > d ? 1 : 0);
+	}
+
+	private void switchRole() {
+		controlling = !controlling;
+		for (Pair p : pairs)
+			p.priority = pairPriority(p);
+		Collections.sort(pairs, BY_PRIORITY);
+	}
+
+	private boolean ready(Pair pair) {
+		return !pair.relayed || bound.contains(channels.get(
+				pair.remote.getAddress()));
+	}
+
+	private Pair nextPair() {
+		if (cachedPath != null) {
+			Pair p = findPair(cachedPath.isRelayed(), cachedPath.getRemote()
+					.getAddress());
+			if (p != null && p.state == State.WAITING && ready(p)) {
+				triggered.remove(p);
+				return p;
+			}
+		}
+		for (Iterator<Pair> i = triggered.iterator(); i.hasNext();) {
+			Pair p = i.next();
+			if (p.state != State.WAITING) {
+				i.remove();
+			} else if (ready(p)) {
+				i.remove();
+				return p;
+			}
+		}
+		for (Pair p : pairs) {
+			if (p.state == State.WAITING && ready(p))
+				return p;
+		}
+		return null;
+	}
+
+	private boolean nextPairExists() {
+		if (!triggered.isEmpty())
+			return true;
+		for (Pair p : pairs) {
+			if (p.state == State.WAITING && ready(p))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean hopeless() {
+		if (!gatheringDone || !remoteDone || !triggered.isEmpty())
+			return false;
+		for (Pair p : pairs) {
+			if (p.state != State.FAILED)
+				return false;
+		}
+		return true;
+	}
+
+	// checks
+
+	private void check(Pair pair, long now) throws IOException {
+		Candidate.Type type = pair.relayed ? Candidate.Type.RELAYED
+				: Candidate.Type.PEER_REFLEXIVE;
+		StunMessage request = StunMessage.request(StunMessage.BINDING)
+				.addString(StunMessage.USERNAME, remoteUfrag + ":" + localUfrag)
+				.addInt(StunMessage.PRIORITY,
+						(int) Candidate.priority(type, 65535))
+				.addLong(controlling ? StunMessage.ICE_CONTROLLING
+						: StunMessage.ICE_CONTROLLED, tieBreaker);
+		if (controlling)
+			request.addFlag(StunMessage.USE_CANDIDATE);
+		InetSocketAddress remote = pair.remote.getAddress();
+		Transaction t = new Transaction(Kind.CHECK, request, remoteKey,
+				remote, pair.relayed ? channels.get(remote) : 0, CHECK_RTO);
+		t.pair = pair;
+		pair.state = State.IN_PROGRESS;
+		checksSent++;
+		begin(t, now);
+	}
+
+	private void onCheckResponse(Transaction t, StunMessage response) {
+		Pair pair = t.pair;
+		if (response.getMessageClass() == StunMessage.ERROR) {
+			if (response.getErrorCode() == 487) {
+				// the other agent won: try again in the other role
+				boolean wasControlling = t.request
+						.has(StunMessage.ICE_CONTROLLING);
+				if (wasControlling == controlling)
+					switchRole();
+				pair.state = State.WAITING;
+				triggered.addFirst(pair);
+			} else {
+				pair.state = State.FAILED;
+			}
+			notifyAll();
+			return;
+		}
+		pair.state = State.SUCCEEDED;
+		if (t.request.has(StunMessage.USE_CANDIDATE))
+			pair.nominated = true;
+		select(pair);
+		notifyAll();
+	}
+
+	/**
+	 * Answers a connectivity check of the other agent.
+	 */
+	private void onCheck(StunMessage request, InetSocketAddress source,
+			int channelNumber) throws IOException {
+		String username = request.getString(StunMessage.USERNAME);
+		if (username == null || !username.startsWith(localUfrag + ":")
+				|| !request.verify(localKey))
+			return;
+
+		if (controlling && request.has(StunMessage.ICE_CONTROLLING)) {
+			long theirs = request.getLong(StunMessage.ICE_CONTROLLING, 0);
+			if (compare(tieBreaker, theirs) >= 0) {
+				send(StunMessage.response(
+						request, StunMessage.ERROR).addError(487,
+						"Role Conflict"), localKey, source, channelNumber);
+				return;
+			}
+			switchRole();
+		} else if (!controlling && request.has(StunMessage.ICE_CONTROLLED)) {
+			long theirs = request.getLong(StunMessage.ICE_CONTROLLED, 0);
+			if (compare(tieBreaker, theirs) < 0) {
+				send(StunMessage.response(
+						request, StunMessage.ERROR).addError(487,
+						"Role Conflict"), localKey, source, channelNumber);
+				return;
+			}
+			switchRole();
+		}
+
+		send(StunMessage.response(request,
+				StunMessage.SUCCESS).addAddress(
+				StunMessage.XOR_MAPPED_ADDRESS, source), localKey, source,
+				channelNumber);
+
+		boolean relayed = channelNumber != 0;
+		if (relayed ? relay == null : host == null)
+			return;
+		Pair pair = findPair(relayed, source);
+		if (pair == null) {
+			Candidate remote = findRemote(source);
+			if (remote == null) {
+				// a peer-reflexive candidate
+				remote = new Candidate(Candidate.Type.PEER_REFLEXIVE, source,
+						null, request.getInt(StunMessage.PRIORITY, 0),
+						"prflx");
+				remoteCandidates.add(remote);
+			}
+			pair = addPair(new Pair(relayed, remote));
+		}
+		pair.answered = true;
+		if (!controlling && request.has(StunMessage.USE_CANDIDATE))
+			pair.nominated = true;
+
+		if (pair.state == State.SUCCEEDED) {
+			select(pair);
+		} else if (pair.state != State.IN_PROGRESS && !triggered.contains(pair)) {
+			pair.state = State.WAITING;
+			triggered.add(pair);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Compares tie-breakers as the unsigned numbers they are.
+	 */
+	private static int compare(long a, long b) {
+		a += Long.MIN_VALUE;
+		b += Long.MIN_VALUE;
+		return a < b ? -1 : a > b ? 1 : 0;
+	}
+
+	/**
+	 * Selects a pair once it has been nominated and checked both ways: the
+	 * other agent then has a working pair too, so the socket can be handed
+	 * over without leaving its checks unanswered.
+	 */
+	private void select(Pair pair) {
+		if (selected == null && pair.nominated && pair.answered
+				&& pair.state == State.SUCCEEDED) {
+			selected = pair;
+			notifyAll();
+		}
+	}
+
+	// sending
+
+	private static ByteBuffer key(StunMessage message) {
+		return ByteBuffer.wrap(message.getTransactionId());
+	}
+
+	private void begin(Transaction t, long now) throws IOException {
+		transactions.put(key(t.request), t);
+		t.next = now;
+		send(t);
+	}
+
+	private void send(Transaction t) throws IOException {
+		t.sends++;
+		t.next = System.currentTimeMillis() + t.rto;
+		send(t.request, t.key, t.to, t.channel);
+	}
+
+	/**
+	 * Sends a message straight to an address, or through a channel of the
+	 * relay.
+	 */
+	private void send(StunMessage message, byte[] key, InetSocketAddress to,
+			int channelNumber) throws IOException {
+		out.clear();
+		if (channelNumber != 0)
+			out.position(CHANNEL_HEADER);
+		message.encode(out, key, true);
+		InetSocketAddress target = to;
+		if (channelNumber != 0) {
+			out.putShort(0, (short) channelNumber).putShort(2,
+					(short) (out.position() - CHANNEL_HEADER));
+			target = allocation.server;
+		}
+		out.flip();
+		channel.send(out, target);
+	}
+}
@@ -0,0 +1,124 @@
+package com.r2src.dyad.ice;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The servers and settings an {@link IceAgent} works with.
+ * <p>
+ * Without a STUN server, no server-reflexive candidates are gathered, and
+ * without a TURN server no relayed ones. A TURN server also acts as a STUN
+ * server, so one TURN server is enough for all three kinds.
+ */
+public class IceConfiguration {
+
+	/**
+	 * The default time between two connectivity checks, in milliseconds.
+	 */
+	public static final long DEFAULT_CHECK_INTERVAL = 20;
+
+	/**
+	 * The default longest time to wait for STUN and TURN servers, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_GATHERING_TIMEOUT = 3000;
+
+	private InetSocketAddress stunServer;
+	private InetSocketAddress turnServer;
+	private String turnUsername;
+	private String turnPassword;
+	private boolean relayOnly;
+	private boolean loopback;
+	private long checkInterval = DEFAULT_CHECK_INTERVAL;
+	private long gatheringTimeout = DEFAULT_GATHERING_TIMEOUT;
+
+	public InetSocketAddress getStunServer() {
+		return stunServer;
+	}
+
+	public IceConfiguration setStunServer(InetSocketAddress server) {
+		stunServer = server;
+		return this;
+	}
+
+	public InetSocketAddress getTurnServer() {
+		return turnServer;
+	}
+
+	/**
+	 * Sets the TURN server and the long-term credentials to allocate relays
+	 * on it with.
+	 */
+	public IceConfiguration setTurnServer(InetSocketAddress server,
+			String username, String password) {
+		if (server != null && (username == null || password == null))
+			throw new IllegalArgumentException("credentials are missing");
+		turnServer = server;
+		turnUsername = username;
+		turnPassword = password;
+		return this;
+	}
+
+	public String getTurnUsername() {
+		return turnUsername;
+	}
+
+	public String getTurnPassword() {
+		return turnPassword;
+	}
+
+	public boolean isRelayOnly() {
+		return relayOnly;
+	}
+
+	/**
+	 * Only connects through the TURN server, which hides the device's
+	 * addresses from the other device.
+	 */
+	public IceConfiguration setRelayOnly(boolean relayOnly) {
+		this.relayOnly = relayOnly;
+		return this;
+	}
+
+	public boolean isLoopbackIncluded() {
+		return loopback;
+	}
+
+	/**
+	 * Offers the loopback address as a host candidate, which is only useful
+	 * when both devices are the same, as in tests.
+	 */
+	public IceConfiguration setLoopbackIncluded(boolean loopback) {
+		this.loopback = loopback;
+		return this;
+	}
+
+	public long getCheckInterval() {
+		return checkInterval;
+	}
+
+	/**
+	 * Sets the time between two new connectivity checks, which keeps a large
+	 * number of candidate pairs from flooding the network.
+	 */
+	public IceConfiguration setCheckInterval(long millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("interval must be positive");
+		checkInterval = millis;
+		return this;
+	}
+
+	public long getGatheringTimeout() {
+		return gatheringTimeout;
+	}
+
+	/**
+	 * Sets how long to wait for STUN and TURN servers before gathering is
+	 * considered done without them.
+	 */
+	public IceConfiguration setGatheringTimeout(long millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("timeout must be positive");
+		gatheringTimeout = millis;
+		return this;
+	}
+}
@@ -0,0 +1,226 @@
+package com.r2src.dyad.ice;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.r2src.dyad.Stream;
+import com.r2src.dyad.stream.BufferPool;
+
+/**
+ * The {@link Stream} that an {@link IceAgent} hands over when it has found a
+ * candidate pair that works.
+ * <p>
+ * Connectivity checks that the other device sends after this one has
+ * finished are still answered, and never handed to the application, so that
+ * the other device can finish too. When the pair goes through a TURN relay,
+ * datagrams are framed as ChannelData and the allocation is refreshed in the
+ * background for as long as the stream is open.
+ */
+class IceStream extends Stream {
+
+	// channel number, length
+	private static final int CHANNEL_HEADER = 4;
+
+	private final byte[] localKey;
+	private final InetSocketAddress peer;
+	private final int channel;
+	private final TurnAllocation allocation;
+	private final Timer refresher;
+
+	private final ByteBuffer sendHeader = ByteBuffer.allocate(CHANNEL_HEADER);
+	private final ByteBuffer receiveHeader = ByteBuffer
+			.allocate(CHANNEL_HEADER);
+	private final ByteBuffer[] sendParts = { sendHeader, null };
+	private final ByteBuffer[] receiveParts = { receiveHeader, null };
+	private final ByteBuffer answer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+
+	/**
+	 * Creates a stream straight to the other device.
+	 */
+	IceStream(DatagramChannel channel, InetSocketAddress peer, BufferPool pool,
+			byte[] localKey) throws IOException {
+		super(channel, peer, pool);
+		this.localKey = localKey;
+		this.peer = peer;
+		this.channel = 0;
+		allocation = null;
+		refresher = null;
+	}
+
+	/**
+	 * Creates a stream through a channel of a TURN relay.
+	 */
+	IceStream(DatagramChannel channel, InetSocketAddress peer, BufferPool pool,
+			byte[] localKey, TurnAllocation allocation, int channelNumber)
+			throws IOException {
+		super(channel, allocation.server, pool);
+		this.localKey = localKey;
+		this.peer = peer;
+		this.channel = channelNumber;
+		this.allocation = allocation;
+
+		// channel bindings last ten minutes, allocations as long as granted
+		long period = Math.min(allocation.lifetime * 1000 / 2, 5 * 60 * 1000);
+		refresher = new Timer("Dyad TURN refresher", true);
+		refresher.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					refresh(IceStream.this.allocation.lifetime);
+				} catch (IOException e) {
+					cancel();
+				}
+			}
+		}, period, period);
+	}
+
+	private void refresh(long lifetime) throws IOException {
+		write(allocation.refresh(lifetime));
+		if (lifetime > 0)
+			write(allocation.channelBind(channel, peer));
+	}
+
+	private void write(StunMessage request) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+		request.encode(out, allocation.key, true);
+		out.flip();
+		getChannel().write(out);
+	}
+
+	@Override
+	public boolean send(ByteBuffer frame) throws IOException {
+		if (channel == 0)
+			return super.send(frame);
+		try {
+			sendHeader.clear();
+			sendHeader.putShort((short) channel)
+					.putShort((short) frame.remaining()).flip();
+			sendParts[1] = frame;
+			return getChannel().write(sendParts) > 0;
+		} finally {
+			sendParts[1] = null;
+			release(frame);
+		}
+	}
+
+	@Override
+	public ByteBuffer receive() throws IOException {
+		while (true) {
+			ByteBuffer buffer = obtainBuffer();
+			try {
+				if (!read(buffer)) {
+					release(buffer);
+					return null;
+				}
+			} catch (IOException e) {
+				release(buffer);
+				throw e;
+			}
+			if (StunMessage.isStun(buffer)) {
+				StunMessage message = StunMessage.decode(buffer.duplicate());
+				if (message != null) {
+					answer(message);
+					release(buffer);
+					continue;
+				}
+			}
+			return buffer;
+		}
+	}
+
+	/**
+	 * Reads the next datagram, without its ChannelData header.
+	 *
+	 * @return false if there was nothing to read.
+	 */
+	private boolean read(ByteBuffer buffer) throws IOException {
+		while (true) {
+			if (channel == 0) {
+				if (!readDatagram(buffer))
+					return false;
+				buffer.flip();
+				return true;
+			}
+			receiveHeader.clear();
+			receiveParts[1] = buffer;
+			long n = getChannel().read(receiveParts);
+			receiveParts[1] = null;
+			if (n <= 0)
+				return false;
+			// anything else is the server answering a refresh
+			if (n >= CHANNEL_HEADER
+					&& (receiveHeader.getShort(0) & 0xffff) == channel) {
+				buffer.flip();
+				buffer.limit(Math.min(buffer.limit(),
+						receiveHeader.getShort(2) & 0xffff));
+				return true;
+			}
+			ByteBuffer whole = ByteBuffer.allocate((int) n);
+			receiveHeader.flip();
+			buffer.flip();
+			whole.put(receiveHeader).put(buffer).flip();
+			onServerMessage(StunMessage.decode(whole));
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Handles the server's answer to a refresh: a stale nonce is replaced and
+	 * the refresh is sent again.
+	 */
+	private void onServerMessage(StunMessage message) throws IOException {
+		if (message == null
+				|| message.getMessageClass() != StunMessage.ERROR
+				|| message.getErrorCode() != 438
+				|| !message.has(StunMessage.NONCE))
+			return;
+		allocation.nonce = message.getString(StunMessage.NONCE);
+		if (message.getMethod() == StunMessage.REFRESH)
+			refresh(allocation.lifetime);
+	}
+
+	/**
+	 * Answers a connectivity check that arrives late.
+	 */
+	private void answer(StunMessage message) throws IOException {
+		if (message.getType() != (StunMessage.BINDING | StunMessage.REQUEST)
+				|| !message.verify(localKey))
+			return;
+		answer.clear();
+		if (channel != 0)
+			answer.position(CHANNEL_HEADER);
+		StunMessage.response(message, StunMessage.SUCCESS)
+				.addAddress(StunMessage.XOR_MAPPED_ADDRESS, peer)
+				.encode(answer, localKey, true);
+		if (channel != 0)
+			answer.putShort(0, (short) channel).putShort(2,
+					(short) (answer.position() - CHANNEL_HEADER));
+		answer.flip();
+		getChannel().write(answer);
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return super.getMaxPacketSize() - (channel == 0 ? 0 : CHANNEL_HEADER);
+	}
+
+	/**
+	 * Closes the stream, and gives up the relay if there is one.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (refresher != null) {
+			refresher.cancel();
+			try {
+				refresh(0);
+			} catch (IOException ignore) {
+				// it expires by itself
+			}
+		}
+		super.close();
+	}
+}
@@ -0,0 +1,172 @@
+package com.r2src.dyad.ice;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the {@link CachedPath} of the last connection of every Dyad, for
+ * as long as the device stays on the same network.
+ * <p>
+ * Entries are keyed by the Dyad and the network identity, the addresses of the
+ * device's interfaces, so that a path that was found on Wi-Fi isn't tried on
+ * the mobile network. They expire after a while, because NAT bindings and TURN
+ * nonces don't last forever, and the least recently used entries are evicted
+ * when the cache is full.
+ * <p>
+ * This class is thread-safe.
+ */
+public class PathCache {
+
+	/**
+	 * The default number of entries.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 32;
+
+	/**
+	 * The default time that an entry is used for, in milliseconds.
+	 */
+	public static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+	private static class Record {
+		final CachedPath path;
+		final long expires;
+
+		Record(CachedPath path, long expires) {
+			this.path = path;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxSize;
+	private final long ttl;
+	private final LinkedHashMap<String, Record> entries;
+	private long hits;
+	private long misses;
+
+	public PathCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+	}
+
+	/**
+	 * @param maxSize
+	 *            The number of entries after which the least recently used
+	 *            one is evicted.
+	 * @param ttlMillis
+	 *            How long an entry is used for.
+	 */
+	public PathCache(final int maxSize, long ttlMillis) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("maxSize must be positive");
+		if (ttlMillis <= 0)
+			throw new IllegalArgumentException("ttl must be positive");
+		this.maxSize = maxSize;
+		ttl = ttlMillis;
+		entries = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Record> eldest) {
+				return size() > PathCache.this.maxSize;
+			}
+		};
+	}
+
+	private static String key(String dyad, String network) {
+		return dyad + '\n' + network;
+	}
+
+	/**
+	 * Returns the path of a Dyad on a network, or null if there is none or it
+	 * has expired.
+	 */
+	public synchronized CachedPath get(String dyad, String network) {
+		String key = key(dyad, network);
+		Record entry = entries.get(key);
+		if (entry != null && entry.expires - System.currentTimeMillis() <= 0) {
+			entries.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.path;
+	}
+
+	public synchronized void put(String dyad, String network, CachedPath path) {
+		if (path == null)
+			throw new IllegalArgumentException("path is null");
+		entries.put(key(dyad, network), new Record(path,
+				System.currentTimeMillis() + ttl));
+		evictExpired();
+	}
+
+	/**
+	 * Forgets the path of a Dyad on a network, because it didn't work.
+	 */
+	public synchronized void remove(String dyad, String network) {
+		entries.remove(key(dyad, network));
+	}
+
+	public synchronized int size() {
+		evictExpired();
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private void evictExpired() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Record> i = entries.values().iterator(); i.hasNext();) {
+			if (i.next().expires - now <= 0)
+				i.remove();
+		}
+	}
+
+	/**
+	 * Returns the identity of the network the device is on: its IPv4
+	 * addresses, apart from loopback, in order.
+	 */
+	public static String currentNetwork() throws SocketException {
+		List<String> addresses = new ArrayList<String>();
+		Enumeration<NetworkInterface> interfaces = NetworkInterface
+				.getNetworkInterfaces();
+		while (interfaces != null && interfaces.hasMoreElements()) {
+			NetworkInterface i = interfaces.nextElement();
+			if (!i.isUp())
+				continue;
+			for (Enumeration<InetAddress> e = i.getInetAddresses(); e
+					.hasMoreElements();) {
+				InetAddress address = e.nextElement();
+				if (address instanceof Inet4Address
+						&& !address.isLoopbackAddress())
+					addresses.add(address.getHostAddress());
+			}
+		}
+		Collections.sort(addresses);
+		StringBuilder s = new StringBuilder();
+		for (String address : addresses) {
+			if (s.length() > 0)
+				s.append(',');
+			s.append(address);
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,417 @@
+package com.r2src.dyad.ice;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A STUN message (RFC 5389), with the attributes that ICE (RFC 8445) and TURN
+ * (RFC 5766) add to it.
+ * <p>
+ * A message is built by adding attributes in order and {@link #encode
+ * encoded} into a buffer, optionally signed with MESSAGE-INTEGRITY and
+ * followed by a FINGERPRINT. {@link #decode} parses a message and keeps its
+ * bytes, so that its integrity can be {@link #verify verified}.
+ */
+public class StunMessage {
+
+	// methods
+	public static final int BINDING = 0x001;
+	public static final int ALLOCATE = 0x003;
+	public static final int REFRESH = 0x004;
+	public static final int CHANNEL_BIND = 0x009;
+
+	// classes
+	public static final int REQUEST = 0x000;
+	public static final int INDICATION = 0x010;
+	public static final int SUCCESS = 0x100;
+	public static final int ERROR = 0x110;
+
+	// attributes
+	public static final int USERNAME = 0x0006;
+	public static final int MESSAGE_INTEGRITY = 0x0008;
+	public static final int ERROR_CODE = 0x0009;
+	public static final int CHANNEL_NUMBER = 0x000c;
+	public static final int LIFETIME = 0x000d;
+	public static final int XOR_PEER_ADDRESS = 0x0012;
+	public static final int REALM = 0x0014;
+	public static final int NONCE = 0x0015;
+	public static final int XOR_RELAYED_ADDRESS = 0x0016;
+	public static final int REQUESTED_TRANSPORT = 0x0019;
+	public static final int XOR_MAPPED_ADDRESS = 0x0020;
+	public static final int PRIORITY = 0x0024;
+	public static final int USE_CANDIDATE = 0x0025;
+	public static final int FINGERPRINT = 0x8028;
+	public static final int ICE_CONTROLLED = 0x8029;
+	public static final int ICE_CONTROLLING = 0x802a;
+
+	public static final int MAGIC_COOKIE = 0x2112a442;
+	public static final int HEADER = 20;
+
+	private static final int FINGERPRINT_XOR = 0x5354554e;
+	private static final int INTEGRITY_SIZE = 20;
+	private static final SecureRandom random = new SecureRandom();
+
+	private final int type;
+	private final byte[] transactionId;
+	private final List<Integer> types = new ArrayList<Integer>();
+	private final List<byte[]> values = new ArrayList<byte[]>();
+	// the message as it was received, up to its MESSAGE-INTEGRITY
+	private byte[] signed;
+	private byte[] integrity;
+
+	/**
+	 * Creates a message.
+	 *
+	 * @param type
+	 *            A method combined with a class, such as
+	 *            {@code BINDING | REQUEST}.
+	 * @param transactionId
+	 *            12 bytes.
+	 */
+	public StunMessage(int type, byte[] transactionId) {
+		if (transactionId == null || transactionId.length != 12)
+			throw new IllegalArgumentException(
+					"transaction id should be 12 bytes");
+		this.type = type;
+		this.transactionId = transactionId;
+	}
+
+	/**
+	 * Creates a request with a new random transaction id.
+	 */
+	public static StunMessage request(int method) {
+		byte[] id = new byte[12];
+		random.nextBytes(id);
+		return new StunMessage(method | REQUEST, id);
+	}
+
+	/**
+	 * Creates a success or error response to a request.
+	 */
+	public static StunMessage response(StunMessage request, int cls) {
+		return new StunMessage(request.getMethod() | cls,
+				request.getTransactionId());
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public int getMethod() {
+		return type & ~0x110;
+	}
+
+	public int getMessageClass() {
+		return type & 0x110;
+	}
+
+	public byte[] getTransactionId() {
+		return transactionId;
+	}
+
+	public StunMessage add(int attribute, byte[] value) {
+		types.add(attribute);
+		values.add(value);
+		return this;
+	}
+
+	public StunMessage addString(int attribute, String value) {
+		return add(attribute, utf8(value));
+	}
+
+	public StunMessage addInt(int attribute, int value) {
+		return add(attribute, ByteBuffer.allocate(4).putInt(value).array());
+	}
+
+	public StunMessage addLong(int attribute, long value) {
+		return add(attribute, ByteBuffer.allocate(8).putLong(value).array());
+	}
+
+	public StunMessage addFlag(int attribute) {
+		return add(attribute, new byte[0]);
+	}
+
+	/**
+	 * Adds an XOR-ed address, such as XOR-MAPPED-ADDRESS.
+	 */
+	public StunMessage addAddress(int attribute, InetSocketAddress address) {
+		byte[] ip = address.getAddress().getAddress();
+		ByteBuffer value = ByteBuffer.allocate(4 + ip.length);
+		value.put((byte) 0).put((byte) (ip.length == 4 ? 1 : 2))
+				.putShort((short) (address.getPort() ^ MAGIC_COOKIE >>> 16));
+		value.put(xor(ip));
+		return add(attribute, value.array());
+	}
+
+	/**
+	 * Adds an ERROR-CODE attribute.
+	 */
+	public StunMessage addError(int code, String reason) {
+		byte[] text = utf8(reason);
+		ByteBuffer value = ByteBuffer.allocate(4 + text.length);
+		value.putShort((short) 0).put((byte) (code / 100))
+				.put((byte) (code % 100)).put(text);
+		return add(ERROR_CODE, value.array());
+	}
+
+	public boolean has(int attribute) {
+		return types.contains(attribute);
+	}
+
+	/**
+	 * Returns the value of the first attribute of a type, or null.
+	 */
+	public byte[] get(int attribute) {
+		int i = types.indexOf(attribute);
+		return i < 0 ? null : values.get(i);
+	}
+
+	public String getString(int attribute) {
+		byte[] value = get(attribute);
+		if (value == null)
+			return null;
+		try {
+			return new String(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns an integer attribute, or the default if there is none.
+	 */
+	public long getInt(int attribute, long otherwise) {
+		byte[] value = get(attribute);
+		return value == null || value.length < 4 ? otherwise : ByteBuffer
+				.wrap(value).getInt() & 0xffffffffL;
+	}
+
+	public long getLong(int attribute, long otherwise) {
+		byte[] value = get(attribute);
+		return value == null || value.length < 8 ? otherwise : ByteBuffer
+				.wrap(value).getLong();
+	}
+
+	/**
+	 * Returns an XOR-ed address attribute, or null.
+	 */
+	public InetSocketAddress getAddress(int attribute) {
+		byte[] value = get(attribute);
+		if (value == null || value.length < 8)
+			return null;
+		int family = value[1];
+		int length = family == 1 ? 4 : family == 2 ? 16 : 0;
+		if (length == 0 || value.length < 4 + length)
+			return null;
+		int port = ((value[2] & 0xff) << 8 | value[3] & 0xff)
+				^ MAGIC_COOKIE >>> 16;
+		byte[] ip = new byte[length];
+		System.arraycopy(value, 4, ip, 0, length);
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(xor(ip)),
+					port);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the code of the ERROR-CODE attribute, or 0.
+	 */
+	public int getErrorCode() {
+		byte[] value = get(ERROR_CODE);
+		if (value == null || value.length < 4)
+			return 0;
+		return (value[2] & 7) * 100 + value[3];
+	}
+
+	/**
+	 * XORs an address with the magic cookie and, for IPv6, the transaction
+	 * id.
+	 */
+	private byte[] xor(byte[] ip) {
+		byte[] mask = ByteBuffer.allocate(16).putInt(MAGIC_COOKIE)
+				.put(transactionId).array();
+		byte[] result = new byte[ip.length];
+		for (int i = 0; i < ip.length; i++)
+			result[i] = (byte) (ip[i] ^ mask[i]);
+		return result;
+	}
+
+	/**
+	 * Writes the message into a buffer.
+	 *
+	 * @param key
+	 *            The key to sign the message with, or null to leave it
+	 *            unsigned.
+	 * @param fingerprint
+	 *            Whether to add a FINGERPRINT.
+	 */
+	public void encode(ByteBuffer out, byte[] key, boolean fingerprint) {
+		int start = out.position();
+		out.putShort((short) type).putShort((short) 0).putInt(MAGIC_COOKIE)
+				.put(transactionId);
+		for (int i = 0; i < types.size(); i++) {
+			byte[] value = values.get(i);
+			out.putShort((short) (int) types.get(i))
+					.putShort((short) value.length).put(value);
+			for (int pad = value.length; pad % 4 != 0; pad++)
+				out.put((byte) 0);
+		}
+		if (key != null) {
+			// the length covers the MESSAGE-INTEGRITY attribute itself
+			setLength(out, start, out.position() - start - HEADER + 4
+					+ INTEGRITY_SIZE);
+			byte[] hmac = hmac(key, out, start, out.position());
+			out.putShort((short) MESSAGE_INTEGRITY)
+					.putShort((short) INTEGRITY_SIZE).put(hmac);
+		}
+		if (fingerprint) {
+			setLength(out, start, out.position() - start - HEADER + 8);
+			CRC32 crc = new CRC32();
+			for (int i = start; i < out.position(); i++)
+				crc.update(out.get(i));
+			out.putShort((short) FINGERPRINT).putShort((short) 4)
+					.putInt((int) crc.getValue() ^ FINGERPRINT_XOR);
+		}
+		setLength(out, start, out.position() - start - HEADER);
+	}
+
+	private static void setLength(ByteBuffer out, int start, int length) {
+		out.putShort(start + 2, (short) length);
+	}
+
+	/**
+	 * Returns true if the remaining bytes of a buffer look like a STUN
+	 * message: the first two bits are zero and the magic cookie is in place.
+	 */
+	public static boolean isStun(ByteBuffer packet) {
+		int p = packet.position();
+		return packet.remaining() >= HEADER && (packet.get(p) & 0xc0) == 0
+				&& packet.getInt(p + 4) == MAGIC_COOKIE
+				&& (packet.getShort(p + 2) & 3) == 0
+				&& (packet.getShort(p + 2) & 0xffff) == packet.remaining()
+						- HEADER;
+	}
+
+	/**
+	 * Parses the remaining bytes of a buffer, which are consumed.
+	 *
+	 * @return the message, or null if it isn't a valid STUN message or its
+	 *         FINGERPRINT doesn't match.
+	 */
+	public static StunMessage decode(ByteBuffer packet) {
+		if (!isStun(packet))
+			return null;
+		int start = packet.position();
+		int end = packet.limit();
+		int type = packet.getShort() & 0x3fff;
+		packet.getShort();
+		packet.getInt();
+		byte[] id = new byte[12];
+		packet.get(id);
+		StunMessage message = new StunMessage(type, id);
+
+		while (packet.remaining() >= 4) {
+			int at = packet.position();
+			int attribute = packet.getShort() & 0xffff;
+			int length = packet.getShort() & 0xffff;
+			if (length > packet.remaining())
+				return null;
+			byte[] value = new byte[length];
+			packet.get(value);
+			packet.position(Math.min(end, packet.position() + (4 - length % 4)
+					% 4));
+
+			if (attribute == MESSAGE_INTEGRITY) {
+				if (length != INTEGRITY_SIZE)
+					return null;
+				// what the signature covers, with the length as it was then
+				byte[] signed = new byte[at - start];
+				for (int i = 0; i < signed.length; i++)
+					signed[i] = packet.get(start + i);
+				int covered = at - start - HEADER + 4 + INTEGRITY_SIZE;
+				signed[2] = (byte) (covered >> 8);
+				signed[3] = (byte) covered;
+				message.signed = signed;
+				message.integrity = value;
+			} else if (attribute == FINGERPRINT) {
+				CRC32 crc = new CRC32();
+				for (int i = start; i < at; i++)
+					crc.update(packet.get(i));
+				if (length != 4
+						|| ByteBuffer.wrap(value).getInt() != ((int) crc
+								.getValue() ^ FINGERPRINT_XOR))
+					return null;
+			} else if (message.signed == null) {
+				// attributes after MESSAGE-INTEGRITY are ignored
+				message.add(attribute, value);
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Checks the MESSAGE-INTEGRITY of a decoded message.
+	 *
+	 * @return false if the message isn't signed, or not with this key.
+	 */
+	public boolean verify(byte[] key) {
+		if (signed == null)
+			return false;
+		return MessageDigest.isEqual(integrity,
+				hmac(key, ByteBuffer.wrap(signed), 0, signed.length));
+	}
+
+	/**
+	 * Returns the key for the short-term credentials of ICE: the password.
+	 */
+	public static byte[] shortTermKey(String password) {
+		return utf8(password);
+	}
+
+	/**
+	 * Returns the key for the long-term credentials of TURN.
+	 */
+	public static byte[] longTermKey(String username, String realm,
+			String password) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(
+					utf8(username + ":" + realm + ":" + password));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] hmac(byte[] key, ByteBuffer data, int from, int to) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA1");
+			mac.init(new SecretKeySpec(key, "HmacSHA1"));
+			for (int i = from; i < to; i++)
+				mac.update(data.get(i));
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
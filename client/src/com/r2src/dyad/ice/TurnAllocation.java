@@ -0,0 +1,58 @@
+package com.r2src.dyad.ice;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A relay allocated on a TURN server, with the long-term credentials that
+ * requests about it are signed with.
+ */
+class TurnAllocation {
+
+	final InetSocketAddress server;
+	final String username;
+	final String realm;
+	final byte[] key;
+	// the server may replace it at any time
+	volatile String nonce;
+	InetSocketAddress relayed;
+	long lifetime;
+
+	TurnAllocation(InetSocketAddress server, String username, String realm,
+			String password, String nonce) {
+		this.server = server;
+		this.username = username;
+		this.realm = realm;
+		this.nonce = nonce;
+		key = StunMessage.longTermKey(username, realm, password);
+	}
+
+	/**
+	 * Creates a request that is authenticated with the credentials. It has to
+	 * be encoded with {@link #key}.
+	 */
+	StunMessage request(int method) {
+		return StunMessage.request(method)
+				.addString(StunMessage.USERNAME, username)
+				.addString(StunMessage.REALM, realm)
+				.addString(StunMessage.NONCE, nonce);
+	}
+
+	/**
+	 * Creates a request to bind a channel to a peer, which also lets the peer
+	 * send to the relay.
+	 */
+	StunMessage channelBind(int channel, InetSocketAddress peer) {
+		return request(StunMessage.CHANNEL_BIND)
+				.addInt(StunMessage.CHANNEL_NUMBER, channel << 16)
+				.addAddress(StunMessage.XOR_PEER_ADDRESS, peer);
+	}
+
+	/**
+	 * Creates a request to keep the allocation, or with a lifetime of zero to
+	 * give it up.
+	 */
+	StunMessage refresh(long seconds) {
+		return request(StunMessage.REFRESH).addInt(StunMessage.LIFETIME,
+				(int) seconds);
+	}
+}
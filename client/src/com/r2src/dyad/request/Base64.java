@@ -0,0 +1,88 @@
+package com.r2src.dyad.request;
+
+import java.util.Arrays;
+
+/**
+ * Base64 with the standard alphabet and padding, on a single line, like
+ * android.util.Base64 with NO_WRAP. That class only runs on a device, this one
+ * runs on any JVM, which is what the tests and the benchmarks need.
+ * <p>
+ * Decoding is strict: anything but the alphabet, correctly padded, is
+ * rejected.
+ */
+final class Base64 {
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+
+	private static final int[] VALUES = new int[128];
+
+	static {
+		Arrays.fill(VALUES, -1);
+		for (int i = 0; i < ALPHABET.length; i++)
+			VALUES[ALPHABET[i]] = i;
+	}
+
+	private Base64() {
+	}
+
+	static String encode(byte[] data) {
+		char[] out = new char[(data.length + 2) / 3 * 4];
+		int o = 0;
+		for (int i = 0; i < data.length; i += 3) {
+			int remaining = data.length - i;
+			int bits = (data[i] & 0xff) << 16;
+			if (remaining > 1)
+				bits |= (data[i + 1] & 0xff) << 8;
+			if (remaining > 2)
+				bits |= data[i + 2] & 0xff;
+			out[o++] = ALPHABET[bits >>> 18];
+			out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+			out[o++] = remaining > 1 ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+			out[o++] = remaining > 2 ? ALPHABET[bits & 0x3f] : '=';
+		}
+		return new String(out);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the text isn't Base64.
+	 */
+	static byte[] decode(String text) {
+		int length = text.length();
+		if (length % 4 != 0)
+			throw new IllegalArgumentException("bad Base64 length");
+		int padding = 0;
+		if (length > 0 && text.charAt(length - 1) == '=')
+			padding = text.charAt(length - 2) == '=' ? 2 : 1;
+
+		byte[] out = new byte[length / 4 * 3 - padding];
+		int o = 0;
+		for (int i = 0; i < length; i += 4) {
+			boolean last = i + 4 == length;
+			int bits = 0;
+			for (int j = 0; j < 4; j++) {
+				char c = text.charAt(i + j);
+				int value;
+				if (last && j >= 4 - padding) {
+					value = 0;
+				} else {
+					value = c < 128 ? VALUES[c] : -1;
+					if (value < 0)
+						throw new IllegalArgumentException(
+								"bad Base64 character '" + c + "'");
+				}
+				bits = (bits << 6) | value;
+			}
+			// the bits that the padding leaves over must be 0
+			if (last && (bits & (1 << 8 * padding) - 1) != 0)
+				throw new IllegalArgumentException("bad Base64 padding");
+			out[o++] = (byte) (bits >>> 16);
+			if (o < out.length)
+				out[o++] = (byte) (bits >>> 8);
+			if (o < out.length)
+				out[o++] = (byte) bits;
+		}
+		return out;
+	}
+}
@@ -0,0 +1,231 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.RequestLine;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+
+/**
+ * A request that makes several other requests in a single round trip. The
+ * server runs them in the order they were added, and a session token returned
+ * by a {@link RegisterRequest} in the batch is used for the requests after it.
+ * <p>
+ * Every request in the batch gets to handle its own part of the response, as
+ * if it had been executed by itself:
+ *
+ * <pre>
+ * BondRequest bond = new BondRequest(secret);
+ * BatchRequest batch = new BatchRequest().add(new RegisterRequest(authToken))
+ * 		.add(new RegisterGCMRequest(regId)).add(bond);
+ * boolean bonded = requester.execute(batch, account).get(bond);
+ * </pre>
+ */
+public class BatchRequest extends Request<BatchRequest.Results> {
+
+	private static final String PATH = "/v1/batch";
+
+	/**
+	 * The maximum number of requests the server accepts in one batch.
+	 */
+	public static final int MAX_SIZE = 16;
+
+	private final List<Request<?>> requests = new ArrayList<Request<?>>();
+
+	public BatchRequest() {
+		request = new HttpPost(PATH);
+	}
+
+	/**
+	 * Adds a request to the batch.
+	 *
+	 * @return this batch, for chaining.
+	 */
+	public BatchRequest add(Request<?> r) {
+		if (r == null)
+			throw new IllegalArgumentException("request is null");
+		if (r instanceof BatchRequest)
+			throw new IllegalArgumentException("batches can't be nested");
+		if (requests.size() == MAX_SIZE)
+			throw new IllegalStateException("batch is full");
+		requests.add(r);
+		return this;
+	}
+
+	@Override
+	public HttpEntityEnclosingRequest getHttpRequest() {
+		JSONArray calls = new JSONArray();
+		try {
+			for (Request<?> r : requests) {
+				calls.put(toCall(r));
+			}
+			JSONObject body = new JSONObject();
+			body.put("calls", calls);
+			StringEntity entity = new StringEntity(body.toString(), HTTP.UTF_8);
+			entity.setContentType(JsonBodyCodec.CONTENT_TYPE);
+			((HttpPost) request).setEntity(entity);
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return (HttpPost) request;
+	}
+
+	private static JSONObject toCall(Request<?> r) throws JSONException {
+		RequestLine line = r.getHttpRequest().getRequestLine();
+		JSONObject call = new JSONObject();
+		call.put("method", line.getMethod());
+		call.put("path", line.getUri());
+		if (r.getBody() != null)
+			call.put("body", new JSONObject(r.getBody()));
+		return call;
+	}
+
+	/**
+	 * Hands every part of the response to the request it belongs to. A part
+	 * that its request fails to handle is a failure of that request only.
+	 */
+	@Override
+	public Results onFinished(HttpResponse response, Account account)
+			throws ServerException, IOException {
+		switch (response.getStatusLine().getStatusCode()) {
+		case 200:
+			break;
+		default:
+			throw new ServerException(response);
+		}
+
+		Results results = new Results(requests.size());
+		int i = 0;
+		try {
+			JsonPullParser json = JsonPullParser.of(response.getEntity());
+			json.beginObject();
+			while (json.hasNext()) {
+				if (!"responses".equals(json.nextName())) {
+					json.skipValue();
+					continue;
+				}
+				json.beginArray();
+				for (; json.hasNext(); i++) {
+					if (i == requests.size())
+						throw new ServerException(response);
+					HttpResponse part = nextResponse(json);
+					results.statusCodes[i] = part.getStatusLine()
+							.getStatusCode();
+					try {
+						results.values[i] = requests.get(i).onFinished(part,
+								account);
+					} catch (ServerException e) {
+						results.values[i] = e;
+					} catch (IOException e) {
+						// the part can't be read, but the rest still can
+						results.values[i] = new ServerException(e, part);
+					}
+				}
+				json.endArray();
+			}
+			json.endObject();
+		} catch (JSONException e) {
+			throw new ServerException(e, response);
+		}
+
+		if (i != requests.size())
+			throw new ServerException(response);
+		return results;
+	}
+
+	/**
+	 * Reads one part of the batch response into a response of its own.
+	 */
+	private static HttpResponse nextResponse(JsonPullParser json)
+			throws IOException, JSONException {
+		int status = 0;
+		StringEntity entity = null;
+
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			if ("status".equals(name)) {
+				status = json.nextInt();
+			} else if ("body".equals(name)) {
+				switch (json.peek()) {
+				case BEGIN_OBJECT:
+				case BEGIN_ARRAY:
+					entity = new StringEntity(json.nextJson(), HTTP.UTF_8);
+					entity.setContentType("application/json; charset=UTF-8");
+					break;
+				case NULL:
+					json.nextNull();
+					break;
+				default:
+					entity = new StringEntity(json.nextString(), HTTP.UTF_8);
+					entity.setContentType("text/plain; charset=UTF-8");
+				}
+			} else {
+				json.skipValue();
+			}
+		}
+		json.endObject();
+
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+				status, null);
+		response.setEntity(entity);
+		return response;
+	}
+
+	/**
+	 * The outcome of every request in a batch.
+	 */
+	public class Results {
+		private final int[] statusCodes;
+		private final Object[] values;
+
+		private Results(int size) {
+			statusCodes = new int[size];
+			values = new Object[size];
+		}
+
+		public int size() {
+			return values.length;
+		}
+
+		/**
+		 * Returns the HTTP status code of the i-th request.
+		 */
+		public int getStatusCode(int i) {
+			return statusCodes[i];
+		}
+
+		/**
+		 * Returns the result of a request in the batch.
+		 *
+		 * @throws ServerException
+		 *             if the request failed.
+		 */
+		public <T> T get(Request<T> r) throws ServerException {
+			int i = requests.indexOf(r);
+			if (i < 0)
+				throw new IllegalArgumentException("request is not in the batch");
+			if (values[i] instanceof ServerException)
+				throw (ServerException) values[i];
+			@SuppressWarnings("unchecked")
+			T value = (T) values[i];
+			return value;
+		}
+	}
+}
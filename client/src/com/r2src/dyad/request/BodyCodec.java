@@ -0,0 +1,23 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * Encodes the fields of a request body into an {@link HttpEntity}. The
+ * server tells the encodings apart by their Content-Type.
+ * 
+ * @see JsonBodyCodec
+ * @see BinaryBodyCodec
+ */
+public interface BodyCodec {
+
+	/**
+	 * Returns the Content-Type of the bodies this codec produces.
+	 */
+	public String getContentType();
+
+	public HttpEntity encode(Map<String, String> fields) throws IOException;
+}
@@ -1,14 +1,10 @@
 package com.r2src.dyad.request;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.util.Collections;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import com.r2src.dyad.Account;
 import com.r2src.dyad.ServerException;
@@ -17,7 +13,7 @@ import com.r2src.dyad.ServerException;
 /**
  * A request both parties should make to instantiate a bonded Dyad.
  */
-public class BondRequest extends Request {
+public class BondRequest extends Request<Boolean> {
 
 	private static final String PATH = "/v1/bond";
 
@@ -29,32 +25,25 @@ public class BondRequest extends Request {
 	 */
 	public BondRequest(String secret) {
 		request = new HttpPost(PATH);
-		JSONObject body = new JSONObject();
-		HttpEntity entity;
-		try {
-			body.put("secret", secret);
-			entity = new StringEntity(body.toString());
-		} catch (JSONException e) {
-			throw new RuntimeException(e);
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
-		((HttpPost) request).setEntity(entity);
+		setBody(Collections.singletonMap("secret", secret));
 	}
 
 	/**
+	 * Returns true if the Dyad is bonded, or false if the server is waiting for
+	 * the other party to send the same secret.
+	 * 
 	 * TODO: what should happen locally when bond succeeds?
 	 */
 	@Override
-	public void onFinished(HttpResponse response, Account account)
+	public Boolean onFinished(HttpResponse response, Account account)
 			throws ServerException, IOException {
 		switch (response.getStatusLine().getStatusCode()) {
 		case 200: // successful bonding
-			//?;
+			return true;
 		case 202: // secret stored, wait for push
-			break;
+			return false;
 		default:
-		
+			throw new ServerException(response);
 		}
 	}
 
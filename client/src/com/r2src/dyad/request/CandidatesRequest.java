@@ -0,0 +1,44 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+
+/**
+ * A request to trickle a batch of ICE candidates to the other device of a
+ * bonded Dyad, after the SDP message they belong to. The server queues the
+ * batch, and the other device follows the queue with
+ * {@link GetCandidatesRequest}.
+ */
+public class CandidatesRequest extends Request<Void> {
+
+	private static final String PATH = "/v1/candidates";
+
+	/**
+	 * @param candidates
+	 *            {@code a=candidate} lines, followed by
+	 *            {@code a=end-of-candidates} in the last batch.
+	 */
+	public CandidatesRequest(String candidates) {
+		if (candidates == null || candidates.length() == 0)
+			throw new IllegalArgumentException("no candidates");
+		request = new HttpPost(PATH);
+		setBody(Collections.singletonMap("candidates", candidates));
+	}
+
+	@Override
+	public Void onFinished(HttpResponse response, Account account)
+			throws ServerException, IOException {
+		switch (response.getStatusLine().getStatusCode()) {
+		case 202: // queued for the other device
+			return null;
+		default:
+			throw new ServerException(response);
+		}
+	}
+}
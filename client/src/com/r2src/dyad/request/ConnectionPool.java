@@ -0,0 +1,201 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The settings of the pool of persistent HTTP connections that a
+ * {@link Requester} keeps to the Dyad Server, and the pool's statistics.
+ * <p>
+ * All requests of an app go to the same host, so by default the pool allows
+ * many more connections per route than the two that HttpClient allows. Idle
+ * connections are kept alive for a while, so that the requests of the
+ * register &rarr; bond &rarr; SDP sequence don't have to repeat the TCP and
+ * TLS handshakes.
+ * <p>
+ * The settings have to be made before the pool is passed to a
+ * {@link Requester}. The statistics are thread-safe.
+ */
+public class ConnectionPool {
+
+	private int maxTotal = 20;
+	private int maxPerRoute = 8;
+	private long keepAlive = 30000;
+	private long idleTimeout = 30000;
+	private int connectTimeout = 20000;
+	private int soTimeout = 30000;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private volatile ThreadSafeClientConnManager manager;
+
+	/**
+	 * Sets the maximum number of connections in the pool. Defaults to 20.
+	 */
+	public ConnectionPool setMaxTotal(int maxTotal) {
+		if (maxTotal <= 0)
+			throw new IllegalArgumentException("maxTotal must be positive");
+		this.maxTotal = maxTotal;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of connections to a single host. Defaults to 8.
+	 */
+	public ConnectionPool setMaxPerRoute(int maxPerRoute) {
+		if (maxPerRoute <= 0)
+			throw new IllegalArgumentException("maxPerRoute must be positive");
+		this.maxPerRoute = maxPerRoute;
+		return this;
+	}
+
+	/**
+	 * Sets how long a connection may be reused, in milliseconds, unless the
+	 * server asks for less in a Keep-Alive header. Defaults to 30 seconds.
+	 */
+	public ConnectionPool setKeepAlive(long millis) {
+		keepAlive = millis;
+		return this;
+	}
+
+	/**
+	 * Sets how long a connection may sit idle in the pool before it is closed,
+	 * in milliseconds. Defaults to 30 seconds.
+	 */
+	public ConnectionPool setIdleTimeout(long millis) {
+		idleTimeout = millis;
+		return this;
+	}
+
+	/**
+	 * Sets the connect timeout and the default socket timeout, in
+	 * milliseconds. Default to 20 and 30 seconds.
+	 */
+	public ConnectionPool setTimeouts(int connectMillis, int soMillis) {
+		connectTimeout = connectMillis;
+		soTimeout = soMillis;
+		return this;
+	}
+
+	/**
+	 * Creates an HTTP client that uses this pool.
+	 */
+	DefaultHttpClient createClient(SchemeRegistry schemes) {
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, soTimeout);
+		ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(maxPerRoute));
+		ConnManagerParams.setTimeout(params, connectTimeout);
+
+		manager = new ThreadSafeClientConnManager(params, schemes);
+		DefaultHttpClient client = new DefaultHttpClient(manager, params);
+		client.setKeepAliveStrategy(new KeepAliveStrategy());
+		client.addRequestInterceptor(new ReuseCounter());
+		return client;
+	}
+
+	/**
+	 * Closes connections that have expired or have been idle for too long.
+	 * Called by the {@link Requester} before every request, so no extra thread
+	 * is needed for this.
+	 */
+	void evict() {
+		ThreadSafeClientConnManager m = manager;
+		if (m != null) {
+			m.closeExpiredConnections();
+			m.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns the number of requests sent through this pool.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of requests that were sent over a connection that
+	 * had been used before.
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * Returns the number of connections that are open, either idle or in use.
+	 */
+	public int getConnectionsInPool() {
+		ThreadSafeClientConnManager m = manager;
+		return m == null ? 0 : m.getConnectionsInPool();
+	}
+
+	/**
+	 * Honours the timeout of the server's Keep-Alive header, but never keeps a
+	 * connection for longer than {@link #setKeepAlive}.
+	 */
+	private class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response,
+				HttpContext context) {
+			HeaderElementIterator it = new BasicHeaderElementIterator(
+					response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (it.hasNext()) {
+				HeaderElement he = it.nextElement();
+				if ("timeout".equalsIgnoreCase(he.getName())
+						&& he.getValue() != null) {
+					try {
+						return Math.min(keepAlive,
+								Long.parseLong(he.getValue()) * 1000);
+					} catch (NumberFormatException ignore) {
+					}
+				}
+			}
+			return keepAlive;
+		}
+	}
+
+	/**
+	 * Counts the requests that go out over a connection that has already sent
+	 * a request.
+	 */
+	private class ReuseCounter implements HttpRequestInterceptor {
+		@Override
+		public void process(HttpRequest request, HttpContext context)
+				throws HttpException, IOException {
+			requests.incrementAndGet();
+			HttpConnection conn = (HttpConnection) context
+					.getAttribute(ExecutionContext.HTTP_CONNECTION);
+			if (conn != null && conn.getMetrics().getRequestCount() > 0)
+				reused.incrementAndGet();
+		}
+	}
+}
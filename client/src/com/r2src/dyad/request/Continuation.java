@@ -0,0 +1,14 @@
+package com.r2src.dyad.request;
+
+/**
+ * Decides which request to make next, given the result of the previous one.
+ * Used to chain requests with {@link RequestFuture#then}.
+ * 
+ * @param <T>
+ *            The result type of the previous request.
+ * @param <R>
+ *            The result type of the next request.
+ */
+public interface Continuation<T, R> {
+	public Request<R> next(T result) throws Exception;
+}
@@ -4,12 +4,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
 import org.json.JSONException;
 
 import com.r2src.dyad.Dyad;
@@ -21,7 +17,7 @@ import com.r2src.dyad.ServerException;
  * Requests all dyads that are associated with given user and account. Dyads are
  * currently saved in DyadAccount. TODO: Rewrite so that DyadAccount has no state, by either working with Future objects, or giving a bundle to DyadRequestCallback's onFinished.
  */
-public class DyadsRequest extends Request {
+public class DyadsRequest extends Request<List<Dyad>> {
 
 	private static final String PATH = "/v1/dyads/";
 
@@ -38,13 +34,11 @@ public class DyadsRequest extends Request {
 	
 	/**
 	 * Transforms the response into either an error or a list of dyads.
-	 * Dyads are saved in the associated account.
 	 */
 	@Override
-	public void onFinished(HttpResponse response, Account account)
+	public List<Dyad> onFinished(HttpResponse response, Account account)
 			throws ServerException, IOException {
 
-		JSONArray body;
 		switch (response.getStatusLine().getStatusCode()) {
 
 		// body contains the dyads
@@ -55,15 +49,23 @@ public class DyadsRequest extends Request {
 			throw new ServerException(response);
 		}
 
-		HttpEntity entity = response.getEntity();
 		try {
-			body = new JSONArray(EntityUtils.toString(entity));
-			final List<Dyad> dyads = new ArrayList<Dyad>(body.length());
-			for (int i = 0; i < body.length(); i++) {
-				dyads.add(new Dyad(account, body.get(i).toString()));
+			final List<Dyad> dyads = new ArrayList<Dyad>();
+			JsonPullParser json = JsonPullParser.of(response.getEntity());
+			json.beginArray();
+			while (json.hasNext()) {
+				// like JSONArray.getString, take any value as the id
+				switch (json.peek()) {
+				case STRING:
+				case NUMBER:
+					dyads.add(new Dyad(account, json.nextString()));
+					break;
+				default:
+					dyads.add(new Dyad(account, json.nextJson()));
+				}
 			}
-		} catch (ParseException e) {
-			throw new ServerException(e, response);
+			json.endArray();
+			return dyads;
 		} catch (JSONException e) {
 			throw new ServerException(e, response);
 		}
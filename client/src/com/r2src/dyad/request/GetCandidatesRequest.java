@@ -0,0 +1,108 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+import org.json.JSONException;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+
+/**
+ * A request to fetch the ICE candidates that the other device of a bonded Dyad
+ * has trickled since its SDP message, see {@link CandidatesRequest}.
+ * <p>
+ * Like {@link GetSdpMessageRequest}, the server holds on to the request until
+ * a new batch arrives, for at most the given number of seconds, so the queue
+ * can be followed by sending the next request as soon as one returns.
+ */
+public class GetCandidatesRequest extends Request<GetCandidatesRequest.Batches> {
+
+	private static final String PATH = "/v1/candidates";
+
+	/**
+	 * Extra time to allow for the server's response after waiting.
+	 */
+	private static final int TIMEOUT_MARGIN = 10;
+
+	/**
+	 * The batches of candidates that the server returned.
+	 */
+	public static class Batches {
+		public final List<String> candidates;
+
+		/**
+		 * The number of batches there are so far, to ask for the ones after
+		 * them next.
+		 */
+		public final int next;
+
+		Batches(List<String> candidates, int next) {
+			this.candidates = candidates;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * @param since
+	 *            The number of batches already fetched.
+	 * @param wait
+	 *            How many seconds the server may wait for a new batch, at most
+	 *            {@link GetSdpMessageRequest#MAX_WAIT}.
+	 */
+	public GetCandidatesRequest(int since, int wait) {
+		if (since < 0)
+			throw new IllegalArgumentException("since is negative");
+		if (wait < 0 || wait > GetSdpMessageRequest.MAX_WAIT)
+			throw new IllegalArgumentException("wait should be between 0 and "
+					+ GetSdpMessageRequest.MAX_WAIT);
+
+		request = new HttpGet(PATH + "?since=" + since + "&wait=" + wait);
+		HttpConnectionParams.setSoTimeout(request.getParams(),
+				(wait + TIMEOUT_MARGIN) * 1000);
+	}
+
+	/**
+	 * Returns the new batches, or null if there were none in time.
+	 */
+	@Override
+	public Batches onFinished(HttpResponse response, Account account)
+			throws ServerException, IOException {
+		switch (response.getStatusLine().getStatusCode()) {
+		case 200:
+			break;
+		case 404: // nothing new (yet)
+			return null;
+		default:
+			throw new ServerException(response);
+		}
+
+		try {
+			List<String> candidates = new ArrayList<String>();
+			int next = 0;
+			JsonPullParser json = JsonPullParser.of(response.getEntity());
+			json.beginObject();
+			while (json.hasNext()) {
+				String name = json.nextName();
+				if (name.equals("candidates")) {
+					json.beginArray();
+					while (json.hasNext())
+						candidates.add(json.nextString());
+					json.endArray();
+				} else if (name.equals("next")) {
+					next = json.nextInt();
+				} else {
+					json.skipValue();
+				}
+			}
+			json.endObject();
+			return new Batches(candidates, next);
+		} catch (JSONException e) {
+			throw new ServerException(e, response);
+		}
+	}
+}
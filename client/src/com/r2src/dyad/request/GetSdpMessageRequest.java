@@ -0,0 +1,99 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ParseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+
+/**
+ * A request to fetch the SDP message that the other device of a bonded Dyad
+ * has sent.
+ * <p>
+ * When the message hasn't been sent yet, the server holds on to the request
+ * for at most the given number of seconds and answers as soon as the other
+ * device posts its message. This makes polling unnecessary. Usually the GCM
+ * push that the server sends along with the message arrives first, and this
+ * request is only needed when the message was too large to fit in the push.
+ * <p>
+ * The server hands a message out once. After that the other device has to send
+ * a new one, so a device that sets up a new session doesn't get the
+ * description of the previous one.
+ * <p>
+ * Only the event-driven server waits. The FCGI server answers right away, so
+ * a client that asks again should leave {@link #MIN_POLL_INTERVAL} between
+ * its requests.
+ */
+public class GetSdpMessageRequest extends Request<String> {
+
+	private static final String PATH = "/v1/sdp_message";
+
+	/**
+	 * The longest the server is willing to wait.
+	 */
+	public static final int MAX_WAIT = 30;
+
+	/**
+	 * The least time between two requests that poll, in milliseconds, for
+	 * servers that don't wait.
+	 */
+	public static final long MIN_POLL_INTERVAL = 1000;
+
+	/**
+	 * Extra time to allow for the server's response after waiting.
+	 */
+	private static final int TIMEOUT_MARGIN = 10;
+
+	/**
+	 * Fetches the SDP message without waiting.
+	 */
+	public GetSdpMessageRequest() {
+		this(0);
+	}
+
+	/**
+	 * @param wait
+	 *            How many seconds the server may wait for the message to
+	 *            arrive, at most {@link #MAX_WAIT}.
+	 */
+	public GetSdpMessageRequest(int wait) {
+		if (wait < 0 || wait > MAX_WAIT)
+			throw new IllegalArgumentException("wait should be between 0 and "
+					+ MAX_WAIT);
+
+		request = new HttpGet(wait > 0 ? PATH + "?wait=" + wait : PATH);
+		HttpConnectionParams.setSoTimeout(request.getParams(),
+				(wait + TIMEOUT_MARGIN) * 1000);
+	}
+
+	/**
+	 * Returns the SDP message, decompressed if need be, or null if it hasn't
+	 * been sent yet.
+	 */
+	@Override
+	public String onFinished(HttpResponse response, Account account)
+			throws ServerException, IOException {
+		switch (response.getStatusLine().getStatusCode()) {
+		case 200:
+			break;
+		case 404: // not sent (yet)
+			return null;
+		default:
+			throw new ServerException(response);
+		}
+
+		try {
+			return SdpCompressor.decompress(EntityUtils.toString(response
+					.getEntity()));
+		} catch (ParseException e) {
+			throw new ServerException(e, response);
+		} catch (IllegalArgumentException e) {
+			throw new ServerException(e, response);
+		}
+	}
+}
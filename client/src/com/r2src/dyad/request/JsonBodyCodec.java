@@ -0,0 +1,32 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HTTP;
+import org.json.JSONObject;
+
+/**
+ * Encodes request bodies as a JSON object. Understood by every Dyad Server.
+ */
+public class JsonBodyCodec implements BodyCodec {
+
+	public static final String CONTENT_TYPE = "application/json";
+
+	public static final JsonBodyCodec INSTANCE = new JsonBodyCodec();
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public HttpEntity encode(Map<String, String> fields) throws IOException {
+		StringEntity entity = new StringEntity(new JSONObject(fields).toString(),
+				HTTP.UTF_8);
+		entity.setContentType(CONTENT_TYPE);
+		return entity;
+	}
+}
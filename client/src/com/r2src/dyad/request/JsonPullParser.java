@@ -0,0 +1,462 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads a JSON document one token at a time, straight from a stream, so that
+ * responses can be bound to results without first reading the whole body
+ * into a String and building a tree of {@link JSONObject}s.
+ * <p>
+ * The API follows android.util.JsonReader, which only exists since API level
+ * 11:
+ *
+ * <pre>
+ * JsonPullParser json = JsonPullParser.of(response.getEntity());
+ * json.beginObject();
+ * while (json.hasNext()) {
+ * 	if (&quot;session_token&quot;.equals(json.nextName()))
+ * 		token = json.nextString();
+ * 	else
+ * 		json.skipValue();
+ * }
+ * json.endObject();
+ * </pre>
+ *
+ * Malformed JSON results in a {@link JSONException}, like it does for the
+ * org.json classes.
+ */
+public class JsonPullParser {
+
+	/**
+	 * The kinds of tokens in a JSON document.
+	 */
+	public enum Token {
+		BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	private static final Pattern NUMBER = Pattern
+			.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+	// what the parser expects next in the current scope
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+	private static final int NONEMPTY_OBJECT = 6;
+
+	private final Reader in;
+	private final char[] buffer = new char[1024];
+	private int pos;
+	private int limit;
+
+	private int[] stack = new int[16];
+	private int depth;
+
+	private final StringBuilder text = new StringBuilder();
+	private Token peeked;
+	private String value;
+
+	public JsonPullParser(Reader in) {
+		if (in == null)
+			throw new IllegalArgumentException("reader is null");
+		this.in = in;
+		stack[depth++] = EMPTY_DOCUMENT;
+	}
+
+	/**
+	 * Creates a parser for the content of an HTTP entity, honouring its
+	 * charset (UTF-8 if there is none).
+	 */
+	public static JsonPullParser of(HttpEntity entity) throws IOException {
+		if (entity == null)
+			throw new IOException("response has no body");
+		String charset = EntityUtils.getContentCharSet(entity);
+		return new JsonPullParser(new InputStreamReader(entity.getContent(),
+				charset == null ? HTTP.UTF_8 : charset));
+	}
+
+	/**
+	 * Returns the kind of the next token without consuming it.
+	 */
+	public Token peek() throws IOException, JSONException {
+		if (peeked != null)
+			return peeked;
+
+		int c;
+		switch (stack[depth - 1]) {
+		case EMPTY_DOCUMENT:
+			stack[depth - 1] = NONEMPTY_DOCUMENT;
+			return peeked = readValue(nextNonWhitespace());
+
+		case NONEMPTY_DOCUMENT:
+			if (nextNonWhitespace() != -1)
+				throw syntaxError("Expected end of document");
+			return peeked = Token.END_DOCUMENT;
+
+		case EMPTY_ARRAY:
+			stack[depth - 1] = NONEMPTY_ARRAY;
+			c = nextNonWhitespace();
+			return peeked = c == ']' ? Token.END_ARRAY : readValue(c);
+
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']')
+				return peeked = Token.END_ARRAY;
+			if (c != ',')
+				throw syntaxError("Expected ',' or ']'");
+			return peeked = readValue(nextNonWhitespace());
+
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}')
+				return peeked = Token.END_OBJECT;
+			if (stack[depth - 1] == NONEMPTY_OBJECT) {
+				if (c != ',')
+					throw syntaxError("Expected ',' or '}'");
+				c = nextNonWhitespace();
+			}
+			if (c != '"')
+				throw syntaxError("Expected a name");
+			value = readString();
+			stack[depth - 1] = DANGLING_NAME;
+			return peeked = Token.NAME;
+
+		case DANGLING_NAME:
+			if (nextNonWhitespace() != ':')
+				throw syntaxError("Expected ':'");
+			stack[depth - 1] = NONEMPTY_OBJECT;
+			return peeked = readValue(nextNonWhitespace());
+
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Returns true if the current array or object has another element.
+	 */
+	public boolean hasNext() throws IOException, JSONException {
+		Token token = peek();
+		return token != Token.END_ARRAY && token != Token.END_OBJECT
+				&& token != Token.END_DOCUMENT;
+	}
+
+	public void beginArray() throws IOException, JSONException {
+		expect(Token.BEGIN_ARRAY);
+	}
+
+	public void endArray() throws IOException, JSONException {
+		expect(Token.END_ARRAY);
+		depth--;
+	}
+
+	public void beginObject() throws IOException, JSONException {
+		expect(Token.BEGIN_OBJECT);
+	}
+
+	public void endObject() throws IOException, JSONException {
+		expect(Token.END_OBJECT);
+		depth--;
+	}
+
+	public String nextName() throws IOException, JSONException {
+		expect(Token.NAME);
+		return value;
+	}
+
+	/**
+	 * Returns the next string, or the text of the next number.
+	 */
+	public String nextString() throws IOException, JSONException {
+		if (peek() != Token.NUMBER)
+			expect(Token.STRING);
+		peeked = null;
+		return value;
+	}
+
+	public int nextInt() throws IOException, JSONException {
+		String number = nextString();
+		try {
+			return Integer.parseInt(number);
+		} catch (NumberFormatException e) {
+			throw new JSONException("Expected an int but was " + number);
+		}
+	}
+
+	public long nextLong() throws IOException, JSONException {
+		String number = nextString();
+		try {
+			return Long.parseLong(number);
+		} catch (NumberFormatException e) {
+			throw new JSONException("Expected a long but was " + number);
+		}
+	}
+
+	public boolean nextBoolean() throws IOException, JSONException {
+		expect(Token.BOOLEAN);
+		return "true".equals(value);
+	}
+
+	public void nextNull() throws IOException, JSONException {
+		expect(Token.NULL);
+	}
+
+	/**
+	 * Skips the next value, including everything nested in it.
+	 */
+	public void skipValue() throws IOException, JSONException {
+		int nesting = 0;
+		do {
+			switch (peek()) {
+			case BEGIN_ARRAY:
+			case BEGIN_OBJECT:
+				peeked = null;
+				nesting++;
+				break;
+			case END_ARRAY:
+			case END_OBJECT:
+				if (nesting == 0)
+					throw syntaxError("Expected a value but was " + peeked);
+				peeked = null;
+				depth--;
+				nesting--;
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				peeked = null;
+			}
+		} while (nesting > 0);
+	}
+
+	/**
+	 * Returns the next value as JSON text. Meant for small values that have to
+	 * be handed on as a whole.
+	 */
+	public String nextJson() throws IOException, JSONException {
+		StringBuilder json = new StringBuilder();
+		int nesting = 0;
+		do {
+			Token token = peek();
+			if (nesting == 0
+					&& (token == Token.END_ARRAY || token == Token.END_OBJECT))
+				throw syntaxError("Expected a value but was " + token);
+			if (json.length() > 0 && token != Token.END_ARRAY
+					&& token != Token.END_OBJECT) {
+				char last = json.charAt(json.length() - 1);
+				if (last != '[' && last != '{' && last != ':')
+					json.append(',');
+			}
+			switch (token) {
+			case BEGIN_ARRAY:
+				json.append('[');
+				nesting++;
+				break;
+			case BEGIN_OBJECT:
+				json.append('{');
+				nesting++;
+				break;
+			case END_ARRAY:
+				json.append(']');
+				depth--;
+				nesting--;
+				break;
+			case END_OBJECT:
+				json.append('}');
+				depth--;
+				nesting--;
+				break;
+			case NAME:
+				json.append(JSONObject.quote(value)).append(':');
+				break;
+			case STRING:
+				json.append(JSONObject.quote(value));
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				json.append(value);
+			}
+			peeked = null;
+		} while (nesting > 0);
+		return json.toString();
+	}
+
+	/**
+	 * Closes the underlying reader.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private void expect(Token expected) throws IOException, JSONException {
+		Token token = peek();
+		if (token != expected)
+			throw new JSONException("Expected " + expected + " but was "
+					+ token);
+		peeked = null;
+	}
+
+	private Token readValue(int c) throws IOException, JSONException {
+		switch (c) {
+		case '{':
+			push(EMPTY_OBJECT);
+			return Token.BEGIN_OBJECT;
+		case '[':
+			push(EMPTY_ARRAY);
+			return Token.BEGIN_ARRAY;
+		case '"':
+			value = readString();
+			return Token.STRING;
+		case 't':
+			readLiteral("true");
+			return Token.BOOLEAN;
+		case 'f':
+			readLiteral("false");
+			return Token.BOOLEAN;
+		case 'n':
+			readLiteral("null");
+			return Token.NULL;
+		case -1:
+			throw syntaxError("Unexpected end of document");
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				value = readNumber(c);
+				return Token.NUMBER;
+			}
+			throw syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	private void push(int scope) {
+		if (depth == stack.length) {
+			int[] grown = new int[depth * 2];
+			System.arraycopy(stack, 0, grown, 0, depth);
+			stack = grown;
+		}
+		stack[depth++] = scope;
+	}
+
+	private String readString() throws IOException, JSONException {
+		text.setLength(0);
+		while (true) {
+			int c = read();
+			switch (c) {
+			case -1:
+				throw syntaxError("Unterminated string");
+			case '"':
+				return text.toString();
+			case '\\':
+				c = read();
+				switch (c) {
+				case 'b':
+					text.append('\b');
+					break;
+				case 'f':
+					text.append('\f');
+					break;
+				case 'n':
+					text.append('\n');
+					break;
+				case 'r':
+					text.append('\r');
+					break;
+				case 't':
+					text.append('\t');
+					break;
+				case 'u':
+					int unicode = 0;
+					for (int i = 0; i < 4; i++) {
+						int digit = Character.digit(read(), 16);
+						if (digit < 0)
+							throw syntaxError("Invalid unicode escape");
+						unicode = (unicode << 4) | digit;
+					}
+					text.append((char) unicode);
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					text.append((char) c);
+					break;
+				case -1:
+					throw syntaxError("Unterminated string");
+				default:
+					throw syntaxError("Invalid escape '\\" + (char) c + "'");
+				}
+				break;
+			default:
+				text.append((char) c);
+			}
+		}
+	}
+
+	private String readNumber(int first) throws IOException, JSONException {
+		text.setLength(0);
+		text.append((char) first);
+		while (true) {
+			if (pos == limit && !fill())
+				break;
+			char c = buffer[pos];
+			if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E'
+					|| c == '+' || c == '-') {
+				text.append(c);
+				pos++;
+			} else {
+				break;
+			}
+		}
+		String number = text.toString();
+		if (!NUMBER.matcher(number).matches())
+			throw syntaxError("Invalid number " + number);
+		return number;
+	}
+
+	private void readLiteral(String literal) throws IOException, JSONException {
+		for (int i = 1; i < literal.length(); i++) {
+			if (read() != literal.charAt(i))
+				throw syntaxError("Expected " + literal);
+		}
+		value = literal;
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+		return c;
+	}
+
+	private int read() throws IOException {
+		if (pos == limit && !fill())
+			return -1;
+		return buffer[pos++];
+	}
+
+	private boolean fill() throws IOException {
+		pos = 0;
+		limit = in.read(buffer, 0, buffer.length);
+		if (limit < 0) {
+			limit = 0;
+			return false;
+		}
+		return true;
+	}
+
+	private JSONException syntaxError(String message) {
+		return new JSONException(message);
+	}
+}
@@ -1,13 +1,10 @@
 package com.r2src.dyad.request;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.util.Collections;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.r2src.dyad.Account;
@@ -17,12 +14,10 @@ import com.r2src.dyad.ServerException;
 /**
  * A request to send the device's GCM id to the Dyad Server. Only valid for already
  * registered accounts.
- * 
- * TODO: implement this request server-side
  */
-public class RegisterGCMRequest extends Request {
+public class RegisterGCMRequest extends Request<Void> {
 
-	private static final String PATH = "/v1/gcm";
+	private static final String PATH = "/v1/register_gcm";
 
 	/**
 	 * Creates a new GCM request.
@@ -32,24 +27,14 @@ public class RegisterGCMRequest extends Request {
 	 */
 	public RegisterGCMRequest(String regId) {
 		request = new HttpPost(PATH);
-		JSONObject body = new JSONObject();
-		HttpEntity entity;
-		try {
-			body.put("gcm_id", regId);
-			entity = new StringEntity(body.toString());
-		} catch (JSONException e) {
-			throw new RuntimeException(e);
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
-		((HttpPost) request).setEntity(entity);
+		setBody(Collections.singletonMap("gcm_id", regId));
 	}
 
 	/**
 	 * Handles the response
 	 */
 	@Override
-	public void onFinished(HttpResponse response, Account account)
+	public Void onFinished(HttpResponse response, Account account)
 			throws ServerException, IOException {
 
 		JSONObject body;
@@ -63,5 +48,6 @@ public class RegisterGCMRequest extends Request {
 		default:
 			throw new ServerException(response);
 		}
+		return null;
 	}
 }
@@ -1,16 +1,11 @@
 package com.r2src.dyad.request;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.util.Collections;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import com.r2src.dyad.Account;
 import com.r2src.dyad.ServerException;
@@ -19,7 +14,7 @@ import com.r2src.dyad.ServerException;
  * A request to register an account with the Dyad Server. Also valid for already
  * registered accounts. In that case it updates the session token.
  */
-public class RegisterRequest extends Request {
+public class RegisterRequest extends Request<String> {
 
 	private static final String PATH = "/v1/register";
 
@@ -35,30 +30,19 @@ public class RegisterRequest extends Request {
 	 */
 	public RegisterRequest(String authToken) {
 		request = new HttpPost(PATH);
-		JSONObject body = new JSONObject();
-		HttpEntity entity;
-		try {
-			body.put("token", authToken);
-			entity = new StringEntity(body.toString());
-		} catch (JSONException e) {
-			throw new RuntimeException(e);
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
-		((HttpPost) request).setEntity(entity);
+		setBody(Collections.singletonMap("token", authToken));
 	}
 
 	/**
-	 * Nothing, really.
+	 * Stores the session token in the account and returns it.
 	 * 
 	 * TODO: Invent some kind of middleware to filter out and store the session
 	 * token
 	 */
 	@Override
-	public void onFinished(HttpResponse response, Account account)
+	public String onFinished(HttpResponse response, Account account)
 			throws ServerException, IOException {
 
-		JSONObject body;
 		switch (response.getStatusLine().getStatusCode()) {
 
 		// logged into existing account
@@ -82,12 +66,22 @@ public class RegisterRequest extends Request {
 			throw new ServerException(response);
 		}
 
-		HttpEntity entity = response.getEntity();
 		try {
-			body = new JSONObject(EntityUtils.toString(entity));
-			account.setSessionToken(body.getString("session_token"));
-		} catch (ParseException e) {
-			throw new ServerException(e, response);
+			String sessionToken = null;
+			JsonPullParser json = JsonPullParser.of(response.getEntity());
+			json.beginObject();
+			while (json.hasNext()) {
+				if ("session_token".equals(json.nextName()))
+					sessionToken = json.nextString();
+				else
+					json.skipValue();
+			}
+			json.endObject();
+
+			if (sessionToken == null)
+				throw new ServerException(response);
+			account.setSessionToken(sessionToken);
+			return sessionToken;
 		} catch (JSONException e) {
 			throw new ServerException(e, response);
 		}
@@ -1,7 +1,9 @@
 package com.r2src.dyad.request;
 
 import java.io.IOException;
+import java.util.Map;
 
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 
@@ -13,11 +15,17 @@ import com.r2src.dyad.ServerException;
  * 
  * Most subclasses should override the constructor to provide new requests
  * with the required information.
+ * 
+ * @param <T>
+ *            The type of the result that {@link #onFinished} extracts from the
+ *            server's response. Use {@link Void} if there is none.
  */
-public abstract class Request {
+public abstract class Request<T> {
 
 	protected HttpRequest request;
 
+	private Map<String, String> body;
+
 	/**
 	 * Get the underlying {@link HttpRequest}.
 	 */
@@ -26,8 +34,35 @@ public abstract class Request {
 	}
 
 	/**
-	 * A method to handle the response.
+	 * Sets the fields of the request body. The body is encoded by the
+	 * {@link Requester} that executes the request, with its
+	 * {@link BodyCodec}.
+	 */
+	protected void setBody(Map<String, String> fields) {
+		if (!(request instanceof HttpEntityEnclosingRequest))
+			throw new IllegalStateException("request can't have a body");
+		body = fields;
+	}
+
+	/**
+	 * Returns the fields of the request body, or null if it has none.
+	 */
+	public Map<String, String> getBody() {
+		return body;
+	}
+
+	/**
+	 * Encodes the body, if any, into the underlying {@link HttpRequest}.
+	 */
+	void encodeBody(BodyCodec codec) throws IOException {
+		if (body != null)
+			((HttpEntityEnclosingRequest) request).setEntity(codec
+					.encode(body));
+	}
+
+	/**
+	 * A method to handle the response. Returns the result of the request.
 	 */
-	public abstract void onFinished(HttpResponse response, Account account)
+	public abstract T onFinished(HttpResponse response, Account account)
 			throws ServerException, IOException;
 }
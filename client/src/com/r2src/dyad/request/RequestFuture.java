@@ -0,0 +1,153 @@
+package com.r2src.dyad.request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.os.Handler;
+
+import com.r2src.dyad.Account;
+
+/**
+ * The pending result of a {@link Request} submitted to a {@link Requester}.
+ * <p>
+ * Besides the usual {@link java.util.concurrent.Future} methods, a
+ * RequestFuture can be chained to the next request with {@link #then}. The
+ * next request is executed by the same worker thread as soon as this one
+ * finishes, so a chain like register &rarr; register_gcm &rarr; bond takes a
+ * single worker thread and no nested callbacks:
+ *
+ * <pre>
+ * requester.submit(new RegisterRequest(authToken), account)
+ * 		.then(new Continuation&lt;String, Void&gt;() {
+ * 			public Request&lt;Void&gt; next(String sessionToken) {
+ * 				return new RegisterGCMRequest(regId);
+ * 			}
+ * 		}).then(...).addCallback(callback, handler);
+ * </pre>
+ *
+ * When a request in the chain fails, all the requests after it fail with the
+ * same exception.
+ */
+public class RequestFuture<T> extends FutureTask<T> {
+
+	private final Requester requester;
+	private final Account account;
+	private final List<Runnable> listeners = new ArrayList<Runnable>(1);
+	private boolean finished;
+
+	RequestFuture(final Requester requester, final Request<T> request,
+			final Account account) {
+		this(requester, account, new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return requester.execute(request, account);
+			}
+		});
+	}
+
+	private RequestFuture(Requester requester, Account account,
+			Callable<T> callable) {
+		super(callable);
+		this.requester = requester;
+		this.account = account;
+	}
+
+	/**
+	 * Chains the request returned by the continuation to this one. The
+	 * continuation is called with the result of this request, on the worker
+	 * thread that executed it.
+	 *
+	 * @return The future result of the next request.
+	 */
+	public <R> RequestFuture<R> then(final Continuation<? super T, R> next) {
+		if (next == null)
+			throw new IllegalArgumentException("continuation is null");
+
+		final RequestFuture<R> chained = new RequestFuture<R>(requester,
+				account, new Callable<R>() {
+					@Override
+					public R call() throws Exception {
+						Request<R> request = next.next(getResult());
+						return requester.execute(request, account);
+					}
+				});
+		addListener(chained);
+		return chained;
+	}
+
+	/**
+	 * Posts the outcome of this request to a {@link DyadRequestCallback} on the
+	 * given {@link Handler}.
+	 */
+	public RequestFuture<T> addCallback(final DyadRequestCallback callback,
+			final Handler handler) {
+		if (handler == null)
+			throw new IllegalArgumentException("handler is null");
+		if (callback == null)
+			throw new IllegalArgumentException("callback is null");
+
+		addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					getResult();
+					handler.post(new Runnable() {
+						public void run() {
+							callback.onFinished();
+						}
+					});
+				} catch (final Exception e) {
+					handler.post(new Runnable() {
+						public void run() {
+							callback.onError(e);
+						}
+					});
+				}
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Runs the listener when this request is done. Listeners added before that
+	 * run on the worker thread; listeners added afterwards are handed to the
+	 * requester's executor.
+	 */
+	private void addListener(Runnable listener) {
+		synchronized (listeners) {
+			if (!finished) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		requester.executor.execute(listener);
+	}
+
+	@Override
+	protected void done() {
+		synchronized (listeners) {
+			finished = true;
+		}
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Like {@link #get}, but only to be called when the request is done and
+	 * with the cause of the failure unwrapped.
+	 */
+	private T getResult() throws Exception {
+		try {
+			return get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		}
+	}
+}
@@ -2,13 +2,20 @@ package com.r2src.dyad.request;
 
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
 
 import com.r2src.dyad.Account;
 import com.r2src.dyad.ServerException;
@@ -16,74 +23,177 @@ import com.r2src.dyad.ServerException;
 import android.os.Handler;
 
 /**
- * A client to execute {@link DyadRequests}.
- * 
+ * A client to execute {@link Request}s.
+ *
  */
 public class Requester {
+
+	/**
+	 * The number of worker threads used by the default constructor.
+	 */
+	public static final int DEFAULT_THREADS = 4;
+
+	private static final String AUTHORIZATION = "X-Dyad-Authorization";
+
+	// what servers without codecs answer to a body that isn't JSON
+	private static final String INVALID_JSON = "Invalid JSON.";
+
 	private volatile DefaultHttpClient client;
-	public final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ConnectionPool pool;
+	private volatile BodyCodec codec = JsonBodyCodec.INSTANCE;
+	public final ExecutorService executor;
 
 	public Requester() {
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * @param threads
+	 *            The maximum number of requests that are executed at the same
+	 *            time. Requests submitted while all threads are busy are queued.
+	 */
+	public Requester(int threads) {
+		this(threads, new ConnectionPool());
+	}
+
+	/**
+	 * @param threads
+	 *            The maximum number of requests that are executed at the same
+	 *            time. Requests submitted while all threads are busy are queued.
+	 * @param pool
+	 *            The settings of the pool of persistent connections.
+	 */
+	public Requester(int threads, ConnectionPool pool) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("threads must be positive");
+		if (pool == null)
+			throw new IllegalArgumentException("pool is null");
+		executor = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
 		// initialize thread-safe http client
-		client = new DefaultHttpClient();
-		ClientConnectionManager mgr = client.getConnectionManager();
-		HttpParams params = client.getParams();
-		client = new DefaultHttpClient(new ThreadSafeClientConnManager(params,
-				mgr.getSchemeRegistry()), params);
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory
+				.getSocketFactory(), 80));
+		schemes.register(new Scheme("https", SSLSocketFactory
+				.getSocketFactory(), 443));
+		this.pool = pool;
+		client = pool.createClient(schemes);
+	}
+
+	/**
+	 * Sets the encoding of request bodies. Defaults to JSON. If the server
+	 * turns out not to support the codec, the requester falls back to JSON,
+	 * for this request and all the ones after it.
+	 */
+	public void setBodyCodec(BodyCodec codec) {
+		if (codec == null)
+			throw new IllegalArgumentException("codec is null");
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the connection pool, for its statistics.
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
 	}
 
 	/**
-	 * Executes a {@link Request} and returns the response.
-	 * 
+	 * Executes a {@link Request} and returns its result.
+	 * <p>
+	 * The request carries the account's session token, if it has one.
+	 * Whatever is left of the response body after the request has handled it
+	 * is consumed, so that the connection can go back to the pool.
+	 *
 	 * @param request
 	 * @param dyadAccount
 	 */
-	public HttpResponse execute(Request request, Account dyadAccount)
+	public <T> T execute(Request<T> request, Account dyadAccount)
 			throws IOException, ServerException {
+		pool.evict();
+		String token = dyadAccount.getSessionToken();
+		if (token != null
+				&& !request.getHttpRequest().containsHeader(AUTHORIZATION))
+			request.getHttpRequest().addHeader(AUTHORIZATION, token);
+		BodyCodec bodyCodec = codec;
+		request.encodeBody(bodyCodec);
 		HttpResponse response = client.execute(dyadAccount.getHost(),
 				request.getHttpRequest());
-		request.onFinished(response, dyadAccount);
-		return response;
+
+		// the server doesn't speak this codec, so fall back to JSON for good
+		if (request.getBody() != null && bodyCodec != JsonBodyCodec.INSTANCE
+				&& rejectsCodec(response)) {
+			consume(response);
+			codec = JsonBodyCodec.INSTANCE;
+			request.encodeBody(JsonBodyCodec.INSTANCE);
+			response = client.execute(dyadAccount.getHost(),
+					request.getHttpRequest());
+		}
+
+		try {
+			return request.onFinished(response, dyadAccount);
+		} finally {
+			consume(response);
+		}
+	}
+
+	/**
+	 * Returns true if the server didn't understand the encoding of the request
+	 * body. Servers that know about codecs answer 415, but older ones took
+	 * every body for JSON and answer 400 "Invalid JSON.". The body of a 400 is
+	 * buffered, so that the request can still read it if it's something else.
+	 */
+	private static boolean rejectsCodec(HttpResponse response)
+			throws IOException {
+		switch (response.getStatusLine().getStatusCode()) {
+		case HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE:
+			return true;
+		case HttpStatus.SC_BAD_REQUEST:
+			HttpEntity entity = response.getEntity();
+			if (entity == null)
+				return false;
+			entity = new BufferedHttpEntity(entity);
+			response.setEntity(entity);
+			return EntityUtils.toString(entity).trim().equals(INVALID_JSON);
+		default:
+			return false;
+		}
+	}
+
+	private static void consume(HttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity != null)
+			entity.consumeContent();
 	}
 
 	/**
-	 * Spawns a worker thread making the request. TODO: It is also possible to
-	 * let asyncRequest return a Future<HttpResponse> Simply change the return
-	 * type and change the Runnable into a Callable.
+	 * Executes a {@link Request} on one of the worker threads.
+	 *
+	 * @return The future result of the request, which can be chained to
+	 *         further requests with {@link RequestFuture#then}.
 	 */
-	public void asyncExecute(final Request request,
+	public <T> RequestFuture<T> submit(Request<T> request, Account dyadAccount) {
+		if (request == null)
+			throw new IllegalArgumentException("request is null");
+		RequestFuture<T> future = new RequestFuture<T>(this, request,
+				dyadAccount);
+		executor.execute(future);
+		return future;
+	}
+
+	/**
+	 * Executes a {@link Request} on one of the worker threads and posts the
+	 * outcome to the callback on the given {@link Handler}.
+	 */
+	public void asyncExecute(final Request<?> request,
 			final Account dyadAccount, final DyadRequestCallback callback,
 			final Handler handler) {
 		if (handler == null)
 			throw new IllegalArgumentException("handler is null");
 		if (callback == null)
-			throw new IllegalArgumentException("foo is null");
-
-		// thread magic!
-		executor.submit(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					execute(request, dyadAccount);
-					handler.post(new Runnable() {
-						public void run() {
-							callback.onFinished();
-						}
-					});
-				} catch (final IOException e) {
-					handler.post(new Runnable() {
-						public void run() {
-							callback.onError(e);
-						}
-					});
-				} catch (final ServerException e) {
-					handler.post(new Runnable() {
-						public void run() {
-							callback.onError(e);
-						}
-					});
-				}
-			}
-		});
+			throw new IllegalArgumentException("callback is null");
+
+		submit(request, dyadAccount).addCallback(callback, handler);
 	}
 }
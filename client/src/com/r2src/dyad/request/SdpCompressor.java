@@ -0,0 +1,153 @@
+package com.r2src.dyad.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses SDP messages with deflate and a preset dictionary of the lines
+ * that show up in nearly every ICE description the devices send each other,
+ * so that even a short message compresses well.
+ * <p>
+ * Compressed messages are text, prefixed with {@link #PREFIX}, so the Dyad
+ * Server relays them like any other message. {@link #decompress} leaves
+ * messages without the prefix alone, so both kinds can be received.
+ * <p>
+ * Both devices must use the same dictionary. If it ever changes, the prefix
+ * has to change with it. Messages with an older prefix, dz1: for one, are
+ * left alone like any other.
+ */
+public class SdpCompressor {
+
+	/**
+	 * Marks a compressed message.
+	 */
+	public static final String PREFIX = "dz2:";
+
+	/**
+	 * The largest message that is decompressed, in bytes. A few hundred bytes
+	 * of deflate data can expand to megabytes, so a corrupt or hostile message
+	 * is cut off here.
+	 */
+	public static final int MAX_SIZE = 64 * 1024;
+
+	/**
+	 * The preset dictionary, made of the lines that
+	 * {@link com.r2src.dyad.ice.IceAgent#getLocalDescription} writes, with the
+	 * priorities of the candidates it gathers first and the start of private
+	 * addresses. Deflate finds matches nearby more cheaply, so the most common
+	 * lines are at the end.
+	 */
+	static final byte[] DICTIONARY = toBytes("a=candidate: 1 udp 2130705919 fe80:  typ host\r\n"
+			+ "a=candidate: 1 udp 16777215  typ relay raddr  rport \r\n"
+			+ "a=candidate: 1 udp 1694498815  typ srflx raddr  rport \r\n"
+			+ "a=candidate: 1 udp 2130706175 10.  typ host\r\n"
+			+ "a=end-of-candidates\r\n"
+			+ "a=ice-ufrag:\r\na=ice-pwd:\r\n"
+			+ "a=candidate: 1 udp 2130706431 192.168.  typ host\r\n");
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_COMPRESSION, true);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private SdpCompressor() {
+	}
+
+	/**
+	 * Compresses an SDP message into text that starts with {@link #PREFIX}.
+	 */
+	public static String compress(String sdp) {
+		return PREFIX + Base64.encode(deflate(sdp));
+	}
+
+	/**
+	 * Decompresses a message created by {@link #compress}. Messages that are
+	 * not compressed are returned as they are.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the message is corrupt.
+	 */
+	public static String decompress(String message) {
+		if (message == null || !message.startsWith(PREFIX))
+			return message;
+		return inflate(Base64.decode(message.substring(PREFIX.length())));
+	}
+
+	/**
+	 * Compresses an SDP message into raw deflate data.
+	 */
+	public static byte[] deflate(String sdp) {
+		byte[] input = toBytes(sdp);
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(input);
+		deflater.finish();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				input.length / 2 + 16);
+		byte[] chunk = new byte[512];
+		while (!deflater.finished()) {
+			out.write(chunk, 0, deflater.deflate(chunk));
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompresses raw deflate data created by {@link #deflate}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the data is corrupt or inflates to more than
+	 *             {@link #MAX_SIZE} bytes.
+	 */
+	public static String inflate(byte[] data) {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		// raw deflate streams don't ask for their dictionary, so set it first
+		inflater.setDictionary(DICTIONARY);
+		inflater.setInput(data);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(
+				data.length * 4, MAX_SIZE));
+		byte[] chunk = new byte[1024];
+		try {
+			while (!inflater.finished()) {
+				int n = inflater.inflate(chunk);
+				if (n == 0 && !inflater.finished()
+						&& (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IllegalArgumentException("truncated SDP message");
+				if (out.size() + n > MAX_SIZE)
+					throw new IllegalArgumentException("SDP message is too large");
+				out.write(chunk, 0, n);
+			}
+			if (inflater.getRemaining() > 0)
+				throw new IllegalArgumentException(
+						"trailing data after SDP message");
+			return out.toString("UTF-8");
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] toBytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+
+/**
+ * A request to send an SDP offer or answer to the other device of a bonded
+ * Dyad. The server stores the message and pushes it to the other device.
+ * <p>
+ * The message can be compressed with {@link SdpCompressor}, which makes it
+ * several times smaller and more likely to fit in the push. The server relays
+ * it as it is, and {@link GetSdpMessageRequest} decompresses it on the other
+ * side.
+ */
+public class SdpMessageRequest extends Request<Void> {
+
+	private static final String PATH = "/v1/sdp_message";
+
+	/**
+	 * @param message
+	 *            The SDP message for the other device.
+	 */
+	public SdpMessageRequest(String message) {
+		this(message, false);
+	}
+
+	/**
+	 * @param message
+	 *            The SDP message for the other device.
+	 * @param compress
+	 *            Whether to compress the message. The other device must be
+	 *            able to decompress it.
+	 */
+	public SdpMessageRequest(String message, boolean compress) {
+		if (message == null)
+			throw new IllegalArgumentException("message is null");
+		request = new HttpPost(PATH);
+		setBody(Collections.singletonMap("message",
+				compress ? SdpCompressor.compress(message) : message));
+	}
+
+	@Override
+	public Void onFinished(HttpResponse response, Account account)
+			throws ServerException, IOException {
+		switch (response.getStatusLine().getStatusCode()) {
+		case 202: // message stored, wait for the answer
+			return null;
+		default:
+			throw new ServerException(response);
+		}
+	}
+}
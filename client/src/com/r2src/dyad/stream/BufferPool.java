@@ -0,0 +1,122 @@
+package com.r2src.dyad.stream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size pool of direct {@link ByteBuffer}s of equal capacity.
+ * <p>
+ * All buffers are sliced from a single direct allocation made up front, so
+ * that sending and receiving datagrams doesn't allocate anything. When the
+ * pool runs dry a fresh direct buffer is allocated and counted as a miss;
+ * such buffers are kept if there is room for them when they are released.
+ * <p>
+ * Releasing a buffer that is already back in the pool is an error, because
+ * the pool would hand it out to two owners.
+ * <p>
+ * This class is thread-safe.
+ */
+public class BufferPool {
+
+	private final int count;
+	private final int bufferSize;
+	private final AtomicLong misses = new AtomicLong();
+
+	// guarded by free
+	private final ArrayDeque<ByteBuffer> free;
+	private final Set<ByteBuffer> freeSet = Collections
+			.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+	/**
+	 * Creates a new pool and allocates all of its buffers.
+	 *
+	 * @param count
+	 *            The number of buffers in the pool.
+	 * @param bufferSize
+	 *            The capacity of each buffer in bytes.
+	 */
+	public BufferPool(int count, int bufferSize) {
+		if (count <= 0)
+			throw new IllegalArgumentException("count must be positive");
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("bufferSize must be positive");
+
+		this.count = count;
+		this.bufferSize = bufferSize;
+		free = new ArrayDeque<ByteBuffer>(count);
+
+		ByteBuffer slab = ByteBuffer.allocateDirect(count * bufferSize);
+		for (int i = 0; i < count; i++) {
+			slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+			ByteBuffer buffer = slab.slice();
+			free.add(buffer);
+			freeSet.add(buffer);
+		}
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool. Never returns null.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer;
+		synchronized (free) {
+			buffer = free.poll();
+			if (buffer != null)
+				freeSet.remove(buffer);
+		}
+		if (buffer == null) {
+			misses.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers of the wrong capacity are
+	 * silently dropped.
+	 *
+	 * @throws IllegalStateException
+	 *             if the buffer is already back in the pool.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize)
+			return;
+		synchronized (free) {
+			if (freeSet.contains(buffer))
+				throw new IllegalStateException("buffer is released twice");
+			if (free.size() == count)
+				return;
+			buffer.clear();
+			free.add(buffer);
+			freeSet.add(buffer);
+		}
+	}
+
+	/**
+	 * Returns the capacity of the buffers handed out by this pool.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns the number of buffers currently available.
+	 */
+	public int available() {
+		synchronized (free) {
+			return free.size();
+		}
+	}
+
+	/**
+	 * Returns how many times {@link #acquire} had to allocate because the pool
+	 * was empty. If this keeps growing, the pool is too small.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
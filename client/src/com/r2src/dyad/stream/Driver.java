@@ -0,0 +1,89 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import com.r2src.dyad.Stream;
+
+/**
+ * A thread that reads the packets of a {@link Stream}, hands them to a
+ * {@link PacketHandler} and runs the handler's timers.
+ * <p>
+ * The stream is switched to non-blocking mode. The thread stops when the
+ * handler or the stream is closed.
+ */
+public class Driver extends Thread {
+
+	private final Stream stream;
+	private final PacketHandler handler;
+	private final Selector selector;
+	private volatile IOException failure;
+
+	public Driver(Stream stream, PacketHandler handler) throws IOException {
+		super("Dyad stream driver");
+		if (stream == null)
+			throw new IllegalArgumentException("stream is null");
+		if (handler == null)
+			throw new IllegalArgumentException("handler is null");
+		this.stream = stream;
+		this.handler = handler;
+
+		DatagramChannel channel = stream.getChannel();
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		setDaemon(true);
+	}
+
+	/**
+	 * Makes the thread run the handler's timers now, because the handler has
+	 * set a timer that is due sooner than it was.
+	 */
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns the exception that stopped the thread, or null.
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (handler.isOpen() && stream.isOpen()) {
+				try {
+					long wait = handler.onTimer();
+					// 0 means forever to the selector
+					selector.select(wait < 0 ? 0 : Math.max(wait, 1));
+					selector.selectedKeys().clear();
+
+					ByteBuffer packet;
+					while ((packet = stream.receive()) != null) {
+						try {
+							handler.onPacket(packet);
+						} finally {
+							stream.release(packet);
+						}
+					}
+				} catch (PortUnreachableException e) {
+					// the other side isn't listening (yet), which UDP shrugs off
+				}
+			}
+		} catch (IOException e) {
+			if (stream.isOpen())
+				failure = e;
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+}
@@ -0,0 +1,645 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Forward error correction for the packets of a {@link Link}: after every
+ * group of packets a few parity packets are sent, from which the receiving
+ * side rebuilds packets that got lost, without waiting a round trip for them
+ * to be sent again.
+ * <p>
+ * The parity packets are computed with a {@link ReedSolomon} code, so a group
+ * survives as many losses as it has parity packets. With one parity packet
+ * this comes down to XOR parity. The receiving side reports the share of
+ * packets it loses, and the number of parity packets per group follows it:
+ * just enough to bring the share of groups that can't be rebuilt under the
+ * {@link #setTargetLoss target}, within the {@link #setParityRange range}
+ * given. Packets are handed on as soon as they arrive; rebuilt packets follow
+ * when enough of their group has arrived, so they may come out of order.
+ * <p>
+ * A group that isn't full is closed after {@link #GROUP_DELAY} milliseconds,
+ * so that its parity never lags far behind. Both devices have to use FEC:
+ *
+ * <pre>
+ * FecLink fec = stream.openFec();
+ * ByteBuffer frame = fec.obtainBuffer();
+ * frame.put(payload).flip();
+ * fec.send(frame);
+ * byte[] received = fec.receive(100);
+ * </pre>
+ *
+ * Buffers obtained from this link leave room for a header in front: write
+ * after the position they come with, then flip them.
+ * <p>
+ * This class is thread-safe.
+ */
+public class FecLink implements Link, PacketHandler {
+
+	/**
+	 * The largest number of packets in a group.
+	 */
+	public static final int MAX_GROUP_SIZE = ReedSolomon.MAX_DATA;
+
+	/**
+	 * The largest number of parity packets per group.
+	 */
+	public static final int MAX_PARITY = ReedSolomon.MAX_PARITY;
+
+	public static final int DEFAULT_GROUP_SIZE = 10;
+
+	/**
+	 * How long a group that isn't full waits for more packets before its
+	 * parity is sent, in milliseconds.
+	 */
+	public static final long GROUP_DELAY = 20;
+
+	/**
+	 * How many received packets are kept for {@link #receive}.
+	 */
+	public static final int RECEIVE_QUEUE_SIZE = 256;
+
+	static final byte DATA = 1;
+	static final byte PARITY = 2;
+	static final byte REPORT = 3;
+
+	// type, packet number, group, index
+	static final int DATA_HEADER = 6;
+	// the data header and the size of the group
+	static final int PARITY_HEADER = 7;
+	// parity covers the length of each packet too
+	static final int LENGTH = 2;
+	// type, share of packets lost in 1/65535
+	static final int REPORT_SIZE = 3;
+
+	static final long REPORT_INTERVAL = 250;
+
+	// the number of groups that are kept to rebuild packets in
+	private static final int GROUPS = 16;
+	private static final long NONE = Long.MAX_VALUE;
+
+	/**
+	 * What the receiving side knows about a group.
+	 */
+	private static class Group {
+		short id;
+		boolean used;
+		// unknown until a parity packet arrives
+		int size = -1;
+		final byte[][] data = new byte[MAX_GROUP_SIZE][];
+		final int[] lengths = new int[MAX_GROUP_SIZE];
+		final byte[][] parity = new byte[MAX_PARITY][];
+		int parityLength;
+		int arrived;
+		int parityArrived;
+
+		void reset(short id) {
+			this.id = id;
+			used = true;
+			size = -1;
+			for (int i = 0; i < MAX_GROUP_SIZE; i++)
+				data[i] = null;
+			for (int i = 0; i < MAX_PARITY; i++)
+				parity[i] = null;
+			arrived = 0;
+			parityArrived = 0;
+		}
+
+		boolean isComplete() {
+			return size >= 0 && arrived >= size;
+		}
+	}
+
+	private final Link link;
+	private final int maxPayload;
+	private final long epoch = System.nanoTime();
+	private volatile Runnable wakeup;
+	private volatile PacketHandler handler;
+	private volatile boolean closed;
+
+	// sender, guarded by this
+	private int groupSize = DEFAULT_GROUP_SIZE;
+	private int minParity = 1;
+	private int maxParity = 4;
+	private double targetLoss = 0.01;
+	private final byte[][] symbols = new byte[MAX_GROUP_SIZE][];
+	private final int[] lengths = new int[MAX_GROUP_SIZE];
+	private final byte[] parity;
+	private int count;
+	private short group;
+	private short packetNumber;
+	private long groupDeadline = NONE;
+	private double lossRate;
+	private int parityCount = minParity;
+	private long dataSent;
+	private long paritySent;
+
+	// receiver, guarded by receiver
+	private final Object receiver = new Object();
+	private final Group[] groups = new Group[GROUPS];
+	private final LinkedList<byte[]> received = new LinkedList<byte[]>();
+	private boolean numbered;
+	private short highestNumber;
+	private int expected;
+	private int arrivedSinceReport;
+	private long reportDeadline = NONE;
+	private long recovered;
+	private long unrecovered;
+	private long dropped;
+
+	/**
+	 * Creates FEC over a link. Incoming packets and timers have to be fed to
+	 * it, see {@link Driver}.
+	 */
+	public FecLink(Link link) {
+		if (link == null)
+			throw new IllegalArgumentException("link is null");
+		this.link = link;
+		maxPayload = link.getMaxPacketSize() - PARITY_HEADER - LENGTH;
+		if (maxPayload <= 0)
+			throw new IllegalArgumentException("packets are too small");
+		for (int i = 0; i < MAX_GROUP_SIZE; i++)
+			symbols[i] = new byte[LENGTH + maxPayload];
+		parity = new byte[LENGTH + maxPayload];
+		for (int i = 0; i < GROUPS; i++)
+			groups[i] = new Group();
+	}
+
+	/**
+	 * Sets what to run when a timer has been set that is due sooner than the
+	 * one returned by the last call to {@link #onTimer}, typically
+	 * {@link Driver#wakeup}.
+	 */
+	public void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Lets this link carry a {@link ReliableChannel}, whose lost packets are
+	 * then mostly rebuilt rather than sent again. Both devices have to do
+	 * this.
+	 */
+	public ReliableChannel openReliableChannel() {
+		ReliableChannel reliable = new ReliableChannel(this);
+		reliable.setWakeup(new Runnable() {
+			@Override
+			public void run() {
+				wake();
+			}
+		});
+		setHandler(reliable);
+		return reliable;
+	}
+
+	/**
+	 * Hands the packets that arrive to a handler instead of queueing them for
+	 * {@link #receive}. The handler's timers are run along with this link's.
+	 */
+	public void setHandler(PacketHandler handler) {
+		this.handler = handler;
+		wake();
+	}
+
+	/**
+	 * Sets the number of packets in a group, the default being
+	 * {@link #DEFAULT_GROUP_SIZE}. Smaller groups rebuild packets sooner, at
+	 * the cost of more parity.
+	 */
+	public synchronized void setGroupSize(int size) {
+		if (size <= 0 || size > MAX_GROUP_SIZE)
+			throw new IllegalArgumentException("size should be between 1 and "
+					+ MAX_GROUP_SIZE);
+		groupSize = size;
+		parityCount = parityFor(lossRate);
+	}
+
+	public synchronized int getGroupSize() {
+		return groupSize;
+	}
+
+	/**
+	 * Limits the number of parity packets per group. By default there are
+	 * between 1 and 4.
+	 */
+	public synchronized void setParityRange(int min, int max) {
+		if (min < 0 || max < min || max > MAX_PARITY)
+			throw new IllegalArgumentException("range should be within 0 and "
+					+ MAX_PARITY);
+		minParity = min;
+		maxParity = max;
+		parityCount = parityFor(lossRate);
+	}
+
+	/**
+	 * Sets the share of groups that may lose packets that can't be rebuilt,
+	 * 0.01 by default.
+	 */
+	public synchronized void setTargetLoss(double share) {
+		if (share <= 0 || share >= 1)
+			throw new IllegalArgumentException("share should be between 0 and 1");
+		targetLoss = share;
+		parityCount = parityFor(lossRate);
+	}
+
+	@Override
+	public ByteBuffer obtainBuffer() {
+		ByteBuffer buffer = link.obtainBuffer();
+		buffer.limit(DATA_HEADER + maxPayload).position(DATA_HEADER);
+		return buffer;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		link.release(buffer);
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return maxPayload;
+	}
+
+	/**
+	 * Sends a packet, and the parity of its group if it completes it.
+	 */
+	@Override
+	public synchronized boolean send(ByteBuffer packet) throws IOException {
+		int length = packet.remaining() - DATA_HEADER;
+		if (closed || length < 0 || length > maxPayload) {
+			link.release(packet);
+			if (length > maxPayload)
+				throw new IllegalArgumentException("packet is too large");
+			return false;
+		}
+		byte[] symbol = symbols[count];
+		symbol[0] = (byte) (length >> 8);
+		symbol[1] = (byte) length;
+		packet.position(DATA_HEADER);
+		packet.get(symbol, LENGTH, length);
+		packet.position(0);
+		lengths[count] = LENGTH + length;
+
+		packet.put(0, DATA).putShort(1, packetNumber++).putShort(3, group)
+				.put(5, (byte) count);
+		count++;
+		dataSent++;
+		boolean sent = link.send(packet);
+
+		if (count >= groupSize) {
+			sendParity();
+		} else if (count == 1) {
+			groupDeadline = now() + GROUP_DELAY;
+			wake();
+		}
+		return sent;
+	}
+
+	/**
+	 * Waits at most the given number of milliseconds for the next packet.
+	 * Zero means forever.
+	 *
+	 * @return the payload of the packet, or null if none arrived in time or
+	 *         the link was closed.
+	 */
+	public byte[] receive(long timeoutMillis) throws InterruptedException {
+		synchronized (receiver) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (received.isEmpty() && !closed) {
+				long wait = timeoutMillis == 0 ? 0 : deadline
+						- System.currentTimeMillis();
+				if (timeoutMillis != 0 && wait <= 0)
+					return null;
+				receiver.wait(wait);
+			}
+			return received.isEmpty() ? null : received.removeFirst();
+		}
+	}
+
+	/**
+	 * Stops sending and receiving. Packets that haven't been read are
+	 * dropped.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (receiver) {
+			received.clear();
+			receiver.notifyAll();
+		}
+		PacketHandler h = handler;
+		if (h instanceof ReliableChannel)
+			((ReliableChannel) h).close();
+		wake();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	@Override
+	public void onPacket(ByteBuffer packet) throws IOException {
+		if (packet.remaining() < REPORT_SIZE)
+			return;
+		byte type = packet.get();
+		if (type == REPORT) {
+			onReport((packet.getShort() & 0xffff) / 65535.0);
+			return;
+		}
+		if (packet.remaining() < DATA_HEADER - 1)
+			return;
+		short number = packet.getShort();
+		short id = packet.getShort();
+		int index = packet.get() & 0xff;
+
+		byte[][] rebuilt = null;
+		boolean deliver = false;
+		synchronized (receiver) {
+			count(number);
+			Group g = findGroup(id);
+			if (type == DATA) {
+				if (index >= MAX_GROUP_SIZE)
+					return;
+				if (g == null) {
+					// too old to be rebuilt, but not too old to be useful
+					deliver = true;
+				} else if (g.data[index] == null) {
+					int length = packet.remaining();
+					byte[] symbol = new byte[LENGTH + length];
+					symbol[0] = (byte) (length >> 8);
+					symbol[1] = (byte) length;
+					packet.mark();
+					packet.get(symbol, LENGTH, length);
+					packet.reset();
+					g.data[index] = symbol;
+					g.lengths[index] = symbol.length;
+					g.arrived++;
+					deliver = true;
+					rebuilt = rebuild(g);
+				}
+			} else if (type == PARITY && g != null && index < MAX_PARITY
+					&& packet.remaining() > LENGTH
+					&& g.parity[index] == null) {
+				int size = packet.get() & 0xff;
+				if (size == 0 || size > MAX_GROUP_SIZE
+						|| (g.size >= 0 && g.size != size))
+					return;
+				g.size = size;
+				g.parityLength = packet.remaining();
+				g.parity[index] = new byte[g.parityLength];
+				packet.get(g.parity[index]);
+				g.parityArrived++;
+				rebuilt = rebuild(g);
+			}
+		}
+		if (deliver)
+			deliver(packet, null);
+		if (rebuilt != null) {
+			for (byte[] symbol : rebuilt) {
+				if (symbol != null)
+					deliver(null, symbol);
+			}
+		}
+	}
+
+	@Override
+	public long onTimer() throws IOException {
+		long next = -1;
+		long now = now();
+		synchronized (this) {
+			if (groupDeadline != NONE && now >= groupDeadline)
+				sendParity();
+			if (groupDeadline != NONE)
+				next = groupDeadline - now;
+		}
+
+		int lost = -1;
+		synchronized (receiver) {
+			if (reportDeadline != NONE && now >= reportDeadline) {
+				lost = (int) (65535L
+						* Math.max(0, expected - arrivedSinceReport) / expected);
+				expected = 0;
+				arrivedSinceReport = 0;
+				reportDeadline = NONE;
+			}
+			if (reportDeadline != NONE) {
+				long wait = reportDeadline - now;
+				if (next < 0 || wait < next)
+					next = wait;
+			}
+		}
+		if (lost >= 0) {
+			ByteBuffer report = link.obtainBuffer();
+			report.put(REPORT).putShort((short) lost).flip();
+			link.send(report);
+		}
+
+		PacketHandler h = handler;
+		if (h != null) {
+			long wait = h.onTimer();
+			if (wait >= 0 && (next < 0 || wait < next))
+				next = wait;
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the share of packets that the other side reported as lost,
+	 * smoothed.
+	 */
+	public synchronized double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * Returns the number of parity packets that are sent per group at the
+	 * moment.
+	 */
+	public synchronized int getParityCount() {
+		return parityCount;
+	}
+
+	public synchronized long getDataSent() {
+		return dataSent;
+	}
+
+	public synchronized long getParitySent() {
+		return paritySent;
+	}
+
+	/**
+	 * Returns the number of lost packets that were rebuilt.
+	 */
+	public long getRecovered() {
+		synchronized (receiver) {
+			return recovered;
+		}
+	}
+
+	/**
+	 * Returns the number of lost packets that couldn't be rebuilt, as far as
+	 * is known when their group is forgotten.
+	 */
+	public long getUnrecovered() {
+		synchronized (receiver) {
+			return unrecovered;
+		}
+	}
+
+	/**
+	 * Returns the number of packets that were dropped because nobody read
+	 * them.
+	 */
+	public long getDropped() {
+		synchronized (receiver) {
+			return dropped;
+		}
+	}
+
+	/**
+	 * Sends the parity of the current group and starts the next one.
+	 */
+	private void sendParity() throws IOException {
+		for (int p = 0; p < parityCount; p++) {
+			int length = ReedSolomon.encode(symbols, lengths, count, p, parity);
+			ByteBuffer packet = link.obtainBuffer();
+			packet.put(PARITY).putShort(packetNumber++).putShort(group)
+					.put((byte) p).put((byte) count).put(parity, 0, length)
+					.flip();
+			paritySent++;
+			link.send(packet);
+		}
+		group++;
+		count = 0;
+		groupDeadline = NONE;
+	}
+
+	private synchronized void onReport(double lost) {
+		// follow an increase at once and a decrease slowly, so that one quiet
+		// report between bursts doesn't take the parity away
+		lossRate = lost > lossRate ? lost : 0.75 * lossRate + 0.25 * lost;
+		parityCount = parityFor(lossRate);
+	}
+
+	/**
+	 * Finds the smallest number of parity packets that keeps the chance that
+	 * a group loses more packets than it has parity under the target.
+	 */
+	private int parityFor(double loss) {
+		for (int m = minParity; m < maxParity; m++) {
+			if (failureChance(groupSize + m, m, loss) <= targetLoss)
+				return m;
+		}
+		return maxParity;
+	}
+
+	/**
+	 * Returns the chance that more than the given number out of n packets are
+	 * lost.
+	 */
+	static double failureChance(int n, int tolerated, double loss) {
+		double survive = 0;
+		double binomial = 1;
+		for (int i = 0; i <= tolerated; i++) {
+			survive += binomial * Math.pow(loss, i) * Math.pow(1 - loss, n - i);
+			binomial = binomial * (n - i) / (i + 1);
+		}
+		return Math.max(0, 1 - survive);
+	}
+
+	/**
+	 * Counts an incoming packet for the loss report.
+	 */
+	private void count(short number) {
+		if (!numbered) {
+			numbered = true;
+			highestNumber = number;
+			expected++;
+		} else if ((short) (number - highestNumber) > 0) {
+			expected += (short) (number - highestNumber);
+			highestNumber = number;
+		}
+		arrivedSinceReport++;
+		if (reportDeadline == NONE) {
+			reportDeadline = now() + REPORT_INTERVAL;
+			wake();
+		}
+	}
+
+	/**
+	 * Returns where a group is kept, or null if it's too old.
+	 */
+	private Group findGroup(short id) {
+		Group g = groups[id & (GROUPS - 1)];
+		if (g.used && g.id == id)
+			return g;
+		if (g.used && (short) (id - g.id) < 0)
+			return null;
+		if (g.used && g.size >= 0)
+			unrecovered += Math.max(0, g.size - g.arrived);
+		g.reset(id);
+		return g;
+	}
+
+	/**
+	 * Rebuilds the lost packets of a group if enough of it has arrived.
+	 *
+	 * @return the rebuilt symbols by index, or null.
+	 */
+	private byte[][] rebuild(Group g) {
+		if (g.size < 0 || g.isComplete() || g.arrived + g.parityArrived < g.size)
+			return null;
+		byte[][] before = g.data.clone();
+		if (!ReedSolomon.decode(g.data, g.lengths, g.parity, g.size,
+				g.parityLength))
+			return null;
+		for (int i = 0; i < g.size; i++) {
+			if (before[i] != null)
+				before[i] = null;
+			else
+				before[i] = g.data[i];
+		}
+		recovered += g.size - g.arrived;
+		g.arrived = g.size;
+		return before;
+	}
+
+	/**
+	 * Hands a packet to the handler or queues it. Either the packet, at its
+	 * payload, or a symbol is given.
+	 */
+	private void deliver(ByteBuffer packet, byte[] symbol) throws IOException {
+		int length = symbol == null ? packet.remaining()
+				: ((symbol[0] & 0xff) << 8 | symbol[1] & 0xff);
+		if (symbol != null && length > symbol.length - LENGTH)
+			return;
+		PacketHandler h = handler;
+		if (h != null) {
+			h.onPacket(symbol == null ? packet : ByteBuffer.wrap(symbol,
+					LENGTH, length));
+			return;
+		}
+		byte[] payload = new byte[length];
+		if (symbol == null)
+			packet.get(payload);
+		else
+			System.arraycopy(symbol, LENGTH, payload, 0, length);
+		synchronized (receiver) {
+			if (received.size() >= RECEIVE_QUEUE_SIZE) {
+				dropped++;
+				return;
+			}
+			received.add(payload);
+			receiver.notifyAll();
+		}
+	}
+
+	private void wake() {
+		Runnable w = wakeup;
+		if (w != null)
+			w.run();
+	}
+
+	private long now() {
+		return (System.nanoTime() - epoch) / 1000000;
+	}
+}
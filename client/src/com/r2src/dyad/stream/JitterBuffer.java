@@ -0,0 +1,408 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Smooths out the arrival of real-time media packets: packets are held back
+ * until their playout time, put back in the order they were sent in, and
+ * skipped when they don't arrive in time.
+ * <p>
+ * The sending side numbers its packets and stamps them with the time they
+ * were sent. The receiving side tracks the smallest transit time it has seen
+ * recently, which stands for the network's own delay plus the difference
+ * between the two clocks, and estimates the jitter around it like RTP does
+ * (RFC 3550). A packet is played at the time it was sent, plus that smallest
+ * transit time, plus the playout delay. The playout delay is a few times the
+ * jitter: it grows as soon as the jitter does or a packet arrives too late,
+ * and shrinks slowly when the network calms down, so that it stays as small
+ * as the network allows.
+ * <p>
+ * The buffer is a ring of slots that are allocated up front, and
+ * {@link #take} copies into a buffer of the caller, so that nothing is
+ * allocated per packet:
+ *
+ * <pre>
+ * JitterBuffer jitter = stream.openJitterBuffer();
+ * ByteBuffer frame = ByteBuffer.allocate(jitter.getMaxPacketSize());
+ * while (jitter.take(frame, 0) &gt;= 0) {
+ * 	frame.flip();
+ * 	play(frame);
+ * 	frame.clear();
+ * }
+ * </pre>
+ *
+ * Buffers obtained from this link leave room for a header in front: write
+ * after the position they come with, then flip them. Both devices have to use
+ * a jitter buffer.
+ * <p>
+ * This class is thread-safe.
+ */
+public class JitterBuffer implements Link, PacketHandler {
+
+	/**
+	 * The default number of packets that can be held.
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * The default longest playout delay, in milliseconds.
+	 */
+	public static final int DEFAULT_MAX_DELAY = 500;
+
+	// sequence number, time it was sent
+	static final int HEADER = 6;
+
+	/**
+	 * How many times the jitter the playout delay is.
+	 */
+	static final double JITTER_FACTOR = 3;
+
+	/**
+	 * How long the smallest transit time is remembered, in milliseconds.
+	 */
+	static final long BASE_WINDOW = 5000;
+
+	private final Link link;
+	private final int maxPayload;
+	private final int mask;
+	private final long epoch = System.nanoTime();
+	private boolean closed;
+
+	// sender, guarded by this
+	private short sequence;
+
+	// ring, guarded by this: the packet that plays next is at position
+	// next, the ones after it follow
+	private final byte[][] payloads;
+	private final int[] lengths;
+	private final int[] sentTimes;
+	private final boolean[] present;
+	private final short[] sequences;
+	private boolean started;
+	private short next;
+	private int depth;
+
+	// timing, guarded by this
+	private int minDelay;
+	private int maxDelay = DEFAULT_MAX_DELAY;
+	private int base;
+	private int previousBase;
+	private long baseStarted;
+	private boolean timed;
+	private int lastTransit;
+	private double jitter;
+	private double delay;
+
+	// statistics, guarded by this
+	private long played;
+	private long lost;
+	private long late;
+	private long overflows;
+
+	/**
+	 * Creates a jitter buffer of {@link #DEFAULT_CAPACITY} packets over a
+	 * link.
+	 */
+	public JitterBuffer(Link link) {
+		this(link, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a jitter buffer over a link. Incoming packets have to be fed
+	 * to it, see {@link Driver}.
+	 *
+	 * @param capacity
+	 *            The number of packets that can be held, a power of two.
+	 */
+	public JitterBuffer(Link link, int capacity) {
+		if (link == null)
+			throw new IllegalArgumentException("link is null");
+		if (capacity <= 0 || capacity > Short.MAX_VALUE
+				|| (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException(
+					"capacity should be a power of two");
+		this.link = link;
+		maxPayload = link.getMaxPacketSize() - HEADER;
+		if (maxPayload <= 0)
+			throw new IllegalArgumentException("packets are too small");
+		mask = capacity - 1;
+		payloads = new byte[capacity][maxPayload];
+		lengths = new int[capacity];
+		sentTimes = new int[capacity];
+		present = new boolean[capacity];
+		sequences = new short[capacity];
+	}
+
+	/**
+	 * Limits the playout delay, in milliseconds. By default it is between 0
+	 * and {@link #DEFAULT_MAX_DELAY}.
+	 */
+	public synchronized void setDelayRange(int min, int max) {
+		if (min < 0 || max < min)
+			throw new IllegalArgumentException("invalid range");
+		minDelay = min;
+		maxDelay = max;
+		delay = Math.min(Math.max(delay, min), max);
+	}
+
+	@Override
+	public ByteBuffer obtainBuffer() {
+		ByteBuffer buffer = link.obtainBuffer();
+		buffer.limit(HEADER + maxPayload).position(HEADER);
+		return buffer;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		link.release(buffer);
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return maxPayload;
+	}
+
+	/**
+	 * Numbers a packet, stamps it with the time and sends it.
+	 */
+	@Override
+	public boolean send(ByteBuffer packet) throws IOException {
+		short number;
+		synchronized (this) {
+			number = sequence++;
+		}
+		packet.putShort(0, number).putInt(2, (int) now());
+		return link.send(packet);
+	}
+
+	/**
+	 * Waits for the next packet to be due, and copies its payload into a
+	 * buffer. Packets that are still missing when a later one is due are
+	 * skipped.
+	 *
+	 * @param into
+	 *            Receives the payload, which has to fit.
+	 * @param timeoutMillis
+	 *            The most time to wait, zero meaning forever.
+	 * @return the length of the payload, or -1 if no packet was due in time or
+	 *         the buffer was closed.
+	 */
+	public synchronized int take(ByteBuffer into, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = now() + timeoutMillis;
+		while (!closed) {
+			long wait = timeoutMillis == 0 ? 0 : deadline - now();
+			if (timeoutMillis != 0 && wait <= 0)
+				return -1;
+
+			int first = firstPresent();
+			if (first < 0) {
+				wait(wait);
+				continue;
+			}
+			long due = dueIn(first);
+			if (due > 0) {
+				wait(wait == 0 ? due : Math.min(wait, due));
+				continue;
+			}
+
+			// whatever is missing before it won't be played anymore
+			lost += (short) (sequences[first] - next);
+			int length = lengths[first];
+			into.put(payloads[first], 0, length);
+			present[first] = false;
+			next = (short) (sequences[first] + 1);
+			depth--;
+			played++;
+			return length;
+		}
+		return -1;
+	}
+
+	/**
+	 * Stops the buffer. Packets that haven't been played are dropped.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return !closed;
+	}
+
+	@Override
+	public void onPacket(ByteBuffer packet) {
+		if (packet.remaining() < HEADER)
+			return;
+		short number = packet.getShort();
+		int sent = packet.getInt();
+		int length = packet.remaining();
+		if (length > maxPayload)
+			return;
+		int now = (int) now();
+
+		synchronized (this) {
+			if (closed)
+				return;
+			if (!started) {
+				started = true;
+				next = number;
+			}
+			updateDelay(now - sent);
+
+			int offset = (short) (number - next);
+			if (offset < 0) {
+				// its turn has passed
+				late++;
+				int lateness = (int) -dueAt(sent);
+				if (lateness > 0)
+					delay = Math.min(maxDelay, delay + lateness);
+				return;
+			}
+			if (offset > mask) {
+				// no room: give up on the oldest packets
+				short skipTo = (short) (number - mask);
+				while (next != skipTo) {
+					int i = next & mask;
+					if (present[i] && sequences[i] == next) {
+						present[i] = false;
+						depth--;
+					}
+					overflows++;
+					next++;
+				}
+			}
+			int i = number & mask;
+			if (present[i])
+				return;
+			packet.get(payloads[i], 0, length);
+			lengths[i] = length;
+			sentTimes[i] = sent;
+			sequences[i] = number;
+			present[i] = true;
+			depth++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * The jitter buffer has no timers: {@link #take} waits by itself.
+	 */
+	@Override
+	public long onTimer() {
+		return -1;
+	}
+
+	/**
+	 * Returns the number of packets that are waiting to be played.
+	 */
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the current playout delay, in milliseconds.
+	 */
+	public synchronized int getDelay() {
+		return (int) Math.round(delay);
+	}
+
+	/**
+	 * Returns the estimated jitter, in milliseconds.
+	 */
+	public synchronized double getJitter() {
+		return jitter;
+	}
+
+	public synchronized long getPlayed() {
+		return played;
+	}
+
+	/**
+	 * Returns the number of packets that were skipped because they hadn't
+	 * arrived when a later packet was due.
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+
+	/**
+	 * Returns the number of packets that arrived after their turn and were
+	 * dropped.
+	 */
+	public synchronized long getLate() {
+		return late;
+	}
+
+	/**
+	 * Returns the number of packets that were given up on because the buffer
+	 * was full.
+	 */
+	public synchronized long getOverflows() {
+		return overflows;
+	}
+
+	/**
+	 * Updates the smallest transit time, the jitter and the playout delay
+	 * with the transit time of a packet.
+	 */
+	private void updateDelay(int transit) {
+		long now = now();
+		if (!timed) {
+			timed = true;
+			base = previousBase = lastTransit = transit;
+			baseStarted = now;
+		}
+		// the smallest transit time of this window and the last one, so that
+		// a drift in the clocks or a new route is followed
+		if (now - baseStarted >= BASE_WINDOW) {
+			previousBase = base;
+			base = transit;
+			baseStarted = now;
+		} else if (transit - base < 0) {
+			base = transit;
+		}
+
+		jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+		lastTransit = transit;
+
+		double target = Math.min(Math.max(JITTER_FACTOR * jitter, minDelay),
+				maxDelay);
+		delay = target > delay ? target : delay + (target - delay) / 64;
+	}
+
+	/**
+	 * Returns the number of milliseconds until a packet in a slot is due.
+	 */
+	private long dueIn(int slot) {
+		return dueAt(sentTimes[slot]);
+	}
+
+	private long dueAt(int sent) {
+		int smallest = base - previousBase < 0 ? base : previousBase;
+		return (int) (sent + smallest + Math.round(delay) - (int) now());
+	}
+
+	/**
+	 * Finds the first packet that is waiting to be played.
+	 *
+	 * @return its slot, or -1.
+	 */
+	private int firstPresent() {
+		if (depth == 0)
+			return -1;
+		for (int n = 0; n <= mask; n++) {
+			int i = (next + n) & mask;
+			if (present[i])
+				return i;
+		}
+		return -1;
+	}
+
+	private long now() {
+		return (System.nanoTime() - epoch) / 1000000;
+	}
+}
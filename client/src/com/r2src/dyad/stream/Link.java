@@ -0,0 +1,35 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Something that packets can be sent over, such as a
+ * {@link com.r2src.dyad.Stream}. Buffers are borrowed from the link, filled,
+ * flipped and handed back through {@link #send}.
+ */
+public interface Link {
+
+	/**
+	 * Borrows an empty buffer of {@link #getMaxPacketSize} bytes.
+	 */
+	public ByteBuffer obtainBuffer();
+
+	/**
+	 * Returns a buffer that wasn't sent.
+	 */
+	public void release(ByteBuffer buffer);
+
+	/**
+	 * Sends the remaining bytes of a buffer as one packet and releases the
+	 * buffer. Packets may be lost.
+	 *
+	 * @return false if the packet was dropped because the link was busy.
+	 */
+	public boolean send(ByteBuffer packet) throws IOException;
+
+	/**
+	 * Returns the size of the largest packet that can be sent.
+	 */
+	public int getMaxPacketSize();
+}
@@ -0,0 +1,230 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries several independent {@link SubStream}s, such as audio, video,
+ * control messages and file transfers, over a single {@link Link}, so that a
+ * Dyad needs only one ICE negotiation and at most one TURN allocation.
+ * <p>
+ * Every packet starts with a header of {@link #HEADER} bytes: the id of its
+ * sub-stream, a flag that marks control packets, and a packet counter used
+ * for flow control. Both devices have to open the same sub-streams, with the
+ * same ids and windows:
+ *
+ * <pre>
+ * Multiplexer mux = stream.openMultiplexer();
+ * SubStream video = mux.open(VIDEO, 10);
+ * ReliableChannel control = mux.open(CONTROL, 20).openReliableChannel();
+ * ReliableChannel files = mux.open(FILES, 0).openReliableChannel();
+ * </pre>
+ *
+ * Outgoing packets go through a {@link SendScheduler}, which sends them in
+ * order of the priority of their sub-stream and drops the ones that have
+ * outlived their sub-stream's {@link SubStream#setLifetime lifetime}. Give it
+ * a rate to keep bulk transfers from delaying real-time media:
+ *
+ * <pre>
+ * mux.getScheduler().setRate(estimatedBytesPerSecond);
+ * video.setLifetime(100);
+ * </pre>
+ *
+ * <p>
+ * This class is thread-safe.
+ */
+public class Multiplexer implements PacketHandler {
+
+	/**
+	 * The number of sub-streams that can be open at the same time. Their ids
+	 * run from 0 to one less than this.
+	 */
+	public static final int MAX_SUB_STREAMS = 128;
+
+	/**
+	 * The number of packets a sub-stream can buffer by default.
+	 */
+	public static final int DEFAULT_WINDOW = 64;
+
+	/**
+	 * The size of the header of every packet.
+	 */
+	public static final int HEADER = 3;
+
+	static final int CONTROL = 0x80;
+	static final byte WINDOW = 1;
+	static final byte BLOCKED = 2;
+
+	/**
+	 * How often a sub-stream whose window is closed asks for it again, in
+	 * case the update that opens it got lost.
+	 */
+	static final long BLOCKED_INTERVAL = 100;
+
+	private final Link link;
+	private final SendScheduler scheduler;
+	private final SubStream[] subStreams = new SubStream[MAX_SUB_STREAMS];
+	private volatile Runnable wakeup;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a multiplexer over a link. Incoming packets and timers have to
+	 * be fed to it, see {@link Driver}.
+	 */
+	public Multiplexer(Link link) {
+		if (link == null)
+			throw new IllegalArgumentException("link is null");
+		if (link.getMaxPacketSize() <= HEADER)
+			throw new IllegalArgumentException("packets are too small");
+		this.link = link;
+		scheduler = new SendScheduler(link);
+	}
+
+	/**
+	 * Returns the scheduler of outgoing packets, for its rate and statistics.
+	 */
+	public SendScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Sets what to run when a timer has been set that is due sooner than the
+	 * one returned by the last call to {@link #onTimer}, typically
+	 * {@link Driver#wakeup}.
+	 */
+	public void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Opens a sub-stream with a window of {@link #DEFAULT_WINDOW} packets.
+	 */
+	public SubStream open(int id, int priority) {
+		return open(id, priority, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Opens a sub-stream.
+	 *
+	 * @param id
+	 *            Identifies the sub-stream on both devices.
+	 * @param priority
+	 *            Packets of sub-streams with a higher priority are sent
+	 *            first.
+	 * @param window
+	 *            The number of packets that the receiving side buffers, and
+	 *            therefore the number of packets that the sending side may
+	 *            send before it is read.
+	 */
+	public synchronized SubStream open(int id, int priority, int window) {
+		if (closed)
+			throw new IllegalStateException("multiplexer is closed");
+		if (id < 0 || id >= MAX_SUB_STREAMS)
+			throw new IllegalArgumentException("id should be between 0 and "
+					+ (MAX_SUB_STREAMS - 1));
+		if (window <= 0 || window > Short.MAX_VALUE / 2)
+			throw new IllegalArgumentException("window is out of range");
+		if (subStreams[id] != null)
+			throw new IllegalStateException("sub-stream " + id
+					+ " is already open");
+		return subStreams[id] = new SubStream(this, id, priority, window);
+	}
+
+	/**
+	 * Returns the sub-stream with the given id, or null if it isn't open.
+	 */
+	public synchronized SubStream get(int id) {
+		return id >= 0 && id < MAX_SUB_STREAMS ? subStreams[id] : null;
+	}
+
+	synchronized void remove(SubStream subStream) {
+		if (subStreams[subStream.getId()] == subStream) {
+			subStreams[subStream.getId()] = null;
+			scheduler.discard(subStream);
+		}
+	}
+
+	/**
+	 * Closes all sub-streams.
+	 */
+	public void close() {
+		SubStream[] open;
+		synchronized (this) {
+			closed = true;
+			open = subStreams.clone();
+		}
+		for (SubStream s : open) {
+			if (s != null)
+				s.close();
+		}
+		wake();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	Link getLink() {
+		return link;
+	}
+
+	/**
+	 * Queues a packet of a sub-stream and sends what can be sent.
+	 */
+	boolean enqueue(SubStream subStream, ByteBuffer packet, long lifetime)
+			throws IOException {
+		boolean queued = scheduler.enqueue(packet, subStream,
+				subStream.getPriority(), lifetime);
+		// when the rate holds packets back, the timer has to send them
+		if (scheduler.flush() >= 0)
+			wake();
+		return queued;
+	}
+
+	/**
+	 * Sends a control packet for a sub-stream right away.
+	 */
+	void sendControl(int id, byte kind, short value) throws IOException {
+		ByteBuffer packet = link.obtainBuffer();
+		packet.put((byte) (id | CONTROL)).put(kind).putShort(value).flip();
+		link.send(packet);
+	}
+
+	@Override
+	public void onPacket(ByteBuffer packet) throws IOException {
+		if (packet.remaining() < HEADER)
+			return;
+		int header = packet.get() & 0xff;
+		SubStream subStream = get(header & ~CONTROL);
+		if (subStream == null)
+			return;
+		if ((header & CONTROL) != 0)
+			subStream.onControl(packet.get(), packet.getShort());
+		else
+			subStream.onData(packet.getShort(), packet);
+	}
+
+	@Override
+	public long onTimer() throws IOException {
+		SubStream[] open;
+		synchronized (this) {
+			open = subStreams.clone();
+		}
+		long next = scheduler.flush();
+		for (SubStream s : open) {
+			if (s == null)
+				continue;
+			long wait = s.onTimer();
+			if (wait >= 0 && (next < 0 || wait < next))
+				next = wait;
+		}
+		return next;
+	}
+
+	void wake() {
+		Runnable w = wakeup;
+		if (w != null)
+			w.run();
+	}
+}
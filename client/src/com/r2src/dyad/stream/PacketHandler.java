@@ -0,0 +1,30 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A protocol on top of a {@link Link}, which gets the packets that arrive and
+ * keeps its own timers. A {@link Driver} calls it from a single thread.
+ */
+public interface PacketHandler {
+
+	/**
+	 * Handles an incoming packet. The buffer is only valid during the call.
+	 */
+	public void onPacket(ByteBuffer packet) throws IOException;
+
+	/**
+	 * Runs the timers that are due.
+	 *
+	 * @return the number of milliseconds until the next timer is due, or -1
+	 *         if none is set.
+	 */
+	public long onTimer() throws IOException;
+
+	/**
+	 * Returns false once the handler has been closed and no longer needs to be
+	 * driven.
+	 */
+	public boolean isOpen();
+}
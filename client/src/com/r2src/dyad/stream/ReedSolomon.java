@@ -0,0 +1,208 @@
+package com.r2src.dyad.stream;
+
+/**
+ * A systematic Reed-Solomon erasure code over GF(2^8): up to
+ * {@link #MAX_PARITY} parity shards are computed from up to
+ * {@link #MAX_DATA} data shards, and any data shards that got lost can be
+ * rebuilt from as many parity shards.
+ * <p>
+ * The parity rows come from a Cauchy matrix, every square part of which can
+ * be inverted, which is what makes any combination of data and parity shards
+ * enough. Its columns are scaled so that the first parity row is all ones:
+ * the first parity shard is the XOR of the data, and rebuilding a single lost
+ * shard from it takes nothing but XORs.
+ * <p>
+ * Shards may be shorter than the length they are coded at, in which case
+ * they count as padded with zeros.
+ */
+final class ReedSolomon {
+
+	static final int MAX_DATA = 32;
+	static final int MAX_PARITY = 8;
+
+	private static final int[] EXP = new int[512];
+	private static final int[] LOG = new int[256];
+	private static final int[][] PARITY = new int[MAX_PARITY][MAX_DATA];
+
+	static {
+		// the field generated by x^8 + x^4 + x^3 + x^2 + 1
+		int x = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x >= 256)
+				x ^= 0x11d;
+		}
+		for (int i = 255; i < EXP.length; i++)
+			EXP[i] = EXP[i - 255];
+
+		for (int j = 0; j < MAX_DATA; j++) {
+			int first = inverse(MAX_DATA ^ j);
+			for (int p = 0; p < MAX_PARITY; p++)
+				PARITY[p][j] = divide(inverse((MAX_DATA + p) ^ j), first);
+		}
+	}
+
+	private ReedSolomon() {
+	}
+
+	static int multiply(int a, int b) {
+		return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+	}
+
+	static int divide(int a, int b) {
+		return a == 0 ? 0 : EXP[LOG[a] + 255 - LOG[b]];
+	}
+
+	static int inverse(int a) {
+		return EXP[255 - LOG[a]];
+	}
+
+	/**
+	 * Computes a parity shard.
+	 *
+	 * @param data
+	 *            The data shards.
+	 * @param lengths
+	 *            The length of each data shard.
+	 * @param count
+	 *            The number of data shards.
+	 * @param row
+	 *            Which parity shard to compute, from 0.
+	 * @param parity
+	 *            Receives the parity shard, which is as long as the longest
+	 *            data shard.
+	 * @return the length of the parity shard.
+	 */
+	static int encode(byte[][] data, int[] lengths, int count, int row,
+			byte[] parity) {
+		int length = 0;
+		for (int j = 0; j < count; j++)
+			length = Math.max(length, lengths[j]);
+		for (int i = 0; i < length; i++)
+			parity[i] = 0;
+		for (int j = 0; j < count; j++)
+			addMultiple(parity, data[j], lengths[j], PARITY[row][j]);
+		return length;
+	}
+
+	/**
+	 * Rebuilds the missing data shards.
+	 *
+	 * @param data
+	 *            The data shards, null where missing. Missing shards are
+	 *            filled in with arrays of the given length.
+	 * @param dataLengths
+	 *            The length of each data shard that isn't missing.
+	 * @param parity
+	 *            The parity shards by row, null where missing. They are all
+	 *            of the given length.
+	 * @param count
+	 *            The number of data shards.
+	 * @param length
+	 *            The length of the parity shards.
+	 * @return false if too few shards are left.
+	 */
+	static boolean decode(byte[][] data, int[] dataLengths, byte[][] parity,
+			int count, int length) {
+		int[] missing = new int[count];
+		int lost = 0;
+		for (int j = 0; j < count; j++) {
+			if (data[j] == null)
+				missing[lost++] = j;
+		}
+		if (lost == 0)
+			return true;
+		int[] rows = new int[lost];
+		int found = 0;
+		for (int p = 0; p < parity.length && found < lost; p++) {
+			if (parity[p] != null)
+				rows[found++] = p;
+		}
+		if (found < lost)
+			return false;
+
+		// each parity shard minus the known data leaves a combination of the
+		// missing shards, which is solved by inverting their coefficients
+		byte[][] rest = new byte[lost][];
+		int[][] matrix = new int[lost][lost];
+		for (int r = 0; r < lost; r++) {
+			int[] coefficients = PARITY[rows[r]];
+			rest[r] = parity[rows[r]].clone();
+			for (int j = 0; j < count; j++) {
+				if (data[j] != null)
+					addMultiple(rest[r], data[j], dataLengths[j],
+							coefficients[j]);
+			}
+			for (int c = 0; c < lost; c++)
+				matrix[r][c] = coefficients[missing[c]];
+		}
+		int[][] inverse = invert(matrix);
+
+		for (int c = 0; c < lost; c++) {
+			byte[] shard = new byte[length];
+			for (int r = 0; r < lost; r++)
+				addMultiple(shard, rest[r], length, inverse[c][r]);
+			data[missing[c]] = shard;
+			dataLengths[missing[c]] = length;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a multiple of a shard to another, which in GF(2^8) is the same as
+	 * subtracting it.
+	 */
+	private static void addMultiple(byte[] to, byte[] shard, int length,
+			int factor) {
+		if (factor == 1) {
+			for (int i = 0; i < length; i++)
+				to[i] ^= shard[i];
+		} else if (factor != 0) {
+			int log = LOG[factor];
+			for (int i = 0; i < length; i++) {
+				int b = shard[i] & 0xff;
+				if (b != 0)
+					to[i] ^= EXP[LOG[b] + log];
+			}
+		}
+	}
+
+	/**
+	 * Inverts a matrix by Gauss-Jordan elimination.
+	 */
+	private static int[][] invert(int[][] matrix) {
+		int n = matrix.length;
+		int[][] inverse = new int[n][n];
+		for (int i = 0; i < n; i++)
+			inverse[i][i] = 1;
+		for (int c = 0; c < n; c++) {
+			int pivot = c;
+			while (matrix[pivot][c] == 0)
+				pivot++;
+			int[] swap = matrix[c];
+			matrix[c] = matrix[pivot];
+			matrix[pivot] = swap;
+			swap = inverse[c];
+			inverse[c] = inverse[pivot];
+			inverse[pivot] = swap;
+
+			int scale = inverse(matrix[c][c]);
+			for (int k = 0; k < n; k++) {
+				matrix[c][k] = multiply(matrix[c][k], scale);
+				inverse[c][k] = multiply(inverse[c][k], scale);
+			}
+			for (int r = 0; r < n; r++) {
+				int factor = matrix[r][c];
+				if (r == c || factor == 0)
+					continue;
+				for (int k = 0; k < n; k++) {
+					matrix[r][k] ^= multiply(factor, matrix[c][k]);
+					inverse[r][k] ^= multiply(factor, inverse[c][k]);
+				}
+			}
+		}
+		return inverse;
+	}
+}
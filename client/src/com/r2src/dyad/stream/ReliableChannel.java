@@ -0,0 +1,667 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reliable, ordered delivery of messages over a {@link Link} that may lose,
+ * duplicate and reorder packets.
+ * <p>
+ * Messages are split into packets that carry a sequence number. The receiver
+ * acknowledges them cumulatively and reports the packets it has received
+ * beyond a gap in selective acknowledgement (SACK) blocks, so that only the
+ * packets that were really lost are sent again, while the window keeps moving.
+ * A packet counts as lost when {@link #REORDER_THRESHOLD} packets that were
+ * sent after it have arrived, or when the retransmission timer (RFC 6298)
+ * expires. When the last packets in flight are lost, there are no later
+ * packets to reveal that, so if nothing is acknowledged for two round trips
+ * the newest packet is sent again as a probe, long before the retransmission
+ * timer would expire. The number of packets in flight is limited by a congestion window
+ * that grows like TCP's (slow start, then one packet per round trip) and is
+ * halved once per round trip with losses.
+ * <p>
+ * The channel doesn't read from the link itself: incoming packets and timers
+ * are fed to it as a {@link PacketHandler}, usually by a {@link Driver}:
+ *
+ * <pre>
+ * ReliableChannel channel = stream.openReliableChannel();
+ * channel.send(chunk);
+ * byte[] message = channel.receive();
+ * </pre>
+ *
+ * This class is thread-safe. {@link #send} blocks while the send buffer is
+ * full and {@link #receive} blocks until a message has arrived.
+ */
+public class ReliableChannel implements PacketHandler {
+
+	/**
+	 * The number of packets that can be buffered on either side, which is
+	 * also the largest possible window.
+	 */
+	public static final int MAX_WINDOW = 1024;
+
+	/**
+	 * The number of later packets that have to arrive before a packet counts
+	 * as lost rather than reordered.
+	 */
+	public static final int REORDER_THRESHOLD = 3;
+
+	static final byte DATA = 1;
+	static final byte ACK = 2;
+	// flags the data packets of a message that are followed by more
+	static final byte MORE = (byte) 0x80;
+
+	// type, sequence number, timestamp
+	static final int DATA_HEADER = 9;
+	// type, cumulative ack, echoed timestamp, window, number of SACK blocks
+	static final int ACK_HEADER = 12;
+	static final int MAX_SACK_BLOCKS = 8;
+
+	private static final int MASK = MAX_WINDOW - 1;
+	private static final int INITIAL_WINDOW = 10;
+	private static final long INITIAL_RTO = 1000;
+	private static final long MIN_RTO = 200;
+	private static final long MAX_RTO = 60000;
+	private static final long ACK_DELAY = 10;
+	private static final long MIN_PROBE_TIMEOUT = 2 * ACK_DELAY;
+	private static final long NONE = Long.MAX_VALUE;
+
+	private final Link link;
+	private final int maxPayload;
+	private final long epoch = System.nanoTime();
+	private volatile Runnable wakeup;
+	private boolean closed;
+
+	// sender: sent and unacknowledged packets in [sndUna, sndNxt), packets
+	// that haven't been sent yet in [sndNxt, sndEnd)
+	private final byte[][] sendData = new byte[MAX_WINDOW][];
+	private final boolean[] sendMore = new boolean[MAX_WINDOW];
+	private final boolean[] sacked = new boolean[MAX_WINDOW];
+	private final boolean[] lost = new boolean[MAX_WINDOW];
+	// the order in which packets were (re)transmitted
+	private final long[] sendOrder = new long[MAX_WINDOW];
+	private int sndUna;
+	private int sndNxt;
+	private int sndEnd;
+	private long transmissions;
+	private long deliveredOrder = -1;
+	private int inFlight;
+	private int lostCount;
+	private int peerWindow = MAX_WINDOW;
+
+	private double cwnd = INITIAL_WINDOW;
+	private double ssthresh = MAX_WINDOW;
+	private boolean inRecovery;
+	private int recoveryPoint;
+
+	private long srtt = -1;
+	private long rttvar;
+	private long rto = INITIAL_RTO;
+	private long rtoDeadline = NONE;
+	private long probeDeadline = NONE;
+	// only one probe until something is acknowledged
+	private boolean probed;
+
+	// receiver: packets in [rcvRead, rcvNxt) are in order and wait to be
+	// read, packets after rcvNxt arrived out of order
+	private final byte[][] recvData = new byte[MAX_WINDOW][];
+	private final boolean[] recvMore = new boolean[MAX_WINDOW];
+	private int rcvRead;
+	private int rcvNxt;
+	private int rcvHighest;
+	private int completeMessages;
+	private int echo;
+	private int advertised = MAX_WINDOW;
+	private int unacked;
+	private long ackDeadline = NONE;
+
+	// statistics
+	private long packetsSent;
+	private long retransmissions;
+	private long timeouts;
+	private long packetsReceived;
+	private long duplicates;
+
+	/**
+	 * Creates a channel over a link. Incoming packets and timers have to be
+	 * fed to it, see {@link Driver}.
+	 */
+	public ReliableChannel(Link link) {
+		if (link == null)
+			throw new IllegalArgumentException("link is null");
+		this.link = link;
+		maxPayload = link.getMaxPacketSize() - DATA_HEADER;
+		if (maxPayload <= 0)
+			throw new IllegalArgumentException("packets are too small");
+	}
+
+	/**
+	 * Sets what to run when a timer has been set that is due sooner than the
+	 * one returned by the last call to {@link #onTimer}, typically
+	 * {@link Driver#wakeup}.
+	 */
+	public void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Returns the size of the largest message that can be sent.
+	 */
+	public int getMaxMessageSize() {
+		return MAX_WINDOW / 2 * maxPayload;
+	}
+
+	/**
+	 * Queues a message and sends as much as the window allows. Blocks while
+	 * the send buffer is full.
+	 *
+	 * @throws IOException
+	 *             if the channel is closed or the link fails.
+	 */
+	public void send(byte[] message) throws IOException {
+		send(message, 0, message.length);
+	}
+
+	/**
+	 * Queues part of an array as a message, like {@link #send(byte[])}.
+	 */
+	public synchronized void send(byte[] message, int offset, int length)
+			throws IOException {
+		if (length < 0 || offset < 0 || offset + length > message.length)
+			throw new IndexOutOfBoundsException();
+		if (length > getMaxMessageSize())
+			throw new IllegalArgumentException("message is larger than "
+					+ getMaxMessageSize() + " bytes");
+
+		int end = offset + length;
+		do {
+			while (sndEnd - sndUna == MAX_WINDOW && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (closed)
+				throw new IOException("channel is closed");
+
+			int n = Math.min(maxPayload, end - offset);
+			byte[] payload = new byte[n];
+			System.arraycopy(message, offset, payload, 0, n);
+			offset += n;
+			int i = sndEnd & MASK;
+			sendData[i] = payload;
+			sendMore[i] = offset < end;
+			sndEnd++;
+			transmit();
+		} while (offset < end);
+	}
+
+	/**
+	 * Waits for the next message.
+	 *
+	 * @return the message, or null if the channel was closed.
+	 */
+	public byte[] receive() throws InterruptedException {
+		return receive(0);
+	}
+
+	/**
+	 * Waits at most the given number of milliseconds for the next message.
+	 * Zero means forever.
+	 *
+	 * @return the message, or null if it didn't arrive in time or the
+	 *         channel was closed.
+	 */
+	public synchronized byte[] receive(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (completeMessages == 0 && !closed) {
+			long wait = timeoutMillis == 0 ? 0 : deadline
+					- System.currentTimeMillis();
+			if (timeoutMillis != 0 && wait <= 0)
+				return null;
+			wait(wait);
+		}
+		if (completeMessages == 0)
+			return null;
+
+		int length = 0;
+		int seq = rcvRead;
+		do {
+			length += recvData[seq & MASK].length;
+		} while (recvMore[seq++ & MASK]);
+
+		byte[] message = new byte[length];
+		int offset = 0;
+		boolean more;
+		do {
+			int i = rcvRead++ & MASK;
+			System.arraycopy(recvData[i], 0, message, offset,
+					recvData[i].length);
+			offset += recvData[i].length;
+			more = recvMore[i];
+			recvData[i] = null;
+		} while (more);
+		completeMessages--;
+
+		// the sender may be waiting for room
+		if (advertised < MAX_WINDOW / 4) {
+			try {
+				sendAck();
+			} catch (IOException ignore) {
+				// it will find out when it retransmits
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Waits until everything that was sent has been acknowledged.
+	 *
+	 * @return false if that didn't happen within the given number of
+	 *         milliseconds, or the channel was closed.
+	 */
+	public synchronized boolean drain(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (sndUna != sndEnd && !closed) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			wait(wait);
+		}
+		return sndUna == sndEnd;
+	}
+
+	/**
+	 * Closes the channel. Messages that haven't been acknowledged or read are
+	 * dropped, and blocked calls return.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+		Runnable w = wakeup;
+		if (w != null)
+			w.run();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return !closed;
+	}
+
+	@Override
+	public synchronized void onPacket(ByteBuffer packet) throws IOException {
+		if (closed || !packet.hasRemaining())
+			return;
+		byte type = packet.get();
+		switch (type & ~MORE) {
+		case DATA:
+			if (packet.remaining() >= DATA_HEADER - 1)
+				onData(packet, (type & MORE) != 0);
+			break;
+		case ACK:
+			if (packet.remaining() >= ACK_HEADER - 1)
+				onAck(packet);
+			break;
+		default: // not ours
+		}
+	}
+
+	@Override
+	public synchronized long onTimer() throws IOException {
+		if (closed)
+			return -1;
+		long now = now();
+		if (ackDeadline <= now)
+			sendAck();
+		if (rtoDeadline <= now)
+			onTimeout();
+		if (probeDeadline <= now)
+			sendProbe();
+
+		long next = Math.min(ackDeadline, Math.min(rtoDeadline, probeDeadline));
+		return next == NONE ? -1 : Math.max(0, next - now);
+	}
+
+	private void onData(ByteBuffer packet, boolean more) throws IOException {
+		int seq = packet.getInt();
+		echo = packet.getInt();
+		boolean ackNow = false;
+
+		if (seq - rcvNxt < 0) {
+			// the ack got lost, so send it again
+			duplicates++;
+			ackNow = true;
+		} else if (seq - rcvRead >= MAX_WINDOW) {
+			// no room, the sender will retransmit
+			ackNow = true;
+		} else {
+			int i = seq & MASK;
+			if (recvData[i] != null) {
+				duplicates++;
+			} else {
+				byte[] payload = new byte[packet.remaining()];
+				packet.get(payload);
+				recvData[i] = payload;
+				recvMore[i] = more;
+				packetsReceived++;
+				if (seq - rcvHighest >= 0)
+					rcvHighest = seq + 1;
+			}
+
+			if (seq != rcvNxt) {
+				ackNow = true;
+			} else {
+				int before = completeMessages;
+				while (rcvNxt != rcvHighest && recvData[rcvNxt & MASK] != null) {
+					if (!recvMore[rcvNxt & MASK])
+						completeMessages++;
+					rcvNxt++;
+				}
+				// a gap was filled
+				if (rcvNxt != seq + 1)
+					ackNow = true;
+				if (completeMessages != before)
+					notifyAll();
+			}
+		}
+
+		if (++unacked >= 2 || ackNow) {
+			sendAck();
+		} else if (ackDeadline == NONE) {
+			ackDeadline = now() + ACK_DELAY;
+			wake();
+		}
+	}
+
+	private void sendAck() throws IOException {
+		unacked = 0;
+		ackDeadline = NONE;
+
+		ByteBuffer packet = link.obtainBuffer();
+		int max = Math.min(MAX_SACK_BLOCKS,
+				(packet.remaining() - ACK_HEADER) / 8);
+		advertised = MAX_WINDOW - (rcvNxt - rcvRead);
+		packet.put(ACK).putInt(rcvNxt).putInt(echo).putShort((short) advertised);
+		int count = packet.position();
+		packet.put((byte) 0);
+
+		int blocks = 0;
+		int seq = rcvNxt;
+		while (blocks < max && seq != rcvHighest) {
+			while (seq != rcvHighest && recvData[seq & MASK] == null)
+				seq++;
+			if (seq == rcvHighest)
+				break;
+			int start = seq;
+			while (seq != rcvHighest && recvData[seq & MASK] != null)
+				seq++;
+			packet.putInt(start).putInt(seq);
+			blocks++;
+		}
+		packet.put(count, (byte) blocks);
+		packet.flip();
+		link.send(packet);
+	}
+
+	private void onAck(ByteBuffer packet) throws IOException {
+		int cumulative = packet.getInt();
+		int echoed = packet.getInt();
+		int window = packet.getShort() & 0xffff;
+		int blocks = packet.get() & 0xff;
+
+		// stale, or acknowledging something that was never sent
+		if (cumulative - sndUna < 0 || cumulative - sndNxt > 0)
+			return;
+		peerWindow = window;
+
+		int newlyAcked = 0;
+		while (sndUna != cumulative) {
+			newlyAcked += acknowledge(sndUna);
+			int i = sndUna++ & MASK;
+			sendData[i] = null;
+			sacked[i] = false;
+		}
+		for (int b = 0; b < blocks && packet.remaining() >= 8; b++) {
+			int start = packet.getInt();
+			int end = packet.getInt();
+			if (start - sndUna < 0)
+				start = sndUna;
+			if (end - sndNxt > 0)
+				end = sndNxt;
+			for (int seq = start; seq - end < 0; seq++) {
+				if (!sacked[seq & MASK]) {
+					newlyAcked += acknowledge(seq);
+					sacked[seq & MASK] = true;
+				}
+			}
+		}
+
+		if (newlyAcked > 0) {
+			long rtt = (int) now() - echoed;
+			if (rtt >= 0)
+				updateRto(rtt);
+
+			boolean losses = detectLosses();
+			if (inRecovery && cumulative - recoveryPoint >= 0)
+				inRecovery = false;
+			if (losses && !inRecovery) {
+				inRecovery = true;
+				recoveryPoint = sndNxt;
+				ssthresh = Math.max(cwnd / 2, 2);
+				cwnd = ssthresh;
+			} else if (!inRecovery) {
+				if (cwnd < ssthresh)
+					cwnd += newlyAcked;
+				else
+					cwnd += (double) newlyAcked / cwnd;
+				cwnd = Math.min(cwnd, MAX_WINDOW);
+			}
+
+			rtoDeadline = sndUna == sndNxt ? NONE : now() + rto;
+			probeDeadline = NONE;
+			probed = false;
+			notifyAll();
+		}
+		transmit();
+	}
+
+	/**
+	 * Marks a packet that hadn't been acknowledged before as delivered.
+	 *
+	 * @return 1, for counting.
+	 */
+	private int acknowledge(int seq) {
+		int i = seq & MASK;
+		if (sacked[i])
+			return 0;
+		if (lost[i]) {
+			lost[i] = false;
+			lostCount--;
+		} else {
+			inFlight--;
+		}
+		if (sendOrder[i] > deliveredOrder)
+			deliveredOrder = sendOrder[i];
+		return 1;
+	}
+
+	/**
+	 * Marks the packets in flight that were sent well before a packet that
+	 * has been delivered as lost.
+	 */
+	private boolean detectLosses() {
+		boolean found = false;
+		for (int seq = sndUna; seq != sndNxt; seq++) {
+			int i = seq & MASK;
+			if (!sacked[i] && !lost[i]
+					&& sendOrder[i] + REORDER_THRESHOLD <= deliveredOrder) {
+				lost[i] = true;
+				lostCount++;
+				inFlight--;
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	private void onTimeout() throws IOException {
+		timeouts++;
+		ssthresh = Math.max(inFlight / 2.0, 2);
+		cwnd = 1;
+		inRecovery = false;
+		for (int seq = sndUna; seq != sndNxt; seq++) {
+			int i = seq & MASK;
+			if (!sacked[i] && !lost[i]) {
+				lost[i] = true;
+				lostCount++;
+				inFlight--;
+			}
+		}
+		rto = Math.min(rto * 2, MAX_RTO);
+		rtoDeadline = NONE;
+		probeDeadline = NONE;
+		probed = false;
+		transmit();
+	}
+
+	/**
+	 * Sends the newest packet in flight again, so that its acknowledgement
+	 * reveals which of the packets before it were lost.
+	 */
+	private void sendProbe() throws IOException {
+		probeDeadline = NONE;
+		probed = true;
+		for (int seq = sndNxt - 1; seq - sndUna >= 0; seq--) {
+			int i = seq & MASK;
+			if (!sacked[i] && !lost[i]) {
+				retransmissions++;
+				sendData(seq);
+				return;
+			}
+		}
+	}
+
+	private void updateRto(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + Math.max(1, 4 * rttvar)));
+	}
+
+	/**
+	 * Sends lost packets again and new packets for as long as the congestion
+	 * window and the receiver's window allow.
+	 */
+	private void transmit() throws IOException {
+		if (closed)
+			return;
+		for (int seq = sndUna; lostCount > 0 && inFlight < (int) cwnd
+				&& seq != sndNxt; seq++) {
+			int i = seq & MASK;
+			if (lost[i]) {
+				lost[i] = false;
+				lostCount--;
+				inFlight++;
+				retransmissions++;
+				sendData(seq);
+			}
+		}
+		while (sndNxt != sndEnd && inFlight < (int) cwnd
+				&& sndNxt - sndUna < Math.max(peerWindow, 1)) {
+			inFlight++;
+			sendData(sndNxt++);
+		}
+		if (sndUna == sndNxt)
+			return;
+		long now = now();
+		boolean sooner = false;
+		if (rtoDeadline == NONE) {
+			rtoDeadline = now + rto;
+			sooner = true;
+		}
+		if (probeDeadline == NONE && !probed && srtt >= 0) {
+			probeDeadline = now + Math.max(2 * srtt, MIN_PROBE_TIMEOUT);
+			sooner = true;
+		}
+		if (sooner)
+			wake();
+	}
+
+	private void sendData(int seq) throws IOException {
+		int i = seq & MASK;
+		sendOrder[i] = transmissions++;
+		packetsSent++;
+
+		ByteBuffer packet = link.obtainBuffer();
+		packet.put(sendMore[i] ? (byte) (DATA | MORE) : DATA).putInt(seq)
+				.putInt((int) now()).put(sendData[i]);
+		packet.flip();
+		link.send(packet);
+	}
+
+	private long now() {
+		return (System.nanoTime() - epoch) / 1000000;
+	}
+
+	private void wake() {
+		Runnable w = wakeup;
+		if (w != null)
+			w.run();
+	}
+
+	/**
+	 * Returns the congestion window, in packets.
+	 */
+	public synchronized double getCongestionWindow() {
+		return cwnd;
+	}
+
+	/**
+	 * Returns the smoothed round-trip time in milliseconds, or -1 if it hasn't
+	 * been measured yet.
+	 */
+	public synchronized long getSmoothedRtt() {
+		return srtt;
+	}
+
+	/**
+	 * Returns the number of data packets sent, including retransmissions.
+	 */
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public synchronized long getRetransmissions() {
+		return retransmissions;
+	}
+
+	/**
+	 * Returns how often the retransmission timer expired.
+	 */
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * Returns the number of distinct data packets received.
+	 */
+	public synchronized long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+	/**
+	 * Returns the number of data packets that were received more than once.
+	 */
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+}
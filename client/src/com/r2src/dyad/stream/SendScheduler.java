@@ -0,0 +1,336 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which queued packet goes out over a {@link Link} next.
+ * <p>
+ * Packets are sent in order of priority, higher first. Within a priority the
+ * packet with the earliest deadline goes first, and packets without one go in
+ * the order they were queued. A packet whose deadline has passed is dropped
+ * instead of sent, because for real-time media a late frame is worse than no
+ * frame.
+ * <p>
+ * Priorities only matter when packets have to wait. Set a {@link #setRate
+ * rate} close to what the network can carry, so that the queue builds up here,
+ * where the scheduler can order it, rather than in buffers further down the
+ * path. Without a rate, packets are sent as soon as they are queued.
+ * <p>
+ * The scheduler doesn't keep time itself: {@link #flush} has to be called
+ * again after the delay it returns. The {@link Multiplexer} does so.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SendScheduler {
+
+	/**
+	 * The lifetime of packets that never expire.
+	 */
+	public static final long FOREVER = Long.MAX_VALUE;
+
+	/**
+	 * The default maximum number of queued packets.
+	 */
+	public static final int DEFAULT_MAX_QUEUE_DEPTH = 256;
+
+	/**
+	 * How much sending may run ahead of the rate after the queue has been
+	 * idle, in milliseconds.
+	 */
+	static final long BURST = 5;
+
+	private static class Frame {
+		ByteBuffer packet;
+		Object owner;
+		int priority;
+		long deadline;
+		long order;
+	}
+
+	private final Link link;
+	private final Frame[] heap;
+	private final Frame[] free;
+	private int size;
+	private int freeCount;
+	private long order;
+
+	private long rate;
+	private double tokens;
+	private long refilled;
+
+	private int peakDepth;
+	private long sent;
+	private long expired;
+	private long overflows;
+
+	public SendScheduler(Link link) {
+		this(link, DEFAULT_MAX_QUEUE_DEPTH);
+	}
+
+	/**
+	 * @param maxQueueDepth
+	 *            The most packets that can be queued. When the queue is full,
+	 *            the least important packet is dropped.
+	 */
+	public SendScheduler(Link link, int maxQueueDepth) {
+		if (link == null)
+			throw new IllegalArgumentException("link is null");
+		if (maxQueueDepth <= 0)
+			throw new IllegalArgumentException("maxQueueDepth must be positive");
+		this.link = link;
+		heap = new Frame[maxQueueDepth];
+		free = new Frame[maxQueueDepth];
+		for (int i = 0; i < maxQueueDepth; i++)
+			free[freeCount++] = new Frame();
+	}
+
+	/**
+	 * Limits the rate at which packets are sent, in bytes per second. Zero,
+	 * the default, means no limit.
+	 */
+	public synchronized void setRate(long bytesPerSecond) {
+		if (bytesPerSecond < 0)
+			throw new IllegalArgumentException("rate is negative");
+		rate = bytesPerSecond;
+		tokens = capacity();
+		refilled = now();
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Queues a packet, which is released if it is dropped.
+	 *
+	 * @param owner
+	 *            Whatever the packet belongs to, for {@link #discard}.
+	 * @param priority
+	 *            Packets with a higher priority are sent first.
+	 * @param lifetime
+	 *            The number of milliseconds after which the packet is no
+	 *            longer worth sending, or {@link #FOREVER}.
+	 * @return false if the packet was dropped right away, because the queue
+	 *         was full of more important packets.
+	 */
+	public synchronized boolean enqueue(ByteBuffer packet, Object owner,
+			int priority, long lifetime) {
+		long now = now();
+		long deadline = lifetime >= FOREVER - now ? FOREVER : now + lifetime;
+
+		if (size == heap.length) {
+			dropExpired(now);
+			if (size == heap.length) {
+				int victim = leastImportant();
+				Frame f = heap[victim];
+				if (f.priority > priority
+						|| (f.priority == priority && f.deadline <= deadline)) {
+					overflows++;
+					link.release(packet);
+					return false;
+				}
+				overflows++;
+				link.release(f.packet);
+				removeAt(victim);
+			}
+		}
+
+		Frame f = free[--freeCount];
+		f.packet = packet;
+		f.owner = owner;
+		f.priority = priority;
+		f.deadline = deadline;
+		f.order = order++;
+		heap[size] = f;
+		siftUp(size++);
+		if (size > peakDepth)
+			peakDepth = size;
+		return true;
+	}
+
+	/**
+	 * Sends as many queued packets as the rate allows, dropping the ones that
+	 * have expired.
+	 *
+	 * @return the number of milliseconds until more can be sent, or -1 if the
+	 *         queue is empty.
+	 */
+	public synchronized long flush() throws IOException {
+		long now = now();
+		if (rate > 0) {
+			tokens = Math.min(tokens + (now - refilled) * rate / 1000.0,
+					capacity());
+			refilled = now;
+		}
+
+		while (size > 0) {
+			Frame head = heap[0];
+			if (head.deadline < now) {
+				expired++;
+				link.release(head.packet);
+				removeAt(0);
+				continue;
+			}
+			int length = head.packet.remaining();
+			if (rate > 0 && tokens < length) {
+				long wait = (long) Math.ceil((length - tokens) * 1000 / rate);
+				// come back in time to drop it if it expires first
+				return Math.min(wait, head.deadline - now + 1);
+			}
+
+			ByteBuffer packet = head.packet;
+			removeAt(0);
+			tokens -= length;
+			sent++;
+			link.send(packet);
+		}
+		return -1;
+	}
+
+	/**
+	 * Drops the queued packets of an owner.
+	 *
+	 * @return the number of packets dropped.
+	 */
+	public synchronized int discard(Object owner) {
+		int n = 0;
+		for (int i = size - 1; i >= 0; i--) {
+			if (heap[i].owner == owner) {
+				link.release(heap[i].packet);
+				removeAt(i);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of queued packets.
+	 */
+	public synchronized int getQueueDepth() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of queued packets with the given priority.
+	 */
+	public synchronized int getQueueDepth(int priority) {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (heap[i].priority == priority)
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the largest number of packets that have been queued at once.
+	 */
+	public synchronized int getPeakQueueDepth() {
+		return peakDepth;
+	}
+
+	public synchronized long getSentCount() {
+		return sent;
+	}
+
+	/**
+	 * Returns the number of packets that were dropped because their deadline
+	 * had passed.
+	 */
+	public synchronized long getExpiredCount() {
+		return expired;
+	}
+
+	/**
+	 * Returns the number of packets that were dropped because the queue was
+	 * full.
+	 */
+	public synchronized long getOverflowCount() {
+		return overflows;
+	}
+
+	/**
+	 * Returns how many bytes can be sent at once, at least two full packets.
+	 */
+	private double capacity() {
+		return Math.max(rate * BURST / 1000.0, 2 * link.getMaxPacketSize());
+	}
+
+	private void dropExpired(long now) {
+		for (int i = size - 1; i >= 0; i--) {
+			if (heap[i].deadline < now) {
+				expired++;
+				link.release(heap[i].packet);
+				removeAt(i);
+			}
+		}
+	}
+
+	/**
+	 * Finds the packet that would be sent last.
+	 */
+	private int leastImportant() {
+		int least = 0;
+		for (int i = 1; i < size; i++) {
+			if (before(heap[least], heap[i]))
+				least = i;
+		}
+		return least;
+	}
+
+	private void removeAt(int i) {
+		Frame f = heap[i];
+		f.packet = null;
+		f.owner = null;
+		free[freeCount++] = f;
+
+		heap[i] = heap[--size];
+		heap[size] = null;
+		if (i < size) {
+			siftDown(i);
+			siftUp(i);
+		}
+	}
+
+	private static boolean before(Frame a, Frame b) {
+		if (a.priority != b.priority)
+			return a.priority > b.priority;
+		if (a.deadline != b.deadline)
+			return a.deadline < b.deadline;
+		return a.order < b.order;
+	}
+
+	private void siftUp(int i) {
+		Frame f = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(f, heap[parent]))
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = f;
+	}
+
+	private void siftDown(int i) {
+		Frame f = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && before(heap[child + 1], heap[child]))
+				child++;
+			if (!before(heap[child], f))
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = f;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
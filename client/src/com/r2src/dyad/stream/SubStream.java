@@ -0,0 +1,325 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * One of the logical streams carried by a {@link Multiplexer}.
+ * <p>
+ * A sub-stream is a {@link Link} of its own. Its packets can be read with
+ * {@link #receive}, in which case the sending side may only have as many
+ * packets underway as the window allows, counting the ones that got lost.
+ * Alternatively, the sub-stream can carry a {@link ReliableChannel}, which
+ * does its own flow control.
+ * <p>
+ * Buffers obtained from a sub-stream leave room for the multiplexer's header
+ * in front: write after the position they come with, then flip them.
+ */
+public class SubStream implements Link {
+
+	private final Multiplexer mux;
+	private final int id;
+	private final int priority;
+	private final int window;
+	private volatile PacketHandler handler;
+	private volatile long lifetime = SendScheduler.FOREVER;
+	private boolean closed;
+
+	// sender, guarded by this
+	private short sent;
+	private short limit;
+	private long blockedProbe = -1;
+
+	// receiver, guarded by this
+	private final LinkedList<byte[]> received = new LinkedList<byte[]>();
+	private short highestSeen;
+	private short granted;
+	private long dropped;
+
+	SubStream(Multiplexer mux, int id, int priority, int window) {
+		this.mux = mux;
+		this.id = id;
+		this.priority = priority;
+		this.window = window;
+		limit = (short) window;
+		granted = (short) window;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Sets how long packets stay worth sending, in milliseconds. Packets that
+	 * haven't been sent by then are dropped. Defaults to
+	 * {@link SendScheduler#FOREVER}.
+	 */
+	public void setLifetime(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("lifetime is negative");
+		lifetime = millis;
+	}
+
+	public long getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * Lets this sub-stream carry a {@link ReliableChannel}. Both devices have
+	 * to do this.
+	 */
+	public ReliableChannel openReliableChannel() {
+		ReliableChannel reliable = new ReliableChannel(this);
+		reliable.setWakeup(new Runnable() {
+			@Override
+			public void run() {
+				mux.wake();
+			}
+		});
+		setHandler(reliable);
+		return reliable;
+	}
+
+	/**
+	 * Hands the packets of this sub-stream to a handler instead of queueing
+	 * them for {@link #receive}. The handler's timers are run along with the
+	 * multiplexer's.
+	 */
+	public void setHandler(PacketHandler handler) {
+		this.handler = handler;
+		mux.wake();
+	}
+
+	@Override
+	public ByteBuffer obtainBuffer() {
+		ByteBuffer buffer = mux.getLink().obtainBuffer();
+		buffer.position(Multiplexer.HEADER);
+		return buffer;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		mux.getLink().release(buffer);
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return mux.getLink().getMaxPacketSize() - Multiplexer.HEADER;
+	}
+
+	/**
+	 * Sends a packet with the sub-stream's lifetime, unless the other side
+	 * has no room for it.
+	 *
+	 * @return false if the window is closed or the sub-stream is closed, in
+	 *         which case the packet is dropped.
+	 */
+	@Override
+	public boolean send(ByteBuffer packet) throws IOException {
+		return send(packet, lifetime);
+	}
+
+	/**
+	 * Sends a packet that is dropped if it can't be sent within the given
+	 * number of milliseconds, for example a video frame that has to be shown
+	 * at a certain time.
+	 *
+	 * @return false if the packet was dropped right away.
+	 */
+	public boolean send(ByteBuffer packet, long lifetime) throws IOException {
+		short counter = 0;
+		boolean blocked = false;
+		boolean accepted = false;
+		synchronized (this) {
+			if (closed) {
+				// dropped
+			} else if (handler == null && (short) (sent - limit) >= 0) {
+				// ask for the window as soon as possible
+				if (blockedProbe < 0) {
+					blockedProbe = 0;
+					blocked = true;
+				}
+			} else {
+				counter = sent++;
+				accepted = true;
+			}
+		}
+		if (!accepted) {
+			mux.getLink().release(packet);
+			if (blocked)
+				mux.wake();
+			return false;
+		}
+		packet.put(0, (byte) id).putShort(1, counter);
+		return mux.enqueue(this, packet, lifetime);
+	}
+
+	/**
+	 * Returns the number of packets that can be sent before the window
+	 * closes.
+	 */
+	public synchronized int getAvailableWindow() {
+		return handler != null ? window : Math.max(0, (short) (limit - sent));
+	}
+
+	/**
+	 * Waits at most the given number of milliseconds for the window to open.
+	 *
+	 * @return true if a packet can be sent.
+	 */
+	public synchronized boolean awaitWindow(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!closed && getAvailableWindow() == 0) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			wait(wait);
+		}
+		return !closed;
+	}
+
+	/**
+	 * Waits at most the given number of milliseconds for the next packet.
+	 * Zero means forever.
+	 *
+	 * @return the payload of the packet, or null if none arrived in time or
+	 *         the sub-stream was closed.
+	 */
+	public byte[] receive(long timeoutMillis) throws InterruptedException,
+			IOException {
+		byte[] packet;
+		short grant = 0;
+		boolean update = false;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (received.isEmpty() && !closed) {
+				long wait = timeoutMillis == 0 ? 0 : deadline
+						- System.currentTimeMillis();
+				if (timeoutMillis != 0 && wait <= 0)
+					return null;
+				wait(wait);
+			}
+			if (received.isEmpty())
+				return null;
+			packet = received.removeFirst();
+
+			// open the window again once a quarter of it has been read
+			short next = (short) (highestSeen + window - received.size());
+			if ((short) (next - granted) >= Math.max(1, window / 4)
+					|| (received.isEmpty() && next != granted)) {
+				granted = next;
+				grant = next;
+				update = true;
+			}
+		}
+		if (update)
+			mux.sendControl(id, Multiplexer.WINDOW, grant);
+		return packet;
+	}
+
+	/**
+	 * Returns the number of packets that were dropped because the window was
+	 * exceeded.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Closes this sub-stream. Packets that haven't been sent or read are
+	 * dropped.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		PacketHandler h = handler;
+		if (h instanceof ReliableChannel)
+			((ReliableChannel) h).close();
+		mux.remove(this);
+	}
+
+	void onData(short counter, ByteBuffer packet) throws IOException {
+		PacketHandler h = handler;
+		synchronized (this) {
+			if ((short) (counter - highestSeen) >= 0)
+				highestSeen = (short) (counter + 1);
+			if (h == null) {
+				if (received.size() >= window) {
+					dropped++;
+					return;
+				}
+				byte[] payload = new byte[packet.remaining()];
+				packet.get(payload);
+				received.add(payload);
+				notifyAll();
+				return;
+			}
+		}
+		h.onPacket(packet);
+	}
+
+	void onControl(byte kind, short value) throws IOException {
+		short grant;
+		synchronized (this) {
+			switch (kind) {
+			case Multiplexer.WINDOW:
+				if ((short) (value - limit) > 0) {
+					limit = value;
+					blockedProbe = -1;
+					notifyAll();
+				}
+				return;
+			case Multiplexer.BLOCKED:
+				// the update got lost, so send it again
+				grant = (short) (highestSeen + window - received.size());
+				granted = grant;
+				break;
+			default:
+				return;
+			}
+		}
+		mux.sendControl(id, Multiplexer.WINDOW, grant);
+	}
+
+	/**
+	 * Runs the handler's timers and asks for the window while it is closed.
+	 */
+	long onTimer() throws IOException {
+		long next = -1;
+		boolean probe = false;
+		short counter;
+		synchronized (this) {
+			if (blockedProbe >= 0) {
+				long now = System.currentTimeMillis();
+				if (now >= blockedProbe) {
+					probe = true;
+					blockedProbe = now + Multiplexer.BLOCKED_INTERVAL;
+				}
+				next = blockedProbe - now;
+			}
+			counter = sent;
+		}
+		if (probe)
+			mux.sendControl(id, Multiplexer.BLOCKED, counter);
+
+		PacketHandler h = handler;
+		if (h != null) {
+			long wait = h.onTimer();
+			if (wait >= 0 && (next < 0 || wait < next))
+				next = wait;
+		}
+		return next;
+	}
+}
@@ -0,0 +1,970 @@
+package com.r2src.dyad;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpHost;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An in-process stand-in for the Dyad Server, with the Web API of the
+ * dispatch table of Dyad::Server: register, register_gcm, bond, sdp_message
+ * and candidates, the long-polling GETs of the last two, and batches. Users
+ * are kept in memory instead of in MongoDB, no GCM pushes are sent, and the
+ * OAuth2 token of a registration is taken to be the user's Google id, see
+ * {@link #lookUpGoogleId}.
+ * <p>
+ * Every connection is served by a single thread on a {@link Selector}.
+ * Long-polling requests don't hold on to it: they are parked until the other
+ * device posts what they wait for or their time is up, so that one server can
+ * keep thousands of devices going at once. All state is confined to that
+ * thread.
+ */
+public class SignallingServer {
+
+	/**
+	 * The longest a GET waits, in seconds, like $MAX_SDP_WAIT.
+	 */
+	public static final int MAX_WAIT = 30;
+
+	/**
+	 * Like $MAX_CANDIDATE_BATCHES.
+	 */
+	public static final int MAX_CANDIDATE_BATCHES = 64;
+
+	/**
+	 * Like $MAX_BATCH_SIZE.
+	 */
+	public static final int MAX_BATCH_SIZE = 16;
+
+	/**
+	 * The largest request, headers and body, in bytes.
+	 */
+	static final int MAX_REQUEST_SIZE = 1 << 16;
+
+	private static final String BINARY_TYPE = "application/x-dyad-binary";
+	private static final Pattern JSON_TYPES = Pattern.compile(
+			"^(?:application/json|text/plain)?(?:\\s*;.*)?$",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern WAIT = Pattern.compile("^\\d+(?:\\.\\d+)?$");
+	private static final Pattern SINCE = Pattern.compile("^\\d{1,9}$");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n"
+			.getBytes(LATIN_1);
+
+	/**
+	 * The dispatch table.
+	 */
+	private enum Call {
+		REGISTER(false, "POST", "/v1/register", "token"),
+		REGISTER_GCM(true, "POST", "/v1/register_gcm", "gcm_id"),
+		BOND(true, "POST", "/v1/bond", "secret"),
+		SDP_MESSAGE(true, "POST", "/v1/sdp_message", "message"),
+		GET_SDP_MESSAGE(true, "GET", "/v1/sdp_message", "wait"),
+		CANDIDATES(true, "POST", "/v1/candidates", "candidates"),
+		GET_CANDIDATES(true, "GET", "/v1/candidates", "since", "wait");
+
+		final boolean authorized;
+		final String method;
+		final String path;
+		final String[] params;
+
+		Call(boolean authorized, String method, String path, String... params) {
+			this.authorized = authorized;
+			this.method = method;
+			this.path = path;
+			this.params = params;
+		}
+
+		static Call find(String method, String uri) {
+			if (method == null || uri == null)
+				return null;
+			int query = uri.indexOf('?');
+			String path = query < 0 ? uri : uri.substring(0, query);
+			for (Call call : values())
+				if (call.method.equals(method) && call.path.equals(path))
+					return call;
+			return null;
+		}
+	}
+
+	private static class User {
+		final String googleId;
+		String sessionToken;
+		String gcmId;
+		String secret;
+		String other;
+		String message;
+		// like message_taken: the message is handed out once
+		boolean messageTaken;
+		final List<String> candidates = new ArrayList<String>();
+		// the GETs of this user that wait for the other user
+		final List<Poll> polls = new ArrayList<Poll>();
+
+		User(String googleId) {
+			this.googleId = googleId;
+		}
+	}
+
+	private static class Response {
+		final int status;
+		// a String for text/plain, a JSONObject for application/json
+		final Object body;
+
+		Response(int status, Object body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * A GET that waits for the other user of the dyad.
+	 */
+	private static class Poll implements Comparable<Poll> {
+		final Connection connection;
+		final User user;
+		final Call call;
+		final int since;
+		final long deadline;
+		boolean done;
+
+		Poll(Connection connection, User user, Call call, int since,
+				long deadline) {
+			this.connection = connection;
+			this.user = user;
+			this.call = call;
+			this.since = since;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int compareTo(Poll other) {
+			return deadline < other.deadline ? -1
+					: deadline > other.deadline ? 1 : 0;
+		}
+	}
+
+	private static class Connection {
+		final SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(4096);
+		ByteBuffer out;
+		Poll poll;
+		boolean continued;
+		boolean closing;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final Thread thread;
+	private final Random random = new SecureRandom();
+
+	private final Map<String, User> users = new HashMap<String, User>();
+	private final Map<String, User> sessions = new HashMap<String, User>();
+	private final Map<String, User> secrets = new HashMap<String, User>();
+	private final PriorityQueue<Poll> timers = new PriorityQueue<Poll>();
+
+	// written by the server's thread only
+	private volatile int connections;
+	private volatile long requests;
+	private volatile int parked;
+
+	/**
+	 * Starts a server on the loopback interface, on a free port.
+	 */
+	public SignallingServer() throws IOException {
+		this(new InetSocketAddress(InetAddress.getByName(null), 0));
+	}
+
+	public SignallingServer(InetSocketAddress address) throws IOException {
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(address, 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		thread = new Thread("Signalling server") {
+			@Override
+			public void run() {
+				try {
+					loop();
+				} catch (IOException ignore) {
+				} catch (RuntimeException ignore) {
+					// closed selector
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) server.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * Returns the host to point an {@link Account} at.
+	 */
+	public HttpHost getHost() {
+		InetSocketAddress address = getAddress();
+		return new HttpHost(address.getAddress().getHostAddress(),
+				address.getPort());
+	}
+
+	/**
+	 * Returns the number of open connections.
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Returns the number of requests that were answered, a batch counting as
+	 * one.
+	 */
+	public long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * Returns the number of GETs that are waiting for the other device.
+	 */
+	public int getParked() {
+		return parked;
+	}
+
+	public void close() {
+		try {
+			selector.close();
+		} catch (IOException ignore) {
+		}
+		try {
+			server.close();
+		} catch (IOException ignore) {
+		}
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the Google id that an OAuth2 token belongs to, or null if Google
+	 * would reject it. This one takes every token that isn't empty to be a
+	 * Google id.
+	 */
+	protected String lookUpGoogleId(String token) {
+		return token.length() > 0 ? token : null;
+	}
+
+	private void loop() throws IOException {
+		while (selector.isOpen()) {
+			selector.select(expire());
+			if (!selector.isOpen())
+				return;
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid())
+					continue;
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection c = (Connection) key.attachment();
+				try {
+					if (key.isReadable())
+						read(c);
+					if (key.isValid() && key.isWritable())
+						write(c);
+				} catch (IOException e) {
+					close(c);
+				} catch (CancelledKeyException e) {
+					close(c);
+				}
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection c = new Connection(channel);
+			c.key = channel.register(selector, SelectionKey.OP_READ, c);
+			connections++;
+		}
+	}
+
+	private void close(Connection c) {
+		if (c.poll != null) {
+			finish(c.poll);
+			c.poll = null;
+		}
+		if (c.key.isValid())
+			connections--;
+		c.key.cancel();
+		try {
+			c.channel.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	private void read(Connection c) throws IOException {
+		if (!c.in.hasRemaining()) {
+			// a request that is too large has been answered, or one is parked
+			// and the next one doesn't fit behind it: wait
+			c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+			return;
+		}
+		if (c.channel.read(c.in) < 0) {
+			close(c);
+			return;
+		}
+		process(c);
+	}
+
+	private void write(Connection c) throws IOException {
+		c.channel.write(c.out);
+		if (c.out.hasRemaining()) {
+			c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+			return;
+		}
+		c.out = null;
+		c.key.interestOps(SelectionKey.OP_READ);
+		if (c.closing)
+			close(c);
+		else
+			process(c);
+	}
+
+	private void send(Connection c, byte[] bytes) throws IOException {
+		if (c.out == null) {
+			c.out = ByteBuffer.wrap(bytes);
+		} else {
+			ByteBuffer joined = ByteBuffer.allocate(c.out.remaining()
+					+ bytes.length);
+			joined.put(c.out).put(bytes).flip();
+			c.out = joined;
+		}
+		write(c);
+	}
+
+	/**
+	 * Answers the requests that have fully arrived, one at a time.
+	 */
+	private void process(Connection c) throws IOException {
+		while (c.out == null && c.poll == null && !c.closing
+				&& c.key.isValid()) {
+			byte[] data = c.in.array();
+			int length = c.in.position();
+			int end = headerEnd(data, length);
+			if (end < 0) {
+				if (length == MAX_REQUEST_SIZE) {
+					c.closing = true;
+					respond(c, new Response(413, "Request is too large."));
+				} else if (length == c.in.capacity()) {
+					grow(c, c.in.capacity() * 2);
+				}
+				return;
+			}
+
+			String[] lines = new String(data, 0, end, LATIN_1).split("\r\n");
+			String[] start = lines[0].split(" ");
+			Map<String, String> headers = new HashMap<String, String>();
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon > 0)
+					headers.put(lines[i].substring(0, colon).trim()
+							.toLowerCase(), lines[i].substring(colon + 1)
+							.trim());
+			}
+			int contentLength = 0;
+			try {
+				if (headers.containsKey("content-length"))
+					contentLength = Integer.parseInt(headers
+							.get("content-length"));
+			} catch (NumberFormatException e) {
+				contentLength = -1;
+			}
+			if (start.length != 3 || contentLength < 0
+					|| headers.containsKey("transfer-encoding")) {
+				c.closing = true;
+				respond(c, new Response(400, "Malformed request."));
+				return;
+			}
+			int total = end + contentLength;
+			if (total > MAX_REQUEST_SIZE) {
+				c.closing = true;
+				respond(c, new Response(413, "Request is too large."));
+				return;
+			}
+			if (length < total) {
+				if (total > c.in.capacity())
+					grow(c, total);
+				if (!c.continued
+						&& "100-continue".equalsIgnoreCase(headers
+								.get("expect"))) {
+					c.continued = true;
+					send(c, CONTINUE);
+				}
+				return;
+			}
+
+			byte[] body = new byte[contentLength];
+			System.arraycopy(data, end, body, 0, contentLength);
+			c.in.flip();
+			c.in.position(total);
+			c.in.compact();
+			c.continued = false;
+			c.key.interestOps(c.key.interestOps() | SelectionKey.OP_READ);
+
+			String connection = headers.get("connection");
+			c.closing = "close".equalsIgnoreCase(connection)
+					|| ("HTTP/1.0".equals(start[2]) && !"keep-alive"
+							.equalsIgnoreCase(connection));
+			Response response;
+			try {
+				response = handle(c, start[0], start[1], headers, body);
+			} catch (RuntimeException e) {
+				response = new Response(500,
+						"We're really sorry. This shouldn't have happened.");
+			}
+			if (response != null)
+				respond(c, response);
+		}
+	}
+
+	private static int headerEnd(byte[] data, int length) {
+		for (int i = 3; i < length; i++)
+			if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n'
+					&& data[i - 3] == '\r')
+				return i + 1;
+		return -1;
+	}
+
+	private static void grow(Connection c, int capacity) {
+		ByteBuffer grown = ByteBuffer.allocate(Math.min(capacity,
+				MAX_REQUEST_SIZE));
+		c.in.flip();
+		grown.put(c.in);
+		c.in = grown;
+	}
+
+	private void respond(Connection c, Response response) throws IOException {
+		requests++;
+		byte[] body;
+		String type;
+		if (response.body instanceof JSONObject) {
+			body = response.body.toString().getBytes(UTF_8);
+			type = "application/json";
+		} else {
+			body = ((String) response.body).getBytes(UTF_8);
+			type = "text/plain; charset=utf-8";
+		}
+		byte[] head = ("HTTP/1.1 " + response.status + " "
+				+ reason(response.status) + "\r\nContent-Type: " + type
+				+ "\r\nContent-Length: " + body.length + "\r\n"
+				+ (c.closing ? "Connection: close\r\n" : "") + "\r\n")
+				.getBytes(LATIN_1);
+		byte[] bytes = new byte[head.length + body.length];
+		System.arraycopy(head, 0, bytes, 0, head.length);
+		System.arraycopy(body, 0, bytes, head.length, body.length);
+		send(c, bytes);
+	}
+
+	private static String reason(int status) {
+		switch (status) {
+		case 200:
+			return "OK";
+		case 202:
+			return "Accepted";
+		case 400:
+			return "Bad Request";
+		case 401:
+			return "Unauthorized";
+		case 404:
+			return "Not Found";
+		case 409:
+			return "Conflict";
+		case 413:
+			return "Request Entity Too Large";
+		case 415:
+			return "Unsupported Media Type";
+		default:
+			return "Internal Server Error";
+		}
+	}
+
+	/**
+	 * Handles a request like Dyad::Server::process_request.
+	 *
+	 * @return the response, or null if the request is parked.
+	 */
+	private Response handle(Connection c, String method, String uri,
+			Map<String, String> headers, byte[] body) {
+		String token = headers.get("x-dyad-authorization");
+		if (method.equals("POST") && uri.equals("/v1/batch"))
+			return batch(token, headers.get("content-type"), body);
+
+		Call call = Call.find(method, uri);
+		if (call == null)
+			return new Response(404, "Unknown request.");
+
+		Map<String, String> params;
+		if (call.method.equals("GET")) {
+			if (body.length > 0)
+				return new Response(400,
+						"Request contains a body, but shouldn't");
+			params = queryParams(uri);
+		} else {
+			String type = headers.get("content-type");
+			if (type == null)
+				type = "";
+			boolean binary = type.toLowerCase().startsWith(BINARY_TYPE)
+					&& (type.length() == BINARY_TYPE.length() || type
+							.substring(BINARY_TYPE.length()).trim()
+							.startsWith(";"));
+			if (!binary && !JSON_TYPES.matcher(type).matches())
+				return new Response(415, "Unsupported content type.");
+			if (body.length == 0)
+				return new Response(400,
+						"Body is empty or wrong content length.");
+			if (binary) {
+				params = binaryToMap(body);
+				if (params == null)
+					return new Response(400, "Invalid binary body.");
+			} else {
+				JSONObject json = jsonObject(body);
+				if (json == null)
+					return new Response(400, "Invalid JSON.");
+				params = toMap(json);
+			}
+		}
+		return dispatch(c, call, token, params);
+	}
+
+	/**
+	 * Runs the calls of a batch one after the other, like
+	 * Dyad::Server::batch. GETs in a batch don't wait.
+	 */
+	private Response batch(String token, String type, byte[] body) {
+		if (type != null && !JSON_TYPES.matcher(type).matches())
+			return new Response(415, "Unsupported content type.");
+		JSONObject json = jsonObject(body);
+		if (json == null)
+			return new Response(400, "Invalid JSON.");
+		JSONArray calls = json.optJSONArray("calls");
+		if (calls == null || calls.length() == 0)
+			return new Response(400,
+					"Batch should contain a non-empty array 'calls'.");
+		if (calls.length() > MAX_BATCH_SIZE)
+			return new Response(400, "A batch can contain at most "
+					+ MAX_BATCH_SIZE + " calls.");
+
+		JSONArray responses = new JSONArray();
+		for (int i = 0; i < calls.length(); i++) {
+			JSONObject request = calls.optJSONObject(i);
+			Call call = request == null ? null : Call.find(
+					request.optString("method", null),
+					request.optString("path", null));
+			Response response;
+			if (call == null) {
+				response = new Response(404, "Unknown request.");
+			} else if (call.method.equals("GET") && request.has("body")
+					&& !request.isNull("body")) {
+				response = new Response(400,
+						"Request contains a body, but shouldn't");
+			} else if (call.method.equals("POST")
+					&& request.optJSONObject("body") == null) {
+				response = new Response(400, "Invalid JSON.");
+			} else {
+				response = dispatch(null, call, token, call.method
+						.equals("GET") ? queryParams(request
+						.optString("path")) : toMap(request
+						.optJSONObject("body")));
+			}
+
+			// let the remaining calls use a freshly registered session
+			if (response.status == 200 && response.body instanceof JSONObject
+					&& ((JSONObject) response.body).has("session_token"))
+				token = ((JSONObject) response.body)
+						.optString("session_token");
+
+			try {
+				responses.put(new JSONObject().put("status", response.status)
+						.put("body", response.body));
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		try {
+			return new Response(200, new JSONObject().put("responses",
+					responses));
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Authorizes a call and runs it, like Dyad::Server::dispatch.
+	 *
+	 * @param c
+	 *            The connection to park a GET on, or null if it shouldn't
+	 *            wait.
+	 * @return the response, or null if the call is parked.
+	 */
+	private Response dispatch(Connection c, Call call, String token,
+			Map<String, String> params) {
+		User user = null;
+		if (call.authorized) {
+			if (token == null)
+				return new Response(401, "Missing X-Dyad-Authorization header.");
+			user = sessions.get(token);
+			if (user == null)
+				return new Response(401,
+						"Invalid session token. Please re-register.");
+		}
+		if (call.method.equals("POST"))
+			for (String param : call.params)
+				if (params.get(param) == null)
+					return new Response(400, "Missing required parameter '"
+							+ param + "'.");
+
+		switch (call) {
+		case REGISTER:
+			return register(params.get("token"));
+		case REGISTER_GCM:
+			return registerGcm(user, params.get("gcm_id"));
+		case BOND:
+			return bond(user, params.get("secret"));
+		case SDP_MESSAGE:
+			return sdpMessage(user, params.get("message"));
+		case CANDIDATES:
+			return candidates(user, params.get("candidates"));
+		default:
+			String since = params.get("since");
+			String wait = params.get("wait");
+			return poll(c, user, call, since != null
+					&& SINCE.matcher(since).matches() ? Integer
+					.parseInt(since) : 0, wait != null
+					&& WAIT.matcher(wait).matches() ? Math.min(
+					Double.parseDouble(wait), MAX_WAIT) : 0);
+		}
+	}
+
+	private Response register(String token) {
+		String googleId = lookUpGoogleId(token);
+		if (googleId == null)
+			return new Response(401, "Auth token rejected by Google.");
+
+		User user = users.get(googleId);
+		if (user == null) {
+			user = new User(googleId);
+			users.put(googleId, user);
+		}
+		// the old session token is no longer valid
+		if (user.sessionToken != null)
+			sessions.remove(user.sessionToken);
+		StringBuilder sessionToken = new StringBuilder(32);
+		for (int i = 0; i < 32; i++)
+			sessionToken.append((char) (random.nextInt(93) + 33));
+		user.sessionToken = sessionToken.toString();
+		sessions.put(user.sessionToken, user);
+
+		try {
+			return new Response(200, new JSONObject().put("session_token",
+					user.sessionToken));
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Response registerGcm(User user, String gcmId) {
+		if (gcmId.length() == 0)
+			return new Response(400, "GCM id should not be empty.");
+		user.gcmId = gcmId;
+		return new Response(200, "GCM id has been set.");
+	}
+
+	private Response bond(User user, String secret) {
+		User other = secrets.get(secret);
+		if (other != null && other != user) {
+			secrets.remove(secret);
+			other.secret = null;
+			other.other = user.googleId;
+			forgetSecret(user);
+			user.other = other.googleId;
+			return new Response(200, "Successfully bonded.");
+		}
+		forgetSecret(user);
+		user.secret = secret;
+		secrets.put(secret, user);
+		return new Response(202, "Please wait for other to send secret");
+	}
+
+	private void forgetSecret(User user) {
+		if (user.secret != null && secrets.get(user.secret) == user)
+			secrets.remove(user.secret);
+		user.secret = null;
+	}
+
+	private Response sdpMessage(User user, String message) {
+		user.message = message;
+		user.messageTaken = false;
+		user.candidates.clear();
+		wake(user);
+		return new Response(202, "Please wait for sdp answer");
+	}
+
+	private Response candidates(User user, String batch) {
+		if (batch.length() == 0)
+			return new Response(400, "Candidates should not be empty.");
+		if (user.message == null)
+			return new Response(409, "Please send an sdp message first.");
+		if (user.candidates.size() >= MAX_CANDIDATE_BATCHES)
+			return new Response(413, "Too many candidate batches.");
+		user.candidates.add(batch);
+		wake(user);
+		return new Response(202, "Candidates queued.");
+	}
+
+	/**
+	 * Answers a GET right away if it can, or else parks it for at most the
+	 * given number of seconds.
+	 */
+	private Response poll(Connection c, User user, Call call, int since,
+			double wait) {
+		Poll poll = new Poll(c, user, call, since, now()
+				+ (long) (wait * 1000));
+		Response response = answer(poll);
+		if (response != null)
+			return response;
+		if (c == null || wait <= 0)
+			return notFound(call);
+
+		c.poll = poll;
+		user.polls.add(poll);
+		timers.add(poll);
+		parked++;
+		return null;
+	}
+
+	/**
+	 * Returns the response to a GET, or null if what it asks for isn't there
+	 * yet.
+	 */
+	private Response answer(Poll poll) {
+		User other = poll.user.other == null ? null : users
+				.get(poll.user.other);
+		if (other == null)
+			return null;
+		if (poll.call == Call.GET_SDP_MESSAGE) {
+			if (other.message == null || other.message.length() == 0
+					|| other.messageTaken)
+				return null;
+			other.messageTaken = true;
+			return new Response(200, other.message);
+		}
+
+		if (other.candidates.size() <= poll.since)
+			return null;
+		try {
+			return new Response(200, new JSONObject().put(
+					"candidates",
+					new JSONArray(other.candidates.subList(poll.since,
+							other.candidates.size()))).put("next",
+					other.candidates.size()));
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Response notFound(Call call) {
+		return call == Call.GET_SDP_MESSAGE ? new Response(404,
+				"Please wait for other to send offer") : new Response(404,
+				"No new candidates.");
+	}
+
+	/**
+	 * Answers the parked GETs that were waiting for a user.
+	 */
+	private void wake(User poster) {
+		User waiter = poster.other == null ? null : users.get(poster.other);
+		if (waiter == null || waiter.polls.isEmpty())
+			return;
+		for (Poll poll : new ArrayList<Poll>(waiter.polls)) {
+			Response response = answer(poll);
+			if (response != null)
+				resume(poll, response);
+		}
+	}
+
+	private void finish(Poll poll) {
+		poll.done = true;
+		poll.user.polls.remove(poll);
+		parked--;
+	}
+
+	private void resume(Poll poll, Response response) {
+		finish(poll);
+		Connection c = poll.connection;
+		c.poll = null;
+		try {
+			respond(c, response);
+		} catch (IOException e) {
+			close(c);
+		}
+	}
+
+	/**
+	 * Gives up on the parked GETs whose time is up.
+	 *
+	 * @return the number of milliseconds until the next one is, or 0 if there
+	 *         are none.
+	 */
+	private long expire() {
+		long now = now();
+		Poll poll;
+		while ((poll = timers.peek()) != null) {
+			if (poll.done) {
+				timers.remove();
+			} else if (poll.deadline > now) {
+				return poll.deadline - now;
+			} else {
+				timers.remove();
+				resume(poll, notFound(poll.call));
+			}
+		}
+		return 0;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Returns the parameters of the query string of a URI, like
+	 * Dyad::Server::query_params.
+	 */
+	private static Map<String, String> queryParams(String uri) {
+		Map<String, String> params = new HashMap<String, String>();
+		int start = uri.indexOf('?');
+		if (start < 0)
+			return params;
+		for (String pair : uri.substring(start + 1).split("[&;]")) {
+			int equals = pair.indexOf('=');
+			String key = unescape(equals < 0 ? pair : pair.substring(0, equals));
+			if (key.length() > 0)
+				params.put(key, equals < 0 ? "" : unescape(pair
+						.substring(equals + 1)));
+		}
+		return params;
+	}
+
+	private static String unescape(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (IllegalArgumentException e) {
+			return s;
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static JSONObject jsonObject(byte[] body) {
+		try {
+			return new JSONObject(new String(body, UTF_8));
+		} catch (JSONException e) {
+			return null;
+		}
+	}
+
+	private static Map<String, String> toMap(JSONObject json) {
+		Map<String, String> map = new HashMap<String, String>();
+		Iterator<?> keys = json.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			if (!json.isNull(key))
+				map.put(key, json.opt(key).toString());
+		}
+		return map;
+	}
+
+	/**
+	 * Decodes a body in the binary format of
+	 * {@link com.r2src.dyad.request.BinaryBodyCodec}, like
+	 * Dyad::Server::binary_to_hashref.
+	 *
+	 * @return the fields, or null if the body is malformed.
+	 */
+	static Map<String, String> binaryToMap(byte[] body) {
+		if (body.length == 0 || body[0] != 1)
+			return null;
+		Map<String, String> map = new HashMap<String, String>();
+		int[] pos = { 1 };
+		while (pos[0] < body.length) {
+			String name = string(body, pos);
+			String value = name == null ? null : string(body, pos);
+			if (value == null)
+				return null;
+			map.put(name, value);
+		}
+		return map;
+	}
+
+	private static String string(byte[] bytes, int[] pos) {
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			if (pos[0] >= bytes.length || shift > 28)
+				return null;
+			int b = bytes[pos[0]++];
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+		if (length < 0 || length > bytes.length - pos[0])
+			return null;
+		try {
+			String s = UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(bytes, pos[0], length)).toString();
+			pos[0] += length;
+			return s;
+		} catch (CharacterCodingException e) {
+			return null;
+		}
+	}
+}
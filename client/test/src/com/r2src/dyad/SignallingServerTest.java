@@ -0,0 +1,229 @@
+package com.r2src.dyad;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.ice.IceConfiguration;
+import com.r2src.dyad.request.BatchRequest;
+import com.r2src.dyad.request.BinaryBodyCodec;
+import com.r2src.dyad.request.BondRequest;
+import com.r2src.dyad.request.CandidatesRequest;
+import com.r2src.dyad.request.GetCandidatesRequest;
+import com.r2src.dyad.request.GetSdpMessageRequest;
+import com.r2src.dyad.request.RegisterGCMRequest;
+import com.r2src.dyad.request.RegisterRequest;
+import com.r2src.dyad.request.SdpMessageRequest;
+
+/**
+ * Runs the client's requests end to end against a {@link SignallingServer}.
+ */
+public class SignallingServerTest extends TestCase {
+
+	private SignallingServer server;
+	private Account alice;
+	private Account bob;
+	private Stream[] streams = new Stream[2];
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new SignallingServer();
+		alice = new Account(server.getHost(), null);
+		bob = new Account(server.getHost(), null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Stream s : streams) {
+			if (s != null)
+				s.close();
+		}
+		alice.client.executor.shutdownNow();
+		bob.client.executor.shutdownNow();
+		server.close();
+	}
+
+	private static int status(ServerException e) {
+		return e.serverResponse.getStatusLine().getStatusCode();
+	}
+
+	private void bond() throws Exception {
+		alice.client.execute(new RegisterRequest("alice"), alice);
+		bob.client.execute(new RegisterRequest("bob"), bob);
+		assertFalse(alice.client.execute(new BondRequest("secret"), alice));
+		assertTrue(bob.client.execute(new BondRequest("secret"), bob));
+	}
+
+	public void testRegisterAndBond() throws Exception {
+		String token = alice.client.execute(new RegisterRequest("alice"),
+				alice);
+		assertEquals(32, token.length());
+		assertEquals(token, alice.getSessionToken());
+		alice.client.execute(new RegisterGCMRequest("gcm"), alice);
+
+		bob.client.execute(new RegisterRequest("bob"), bob);
+		assertFalse(alice.client.execute(new BondRequest("secret"), alice));
+		assertFalse(bob.client.execute(new BondRequest("other"), bob));
+		assertTrue(bob.client.execute(new BondRequest("secret"), bob));
+	}
+
+	public void testUnauthorized() throws Exception {
+		try {
+			alice.client.execute(new BondRequest("secret"), alice);
+			fail();
+		} catch (ServerException e) {
+			assertEquals(401, status(e));
+		}
+
+		alice.client.execute(new RegisterRequest("alice"), alice);
+		String old = alice.getSessionToken();
+		alice.client.execute(new RegisterRequest("alice"), alice);
+		bob.setSessionToken(old);
+		try {
+			bob.client.execute(new BondRequest("secret"), bob);
+			fail();
+		} catch (ServerException e) {
+			assertEquals(401, status(e));
+		}
+	}
+
+	public void testLongPoll() throws Exception {
+		bond();
+		assertNull(alice.client.execute(new GetSdpMessageRequest(), alice));
+
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (server.getParked() == 0)
+						Thread.sleep(10);
+					bob.client.execute(new SdpMessageRequest("v=0", true),
+							bob);
+				} catch (Exception ignore) {
+				}
+			}
+		}.start();
+		long start = System.currentTimeMillis();
+		assertEquals("v=0",
+				alice.client.execute(new GetSdpMessageRequest(10), alice));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(0, server.getParked());
+
+		// the message is taken
+		assertNull(alice.client.execute(new GetSdpMessageRequest(), alice));
+		bob.client.execute(new SdpMessageRequest("v=1", true), bob);
+		assertEquals("v=1",
+				alice.client.execute(new GetSdpMessageRequest(), alice));
+	}
+
+	public void testLongPollTimesOut() throws Exception {
+		bond();
+		long start = System.currentTimeMillis();
+		assertNull(alice.client.execute(new GetCandidatesRequest(0, 1), alice));
+		assertTrue(System.currentTimeMillis() - start >= 900);
+		assertEquals(0, server.getParked());
+	}
+
+	public void testCandidates() throws Exception {
+		bond();
+		try {
+			bob.client.execute(new CandidatesRequest("a=candidate:1"), bob);
+			fail();
+		} catch (ServerException e) {
+			assertEquals(409, status(e));
+		}
+		bob.client.execute(new SdpMessageRequest("v=0"), bob);
+		bob.client.execute(new CandidatesRequest("a=candidate:1"), bob);
+		bob.client.execute(new CandidatesRequest("a=end-of-candidates"), bob);
+
+		GetCandidatesRequest.Batches batches = alice.client.execute(
+				new GetCandidatesRequest(1, 0), alice);
+		assertEquals(1, batches.candidates.size());
+		assertEquals("a=end-of-candidates", batches.candidates.get(0));
+		assertEquals(2, batches.next);
+		assertNull(alice.client.execute(new GetCandidatesRequest(2, 0), alice));
+
+		// a new message starts over
+		bob.client.execute(new SdpMessageRequest("v=0"), bob);
+		assertNull(alice.client.execute(new GetCandidatesRequest(0, 0), alice));
+	}
+
+	public void testBinaryBodies() throws Exception {
+		alice.client.setBodyCodec(BinaryBodyCodec.INSTANCE);
+		bob.client.setBodyCodec(BinaryBodyCodec.INSTANCE);
+		bond();
+		bob.client.execute(new SdpMessageRequest("v=0\r\ns=\u00e9"), bob);
+		assertEquals("v=0\r\ns=\u00e9", alice.client.execute(
+				new GetSdpMessageRequest(), alice));
+	}
+
+	public void testBatch() throws Exception {
+		bob.client.execute(new RegisterRequest("bob"), bob);
+		bob.client.execute(new BondRequest("secret"), bob);
+
+		BondRequest bond = new BondRequest("secret");
+		BatchRequest batch = new BatchRequest().add(
+				new RegisterRequest("alice")).add(bond);
+		assertTrue(alice.client.execute(batch, alice).get(bond));
+		assertNotNull(alice.getSessionToken());
+		assertEquals(3, server.getRequests());
+	}
+
+	/**
+	 * Sets up a stream between the devices, with bob starting the given
+	 * number of milliseconds after alice, or before her if it's negative, and
+	 * checks that it carries a frame.
+	 */
+	private void connect(final long skew) throws Exception {
+		for (int i = 0; i < streams.length; i++) {
+			if (streams[i] != null)
+				streams[i].close();
+			streams[i] = null;
+		}
+		final IceConfiguration config = new IceConfiguration()
+				.setLoopbackIncluded(true);
+		final Exception[] failure = new Exception[1];
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				try {
+					if (skew > 0)
+						Thread.sleep(skew);
+					streams[1] = new Dyad(bob, "dyad").getStream(config, 10000);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		other.start();
+		if (skew < 0)
+			Thread.sleep(-skew);
+		streams[0] = new Dyad(alice, "dyad").getStream(config, 10000);
+		other.join();
+		if (failure[0] != null)
+			throw failure[0];
+
+		ByteBuffer frame = streams[0].obtainBuffer();
+		frame.put("hello".getBytes("UTF-8")).flip();
+		assertTrue(streams[0].send(frame));
+		ByteBuffer received = streams[1].receive();
+		byte[] bytes = new byte[received.remaining()];
+		received.get(bytes);
+		assertEquals("hello", new String(bytes, "UTF-8"));
+		streams[1].release(received);
+	}
+
+	public void testGetStream() throws Exception {
+		bond();
+		connect(0);
+	}
+
+	public void testReconnect() throws Exception {
+		// neither device may pick up the description of the last session,
+		// whichever one asks first
+		bond();
+		connect(0);
+		connect(500);
+		connect(-500);
+	}
+}
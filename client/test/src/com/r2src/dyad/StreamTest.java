@@ -0,0 +1,95 @@
+package com.r2src.dyad;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.stream.BufferPool;
+
+public class StreamTest extends TestCase {
+
+	private Stream first;
+	private Stream second;
+
+	@Override
+	protected void setUp() throws Exception {
+		InetAddress loopback = InetAddress.getByName(null);
+		DatagramChannel firstChannel = DatagramChannel.open();
+		firstChannel.socket().bind(new InetSocketAddress(loopback, 0));
+		DatagramChannel secondChannel = DatagramChannel.open();
+		secondChannel.socket().bind(new InetSocketAddress(loopback, 0));
+		first = new Stream(firstChannel, secondChannel.socket()
+				.getLocalSocketAddress(), new BufferPool(4,
+				Stream.MAX_DATAGRAM_SIZE));
+		second = new Stream(secondChannel, firstChannel.socket()
+				.getLocalSocketAddress(), new BufferPool(4,
+				Stream.MAX_DATAGRAM_SIZE));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		first.close();
+		second.close();
+	}
+
+	public void testSendAndReceive() throws Exception {
+		ByteBuffer frame = first.obtainBuffer();
+		frame.put(new byte[] { 1, 2, 3 }).flip();
+		assertTrue(first.send(frame));
+		assertEquals(4, first.getBufferPool().available());
+
+		ByteBuffer received = second.receive();
+		assertEquals(3, received.remaining());
+		assertEquals(3, received.get(2));
+		assertEquals(3, second.getBufferPool().available());
+		second.release(received);
+		assertEquals(4, second.getBufferPool().available());
+	}
+
+	public void testEmptyDatagram() throws Exception {
+		// channels don't send empty datagrams, so send them from a socket
+		InetAddress loopback = InetAddress.getByName(null);
+		DatagramSocket peer = new DatagramSocket(new InetSocketAddress(
+				loopback, 0));
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(loopback, 0));
+		Stream stream = new Stream(channel, peer.getLocalSocketAddress(),
+				new BufferPool(4, Stream.MAX_DATAGRAM_SIZE));
+		DatagramPacket empty = new DatagramPacket(new byte[0], 0, channel
+				.socket().getLocalSocketAddress());
+		try {
+			// blocking: an empty datagram is a datagram, not nothing
+			peer.send(empty);
+			ByteBuffer received = stream.receive();
+			assertNotNull(received);
+			assertEquals(0, received.remaining());
+			stream.release(received);
+
+			// non-blocking: as soon as it's there
+			stream.getChannel().configureBlocking(false);
+			peer.send(empty);
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((received = stream.receive()) == null
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertNotNull(received);
+			assertEquals(0, received.remaining());
+			stream.release(received);
+			assertEquals(4, stream.getBufferPool().available());
+		} finally {
+			stream.close();
+			peer.close();
+		}
+	}
+
+	public void testNothingToReceive() throws Exception {
+		second.getChannel().configureBlocking(false);
+		assertNull(second.receive());
+		assertEquals(4, second.getBufferPool().available());
+	}
+}
@@ -0,0 +1,302 @@
+package com.r2src.dyad.ice;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.Stream;
+
+public class IceAgentTest extends TestCase {
+
+	private TurnServer server;
+	private IceAgent first;
+	private IceAgent second;
+	private Stream[] streams = new Stream[2];
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new TurnServer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Stream s : streams) {
+			if (s != null)
+				s.close();
+		}
+		if (first != null)
+			first.close();
+		if (second != null)
+			second.close();
+		server.close();
+	}
+
+	private IceConfiguration hostOnly() {
+		return new IceConfiguration().setLoopbackIncluded(true);
+	}
+
+	private IceConfiguration relayOnly() {
+		return new IceConfiguration().setTurnServer(server.getAddress(),
+				TurnServer.USERNAME, TurnServer.PASSWORD).setRelayOnly(true);
+	}
+
+	/**
+	 * Gathers on both agents, swaps their descriptions like the Dyad server
+	 * would, and connects them at the same time.
+	 */
+	private void connect(IceConfiguration a, IceConfiguration b)
+			throws Exception {
+		first = new IceAgent(a);
+		second = new IceAgent(b);
+		first.start();
+		second.start();
+		assertTrue(first.awaitGathering(5000));
+		assertTrue(second.awaitGathering(5000));
+		first.setRemoteDescription(second.getLocalDescription());
+		second.setRemoteDescription(first.getLocalDescription());
+		connectBoth();
+	}
+
+	/**
+	 * Connects both agents at the same time.
+	 */
+	private void connectBoth() throws Exception {
+		final Exception[] failure = new Exception[1];
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				try {
+					streams[1] = second.connect(5000);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		other.start();
+		streams[0] = first.connect(5000);
+		other.join();
+		if (failure[0] != null)
+			throw failure[0];
+	}
+
+	private static void exchange(Stream from, Stream to) throws Exception {
+		ByteBuffer frame = from.obtainBuffer();
+		frame.put("hello".getBytes("UTF-8")).flip();
+		assertTrue(from.send(frame));
+		ByteBuffer received = to.receive();
+		byte[] bytes = new byte[received.remaining()];
+		received.get(bytes);
+		to.release(received);
+		assertEquals("hello", new String(bytes, "UTF-8"));
+	}
+
+	public void testGathersInParallel() throws Exception {
+		final List<Candidate> heard = new ArrayList<Candidate>();
+		first = new IceAgent(hostOnly().setStunServer(server.getAddress())
+				.setTurnServer(server.getAddress(), TurnServer.USERNAME,
+						TurnServer.PASSWORD));
+		first.setListener(new IceAgent.Listener() {
+			@Override
+			public void onCandidate(Candidate candidate) {
+				synchronized (heard) {
+					heard.add(candidate);
+				}
+			}
+
+			@Override
+			public void onGatheringDone() {
+			}
+		});
+		first.start();
+		assertTrue(first.awaitGathering(5000));
+
+		List<Candidate.Type> types = new ArrayList<Candidate.Type>();
+		for (Candidate c : first.getLocalCandidates())
+			types.add(c.getType());
+		assertTrue(types.contains(Candidate.Type.HOST));
+		assertTrue(types.contains(Candidate.Type.RELAYED));
+		// seen on loopback, the reflexive address is the host address
+		assertFalse(types.contains(Candidate.Type.SERVER_REFLEXIVE));
+		assertEquals(1, server.getBindings());
+		assertEquals(1, server.getAllocations());
+		assertTrue(first.getLocalDescription()
+				.endsWith("a=end-of-candidates\r\n"));
+		Thread.sleep(50);
+		synchronized (heard) {
+			assertEquals(first.getLocalCandidates(), heard);
+		}
+	}
+
+	public void testGatheringGivesUpOnSilentServer() throws Exception {
+		java.net.InetSocketAddress silent = server.getAddress();
+		server.close();
+		first = new IceAgent(hostOnly().setStunServer(silent)
+				.setGatheringTimeout(300));
+		first.start();
+		assertTrue(first.awaitGathering(2000));
+		assertFalse(first.getLocalCandidates().isEmpty());
+		server = new TurnServer();
+	}
+
+	public void testHostConnect() throws Exception {
+		connect(hostOnly(), hostOnly());
+		exchange(streams[0], streams[1]);
+		exchange(streams[1], streams[0]);
+		assertEquals(Candidate.Type.HOST, first.getSelectedLocal().getType());
+		// both started out controlling
+		assertTrue(first.isControlling() != second.isControlling());
+	}
+
+	public void testRelayConnect() throws Exception {
+		connect(relayOnly(), relayOnly());
+		exchange(streams[0], streams[1]);
+		exchange(streams[1], streams[0]);
+		assertEquals(Candidate.Type.RELAYED, first.getSelectedLocal()
+				.getType());
+		assertEquals(Candidate.Type.RELAYED, second.getSelectedLocal()
+				.getType());
+		assertTrue(server.getRelayed() > 0);
+		assertEquals(2, server.getChannelBinds());
+	}
+
+	public void testHostToRelay() throws Exception {
+		connect(hostOnly(), relayOnly());
+		exchange(streams[0], streams[1]);
+		exchange(streams[1], streams[0]);
+		assertEquals(Candidate.Type.RELAYED, first.getSelectedRemote()
+				.getType());
+	}
+
+	/**
+	 * Forwards the candidates an agent gathers to the other agent.
+	 */
+	private static class Forwarder implements IceAgent.Listener {
+		IceAgent to;
+
+		@Override
+		public void onCandidate(Candidate candidate) {
+			to.addRemoteCandidates("a=" + candidate);
+		}
+
+		@Override
+		public void onGatheringDone() {
+			to.addRemoteCandidates("a=end-of-candidates");
+		}
+	}
+
+	public void testTrickle() throws Exception {
+		IceConfiguration config = relayOnly().setRelayOnly(false)
+				.setLoopbackIncluded(true);
+		first = new IceAgent(config);
+		second = new IceAgent(config);
+		Forwarder toSecond = new Forwarder();
+		Forwarder toFirst = new Forwarder();
+		toSecond.to = second;
+		toFirst.to = first;
+		first.setListener(toSecond);
+		second.setListener(toFirst);
+		first.start();
+		second.start();
+
+		// the descriptions go out before the relays are allocated
+		String description = first.getLocalDescription();
+		assertFalse(description.contains("a=end-of-candidates"));
+		second.setRemoteDescription(description);
+		first.setRemoteDescription(second.getLocalDescription());
+		connectBoth();
+		exchange(streams[0], streams[1]);
+	}
+
+	/**
+	 * Starts both agents and swaps their descriptions right away, trickling
+	 * the candidates that are gathered after them.
+	 */
+	private void reconnect(IceConfiguration config, CachedPath a, CachedPath b)
+			throws Exception {
+		first = new IceAgent(config);
+		second = new IceAgent(config);
+		first.setCachedPath(a);
+		second.setCachedPath(b);
+		Forwarder toSecond = new Forwarder();
+		Forwarder toFirst = new Forwarder();
+		toSecond.to = second;
+		toFirst.to = first;
+		first.setListener(toSecond);
+		second.setListener(toFirst);
+		first.start();
+		second.start();
+		second.setRemoteDescription(first.getLocalDescription());
+		first.setRemoteDescription(second.getLocalDescription());
+		connectBoth();
+	}
+
+	public void testCachedPathSkipsServers() throws Exception {
+		IceConfiguration config = relayOnly().setRelayOnly(false)
+				.setLoopbackIncluded(true).setStunServer(server.getAddress());
+		connect(config, config);
+		CachedPath a = first.getSelectedPath();
+		CachedPath b = second.getSelectedPath();
+		assertEquals(Candidate.Type.HOST, a.getLocalType());
+		assertNotNull(a.getRealm());
+		int bindings = server.getBindings();
+		int allocations = server.getAllocations();
+		for (int i = 0; i < streams.length; i++) {
+			streams[i].close();
+			streams[i] = null;
+		}
+
+		reconnect(config, a, b);
+		exchange(streams[0], streams[1]);
+		assertEquals(a.getLocalPort(), first.getSelectedPath().getLocalPort());
+		assertEquals(a.getRemote().getAddress(), first.getSelectedRemote()
+				.getAddress());
+		assertEquals(bindings, server.getBindings());
+		assertEquals(allocations, server.getAllocations());
+		assertFalse(first.isGatheringDone());
+	}
+
+	public void testStaleCachedPath() throws Exception {
+		CachedPath stale = new CachedPath(Candidate.Type.HOST, 0,
+				new Candidate(Candidate.Type.HOST, new java.net.InetSocketAddress(
+						"127.0.0.1", 9), null, 65535), null, null);
+		reconnect(hostOnly(), stale, stale);
+		exchange(streams[0], streams[1]);
+	}
+
+	public void testCachedRelayCredentials() throws Exception {
+		connect(relayOnly(), relayOnly());
+		CachedPath a = first.getSelectedPath();
+		CachedPath b = second.getSelectedPath();
+		assertTrue(a.isRelayed());
+		for (int i = 0; i < streams.length; i++) {
+			streams[i].close();
+			streams[i] = null;
+		}
+		int unauthorized = server.getUnauthorized();
+
+		reconnect(relayOnly(), a, b);
+		exchange(streams[0], streams[1]);
+		// the cached nonce saves the round trip that asks for it
+		assertEquals(unauthorized, server.getUnauthorized());
+	}
+
+	public void testNoWorkingPairFailsFast() throws Exception {
+		first = new IceAgent(hostOnly());
+		first.start();
+		assertTrue(first.awaitGathering(5000));
+		first.setRemoteDescription("a=ice-ufrag:abcd\r\n"
+				+ "a=ice-pwd:abcdefghijklmnopqrstuvwx\r\n"
+				+ "a=end-of-candidates\r\n");
+		long start = System.currentTimeMillis();
+		try {
+			first.connect(5000);
+			fail();
+		} catch (java.net.SocketTimeoutException e) {
+			fail("should fail before the timeout");
+		} catch (java.io.IOException expected) {
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+}
@@ -0,0 +1,57 @@
+package com.r2src.dyad.ice;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+public class PathCacheTest extends TestCase {
+
+	private static CachedPath path(int port) {
+		return new CachedPath(Candidate.Type.HOST, port, new Candidate(
+				Candidate.Type.HOST, new InetSocketAddress("192.0.2.1", port),
+				null, 65535), null, null);
+	}
+
+	public void testKeyedByDyadAndNetwork() {
+		PathCache cache = new PathCache();
+		CachedPath wifi = path(1);
+		cache.put("dyad", "10.0.0.2", wifi);
+		assertSame(wifi, cache.get("dyad", "10.0.0.2"));
+		assertNull(cache.get("dyad", "100.64.0.7"));
+		assertNull(cache.get("other", "10.0.0.2"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		cache.remove("dyad", "10.0.0.2");
+		assertNull(cache.get("dyad", "10.0.0.2"));
+	}
+
+	public void testExpires() throws Exception {
+		PathCache cache = new PathCache(10, 50);
+		cache.put("dyad", "net", path(1));
+		assertNotNull(cache.get("dyad", "net"));
+		Thread.sleep(80);
+		assertNull(cache.get("dyad", "net"));
+		assertEquals(0, cache.size());
+	}
+
+	public void testEvictsLeastRecentlyUsed() {
+		PathCache cache = new PathCache(2, PathCache.DEFAULT_TTL);
+		cache.put("a", "net", path(1));
+		cache.put("b", "net", path(2));
+		cache.get("a", "net");
+		cache.put("c", "net", path(3));
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("a", "net"));
+		assertNull(cache.get("b", "net"));
+	}
+
+	public void testOnlyLocalBases() {
+		try {
+			new CachedPath(Candidate.Type.SERVER_REFLEXIVE, 1, path(1)
+					.getRemote(), null, null);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
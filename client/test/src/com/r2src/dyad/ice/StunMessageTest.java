@@ -0,0 +1,94 @@
+package com.r2src.dyad.ice;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class StunMessageTest extends TestCase {
+
+	// the first attribute's value
+	private static final int HEADER_OFFSET = StunMessage.HEADER + 4;
+
+	private static ByteBuffer encode(StunMessage message, byte[] key) {
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		message.encode(buffer, key, true);
+		buffer.flip();
+		return buffer;
+	}
+
+	public void testRoundTrip() {
+		InetSocketAddress address = new InetSocketAddress("192.0.2.1", 4321);
+		StunMessage request = StunMessage.request(StunMessage.BINDING)
+				.addString(StunMessage.USERNAME, "abc:de")
+				.addInt(StunMessage.PRIORITY, 0x6e7f00ff)
+				.addLong(StunMessage.ICE_CONTROLLING, -5)
+				.addFlag(StunMessage.USE_CANDIDATE)
+				.addAddress(StunMessage.XOR_MAPPED_ADDRESS, address);
+		ByteBuffer buffer = encode(request, null);
+		assertTrue(StunMessage.isStun(buffer));
+
+		StunMessage decoded = StunMessage.decode(buffer);
+		assertNotNull(decoded);
+		assertEquals(StunMessage.BINDING | StunMessage.REQUEST,
+				decoded.getType());
+		assertEquals("abc:de", decoded.getString(StunMessage.USERNAME));
+		assertEquals(0x6e7f00ff, decoded.getInt(StunMessage.PRIORITY, 0));
+		assertEquals(-5, decoded.getLong(StunMessage.ICE_CONTROLLING, 0));
+		assertTrue(decoded.has(StunMessage.USE_CANDIDATE));
+		assertEquals(address,
+				decoded.getAddress(StunMessage.XOR_MAPPED_ADDRESS));
+		assertFalse(decoded.has(StunMessage.NONCE));
+	}
+
+	public void testIntegrity() {
+		byte[] key = StunMessage.shortTermKey("password");
+		StunMessage request = StunMessage.request(StunMessage.BINDING)
+				.addString(StunMessage.USERNAME, "a:b");
+		StunMessage decoded = StunMessage.decode(encode(request, key));
+		assertTrue(decoded.verify(key));
+		assertFalse(decoded.verify(StunMessage.shortTermKey("other")));
+		assertFalse(StunMessage.decode(encode(request, null)).verify(key));
+	}
+
+	public void testFingerprintRejectsDamage() {
+		ByteBuffer buffer = encode(StunMessage.request(StunMessage.BINDING)
+				.addString(StunMessage.USERNAME, "a:b"), null);
+		buffer.put(HEADER_OFFSET, (byte) (buffer.get(HEADER_OFFSET) ^ 1));
+		assertNull(StunMessage.decode(buffer));
+	}
+
+	public void testErrorResponse() {
+		StunMessage request = StunMessage.request(StunMessage.ALLOCATE);
+		StunMessage error = StunMessage.decode(encode(StunMessage
+				.response(request, StunMessage.ERROR)
+				.addError(438, "Stale Nonce"), null));
+		assertEquals(StunMessage.ALLOCATE, error.getMethod());
+		assertEquals(StunMessage.ERROR, error.getMessageClass());
+		assertEquals(438, error.getErrorCode());
+	}
+
+	public void testNotStun() {
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 0x40, 0, 0, 4, 1, 2,
+				3, 4 });
+		assertFalse(StunMessage.isStun(buffer));
+		assertNull(StunMessage.decode(buffer));
+	}
+
+	public void testCandidateLine() {
+		Candidate relay = new Candidate(Candidate.Type.RELAYED,
+				new InetSocketAddress("203.0.113.9", 50000),
+				new InetSocketAddress("198.51.100.2", 40000), 65535);
+		Candidate parsed = Candidate.parse("a=" + relay);
+		assertEquals(relay, parsed);
+		assertEquals(relay.getPriority(), parsed.getPriority());
+		assertEquals(relay.getRelatedAddress(), parsed.getRelatedAddress());
+		assertTrue(Candidate.priority(Candidate.Type.HOST, 0) > Candidate
+				.priority(Candidate.Type.SERVER_REFLEXIVE, 65535));
+		try {
+			Candidate.parse("candidate:1 1 tcp 1 192.0.2.1 9 typ host");
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
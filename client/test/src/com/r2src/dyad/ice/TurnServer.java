@@ -0,0 +1,244 @@
+package com.r2src.dyad.ice;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A STUN and TURN server on the loopback interface, with just enough of RFC
+ * 8656 for an {@link IceAgent}: Binding, Allocate with long-term
+ * credentials, Refresh, ChannelBind and ChannelData.
+ */
+public class TurnServer {
+
+	public static final String USERNAME = "dyad";
+	public static final String PASSWORD = "secret";
+	public static final String REALM = "dyad.r2src.com";
+	private static final String NONCE = "0123456789abcdef";
+	private static final byte[] KEY = StunMessage.longTermKey(USERNAME, REALM,
+			PASSWORD);
+
+	private class Allocation {
+		final InetSocketAddress client;
+		final DatagramChannel relay;
+		final Map<Integer, InetSocketAddress> peers = new HashMap<Integer, InetSocketAddress>();
+		final Map<InetSocketAddress, Integer> channels = new HashMap<InetSocketAddress, Integer>();
+
+		Allocation(InetSocketAddress client) throws IOException {
+			this.client = client;
+			relay = DatagramChannel.open();
+			relay.socket().bind(new InetSocketAddress(loopback, 0));
+			relay.configureBlocking(false);
+			relay.register(selector, SelectionKey.OP_READ, this);
+		}
+
+		InetSocketAddress getAddress() {
+			return (InetSocketAddress) relay.socket().getLocalSocketAddress();
+		}
+	}
+
+	private final InetAddress loopback;
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Thread thread;
+	private final ByteBuffer in = ByteBuffer.allocate(2048);
+	private final ByteBuffer out = ByteBuffer.allocate(2048);
+	private final Map<InetSocketAddress, Allocation> allocations = new HashMap<InetSocketAddress, Allocation>();
+
+	private int bindings;
+	private int allocated;
+	private int channelBinds;
+	private int unauthorized;
+	private int relayed;
+
+	public TurnServer() throws IOException {
+		loopback = InetAddress.getByName(null);
+		selector = Selector.open();
+		channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(loopback, 0));
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+		thread = new Thread("TURN server") {
+			@Override
+			public void run() {
+				try {
+					while (selector.isOpen()) {
+						selector.select();
+						if (!selector.isOpen())
+							return;
+						for (SelectionKey key : selector.selectedKeys()) {
+							if (key.attachment() == null)
+								readClients();
+							else
+								readPeers((Allocation) key.attachment());
+						}
+						selector.selectedKeys().clear();
+					}
+				} catch (IOException ignore) {
+				} catch (RuntimeException ignore) {
+					// closed selector
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+	}
+
+	public synchronized int getBindings() {
+		return bindings;
+	}
+
+	public synchronized int getAllocations() {
+		return allocated;
+	}
+
+	public synchronized int getChannelBinds() {
+		return channelBinds;
+	}
+
+	/**
+	 * Returns the number of requests that were turned down for a lack of
+	 * credentials.
+	 */
+	public synchronized int getUnauthorized() {
+		return unauthorized;
+	}
+
+	/**
+	 * Returns the number of datagrams that went through a relay, either way.
+	 */
+	public synchronized int getRelayed() {
+		return relayed;
+	}
+
+	public void close() throws IOException {
+		selector.close();
+		channel.close();
+		synchronized (this) {
+			for (Allocation a : allocations.values())
+				a.relay.close();
+		}
+	}
+
+	private synchronized void readClients() throws IOException {
+		while (true) {
+			in.clear();
+			InetSocketAddress from = (InetSocketAddress) channel.receive(in);
+			if (from == null)
+				return;
+			in.flip();
+			if (in.remaining() >= 4 && (in.get(0) & 0xc0) == 0x40) {
+				Allocation a = allocations.get(from);
+				if (a == null)
+					continue;
+				InetSocketAddress peer = a.peers.get(in.getShort(0) & 0xffff);
+				if (peer == null)
+					continue;
+				in.position(4);
+				in.limit(Math.min(in.limit(), 4 + (in.getShort(2) & 0xffff)));
+				a.relay.send(in, peer);
+				relayed++;
+				continue;
+			}
+			StunMessage request = StunMessage.decode(in);
+			if (request != null
+					&& request.getMessageClass() == StunMessage.REQUEST)
+				onRequest(request, from);
+		}
+	}
+
+	private synchronized void readPeers(Allocation a) throws IOException {
+		while (true) {
+			in.clear();
+			in.position(4);
+			InetSocketAddress from = (InetSocketAddress) a.relay.receive(in);
+			if (from == null)
+				return;
+			Integer number = a.channels.get(from);
+			// no permission
+			if (number == null)
+				continue;
+			in.putShort(0, (short) (int) number).putShort(2,
+					(short) (in.position() - 4));
+			in.flip();
+			channel.send(in, a.client);
+			relayed++;
+		}
+	}
+
+	private void onRequest(StunMessage request, InetSocketAddress from)
+			throws IOException {
+		if (request.getMethod() == StunMessage.BINDING) {
+			bindings++;
+			send(StunMessage.response(request, StunMessage.SUCCESS)
+					.addAddress(StunMessage.XOR_MAPPED_ADDRESS, from), null,
+					from);
+			return;
+		}
+		if (!USERNAME.equals(request.getString(StunMessage.USERNAME))
+				|| !request.verify(KEY)) {
+			unauthorized++;
+			send(StunMessage.response(request, StunMessage.ERROR)
+					.addError(401, "Unauthorized")
+					.addString(StunMessage.REALM, REALM)
+					.addString(StunMessage.NONCE, NONCE), null, from);
+			return;
+		}
+		Allocation a = allocations.get(from);
+		StunMessage response = StunMessage.response(request,
+				StunMessage.SUCCESS);
+		switch (request.getMethod()) {
+		case StunMessage.ALLOCATE:
+			if (a == null) {
+				a = new Allocation(from);
+				allocations.put(from, a);
+				allocated++;
+			}
+			response.addAddress(StunMessage.XOR_RELAYED_ADDRESS,
+					a.getAddress())
+					.addAddress(StunMessage.XOR_MAPPED_ADDRESS, from)
+					.addInt(StunMessage.LIFETIME, 600);
+			break;
+		case StunMessage.REFRESH:
+			if (a != null && request.getInt(StunMessage.LIFETIME, 600) == 0) {
+				allocations.remove(from);
+				a.relay.close();
+			}
+			break;
+		case StunMessage.CHANNEL_BIND:
+			InetSocketAddress peer = request
+					.getAddress(StunMessage.XOR_PEER_ADDRESS);
+			int number = (int) (request.getInt(StunMessage.CHANNEL_NUMBER, 0) >>> 16);
+			if (a == null || peer == null) {
+				response = StunMessage.response(request, StunMessage.ERROR)
+						.addError(400, "Bad Request");
+				break;
+			}
+			a.peers.put(number, peer);
+			a.channels.put(peer, number);
+			channelBinds++;
+			break;
+		default:
+			return;
+		}
+		send(response, KEY, from);
+	}
+
+	private void send(StunMessage message, byte[] key, InetSocketAddress to)
+			throws IOException {
+		out.clear();
+		message.encode(out, key, true);
+		out.flip();
+		channel.send(out, to);
+	}
+}
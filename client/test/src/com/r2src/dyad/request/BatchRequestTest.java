@@ -0,0 +1,203 @@
+package com.r2src.dyad.request;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.Dyad;
+import com.r2src.dyad.ServerException;
+
+/**
+ * Checks how a {@link BatchRequest} encodes its requests and hands the parts
+ * of the response back to them, against a {@link CannedServer}.
+ */
+public class BatchRequestTest extends TestCase {
+
+	private static final String TOKEN = "3f1c9a0b2e7d4c55a1b8e6f0d2c4a7b9";
+
+	private CannedServer server;
+	private Account account;
+	private Requester requester;
+
+	private RegisterRequest register;
+	private BondRequest bond;
+	private GetSdpMessageRequest sdp;
+	private BatchRequest batch;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new CannedServer();
+		account = new Account(server.getHost(), null);
+		requester = new Requester(1);
+
+		register = new RegisterRequest("alice");
+		bond = new BondRequest("secret");
+		sdp = new GetSdpMessageRequest(5);
+		batch = new BatchRequest().add(register).add(bond).add(sdp);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		requester.executor.shutdownNow();
+		server.close();
+	}
+
+	private static int status(ServerException e) {
+		return e.serverResponse.getStatusLine().getStatusCode();
+	}
+
+	public void testEncoding() throws Exception {
+		server.respond(200, "{\"responses\":[{\"status\":200,"
+				+ "\"body\":{\"session_token\":\"" + TOKEN + "\"}},"
+				+ "{\"status\":202},{\"status\":404}]}");
+		requester.execute(batch, account);
+
+		CannedServer.Exchange exchange = server.take();
+		assertEquals("POST", exchange.method);
+		assertEquals("/v1/batch", exchange.path);
+		assertTrue(exchange.headers.get("content-type").startsWith(
+				JsonBodyCodec.CONTENT_TYPE));
+		assertEquals(1, server.getRequests());
+
+		JSONArray calls = new JSONObject(new String(exchange.body, "UTF-8"))
+				.getJSONArray("calls");
+		assertEquals(3, calls.length());
+		assertEquals("POST", calls.getJSONObject(0).getString("method"));
+		assertEquals("/v1/register", calls.getJSONObject(0).getString("path"));
+		assertEquals("alice", calls.getJSONObject(0).getJSONObject("body")
+				.getString("token"));
+		assertEquals("/v1/bond", calls.getJSONObject(1).getString("path"));
+		assertEquals("secret", calls.getJSONObject(1).getJSONObject("body")
+				.getString("secret"));
+		assertEquals("GET", calls.getJSONObject(2).getString("method"));
+		assertEquals("/v1/sdp_message?wait=5", calls.getJSONObject(2)
+				.getString("path"));
+		assertFalse(calls.getJSONObject(2).has("body"));
+	}
+
+	public void testMixedResults() throws Exception {
+		server.respond(200, "{\"responses\":[{\"status\":200,"
+				+ "\"body\":{\"session_token\":\"" + TOKEN + "\"}},"
+				+ "{\"status\":409,\"body\":\"Please register first.\"},"
+				+ "{\"body\":\"v=0\\r\\n\",\"status\":200,\"extra\":[1]}],"
+				+ "\"took\":3}");
+		BatchRequest.Results results = requester.execute(batch, account);
+
+		assertEquals(3, results.size());
+		assertEquals(200, results.getStatusCode(0));
+		assertEquals(409, results.getStatusCode(1));
+		assertEquals(200, results.getStatusCode(2));
+
+		assertEquals(TOKEN, results.get(register));
+		assertEquals(TOKEN, account.getSessionToken());
+		try {
+			results.get(bond);
+			fail("the bond should have failed");
+		} catch (ServerException e) {
+			assertEquals(409, status(e));
+		}
+		assertEquals("v=0\r\n", results.get(sdp));
+	}
+
+	public void testNonAsciiParts() throws Exception {
+		DyadsRequest dyads = new DyadsRequest(TOKEN);
+		batch = new BatchRequest().add(dyads).add(sdp);
+		server.respond(200, "{\"responses\":[{\"status\":200,"
+				+ "\"body\":[\"caf\u00e9\",\"\\u263a\"]},"
+				+ "{\"status\":200,\"body\":\"s=\u00e9\u4e2d\\r\\n\"}]}");
+		BatchRequest.Results results = requester.execute(batch, account);
+
+		List<Dyad> ids = results.get(dyads);
+		assertEquals("caf\u00e9", ids.get(0).getId());
+		assertEquals("\u263a", ids.get(1).getId());
+		assertEquals("s=\u00e9\u4e2d\r\n", results.get(sdp));
+	}
+
+	public void testFailedParsesAreFailures() throws Exception {
+		server.respond(200, "{\"responses\":[{\"status\":200,\"body\":{}},"
+				+ "{\"status\":200},{\"status\":404,\"body\":null}]}");
+		BatchRequest.Results results = requester.execute(batch, account);
+
+		// a registration without a session token
+		try {
+			results.get(register);
+			fail("the registration should have failed");
+		} catch (ServerException e) {
+			assertEquals(200, status(e));
+		}
+		assertTrue(results.get(bond));
+		assertNull(results.get(sdp));
+		assertNull(account.getSessionToken());
+
+		// a registration without a body
+		server.respond(200, "{\"responses\":[{\"status\":200},"
+				+ "{\"status\":202},{\"status\":404}]}");
+		results = requester.execute(batch, account);
+		try {
+			results.get(register);
+			fail("the registration should have failed");
+		} catch (ServerException e) {
+			assertEquals(200, status(e));
+		}
+		assertFalse(results.get(bond));
+	}
+
+	public void testWrongNumberOfResponses() throws Exception {
+		server.respond(200, "{\"responses\":[{\"status\":202}]}");
+		try {
+			requester.execute(batch, account);
+			fail("too few responses");
+		} catch (ServerException e) {
+			assertEquals(200, status(e));
+		}
+
+		server.respond(200, "{\"responses\":[{\"status\":404},"
+				+ "{\"status\":202},{\"status\":404},{\"status\":404}]}");
+		try {
+			requester.execute(batch, account);
+			fail("too many responses");
+		} catch (ServerException e) {
+			assertEquals(200, status(e));
+		}
+	}
+
+	public void testBatchFails() throws Exception {
+		server.respond(400, "\"Too many calls.\"");
+		try {
+			requester.execute(batch, account);
+			fail("the batch should have failed");
+		} catch (ServerException e) {
+			assertEquals(400, status(e));
+		}
+
+		server.respond(200, "{\"responses\":[{\"status\":");
+		try {
+			requester.execute(batch, account);
+			fail("the response is truncated");
+		} catch (ServerException e) {
+			assertEquals(200, status(e));
+		}
+	}
+
+	public void testAdd() {
+		try {
+			batch.add(new BatchRequest());
+			fail("batches can't be nested");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// three requests are in it already
+		for (int i = 3; i < BatchRequest.MAX_SIZE; i++)
+			batch.add(new BondRequest("secret"));
+		try {
+			batch.add(new BondRequest("secret"));
+			fail("the batch is full");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
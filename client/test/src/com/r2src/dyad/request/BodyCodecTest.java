@@ -0,0 +1,97 @@
+package com.r2src.dyad.request;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+import junit.framework.TestCase;
+
+public class BodyCodecTest extends TestCase {
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++)
+			bytes[i] = (byte) values[i];
+		return bytes;
+	}
+
+	private static byte[] encode(BodyCodec codec, Map<String, String> fields)
+			throws Exception {
+		HttpEntity entity = codec.encode(fields);
+		assertEquals(codec.getContentType(), entity.getContentType()
+				.getValue());
+		return EntityUtils.toByteArray(entity);
+	}
+
+	public void testJson() throws Exception {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("secret", "s\u00e9cret \"quoted\"");
+		fields.put("sdp", "v=0\r\n");
+		JSONObject json = new JSONObject(new String(encode(
+				JsonBodyCodec.INSTANCE, fields), "UTF-8"));
+		assertEquals(2, json.length());
+		assertEquals("s\u00e9cret \"quoted\"", json.getString("secret"));
+		assertEquals("v=0\r\n", json.getString("sdp"));
+
+		json = new JSONObject(new String(encode(JsonBodyCodec.INSTANCE,
+				Collections.singletonMap("token", (String) null)), "UTF-8"));
+		assertTrue(json.isNull("token"));
+	}
+
+	public void testBinary() throws Exception {
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		fields.put("a", "bc");
+		fields.put("", "\u00e9");
+		assertTrue(Arrays.equals(bytes(1, 1, 'a', 2, 'b', 'c', 0, 2, 0xc3,
+				0xa9), encode(BinaryBodyCodec.INSTANCE, fields)));
+
+		assertTrue(Arrays.equals(bytes(1), encode(BinaryBodyCodec.INSTANCE,
+				Collections.<String, String> emptyMap())));
+	}
+
+	public void testBinaryLengths() throws Exception {
+		// lengths of 128 and more take more than one byte
+		for (int length : new int[] { 127, 128, 300, 16384 }) {
+			char[] value = new char[length];
+			Arrays.fill(value, 'x');
+			byte[] body = encode(BinaryBodyCodec.INSTANCE,
+					Collections.singletonMap("v", new String(value)));
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			expected.write(bytes(1, 1, 'v'));
+			for (int n = length; true; n >>>= 7) {
+				if (n < 0x80) {
+					expected.write(n);
+					break;
+				}
+				expected.write(n & 0x7f | 0x80);
+			}
+			expected.write(new String(value).getBytes("UTF-8"));
+			assertTrue(Arrays.equals(expected.toByteArray(), body));
+		}
+	}
+
+	public void testBinaryNulls() throws Exception {
+		try {
+			BinaryBodyCodec.INSTANCE.encode(Collections.singletonMap("token",
+					(String) null));
+			fail("there is no null in the binary format");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			BinaryBodyCodec.INSTANCE.encode(Collections.singletonMap(
+					(String) null, "value"));
+			fail("there is no null in the binary format");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
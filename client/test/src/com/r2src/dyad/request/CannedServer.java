@@ -0,0 +1,279 @@
+package com.r2src.dyad.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+
+/**
+ * An HTTP server for the tests of the requests. Whatever the path, it answers
+ * every request with the next of the responses that the test queued with
+ * {@link #respond}, waiting for one if there is none yet, and it records the
+ * requests so that the test can {@link #take} them. That makes it easy to
+ * hold a request at the server, or to answer with a status the real server
+ * rarely gives.
+ * <p>
+ * Connections are kept alive, each on a thread of its own.
+ */
+public class CannedServer {
+
+	private static final String LATIN_1 = "ISO-8859-1";
+
+	/**
+	 * A request as the server received it.
+	 */
+	public static class Exchange {
+		public final String method;
+		public final String path;
+		/**
+		 * The headers, by their lower-case names.
+		 */
+		public final Map<String, String> headers;
+		public final byte[] body;
+		/**
+		 * The number of the connection the request came over, counting from
+		 * 1 in the order they were accepted.
+		 */
+		public final int connection;
+
+		Exchange(String method, String path, Map<String, String> headers,
+				byte[] body, int connection) {
+			this.method = method;
+			this.path = path;
+			this.headers = headers;
+			this.body = body;
+			this.connection = connection;
+		}
+	}
+
+	private final ServerSocket server;
+	private final Thread acceptor;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<byte[]>();
+	private final BlockingQueue<Exchange> exchanges = new LinkedBlockingQueue<Exchange>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * Starts a server on the loopback interface, on a free port.
+	 */
+	public CannedServer() throws IOException {
+		server = new ServerSocket();
+		server.bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+		acceptor = new Thread("Canned server") {
+			@Override
+			public void run() {
+				try {
+					while (!closed)
+						serve(server.accept());
+				} catch (IOException ignore) {
+					// closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Returns the host to point an {@link com.r2src.dyad.Account} at.
+	 */
+	public HttpHost getHost() {
+		return new HttpHost(server.getInetAddress().getHostAddress(),
+				server.getLocalPort());
+	}
+
+	/**
+	 * Queues a response.
+	 */
+	public CannedServer respond(int status, String contentType, byte[] body) {
+		try {
+			StringBuilder head = new StringBuilder();
+			head.append("HTTP/1.1 ").append(status).append(" Canned\r\n");
+			head.append("Content-Length: ").append(body.length).append("\r\n");
+			if (contentType != null)
+				head.append("Content-Type: ").append(contentType)
+						.append("\r\n");
+			head.append("\r\n");
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			response.write(head.toString().getBytes(LATIN_1));
+			response.write(body);
+			responses.add(response.toByteArray());
+			return this;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Queues a response with a JSON body, or with no body if json is null.
+	 */
+	public CannedServer respond(int status, String json) {
+		try {
+			return json == null ? respond(status, null, new byte[0]) : respond(
+					status, "application/json", json.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Queues a response without a body.
+	 */
+	public CannedServer respond(int status) {
+		return respond(status, null);
+	}
+
+	/**
+	 * Returns the next request that was received, waiting up to five seconds
+	 * for it, or null if none arrived.
+	 */
+	public Exchange take() throws InterruptedException {
+		return exchanges.poll(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Returns the number of requests that were received.
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of connections that were accepted.
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Returns the number of connections that are still open.
+	 */
+	public int getOpenConnections() {
+		return open.get();
+	}
+
+	public void close() {
+		closed = true;
+		try {
+			server.close();
+		} catch (IOException ignore) {
+		}
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException ignore) {
+				}
+			}
+			for (Thread thread : threads)
+				thread.interrupt();
+		}
+	}
+
+	private void serve(final Socket socket) {
+		final int number = connections.incrementAndGet();
+		open.incrementAndGet();
+		Thread thread = new Thread("Canned connection " + number) {
+			@Override
+			public void run() {
+				try {
+					InputStream in = socket.getInputStream();
+					OutputStream out = socket.getOutputStream();
+					Exchange exchange;
+					while ((exchange = read(in, number)) != null) {
+						requests.incrementAndGet();
+						exchanges.add(exchange);
+						out.write(responses.take());
+						out.flush();
+					}
+				} catch (IOException ignore) {
+				} catch (InterruptedException ignore) {
+				} finally {
+					open.decrementAndGet();
+					try {
+						socket.close();
+					} catch (IOException ignore) {
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		synchronized (sockets) {
+			if (closed) {
+				open.decrementAndGet();
+				try {
+					socket.close();
+				} catch (IOException ignore) {
+				}
+				return;
+			}
+			sockets.add(socket);
+			threads.add(thread);
+		}
+		thread.start();
+	}
+
+	/**
+	 * Reads a request, or returns null if the client closed the connection.
+	 */
+	private static Exchange read(InputStream in, int connection)
+			throws IOException {
+		String line = readLine(in);
+		if (line == null)
+			return null;
+		String[] start = line.split(" ");
+		if (start.length != 3)
+			throw new IOException("bad request line: " + line);
+
+		Map<String, String> headers = new HashMap<String, String>();
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0)
+				headers.put(line.substring(0, colon).trim().toLowerCase(),
+						line.substring(colon + 1).trim());
+		}
+		if (line == null)
+			throw new EOFException();
+
+		String length = headers.get("content-length");
+		byte[] body = new byte[length == null ? 0 : Integer.parseInt(length)];
+		for (int read = 0; read < body.length;) {
+			int n = in.read(body, read, body.length - read);
+			if (n < 0)
+				throw new EOFException();
+			read += n;
+		}
+		return new Exchange(start[0], start[1], headers, body, connection);
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0)
+				return line.size() == 0 ? null : line.toString(LATIN_1);
+			if (b != '\r')
+				line.write(b);
+		}
+		return line.toString(LATIN_1);
+	}
+}
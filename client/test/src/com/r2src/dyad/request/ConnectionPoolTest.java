@@ -0,0 +1,109 @@
+package com.r2src.dyad.request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.Account;
+
+/**
+ * Checks that a {@link Requester} reuses and evicts the connections of its
+ * {@link ConnectionPool}, against a {@link CannedServer}.
+ */
+public class ConnectionPoolTest extends TestCase {
+
+	private CannedServer server;
+	private Account account;
+	private Requester requester;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new CannedServer();
+		account = new Account(server.getHost(), null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (requester != null)
+			requester.executor.shutdownNow();
+		server.close();
+	}
+
+	private void bond() throws Exception {
+		server.respond(202);
+		assertFalse(requester.execute(new BondRequest("secret"), account));
+	}
+
+	private void waitForOpenConnections(int count) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getOpenConnections() != count
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, server.getOpenConnections());
+	}
+
+	public void testReuse() throws Exception {
+		ConnectionPool pool = new ConnectionPool();
+		requester = new Requester(1, pool);
+		for (int i = 0; i < 5; i++)
+			bond();
+
+		assertEquals(1, server.getConnections());
+		assertEquals(5, pool.getRequestCount());
+		assertEquals(4, pool.getReusedCount());
+		assertEquals(1, pool.getConnectionsInPool());
+	}
+
+	public void testIdleTimeout() throws Exception {
+		ConnectionPool pool = new ConnectionPool().setIdleTimeout(100);
+		requester = new Requester(1, pool);
+		bond();
+		bond();
+		assertEquals(1, server.getConnections());
+
+		// the idle connection is closed before the next request
+		Thread.sleep(300);
+		bond();
+		assertEquals(2, server.getConnections());
+		assertEquals(3, pool.getRequestCount());
+		assertEquals(1, pool.getReusedCount());
+		assertEquals(1, pool.getConnectionsInPool());
+		waitForOpenConnections(1);
+	}
+
+	public void testKeepAlive() throws Exception {
+		ConnectionPool pool = new ConnectionPool().setKeepAlive(100);
+		requester = new Requester(1, pool);
+		bond();
+		Thread.sleep(300);
+		bond();
+		assertEquals(2, server.getConnections());
+		assertEquals(0, pool.getReusedCount());
+		waitForOpenConnections(1);
+	}
+
+	public void testMaxPerRoute() throws Exception {
+		ConnectionPool pool = new ConnectionPool().setMaxPerRoute(2);
+		requester = new Requester(4, pool);
+		List<RequestFuture<Boolean>> futures = new ArrayList<RequestFuture<Boolean>>();
+		for (int i = 0; i < 4; i++)
+			futures.add(requester.submit(new BondRequest("secret"), account));
+
+		// two requests are held at the server, the others wait for them
+		assertNotNull(server.take());
+		assertNotNull(server.take());
+		Thread.sleep(200);
+		assertEquals(2, server.getRequests());
+		assertEquals(2, server.getConnections());
+
+		for (int i = 0; i < 4; i++)
+			server.respond(202);
+		for (RequestFuture<Boolean> future : futures)
+			assertFalse(future.get(5, TimeUnit.SECONDS));
+		assertEquals(4, server.getRequests());
+		assertEquals(2, server.getConnections());
+		assertEquals(2, pool.getReusedCount());
+	}
+}
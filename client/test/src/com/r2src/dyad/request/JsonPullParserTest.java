@@ -0,0 +1,314 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.json.JSONException;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.Dyad;
+import com.r2src.dyad.request.JsonPullParser.Token;
+
+public class JsonPullParserTest extends TestCase {
+
+	private static JsonPullParser parser(String json) {
+		return new JsonPullParser(new StringReader(json));
+	}
+
+	private static String string(String json) throws Exception {
+		JsonPullParser parser = parser(json);
+		String value = parser.nextString();
+		assertEquals(Token.END_DOCUMENT, parser.peek());
+		return value;
+	}
+
+	/**
+	 * Reads the whole document, failing if that takes too many tokens.
+	 */
+	private static void readAll(String json) throws Exception {
+		JsonPullParser parser = parser(json);
+		for (int i = 0; i < 1000; i++) {
+			switch (parser.peek()) {
+			case BEGIN_ARRAY:
+				parser.beginArray();
+				break;
+			case END_ARRAY:
+				parser.endArray();
+				break;
+			case BEGIN_OBJECT:
+				parser.beginObject();
+				break;
+			case END_OBJECT:
+				parser.endObject();
+				break;
+			case NAME:
+				parser.nextName();
+				break;
+			case BOOLEAN:
+				parser.nextBoolean();
+				break;
+			case NULL:
+				parser.nextNull();
+				break;
+			case END_DOCUMENT:
+				return;
+			default:
+				parser.nextString();
+			}
+		}
+		fail("the parser doesn't get anywhere");
+	}
+
+	private static void assertMalformed(String json) throws Exception {
+		try {
+			readAll(json);
+			fail("malformed: " + json);
+		} catch (JSONException e) {
+			// expected
+		}
+	}
+
+	public void testStrings() throws Exception {
+		assertEquals("", string("\"\""));
+		assertEquals("plain", string("\"plain\""));
+		assertEquals("\"\\/\b\f\n\r\t", string("\"\\\"\\\\\\/\\b\\f\\n\\r\\t\""));
+		assertEquals("v=0\r\no=- 1 1 IN IP4 0.0.0.0",
+				string("\"v=0\\r\\no=- 1 1 IN IP4 0.0.0.0\""));
+		assertEquals("caf\u00e9", string("\"caf\\u00e9\""));
+		assertEquals("caf\u00e9", string("\"caf\\u00E9\""));
+		assertEquals("caf\u00e9", string("\"caf\u00e9\""));
+		assertEquals("\u0000", string("\"\\u0000\""));
+	}
+
+	public void testSurrogatePairs() throws Exception {
+		String clef = new String(Character.toChars(0x1d11e));
+		assertEquals(2, clef.length());
+		assertEquals(clef, string("\"\\ud834\\udd1e\""));
+		assertEquals(clef, string("\"" + clef + "\""));
+		assertEquals(0x1d11e, string("\"\\uD834\\uDD1E\"").codePointAt(0));
+	}
+
+	public void testLongStrings() throws Exception {
+		// longer than the parser's buffer
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 3000; i++)
+			text.append((char) ('a' + i % 26));
+		assertEquals(text.toString(), string("\"" + text + "\""));
+	}
+
+	public void testNumbers() throws Exception {
+		JsonPullParser parser = parser("[0, -1, 42, 2147483648, 1.5, "
+				+ "-0.25e3, 1E+2, 6e-1]");
+		parser.beginArray();
+		assertEquals(Token.NUMBER, parser.peek());
+		assertEquals(0, parser.nextInt());
+		assertEquals(-1, parser.nextInt());
+		assertEquals(42L, parser.nextLong());
+		assertEquals(2147483648L, parser.nextLong());
+		assertEquals("1.5", parser.nextString());
+		assertEquals("-0.25e3", parser.nextString());
+		assertEquals("1E+2", parser.nextString());
+		assertEquals("6e-1", parser.nextString());
+		parser.endArray();
+		assertEquals(Token.END_DOCUMENT, parser.peek());
+
+		try {
+			parser("1.5").nextInt();
+			fail("not an int");
+		} catch (JSONException e) {
+			// expected
+		}
+		try {
+			parser("2147483648").nextInt();
+			fail("too large for an int");
+		} catch (JSONException e) {
+			// expected
+		}
+		assertEquals(1, parser("\"1\"").nextInt());
+	}
+
+	public void testLiterals() throws Exception {
+		JsonPullParser parser = parser(" [ true , false , null ] ");
+		parser.beginArray();
+		assertEquals(Token.BOOLEAN, parser.peek());
+		assertTrue(parser.nextBoolean());
+		assertFalse(parser.nextBoolean());
+		assertEquals(Token.NULL, parser.peek());
+		parser.nextNull();
+		assertFalse(parser.hasNext());
+		parser.endArray();
+		assertEquals(Token.END_DOCUMENT, parser.peek());
+	}
+
+	public void testNesting() throws Exception {
+		JsonPullParser parser = parser("{\"a\":[1,{\"b\":[]},[[]]],"
+				+ "\"c\":{\"d\":{}},\"e\":\"f\"}");
+		parser.beginObject();
+		assertEquals("a", parser.nextName());
+		parser.beginArray();
+		assertEquals(1, parser.nextInt());
+		parser.beginObject();
+		assertEquals("b", parser.nextName());
+		parser.beginArray();
+		assertFalse(parser.hasNext());
+		parser.endArray();
+		assertFalse(parser.hasNext());
+		parser.endObject();
+		parser.beginArray();
+		parser.beginArray();
+		parser.endArray();
+		parser.endArray();
+		parser.endArray();
+		assertEquals("c", parser.nextName());
+		parser.beginObject();
+		assertEquals("d", parser.nextName());
+		parser.beginObject();
+		parser.endObject();
+		parser.endObject();
+		assertEquals("e", parser.nextName());
+		assertEquals("f", parser.nextString());
+		assertFalse(parser.hasNext());
+		parser.endObject();
+		assertEquals(Token.END_DOCUMENT, parser.peek());
+	}
+
+	public void testDeepNesting() throws Exception {
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			json.append("[{\"a\":");
+		json.append("1");
+		for (int i = 0; i < 100; i++)
+			json.append("}]");
+		readAll(json.toString());
+	}
+
+	public void testSkipValue() throws Exception {
+		JsonPullParser parser = parser("{\"skip\":{\"a\":[1,[2],{\"b\":null}]},"
+				+ "\"also\":\"x\",\"number\":-1.5e2,\"flag\":true,"
+				+ "\"keep\":7}");
+		parser.beginObject();
+		String kept = null;
+		while (parser.hasNext()) {
+			if ("keep".equals(parser.nextName()))
+				kept = parser.nextString();
+			else
+				parser.skipValue();
+		}
+		parser.endObject();
+		assertEquals("7", kept);
+		assertEquals(Token.END_DOCUMENT, parser.peek());
+
+		parser = parser("[]");
+		parser.beginArray();
+		try {
+			parser.skipValue();
+			fail("there is no value to skip");
+		} catch (JSONException e) {
+			// expected
+		}
+	}
+
+	public void testNextJson() throws Exception {
+		JsonPullParser parser = parser("[ {\"a\" : [1, \"two\", null, true],"
+				+ " \"b\\n\" : {}}, [], \"s\\u00e9\", 3 ]");
+		parser.beginArray();
+		assertEquals("{\"a\":[1,\"two\",null,true],\"b\\n\":{}}",
+				parser.nextJson());
+		assertEquals("[]", parser.nextJson());
+		assertEquals("\"s\u00e9\"", parser.nextJson());
+		assertEquals("3", parser.nextJson());
+		try {
+			parser.nextJson();
+			fail("there is no value left");
+		} catch (JSONException e) {
+			// expected
+		}
+		parser.endArray();
+		assertEquals(Token.END_DOCUMENT, parser.peek());
+	}
+
+	public void testTruncated() throws Exception {
+		String json = "{\"a\":[1,-2.5e1,\"\\u00e9\\n\",true,null,{\"b\":false}]}";
+		readAll(json);
+		for (int i = 0; i < json.length(); i++)
+			assertMalformed(json.substring(0, i));
+	}
+
+	public void testMalformed() throws Exception {
+		String[] malformed = { "", "   ", "]", "}", "[1,]", "[1 2]", "[,1]",
+				"{\"a\":1,}", "{\"a\" 1}", "{a:1}", "{\"a\":}", "{1:2}",
+				"[\"a\":1]", "[1]]", "[1] [2]", "\"a\" \"b\"", "tru", "nul",
+				"truex", "True", "[undefined]", "'a'", "\"\\x\"", "\"\\u12\"",
+				"\"\\u12g4\"", "-", "01", "1.", ".5", "1e", "1e+", "--1",
+				"1.2.3", "+1", "0x10", "[1x]", "{\"a\":1}}" };
+		for (String json : malformed)
+			assertMalformed(json);
+	}
+
+	public void testMisuse() throws Exception {
+		JsonPullParser parser = parser("{\"a\":1}");
+		try {
+			parser.beginArray();
+			fail("it's an object");
+		} catch (JSONException e) {
+			// expected
+		}
+		parser.beginObject();
+		try {
+			parser.nextString();
+			fail("it's a name");
+		} catch (JSONException e) {
+			// expected
+		}
+		try {
+			parser("true").nextString();
+			fail("it's a boolean");
+		} catch (JSONException e) {
+			// expected
+		}
+	}
+
+	public void testReaderFailures() throws Exception {
+		Reader failing = new Reader() {
+			@Override
+			public int read(char[] buffer, int offset, int length)
+					throws IOException {
+				throw new IOException("connection reset");
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		try {
+			new JsonPullParser(failing).peek();
+			fail("the reader failed");
+		} catch (IOException e) {
+			assertEquals("connection reset", e.getMessage());
+		}
+	}
+
+	public void testDyadIds() throws Exception {
+		// the ids used to be read with JSONArray.getString, which takes any
+		// value, so they still are
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+				200, null);
+		response.setEntity(new StringEntity("[\"a\", 12, true, null]"));
+		List<Dyad> dyads = new DyadsRequest("token").onFinished(response,
+				new Account(new HttpHost("localhost"), null));
+		assertEquals(4, dyads.size());
+		assertEquals("a", dyads.get(0).getId());
+		assertEquals("12", dyads.get(1).getId());
+		assertEquals("true", dyads.get(2).getId());
+		assertEquals("null", dyads.get(3).getId());
+	}
+}
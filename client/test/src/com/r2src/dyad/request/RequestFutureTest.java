@@ -0,0 +1,175 @@
+package com.r2src.dyad.request;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+
+/**
+ * Runs {@link RequestFuture}s and their {@link Continuation}s against a
+ * {@link CannedServer}.
+ */
+public class RequestFutureTest extends TestCase {
+
+	private static final String TOKEN = "3f1c9a0b2e7d4c55a1b8e6f0d2c4a7b9";
+
+	private CannedServer server;
+	private Account account;
+	private Requester requester;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new CannedServer();
+		account = new Account(server.getHost(), null);
+		requester = new Requester(1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		requester.executor.shutdownNow();
+		server.close();
+	}
+
+	private static int status(Throwable e) {
+		assertTrue(e instanceof ServerException);
+		return ((ServerException) e).serverResponse.getStatusLine()
+				.getStatusCode();
+	}
+
+	private Throwable failure(RequestFuture<?> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("the request should have failed");
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	public void testBondStatuses() throws Exception {
+		server.respond(200).respond(202).respond(409).respond(500);
+		assertTrue(requester.submit(new BondRequest("secret"), account).get());
+		assertFalse(requester.submit(new BondRequest("secret"), account).get());
+		assertEquals(409, status(failure(requester.submit(new BondRequest(
+				"secret"), account))));
+		assertEquals(500, status(failure(requester.submit(new BondRequest(
+				"secret"), account))));
+
+		CannedServer.Exchange exchange = server.take();
+		assertEquals("POST", exchange.method);
+		assertEquals("/v1/bond", exchange.path);
+	}
+
+	public void testThen() throws Exception {
+		server.respond(200, "{\"session_token\":\"" + TOKEN + "\"}")
+				.respond(202);
+		final String[] passed = new String[1];
+		RequestFuture<Boolean> bonded = requester.submit(
+				new RegisterRequest("alice"), account).then(
+				new Continuation<String, Boolean>() {
+					@Override
+					public Request<Boolean> next(String sessionToken) {
+						passed[0] = sessionToken;
+						return new BondRequest("secret");
+					}
+				});
+
+		assertFalse(bonded.get(5, TimeUnit.SECONDS));
+		assertEquals(TOKEN, passed[0]);
+		assertEquals("/v1/register", server.take().path);
+		CannedServer.Exchange bond = server.take();
+		assertEquals("/v1/bond", bond.path);
+		assertEquals(TOKEN, bond.headers.get("x-dyad-authorization"));
+	}
+
+	public void testThenWhenDone() throws Exception {
+		server.respond(200).respond(202);
+		RequestFuture<Boolean> first = requester.submit(new BondRequest(
+				"secret"), account);
+		assertTrue(first.get(5, TimeUnit.SECONDS));
+
+		RequestFuture<Boolean> second = first
+				.then(new Continuation<Boolean, Boolean>() {
+					@Override
+					public Request<Boolean> next(Boolean bonded) {
+						return new BondRequest(bonded ? "again" : "never");
+					}
+				});
+		assertFalse(second.get(5, TimeUnit.SECONDS));
+		assertEquals(2, server.getRequests());
+	}
+
+	public void testFailureEndsTheChain() throws Exception {
+		server.respond(500);
+		final AtomicInteger called = new AtomicInteger();
+		Continuation<Boolean, Boolean> next = new Continuation<Boolean, Boolean>() {
+			@Override
+			public Request<Boolean> next(Boolean bonded) {
+				called.incrementAndGet();
+				return new BondRequest("secret");
+			}
+		};
+		RequestFuture<Boolean> last = requester.submit(
+				new BondRequest("secret"), account).then(next).then(next);
+
+		assertEquals(500, status(failure(last)));
+		assertEquals(0, called.get());
+		assertEquals(1, server.getRequests());
+	}
+
+	public void testContinuationFails() throws Exception {
+		server.respond(200);
+		final IllegalStateException thrown = new IllegalStateException();
+		RequestFuture<Boolean> next = requester.submit(
+				new BondRequest("secret"), account).then(
+				new Continuation<Boolean, Boolean>() {
+					@Override
+					public Request<Boolean> next(Boolean bonded) {
+						throw thrown;
+					}
+				});
+		assertSame(thrown, failure(next));
+		assertEquals(1, server.getRequests());
+	}
+
+	public void testCancel() throws Exception {
+		// the only worker is held up at the server by the first request
+		RequestFuture<Boolean> first = requester.submit(new BondRequest(
+				"first"), account);
+		assertNotNull(server.take());
+		RequestFuture<Boolean> second = requester.submit(new BondRequest(
+				"second"), account);
+		final AtomicInteger called = new AtomicInteger();
+		RequestFuture<Boolean> third = second
+				.then(new Continuation<Boolean, Boolean>() {
+					@Override
+					public Request<Boolean> next(Boolean bonded) {
+						called.incrementAndGet();
+						return new BondRequest("third");
+					}
+				});
+
+		assertTrue(second.cancel(false));
+		assertTrue(second.isCancelled());
+		try {
+			third.get(5, TimeUnit.SECONDS);
+			fail("the chain should have been cancelled");
+		} catch (CancellationException e) {
+			// the cancellation of the second request ends the chain
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof CancellationException);
+		}
+
+		server.respond(200);
+		assertTrue(first.get(5, TimeUnit.SECONDS));
+		requester.executor.shutdown();
+		assertTrue(requester.executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(0, called.get());
+		assertEquals(1, server.getRequests());
+	}
+}
@@ -0,0 +1,125 @@
+package com.r2src.dyad.request;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.Account;
+import com.r2src.dyad.ServerException;
+
+/**
+ * Checks how a {@link Requester} falls back to JSON bodies when the server
+ * doesn't understand its {@link BodyCodec}, against a {@link CannedServer}.
+ */
+public class RequesterTest extends TestCase {
+
+	private CannedServer server;
+	private Account account;
+	private Requester requester;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new CannedServer();
+		account = new Account(server.getHost(), null);
+		requester = new Requester(1);
+		requester.setBodyCodec(BinaryBodyCodec.INSTANCE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		requester.executor.shutdownNow();
+		server.close();
+	}
+
+	private CannedServer respondText(int status, String text) throws Exception {
+		return server.respond(status, "text/plain", text.getBytes("UTF-8"));
+	}
+
+	private String nextContentType() throws Exception {
+		return server.take().headers.get("content-type");
+	}
+
+	private void assertFallsBack() throws Exception {
+		assertFalse(requester.execute(new BondRequest("secret"), account));
+		assertEquals(BinaryBodyCodec.CONTENT_TYPE, nextContentType());
+		CannedServer.Exchange retry = server.take();
+		assertEquals(JsonBodyCodec.CONTENT_TYPE, retry.headers
+				.get("content-type"));
+		assertEquals("{\"secret\":\"secret\"}",
+				new String(retry.body, "UTF-8"));
+
+		// and stays with JSON
+		server.respond(202);
+		requester.execute(new BondRequest("secret"), account);
+		assertEquals(JsonBodyCodec.CONTENT_TYPE, nextContentType());
+		assertEquals(3, server.getRequests());
+	}
+
+	public void testBinary() throws Exception {
+		server.respond(202).respond(202);
+		requester.execute(new BondRequest("secret"), account);
+		requester.execute(new BondRequest("secret"), account);
+		assertEquals(BinaryBodyCodec.CONTENT_TYPE, nextContentType());
+		assertEquals(BinaryBodyCodec.CONTENT_TYPE, nextContentType());
+		assertEquals(2, server.getRequests());
+	}
+
+	public void testUnsupportedMediaType() throws Exception {
+		respondText(415, "Unsupported content type.").respond(202);
+		assertFallsBack();
+	}
+
+	public void testInvalidJson() throws Exception {
+		// what servers from before the binary format answer
+		respondText(400, "Invalid JSON.").respond(202);
+		assertFallsBack();
+	}
+
+	public void testOtherBadRequests() throws Exception {
+		respondText(400, "Invalid binary body.");
+		try {
+			requester.execute(new BondRequest("secret"), account);
+			fail("the request should have failed");
+		} catch (ServerException e) {
+			assertEquals(400, e.serverResponse.getStatusLine()
+					.getStatusCode());
+		}
+		assertEquals(1, server.getRequests());
+
+		// the body of the answer is still there for the request
+		respondText(400, "Secret is too long.");
+		BondRequest bond = new BondRequest("secret") {
+			@Override
+			public Boolean onFinished(HttpResponse response, Account account)
+					throws ServerException, IOException {
+				assertEquals("Secret is too long.", EntityUtils
+						.toString(response.getEntity()));
+				return false;
+			}
+		};
+		assertFalse(requester.execute(bond, account));
+
+		// and the codec is the same
+		server.respond(202);
+		requester.execute(new BondRequest("secret"), account);
+		server.take();
+		server.take();
+		assertEquals(BinaryBodyCodec.CONTENT_TYPE, nextContentType());
+	}
+
+	public void testJsonIsNotRetried() throws Exception {
+		requester.setBodyCodec(JsonBodyCodec.INSTANCE);
+		respondText(400, "Invalid JSON.");
+		try {
+			requester.execute(new BondRequest("secret"), account);
+			fail("the request should have failed");
+		} catch (ServerException e) {
+			assertEquals(400, e.serverResponse.getStatusLine()
+					.getStatusCode());
+		}
+		assertEquals(1, server.getRequests());
+	}
+}
@@ -0,0 +1,184 @@
+package com.r2src.dyad.request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.r2src.dyad.ice.Candidate;
+
+public class SdpCompressorTest extends TestCase {
+
+	private static final String ICE_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	private final Random random = new SecureRandom();
+
+	private String randomString(int length) {
+		StringBuilder s = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			s.append(ICE_CHARS.charAt(random.nextInt(ICE_CHARS.length())));
+		return s.toString();
+	}
+
+	private static InetSocketAddress address(String ip, int port)
+			throws Exception {
+		return new InetSocketAddress(InetAddress.getByName(ip), port);
+	}
+
+	/**
+	 * Returns a description like the ones IceAgent writes, with random
+	 * credentials and ports.
+	 */
+	private String description() throws Exception {
+		InetSocketAddress host = address("192.168.1." + (2 + random.nextInt(250)),
+				1024 + random.nextInt(60000));
+		InetSocketAddress link = address("fe80::" + Integer.toHexString(random
+				.nextInt(0x10000)) + ":ff:fe00:1", host.getPort());
+		InetSocketAddress mapped = address("203.0.113." + random.nextInt(256),
+				1024 + random.nextInt(60000));
+		InetSocketAddress relayed = address("198.51.100." + random.nextInt(256),
+				49152 + random.nextInt(16000));
+		Candidate[] candidates = {
+				new Candidate(Candidate.Type.HOST, host, null, 65535),
+				new Candidate(Candidate.Type.HOST, link, null, 65534),
+				new Candidate(Candidate.Type.SERVER_REFLEXIVE, mapped, host,
+						65535),
+				new Candidate(Candidate.Type.RELAYED, relayed, mapped, 65535) };
+
+		StringBuilder s = new StringBuilder();
+		s.append("a=ice-ufrag:").append(randomString(8)).append("\r\n");
+		s.append("a=ice-pwd:").append(randomString(24)).append("\r\n");
+		for (Candidate c : candidates)
+			s.append("a=").append(c).append("\r\n");
+		s.append("a=end-of-candidates\r\n");
+		return s.toString();
+	}
+
+	public void testRoundTrip() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			String sdp = description();
+			String compressed = SdpCompressor.compress(sdp);
+			assertTrue(compressed.startsWith(SdpCompressor.PREFIX));
+			assertTrue(compressed.substring(SdpCompressor.PREFIX.length())
+					.matches("[A-Za-z0-9+/]*=*"));
+			assertEquals(sdp, SdpCompressor.decompress(compressed));
+		}
+
+		String[] others = { "", "v=0\r\n", "\u00e9\u4e2d\ud834\udd1e" };
+		for (String sdp : others)
+			assertEquals(sdp, SdpCompressor.decompress(SdpCompressor
+					.compress(sdp)));
+	}
+
+	public void testDictionary() throws Exception {
+		// the credentials and addresses are random, the rest should hardly
+		// cost anything
+		String sdp = description();
+		int deflated = SdpCompressor.deflate(sdp).length;
+		assertTrue(deflated + " of " + sdp.length(), deflated * 2 < sdp
+				.length());
+	}
+
+	public void testLargest() throws Exception {
+		char[] large = new char[SdpCompressor.MAX_SIZE];
+		Arrays.fill(large, 'a');
+		String sdp = new String(large);
+		assertEquals(sdp, SdpCompressor.inflate(SdpCompressor.deflate(sdp)));
+	}
+
+	public void testUncompressed() {
+		assertNull(SdpCompressor.decompress(null));
+		assertEquals("v=0\r\n", SdpCompressor.decompress("v=0\r\n"));
+		// a message compressed with another dictionary
+		assertEquals("dz1:AwA=", SdpCompressor.decompress("dz1:AwA="));
+	}
+
+	private static void assertCorrupt(String message) {
+		try {
+			SdpCompressor.decompress(message);
+			fail("corrupt: " + message);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static void assertCorrupt(byte[] data) {
+		try {
+			SdpCompressor.inflate(data);
+			fail("corrupt: " + Arrays.toString(data));
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testMalformed() throws Exception {
+		String compressed = SdpCompressor.compress(description());
+		String prefix = SdpCompressor.PREFIX;
+		assertCorrupt(prefix + "*");
+		assertCorrupt(prefix + "AAAA*AAA");
+		assertCorrupt(prefix + "AAA");
+		assertCorrupt(prefix + "AAAAA");
+		assertCorrupt(prefix + " " + compressed.substring(prefix.length()));
+		assertCorrupt(compressed + "\n");
+
+		byte[] data = SdpCompressor.deflate(description());
+		for (int i = 0; i < data.length; i++)
+			assertCorrupt(Arrays.copyOf(data, i));
+		assertCorrupt(Arrays.copyOf(data, data.length + 1));
+		assertCorrupt(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff });
+	}
+
+	public void testTooLarge() throws Exception {
+		// a hundred bytes that would inflate to a megabyte
+		char[] large = new char[1024 * 1024];
+		Arrays.fill(large, 'a');
+		byte[] bomb = SdpCompressor.deflate(new String(large));
+		assertTrue(bomb.length < 2048);
+		try {
+			SdpCompressor.decompress(SdpCompressor.PREFIX
+					+ Base64.encode(bomb));
+			fail("too large");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		large = new char[SdpCompressor.MAX_SIZE + 1];
+		Arrays.fill(large, 'a');
+		assertCorrupt(SdpCompressor.deflate(new String(large)));
+	}
+
+	public void testBase64() throws Exception {
+		// the test vectors of RFC 4648
+		String[][] vectors = { { "", "" }, { "f", "Zg==" }, { "fo", "Zm8=" },
+				{ "foo", "Zm9v" }, { "foob", "Zm9vYg==" },
+				{ "fooba", "Zm9vYmE=" }, { "foobar", "Zm9vYmFy" } };
+		for (String[] vector : vectors) {
+			byte[] bytes = vector[0].getBytes("US-ASCII");
+			assertEquals(vector[1], Base64.encode(bytes));
+			assertTrue(Arrays.equals(bytes, Base64.decode(vector[1])));
+		}
+
+		byte[] all = new byte[256];
+		for (int i = 0; i < all.length; i++)
+			all[i] = (byte) i;
+		for (int length = 0; length <= all.length; length++) {
+			byte[] bytes = Arrays.copyOf(all, length);
+			assertTrue(Arrays.equals(bytes, Base64.decode(Base64
+					.encode(bytes))));
+		}
+
+		String[] malformed = { "Z", "Zg", "Zg=", "Zg===", "====", "Z===",
+				"Zm9v=g==", "Zh==", "Zm9=", "Zm-v", "Zm9\u00e9", "Zm9v\n" };
+		for (String text : malformed) {
+			try {
+				Base64.decode(text);
+				fail("malformed: " + text);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
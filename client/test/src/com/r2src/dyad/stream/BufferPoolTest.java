@@ -0,0 +1,80 @@
+package com.r2src.dyad.stream;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+	public void testAcquireAndRelease() {
+		BufferPool pool = new BufferPool(2, 16);
+		assertEquals(2, pool.available());
+		ByteBuffer buffer = pool.acquire();
+		assertTrue(buffer.isDirect());
+		assertEquals(16, buffer.capacity());
+		assertEquals(16, buffer.remaining());
+		assertEquals(1, pool.available());
+
+		buffer.put((byte) 1).flip();
+		pool.release(buffer);
+		assertEquals(2, pool.available());
+		assertEquals(0, pool.getMisses());
+	}
+
+	public void testBuffersDontOverlap() {
+		BufferPool pool = new BufferPool(3, 4);
+		ByteBuffer[] buffers = { pool.acquire(), pool.acquire(),
+				pool.acquire() };
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i].putInt(i);
+		for (int i = 0; i < buffers.length; i++)
+			assertEquals(i, buffers[i].getInt(0));
+	}
+
+	public void testReleasedBuffersAreCleared() {
+		BufferPool pool = new BufferPool(1, 8);
+		ByteBuffer buffer = pool.acquire();
+		buffer.put((byte) 1).flip();
+		pool.release(buffer);
+		ByteBuffer again = pool.acquire();
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		assertEquals(8, again.limit());
+	}
+
+	public void testMisses() {
+		BufferPool pool = new BufferPool(1, 8);
+		ByteBuffer pooled = pool.acquire();
+		ByteBuffer extra = pool.acquire();
+		assertNotNull(extra);
+		assertEquals(8, extra.capacity());
+		assertEquals(1, pool.getMisses());
+
+		// the pool doesn't grow beyond its size
+		pool.release(extra);
+		pool.release(pooled);
+		assertEquals(1, pool.available());
+	}
+
+	public void testForeignBuffersAreDropped() {
+		BufferPool pool = new BufferPool(1, 8);
+		pool.acquire();
+		pool.release(ByteBuffer.allocateDirect(16));
+		pool.release(null);
+		assertEquals(0, pool.available());
+	}
+
+	public void testReleasingTwice() {
+		BufferPool pool = new BufferPool(2, 8);
+		ByteBuffer buffer = pool.acquire();
+		pool.release(buffer);
+		try {
+			pool.release(buffer);
+			fail("a buffer can't be released twice");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(2, pool.available());
+		assertNotSame(pool.acquire(), pool.acquire());
+	}
+}
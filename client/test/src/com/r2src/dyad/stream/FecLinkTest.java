@@ -0,0 +1,217 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class FecLinkTest extends TestCase {
+
+	/**
+	 * Hands packets straight to another link, except the ones it is told to
+	 * lose.
+	 */
+	private static class MemoryLink implements Link {
+		FecLink peer;
+		final Set<Integer> lose = new HashSet<Integer>();
+		int sent;
+
+		@Override
+		public ByteBuffer obtainBuffer() {
+			return ByteBuffer.allocate(getMaxPacketSize());
+		}
+
+		@Override
+		public void release(ByteBuffer buffer) {
+		}
+
+		@Override
+		public boolean send(ByteBuffer packet) throws IOException {
+			if (!lose.contains(sent++))
+				peer.onPacket(packet.slice());
+			return true;
+		}
+
+		@Override
+		public int getMaxPacketSize() {
+			return 1472;
+		}
+	}
+
+	private StreamPair pair;
+	private FecLink first;
+	private FecLink second;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (first != null)
+			first.close();
+		if (second != null)
+			second.close();
+		if (pair != null)
+			pair.close();
+	}
+
+	private static byte[] payload(int i) {
+		byte[] payload = new byte[20 + i % 30];
+		Arrays.fill(payload, (byte) i);
+		return payload;
+	}
+
+	private static void send(FecLink link, byte[] payload) throws Exception {
+		ByteBuffer packet = link.obtainBuffer();
+		packet.put(payload).flip();
+		link.send(packet);
+	}
+
+	/**
+	 * Sends packets at a steady pace while reading them on the other side.
+	 *
+	 * @return the number of packets that arrived.
+	 */
+	private int transfer(int count) throws Exception {
+		final int[] received = new int[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (second.receive(500) != null)
+						received[0]++;
+				} catch (InterruptedException ignore) {
+				}
+			}
+		};
+		reader.start();
+		for (int i = 0; i < count; i++) {
+			send(first, payload(i));
+			if (i % 10 == 0)
+				Thread.sleep(2);
+		}
+		reader.join();
+		return received[0];
+	}
+
+	public void testReedSolomonRebuildsAnyLosses() {
+		Random random = new Random(7);
+		int count = 10;
+		int parityCount = 4;
+		byte[][] data = new byte[count][];
+		int[] lengths = new int[count];
+		for (int j = 0; j < count; j++) {
+			data[j] = new byte[1 + random.nextInt(100)];
+			random.nextBytes(data[j]);
+			lengths[j] = data[j].length;
+		}
+		byte[][] parity = new byte[ReedSolomon.MAX_PARITY][];
+		int length = 0;
+		for (int p = 0; p < parityCount; p++) {
+			parity[p] = new byte[100];
+			length = ReedSolomon.encode(data, lengths, count, p, parity[p]);
+		}
+		for (int p = 0; p < parityCount; p++)
+			parity[p] = Arrays.copyOf(parity[p], length);
+
+		for (int round = 0; round < 500; round++) {
+			byte[][] received = data.clone();
+			int[] receivedLengths = lengths.clone();
+			byte[][] receivedParity = parity.clone();
+			// lose as many packets as there is parity, data or parity alike
+			for (int lost = 0; lost < parityCount;) {
+				int i = random.nextInt(count + parityCount);
+				if (i < count && received[i] != null) {
+					received[i] = null;
+					lost++;
+				} else if (i >= count && receivedParity[i - count] != null) {
+					receivedParity[i - count] = null;
+					lost++;
+				}
+			}
+			assertTrue(ReedSolomon.decode(received, receivedLengths,
+					receivedParity, count, length));
+			for (int j = 0; j < count; j++) {
+				assertTrue(Arrays.equals(data[j],
+						Arrays.copyOf(received[j], lengths[j])));
+			}
+		}
+	}
+
+	public void testTooManyLosses() {
+		byte[][] data = { { 1 }, null, null };
+		byte[][] parity = new byte[ReedSolomon.MAX_PARITY][];
+		parity[0] = new byte[] { 1 };
+		assertFalse(ReedSolomon.decode(data, new int[] { 1, 0, 0 }, parity, 3,
+				1));
+	}
+
+	public void testXorParityRebuildsLoss() throws Exception {
+		MemoryLink out = new MemoryLink();
+		MemoryLink back = new MemoryLink();
+		first = new FecLink(out);
+		second = new FecLink(back);
+		out.peer = second;
+		back.peer = first;
+		first.setParityRange(1, 1);
+		out.lose.add(3);
+
+		for (int i = 0; i < FecLink.DEFAULT_GROUP_SIZE; i++)
+			send(first, payload(i));
+		assertEquals(1, first.getParitySent());
+		assertEquals(1, second.getRecovered());
+
+		Set<Integer> seen = new HashSet<Integer>();
+		byte[] received;
+		while ((received = second.receive(100)) != null) {
+			assertTrue(Arrays.equals(payload(received[0]), received));
+			seen.add((int) received[0]);
+		}
+		assertEquals(FecLink.DEFAULT_GROUP_SIZE, seen.size());
+	}
+
+	public void testPartialGroupIsClosed() throws Exception {
+		MemoryLink out = new MemoryLink();
+		first = new FecLink(out);
+		second = new FecLink(new MemoryLink());
+		out.peer = second;
+		out.lose.add(0);
+
+		send(first, payload(1));
+		send(first, payload(2));
+		assertEquals(0, first.getParitySent());
+		Thread.sleep(FecLink.GROUP_DELAY + 5);
+		first.onTimer();
+		assertEquals(1, first.getParitySent());
+		assertEquals(1, second.getRecovered());
+	}
+
+	public void testParityFollowsLoss() throws Exception {
+		pair = new StreamPair(0.1, 0);
+		first = pair.first.openFec();
+		second = pair.second.openFec();
+		assertEquals(1, first.getParityCount());
+
+		int count = 2000;
+		int received = transfer(count);
+
+		assertTrue("loss rate " + first.getLossRate(),
+				first.getLossRate() > 0.05);
+		assertTrue("parity " + first.getParityCount(),
+				first.getParityCount() > 1);
+		// a tenth is lost on the way, but most of it is rebuilt
+		assertTrue("received " + received, received > count * 0.97);
+		assertTrue(second.getRecovered() > count * 0.05);
+	}
+
+	public void testNoLossKeepsMinimumParity() throws Exception {
+		pair = new StreamPair(0, 0);
+		first = pair.first.openFec();
+		second = pair.second.openFec();
+		first.setParityRange(0, 4);
+
+		assertEquals(500, transfer(500));
+		assertEquals(0, first.getParityCount());
+	}
+}
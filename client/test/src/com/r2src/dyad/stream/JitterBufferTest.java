@@ -0,0 +1,159 @@
+package com.r2src.dyad.stream;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class JitterBufferTest extends TestCase {
+
+	/**
+	 * A link that is never sent over.
+	 */
+	private static class NoLink implements Link {
+		@Override
+		public ByteBuffer obtainBuffer() {
+			return ByteBuffer.allocate(getMaxPacketSize());
+		}
+
+		@Override
+		public void release(ByteBuffer buffer) {
+		}
+
+		@Override
+		public boolean send(ByteBuffer packet) {
+			return true;
+		}
+
+		@Override
+		public int getMaxPacketSize() {
+			return 1472;
+		}
+	}
+
+	private final ByteBuffer frame = ByteBuffer.allocate(1472);
+	private StreamPair pair;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (pair != null)
+			pair.close();
+	}
+
+	private static ByteBuffer packet(int number, int sent) {
+		ByteBuffer packet = ByteBuffer.allocate(JitterBuffer.HEADER + 1);
+		packet.putShort((short) number).putInt(sent).put((byte) number).flip();
+		return packet;
+	}
+
+	private int take(JitterBuffer jitter, long timeout) throws Exception {
+		frame.clear();
+		if (jitter.take(frame, timeout) < 0)
+			return -1;
+		return frame.get(0);
+	}
+
+	public void testReorders() throws Exception {
+		JitterBuffer jitter = new JitterBuffer(new NoLink());
+		jitter.onPacket(packet(0, 0));
+		jitter.onPacket(packet(2, 0));
+		jitter.onPacket(packet(1, 0));
+		assertEquals(3, jitter.getDepth());
+		assertEquals(0, take(jitter, 100));
+		assertEquals(1, take(jitter, 100));
+		assertEquals(2, take(jitter, 100));
+		assertEquals(0, jitter.getDepth());
+		assertEquals(0, jitter.getLost());
+	}
+
+	public void testSkipsMissingAndDropsLate() throws Exception {
+		JitterBuffer jitter = new JitterBuffer(new NoLink());
+		jitter.onPacket(packet(0, 0));
+		jitter.onPacket(packet(2, 0));
+		assertEquals(0, take(jitter, 100));
+		assertEquals(2, take(jitter, 100));
+		assertEquals(1, jitter.getLost());
+
+		jitter.onPacket(packet(1, 0));
+		assertEquals(1, jitter.getLate());
+		assertEquals(0, jitter.getDepth());
+		assertEquals(-1, take(jitter, 10));
+	}
+
+	public void testHoldsPacketsUntilDue() throws Exception {
+		JitterBuffer jitter = new JitterBuffer(new NoLink());
+		jitter.setDelayRange(50, 500);
+		long start = System.currentTimeMillis();
+		jitter.onPacket(packet(0, 0));
+		assertEquals(-1, take(jitter, 20));
+		assertEquals(0, take(jitter, 1000));
+		assertTrue(System.currentTimeMillis() - start >= 45);
+	}
+
+	public void testOverflowGivesUpOnOldest() throws Exception {
+		JitterBuffer jitter = new JitterBuffer(new NoLink(), 4);
+		for (int i = 0; i < 6; i++)
+			jitter.onPacket(packet(i, 0));
+		assertEquals(4, jitter.getDepth());
+		assertEquals(2, jitter.getOverflows());
+		assertEquals(2, take(jitter, 100));
+	}
+
+	public void testDelayFollowsJitter() throws Exception {
+		JitterBuffer jitter = new JitterBuffer(new NoLink());
+		Random random = new Random(3);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 40; i++) {
+			// sent every 10 ms, delayed by up to 30 ms on the way
+			long arrival = start + i * 10 + random.nextInt(30);
+			Thread.sleep(Math.max(0, arrival - System.currentTimeMillis()));
+			jitter.onPacket(packet(i, i * 10));
+		}
+		assertTrue("jitter " + jitter.getJitter(), jitter.getJitter() > 3);
+		int noisy = jitter.getDelay();
+		assertTrue("delay " + noisy, noisy >= 10);
+
+		start = System.currentTimeMillis();
+		for (int i = 40; i < 240; i++) {
+			long arrival = start + (i - 40) * 5;
+			Thread.sleep(Math.max(0, arrival - System.currentTimeMillis()));
+			jitter.onPacket(packet(i, 400 + (i - 40) * 5));
+		}
+		assertTrue("delay " + jitter.getDelay(), jitter.getDelay() < noisy / 2);
+	}
+
+	public void testOverStream() throws Exception {
+		pair = new StreamPair(0, 0.2);
+		final JitterBuffer out = pair.first.openJitterBuffer();
+		JitterBuffer in = pair.second.openJitterBuffer();
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 100; i++) {
+						ByteBuffer packet = out.obtainBuffer();
+						packet.put((byte) i).flip();
+						out.send(packet);
+						Thread.sleep(1);
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		sender.start();
+		int previous = -1;
+		int taken = 0;
+		int n;
+		while ((n = take(in, 500)) >= 0) {
+			assertTrue(n > previous);
+			previous = n;
+			taken++;
+		}
+		sender.join();
+		assertEquals(100, taken + in.getLost());
+		assertEquals(0, in.getOverflows());
+		out.close();
+		in.close();
+	}
+}
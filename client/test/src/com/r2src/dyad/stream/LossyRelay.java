@@ -0,0 +1,123 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+
+/**
+ * Relays datagrams between two endpoints on the loopback interface, losing
+ * and reordering some of them on the way.
+ */
+public class LossyRelay {
+
+	// the sockets that the first and the second endpoint talk to
+	private final DatagramSocket firstSide;
+	private final DatagramSocket secondSide;
+	private final Forwarder[] forwarders = new Forwarder[2];
+
+	/**
+	 * @param first
+	 *            The address of the first endpoint.
+	 * @param second
+	 *            The address of the second endpoint.
+	 * @param loss
+	 *            The chance that a datagram is lost.
+	 * @param reorder
+	 *            The chance that a datagram is held back until after the
+	 *            next one.
+	 * @param seed
+	 *            Makes the losses repeatable.
+	 */
+	public LossyRelay(SocketAddress first, SocketAddress second, double loss,
+			double reorder, long seed) throws IOException {
+		InetAddress loopback = InetAddress.getByName(null);
+		firstSide = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		secondSide = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		forwarders[0] = new Forwarder(firstSide, secondSide, second, loss,
+				reorder, new Random(seed));
+		forwarders[1] = new Forwarder(secondSide, firstSide, first, loss,
+				reorder, new Random(seed + 1));
+		for (Forwarder f : forwarders)
+			f.start();
+	}
+
+	/**
+	 * The address the first endpoint should send to.
+	 */
+	public SocketAddress getFirstPeer() {
+		return firstSide.getLocalSocketAddress();
+	}
+
+	/**
+	 * The address the second endpoint should send to.
+	 */
+	public SocketAddress getSecondPeer() {
+		return secondSide.getLocalSocketAddress();
+	}
+
+	/**
+	 * Returns the number of datagrams that were dropped.
+	 */
+	public int getDropped() {
+		return forwarders[0].dropped + forwarders[1].dropped;
+	}
+
+	public void close() {
+		firstSide.close();
+		secondSide.close();
+	}
+
+	private static class Forwarder extends Thread {
+		private final DatagramSocket in;
+		private final DatagramSocket out;
+		private final SocketAddress destination;
+		private final double loss;
+		private final double reorder;
+		private final Random random;
+		volatile int dropped;
+
+		Forwarder(DatagramSocket in, DatagramSocket out,
+				SocketAddress destination, double loss, double reorder,
+				Random random) {
+			this.in = in;
+			this.out = out;
+			this.destination = destination;
+			this.loss = loss;
+			this.reorder = reorder;
+			this.random = random;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			DatagramPacket held = null;
+			try {
+				while (true) {
+					DatagramPacket packet = new DatagramPacket(new byte[2048],
+							2048);
+					in.receive(packet);
+					if (random.nextDouble() < loss) {
+						dropped++;
+						continue;
+					}
+					packet.setSocketAddress(destination);
+					if (held == null && random.nextDouble() < reorder) {
+						held = packet;
+						continue;
+					}
+					out.send(packet);
+					if (held != null) {
+						out.send(held);
+						held = null;
+					}
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+}
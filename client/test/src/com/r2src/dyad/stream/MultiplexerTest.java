@@ -0,0 +1,137 @@
+package com.r2src.dyad.stream;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class MultiplexerTest extends TestCase {
+
+	private StreamPair pair;
+	private Multiplexer first;
+	private Multiplexer second;
+
+	private void connect(double loss, double reorder) throws Exception {
+		pair = new StreamPair(loss, reorder);
+		first = pair.first.openMultiplexer();
+		second = pair.second.openMultiplexer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (first != null)
+			first.close();
+		if (second != null)
+			second.close();
+		if (pair != null)
+			pair.close();
+	}
+
+	private static boolean send(SubStream s, byte[] payload) throws Exception {
+		ByteBuffer packet = s.obtainBuffer();
+		packet.put(payload).flip();
+		return s.send(packet);
+	}
+
+	public void testSubStreamsAreSeparate() throws Exception {
+		connect(0, 0);
+		SubStream audio = first.open(1, 10);
+		SubStream video = first.open(2, 5);
+		SubStream audioIn = second.open(1, 10);
+		SubStream videoIn = second.open(2, 5);
+
+		for (int i = 0; i < 20; i++) {
+			assertTrue(send(audio, new byte[] { 1, (byte) i }));
+			assertTrue(send(video, new byte[] { 2, (byte) i }));
+		}
+		for (int i = 0; i < 20; i++) {
+			assertTrue(Arrays.equals(new byte[] { 1, (byte) i },
+					audioIn.receive(5000)));
+			assertTrue(Arrays.equals(new byte[] { 2, (byte) i },
+					videoIn.receive(5000)));
+		}
+	}
+
+	public void testUnknownSubStreamIsIgnored() throws Exception {
+		connect(0, 0);
+		SubStream out = first.open(3, 0);
+		SubStream in = second.open(4, 0);
+		assertTrue(send(out, new byte[] { 1 }));
+		assertNull(in.receive(100));
+	}
+
+	public void testWindowLimitsSender() throws Exception {
+		connect(0, 0);
+		SubStream out = first.open(1, 0, 8);
+		SubStream in = second.open(1, 0, 8);
+
+		for (int i = 0; i < 8; i++)
+			assertTrue(send(out, new byte[] { (byte) i }));
+		assertEquals(0, out.getAvailableWindow());
+		assertFalse(send(out, new byte[] { 8 }));
+
+		// reading a quarter of the window opens it again
+		assertNotNull(in.receive(5000));
+		assertNotNull(in.receive(5000));
+		assertTrue(out.awaitWindow(5000));
+		assertTrue(send(out, new byte[] { 8 }));
+		assertEquals(0, in.getDropped());
+	}
+
+	public void testWindowSurvivesLoss() throws Exception {
+		connect(0.2, 0);
+		final SubStream out = first.open(1, 0, 4);
+		SubStream in = second.open(1, 0, 4);
+
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 200; i++) {
+						if (!out.awaitWindow(5000))
+							return;
+						send(out, new byte[] { (byte) i });
+					}
+				} catch (Exception e) {
+				}
+			}
+		};
+		sender.start();
+		int received = 0;
+		while (in.receive(1000) != null)
+			received++;
+		sender.join(10000);
+		assertFalse("sender got stuck", sender.isAlive());
+		assertTrue(received > 100);
+	}
+
+	public void testReliableSubStreams() throws Exception {
+		connect(0.05, 0.05);
+		ReliableChannel control = first.open(1, 20).openReliableChannel();
+		ReliableChannel files = first.open(2, 0).openReliableChannel();
+		ReliableChannel controlIn = second.open(1, 20).openReliableChannel();
+		ReliableChannel filesIn = second.open(2, 0).openReliableChannel();
+
+		byte[][] messages = ReliableChannelTest.messages(200, 3000);
+		for (byte[] message : messages) {
+			files.send(message);
+			control.send(message, 0, Math.min(message.length, 16));
+		}
+		for (byte[] message : messages) {
+			assertTrue(Arrays.equals(message, filesIn.receive(20000)));
+			assertTrue(Arrays.equals(
+					Arrays.copyOf(message, Math.min(message.length, 16)),
+					controlIn.receive(20000)));
+		}
+	}
+
+	public void testOpenTwice() throws Exception {
+		connect(0, 0);
+		first.open(1, 0);
+		try {
+			first.open(1, 0);
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+	}
+}
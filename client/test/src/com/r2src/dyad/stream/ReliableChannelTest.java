@@ -0,0 +1,101 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ReliableChannelTest extends TestCase {
+
+	private StreamPair pair;
+	private ReliableChannel first;
+	private ReliableChannel second;
+
+	private void connect(double loss, double reorder) throws IOException {
+		pair = new StreamPair(loss, reorder);
+		first = pair.first.openReliableChannel();
+		second = pair.second.openReliableChannel();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (first != null)
+			first.close();
+		if (second != null)
+			second.close();
+		if (pair != null)
+			pair.close();
+	}
+
+	static byte[][] messages(int count, int maxSize) {
+		Random random = new Random(7);
+		byte[][] messages = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			messages[i] = new byte[random.nextInt(maxSize + 1)];
+			random.nextBytes(messages[i]);
+		}
+		return messages;
+	}
+
+	private void transfer(byte[][] messages) throws Exception {
+		for (byte[] message : messages)
+			first.send(message);
+		for (int i = 0; i < messages.length; i++) {
+			byte[] received = second.receive(20000);
+			assertNotNull("message " + i + " didn't arrive", received);
+			assertTrue("message " + i + " is corrupt",
+					Arrays.equals(messages[i], received));
+		}
+		assertTrue(first.drain(20000));
+	}
+
+	public void testInOrderWithoutLoss() throws Exception {
+		connect(0, 0);
+		transfer(messages(500, 3000));
+	}
+
+	public void testLossAndReordering() throws Exception {
+		connect(0.1, 0.1);
+		transfer(messages(500, 3000));
+		assertTrue(pair.relay.getDropped() > 0);
+		assertTrue(first.getRetransmissions() > 0);
+	}
+
+	public void testBothWays() throws Exception {
+		connect(0.05, 0.05);
+		byte[][] messages = messages(200, 2000);
+		for (byte[] message : messages) {
+			first.send(message);
+			second.send(message);
+		}
+		for (byte[] message : messages) {
+			assertTrue(Arrays.equals(message, second.receive(20000)));
+			assertTrue(Arrays.equals(message, first.receive(20000)));
+		}
+	}
+
+	public void testLargeMessage() throws Exception {
+		connect(0.1, 0);
+		byte[] message = new byte[first.getMaxMessageSize()];
+		new Random(3).nextBytes(message);
+		first.send(message);
+		assertTrue(Arrays.equals(message, second.receive(20000)));
+	}
+
+	public void testReceiveTimesOut() throws Exception {
+		connect(0, 0);
+		assertNull(second.receive(50));
+	}
+
+	public void testClose() throws Exception {
+		connect(0, 0);
+		first.close();
+		assertNull(first.receive());
+		try {
+			first.send(new byte[1]);
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+}
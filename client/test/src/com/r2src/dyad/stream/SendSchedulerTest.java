@@ -0,0 +1,173 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SendSchedulerTest extends TestCase {
+
+	/**
+	 * Records what is sent instead of sending it.
+	 */
+	private static class RecordingLink implements Link {
+		final List<Integer> sent = new ArrayList<Integer>();
+		int released;
+
+		@Override
+		public ByteBuffer obtainBuffer() {
+			return ByteBuffer.allocate(getMaxPacketSize());
+		}
+
+		@Override
+		public void release(ByteBuffer buffer) {
+			released++;
+		}
+
+		@Override
+		public boolean send(ByteBuffer packet) throws IOException {
+			sent.add((int) packet.get(0));
+			return true;
+		}
+
+		@Override
+		public int getMaxPacketSize() {
+			return 100;
+		}
+	}
+
+	private RecordingLink link;
+	private SendScheduler scheduler;
+
+	@Override
+	protected void setUp() {
+		link = new RecordingLink();
+		scheduler = new SendScheduler(link, 4);
+	}
+
+	private static ByteBuffer packet(int tag) {
+		ByteBuffer packet = ByteBuffer.allocate(100);
+		packet.put(0, (byte) tag);
+		return packet;
+	}
+
+	private boolean enqueue(int tag, int priority, long lifetime) {
+		return scheduler.enqueue(packet(tag), null, priority, lifetime);
+	}
+
+	public void testHigherPriorityFirst() throws Exception {
+		enqueue(1, 0, SendScheduler.FOREVER);
+		enqueue(2, 5, SendScheduler.FOREVER);
+		enqueue(3, 0, SendScheduler.FOREVER);
+		enqueue(4, 5, SendScheduler.FOREVER);
+		assertEquals(-1, scheduler.flush());
+		assertEquals(Arrays.asList(2, 4, 1, 3), link.sent);
+		assertEquals(4, scheduler.getSentCount());
+		assertEquals(4, scheduler.getPeakQueueDepth());
+	}
+
+	public void testEarliestDeadlineFirst() throws Exception {
+		enqueue(1, 0, SendScheduler.FOREVER);
+		enqueue(2, 0, 10000);
+		enqueue(3, 0, 1000);
+		scheduler.flush();
+		assertEquals(Arrays.asList(3, 2, 1), link.sent);
+	}
+
+	public void testExpiredPacketsAreDropped() throws Exception {
+		enqueue(1, 0, 0);
+		enqueue(2, 0, SendScheduler.FOREVER);
+		Thread.sleep(5);
+		scheduler.flush();
+		assertEquals(Arrays.asList(2), link.sent);
+		assertEquals(1, scheduler.getExpiredCount());
+		assertEquals(1, link.released);
+	}
+
+	public void testFullQueueDropsLeastImportant() throws Exception {
+		enqueue(1, 5, SendScheduler.FOREVER);
+		enqueue(2, 0, SendScheduler.FOREVER);
+		enqueue(3, 5, SendScheduler.FOREVER);
+		enqueue(4, 5, SendScheduler.FOREVER);
+		assertTrue(enqueue(5, 5, SendScheduler.FOREVER));
+		assertFalse(enqueue(6, 0, SendScheduler.FOREVER));
+		assertEquals(2, scheduler.getOverflowCount());
+		assertEquals(2, link.released);
+		assertEquals(0, scheduler.getQueueDepth(0));
+		scheduler.flush();
+		assertEquals(Arrays.asList(1, 3, 4, 5), link.sent);
+	}
+
+	public void testFullQueueDropsExpiredFirst() throws Exception {
+		enqueue(1, 5, 0);
+		enqueue(2, 0, SendScheduler.FOREVER);
+		enqueue(3, 0, SendScheduler.FOREVER);
+		enqueue(4, 0, SendScheduler.FOREVER);
+		Thread.sleep(5);
+		assertTrue(enqueue(5, 0, SendScheduler.FOREVER));
+		assertEquals(1, scheduler.getExpiredCount());
+		assertEquals(0, scheduler.getOverflowCount());
+	}
+
+	public void testRateHoldsPacketsBack() throws Exception {
+		scheduler.setRate(10000);
+		for (int i = 0; i < 4; i++)
+			enqueue(i, 0, SendScheduler.FOREVER);
+		// two packets fit in the burst
+		long wait = scheduler.flush();
+		assertTrue(wait > 0);
+		assertEquals(2, link.sent.size());
+
+		// the others take 10 milliseconds each
+		long start = System.nanoTime();
+		while (scheduler.getQueueDepth() > 0) {
+			Thread.sleep(Math.max(1, wait));
+			wait = scheduler.flush();
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		assertTrue("took " + elapsed + " ms", elapsed >= 15);
+		assertEquals(4, link.sent.size());
+	}
+
+	public void testDiscard() throws Exception {
+		Object audio = new Object();
+		Object video = new Object();
+		scheduler.enqueue(packet(1), audio, 0, SendScheduler.FOREVER);
+		scheduler.enqueue(packet(2), video, 0, SendScheduler.FOREVER);
+		scheduler.enqueue(packet(3), audio, 0, SendScheduler.FOREVER);
+		assertEquals(2, scheduler.discard(audio));
+		assertEquals(1, scheduler.getQueueDepth());
+		scheduler.flush();
+		assertEquals(Arrays.asList(2), link.sent);
+	}
+
+	public void testExpiredSubStreamPackets() throws Exception {
+		StreamPair pair = new StreamPair(0, 0);
+		Multiplexer first = pair.first.openMultiplexer();
+		Multiplexer second = pair.second.openMultiplexer();
+		try {
+			// a rate this low lets only the burst through
+			first.getScheduler().setRate(1);
+			SubStream out = first.open(1, 0);
+			out.setLifetime(50);
+			SubStream in = second.open(1, 0);
+			for (int i = 0; i < 4; i++) {
+				ByteBuffer packet = out.obtainBuffer();
+				packet.put((byte) i).position(packet.limit()).flip();
+				assertTrue(out.send(packet));
+			}
+			assertNotNull(in.receive(1000));
+			assertNotNull(in.receive(1000));
+			Thread.sleep(200);
+			assertNull(in.receive(100));
+			assertEquals(2, first.getScheduler().getExpiredCount());
+		} finally {
+			first.close();
+			second.close();
+			pair.close();
+		}
+	}
+}
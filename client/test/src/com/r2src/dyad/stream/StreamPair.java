@@ -0,0 +1,42 @@
+package com.r2src.dyad.stream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import com.r2src.dyad.Stream;
+
+/**
+ * Two streams on the loopback interface that talk to each other through a
+ * {@link LossyRelay}.
+ */
+public class StreamPair {
+
+	public final Stream first;
+	public final Stream second;
+	public final LossyRelay relay;
+
+	public StreamPair(double loss, double reorder) throws IOException {
+		InetAddress loopback = InetAddress.getByName(null);
+		DatagramChannel firstChannel = DatagramChannel.open();
+		firstChannel.socket().bind(new InetSocketAddress(loopback, 0));
+		DatagramChannel secondChannel = DatagramChannel.open();
+		secondChannel.socket().bind(new InetSocketAddress(loopback, 0));
+		relay = new LossyRelay(firstChannel.socket().getLocalSocketAddress(),
+				secondChannel.socket().getLocalSocketAddress(), loss, reorder,
+				42);
+
+		first = new Stream(firstChannel, relay.getFirstPeer(), new BufferPool(
+				Stream.DEFAULT_POOL_SIZE, Stream.MAX_DATAGRAM_SIZE));
+		second = new Stream(secondChannel, relay.getSecondPeer(),
+				new BufferPool(Stream.DEFAULT_POOL_SIZE,
+						Stream.MAX_DATAGRAM_SIZE));
+	}
+
+	public void close() throws IOException {
+		relay.close();
+		first.close();
+		second.close();
+	}
+}
@@ -0,0 +1,268 @@
+#!/usr/bin/perl -w
+
+# Compares the requests per second of the FCGI loop of dyad.pl with those of
+# Dyad::Server::Event, for device pairs that go through the signalling
+# sequence: register, bond, and an SDP offer and answer.
+#
+#     perl -Ilib -It bench/server.pl --pairs 500 --clients 50 --parked 20
+#
+# The FCGI loop is emulated by a process that accepts one connection at a
+# time and runs process_request for its request, like FCGI does behind a web
+# server. Google is a stand-in that answers every token after --latency
+# seconds. --parked connections each hold a long poll for an SDP message for
+# --wait seconds, like devices that wait for the other device of their dyad.
+# The FCGI loop answers them right away, since it can't wait without holding
+# up everybody else, so there they only cost a request each.
+#
+# The servers use the MongoDB database dyad_bench, which is emptied first.
+
+use strict;
+use v5.14;
+use Getopt::Long;
+use HTTP::Tiny;
+use IO::Socket::INET;
+use JSON;
+use MongoDB;
+use POSIX qw(_exit);
+use Time::HiRes qw(time sleep);
+use Dyad::Server;
+use Dyad::Server::Event;
+
+my %opt = (
+    mode    => 'both',
+    pairs   => 200,
+    clients => 20,
+    parked  => 0,
+    wait    => 5,
+    latency => 0.05,
+);
+GetOptions( \%opt, 'mode=s', 'pairs=i', 'clients=i', 'parked=i', 'wait=f',
+    'latency=f' )
+  or die "usage: server.pl [--mode fcgi|event|both] [--pairs n] "
+  . "[--clients n] [--parked n] [--wait seconds] [--latency seconds]\n";
+
+my $DB_NAME = 'dyad_bench';
+$SIG{PIPE} = 'IGNORE';
+
+my @children;
+END { kill 15, @children if @children }
+
+# Starts a child process that runs the given sub with a listening socket, and
+# returns the port.
+sub background {
+    my $run    = shift;
+    my $listen = IO::Socket::INET->new(
+        LocalAddr => '127.0.0.1',
+        Listen    => 1024,
+        ReuseAddr => 1
+    ) or die "Can't listen: $!\n";
+    my $pid = fork // die "Can't fork: $!\n";
+    unless ($pid) {
+        @children = ();
+        $run->($listen);
+        _exit 0;
+    }
+    push @children, $pid;
+    return $listen->sockport;
+}
+
+# Reads an HTTP request from a blocking socket.
+sub read_request {
+    my $socket = shift;
+    my $line   = <$socket> // return;
+    my ( $method, $uri ) = split ' ', $line;
+    my %headers;
+    while ( my $header = <$socket> ) {
+        last if $header =~ /^\r?\n$/;
+        my ( $name, $value ) = $header =~ /^([^:]+):\s*(.*?)\s*$/;
+        $headers{ lc $name } = $value;
+    }
+    my $body = '';
+    read $socket, $body, $headers{'content-length'} if $headers{'content-length'};
+    return { method => $method, uri => $uri, headers => \%headers, body => $body };
+}
+
+# the Google stand-in, which forks for every request
+my $google = background sub {
+    my $listen = shift;
+    $SIG{CHLD} = 'IGNORE';
+    while ( my $socket = $listen->accept ) {
+        next if fork;
+        my $request = read_request($socket);
+        my ($id) = $request->{headers}->{authorization} =~ /^OAuth token_(\w+)$/;
+        sleep $opt{latency};
+        my $body = encode_json { id => $id };
+        print $socket "HTTP/1.0 200 OK\r\nContent-Type: application/json\r\n"
+          . "Content-Length: " . length($body) . "\r\n\r\n$body";
+        _exit 0;
+    }
+};
+$Dyad::Server::GOOGLE_URL = "http://127.0.0.1:$google";
+
+sub database {
+    my $db = MongoDB::Connection->new->$DB_NAME;
+    $db->users->remove;
+    Dyad::Server::migrate($db);
+    return $db;
+}
+
+my %servers = (
+
+    # what dyad.pl does, with the web server's part done here
+    fcgi => sub {
+        my $listen = shift;
+        my $server = Dyad::Server->new( mongodb => database() );
+        while ( my $socket = $listen->accept ) {
+            my $request = read_request($socket) or next;
+            local %ENV = (
+                %ENV,
+                REQUEST_METHOD             => $request->{method},
+                REQUEST_URI                => $request->{uri},
+                CONTENT_LENGTH             => length $request->{body},
+                CONTENT_TYPE               => $request->{headers}->{'content-type'},
+                HTTP_X_DYAD_AUTHORIZATION  => $request->{headers}->{'x-dyad-authorization'},
+            );
+            open local *STDIN, '<', \$request->{body};
+            my ( $head, $body ) = split /\r\n\r\n/, $server->process_request, 2;
+            $body //= '';
+            utf8::encode($body) unless $head =~ m{application/json};
+            $head =~ s/\r\n$//;
+            $head =~ s/^Status: (\d+)/HTTP\/1.0 $1 X/;
+            print $socket "$head\r\nContent-Length: " . length($body)
+              . "\r\n\r\n$body";
+            close $socket;
+        }
+    },
+
+    event => sub {
+        my $listen = shift;
+        Dyad::Server::Event->new( mongodb => database(), listen => $listen )->run;
+    },
+);
+
+my $sdp = "v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n" . ( "a=x\r\n" x 40 );
+
+# Runs the pairs of one client, and writes a line per request to the pipe.
+sub run_client {
+    my ( $url, $client, $out ) = @_;
+    my $http = HTTP::Tiny->new( keep_alive => 0, timeout => 60 );
+
+    my $call = sub {
+        my ( $name, $method, $path, $token, $body ) = @_;
+        my $start    = time;
+        my $response = $http->request(
+            $method, "$url$path",
+            {
+                headers => {
+                    'Content-Type' => 'application/json',
+                    ( $token ? ( 'X-Dyad-Authorization' => $token ) : () )
+                },
+                ( $body ? ( content => encode_json $body ) : () )
+            }
+        );
+        printf $out "%s %d %.6f\n", $name, $response->{status}, time - $start;
+        return $response;
+    };
+
+    for ( my $pair = $client ; $pair < $opt{pairs} ; $pair += $opt{clients} ) {
+        my @tokens;
+        for my $device ( 'a', 'b' ) {
+            my $response = $call->( 'register', POST => '/v1/register', undef,
+                { token => "token_${pair}$device" } );
+            push @tokens, eval { decode_json( $response->{content} )->{session_token} };
+        }
+        $call->( 'bond', POST => '/v1/bond', $_, { secret => "secret_$pair" } )
+          for @tokens;
+        for my $device ( 0, 1 ) {
+            $call->( 'sdp_message', POST => '/v1/sdp_message', $tokens[$device],
+                { message => $sdp } );
+            $call->( 'get_sdp_message', GET => '/v1/sdp_message?wait=1',
+                $tokens[ 1 - $device ] );
+        }
+    }
+}
+
+# Opens --parked long polls of users without a dyad. The FCGI loop can't do
+# anything else while it waits for one of them.
+sub park {
+    my $url = shift;
+    my $http = HTTP::Tiny->new( timeout => 60 );
+    my @tokens;
+    for my $i ( 1 .. $opt{parked} ) {
+        my $response = $http->request(
+            POST => "$url/v1/register",
+            {
+                headers => { 'Content-Type' => 'application/json' },
+                content => encode_json { token => "token_parked$i" }
+            }
+        );
+        push @tokens, eval { decode_json( $response->{content} )->{session_token} };
+    }
+
+    my ($port) = $url =~ /:(\d+)$/;
+    my @sockets;
+    for my $token ( grep { defined } @tokens ) {
+        my $socket = IO::Socket::INET->new("127.0.0.1:$port") or die "$!\n";
+        print $socket "GET /v1/sdp_message?wait=$opt{wait} HTTP/1.1\r\nHost: x\r\n"
+          . "X-Dyad-Authorization: $token\r\n\r\n";
+        push @sockets, $socket;
+    }
+    return @sockets;
+}
+
+sub percentile {
+    my ( $sorted, $p ) = @_;
+    return 0 unless @$sorted;
+    my $rank = int( $p / 100 * @$sorted + 0.999999 );
+    return $sorted->[ ( $rank || 1 ) - 1 ] * 1000;
+}
+
+for my $mode ( $opt{mode} eq 'both' ? qw(fcgi event) : $opt{mode} ) {
+    die "unknown mode $mode\n" unless $servers{$mode};
+    my $port = background $servers{$mode};
+    my $url  = "http://127.0.0.1:$port";
+    sleep 0.2;
+
+    my @parked = park($url);
+
+    pipe my $in, my $out or die "$!\n";
+    my $start = time;
+    my @clients;
+    for my $client ( 0 .. $opt{clients} - 1 ) {
+        my $pid = fork // die "Can't fork: $!\n";
+        unless ($pid) {
+            close $in;
+            $out->autoflush(1);
+            run_client( $url, $client, $out );
+            _exit 0;
+        }
+        push @clients, $pid;
+    }
+    close $out;
+
+    my ( %latencies, %errors, $total );
+    while ( my $line = <$in> ) {
+        my ( $name, $status, $seconds ) = split ' ', $line;
+        push @{ $latencies{$name} }, $seconds;
+        $errors{$name}++ if $status >= 500 or $status == 401;
+        $total++;
+    }
+    waitpid $_, 0 for @clients;
+    my $elapsed = time - $start;
+
+    kill 15, $children[-1];
+    waitpid pop @children, 0;
+    close $_ for @parked;
+
+    printf "%s: %d requests in %.2f s, %.1f req/s (%d clients, %d parked polls, "
+      . "Google latency %d ms)\n", $mode, $total, $elapsed, $total / $elapsed,
+      $opt{clients}, scalar @parked, $opt{latency} * 1000;
+    printf "  %-16s %7s %6s %8s %8s %8s %8s\n", 'call', 'count', 'errors', 'p50',
+      'p90', 'p99', 'max';
+    for my $name (qw(register bond sdp_message get_sdp_message)) {
+        my @sorted = sort { $a <=> $b } @{ $latencies{$name} // [] };
+        printf "  %-16s %7d %6d %8.1f %8.1f %8.1f %8.1f\n", $name, scalar @sorted,
+          $errors{$name} // 0, map { percentile( \@sorted, $_ ) } 50, 90, 99, 100;
+    }
+    print "  latencies in milliseconds\n";
+}
@@ -0,0 +1,17 @@
+#!/usr/bin/perl -w
+use strict;
+
+use Dyad::Server::Event;
+use MongoDB::Connection;
+use Log::Any::Adapter ('File', '/home/lojanda/tmp/dyad.log');
+
+my $DB_NAME = 'dyad';
+
+my $conn        = MongoDB::Connection->new;
+my $db          = $conn->$DB_NAME;
+my $dyad_server = Dyad::Server::Event->new(
+    mongodb => $db,
+    listen  => '0.0.0.0:3454'
+);
+
+$dyad_server->run;
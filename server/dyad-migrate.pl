@@ -0,0 +1,19 @@
+#!/usr/bin/perl -w
+use strict;
+
+# Brings the schema of the database up to date. Run it before starting
+# dyad.pl, dyad-event.pl or dyad-push.pl after an upgrade.
+
+use Dyad::Server;
+use MongoDB::Connection;
+use Log::Any::Adapter ('File', '/home/lojanda/tmp/dyad.log');
+
+my $DB_NAME = 'dyad';
+
+my $conn = MongoDB::Connection->new;
+my $db   = $conn->$DB_NAME;
+
+my $count = Dyad::Server::migrate($db);
+print "Ran $count migration(s).\n";
+Dyad::Server::check_queries($db);
+print "All hot queries use an index.\n";
@@ -0,0 +1,24 @@
+#!/usr/bin/perl -w
+use strict;
+
+use Dyad::Server::Push;
+use MongoDB::Connection;
+use Log::Any::Adapter ('File', '/home/lojanda/tmp/dyad-push.log');
+
+my $DB_NAME     = 'dyad';
+my $GCM_URL     = 'https://android.googleapis.com/gcm/send';
+my $GCM_API_KEY = $ENV{GCM_API_KEY} or die "GCM_API_KEY is not set\n";
+
+my $conn = MongoDB::Connection->new;
+my $db   = $conn->$DB_NAME;
+my $push = Dyad::Server::Push->new(
+    mongodb => $db,
+    url     => $GCM_URL,
+    api_key => $GCM_API_KEY
+);
+
+# Sends what the web server processes queue. More of these can run at the
+# same time: each push is claimed by one of them (see Dyad::Server::Push).
+while (1) {
+    sleep 1 unless $push->dispatch;
+}
@@ -16,6 +16,9 @@ my $conn        = MongoDB::Connection->new;
 my $db          = $conn->$DB_NAME;
 my $dyad_server = Dyad::Server->new(mongodb => $db);
 
+# One request at a time: calls that ask to wait (GET /v1/sdp_message and
+# /v1/candidates) are answered right away. dyad-event.pl parks them instead.
+
 while ( $request->Accept() >= 0 ) {
     print $dyad_server->process_request();
 }
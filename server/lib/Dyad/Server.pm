@@ -29,6 +29,16 @@ It can for example be approached with an FCGI script:
         print $dyad_server->process_request();
     }
 
+L<Dyad::Server::Event> runs the same calls without FCGI, and serves many
+requests at the same time from a single process.
+
+GCM pushes to users with a GCM id are only queued while handling requests.
+A separate process, which has the API key, sends them, see
+L<Dyad::Server::Push> and F<dyad-push.pl>.
+
+The server refuses to start on a database that lacks the indexes its queries
+need. Run L</migrate> (or dyad-migrate.pl) after installing or upgrading.
+
 =cut
 
 use v5.14;
@@ -38,14 +48,97 @@ use JSON;
 use MongoDB;
 use HTTP::Status qw(:constants status_message);
 use LWP::UserAgent;
+use Time::HiRes qw(time);
+use Encode qw(decode encode);
+use Digest::SHA qw(sha256_hex);
+use DateTime;
+use Dyad::Server::Cache;
+use Dyad::Server::Push;
 require HTTP::Request;
 require Exporter;
 
 # change this from outside when testing
 our $GOOGLE_URL = 'https://www.googleapis.com/oauth2/v2/userinfo';
 
+# request bodies are JSON, unless they say they're in the binary format
+our $BINARY_TYPE = 'application/x-dyad-binary';
+our $JSON_TYPES  = qr(^(?:application/json|text/plain)?(?:\s*;.*)?$)i;
+
+our $BATCH_URI      = qr(^/v1/batch$);
+our $MAX_BATCH_SIZE = 16;
+
+# for gcm_push, which sends right away; the pushes of the calls are queued, and
+# sent by dyad-push.pl with its own key
+our $GCM_URL = 'https://android.googleapis.com/gcm/send';
+our $GCM_API_KEY;
+our $MAX_GCM_PAYLOAD = 4096;
+
+# session token => google id, so that authorized calls don't hit the database.
+# Tokens rotated by another server process stay valid here until they expire.
+our $session_cache = Dyad::Server::Cache->new( max_size => 10_000, ttl => 60 );
+
+# SHA-256 of an OAuth2 token => its google id, or '' if Google rejected it, so
+# that re-registrations don't have to ask Google again. A revoked token keeps
+# working for at most $GOOGLE_TTL seconds; a token that Google rejected is
+# tried again after $REJECTED_TOKEN_TTL seconds.
+our $GOOGLE_TTL         = 300;
+our $REJECTED_TOKEN_TTL = 60;
+our $google_cache = Dyad::Server::Cache->new( max_size => 10_000 );
+
+# long-polling for sdp messages (in seconds), which only Dyad::Server::Event
+# does: it checks its parked calls every $SDP_POLL_INTERVAL
+our $MAX_SDP_WAIT      = 30;
+our $SDP_POLL_INTERVAL = 0.25;
+
+# seconds a secret waits for the other user to send it too (see bond). The
+# TTL index of the bonds collection is made with it, so changing it takes a
+# new migration.
+our $BOND_TTL = 600;
+
+# trickled candidates a user can queue for the other user per sdp message
+our $MAX_CANDIDATE_BATCHES = 64;
+
 my $http_client = LWP::UserAgent->new;
 
+# the indexes of the hot queries below: collection => [ [ keys, options ] ]
+our $INDEXES = {
+    users => [
+        [ { google_id     => 1 }, { unique => 1 } ],
+        [ { session_token => 1 }, { unique => 1, sparse => 1 } ],
+        [ { other         => 1 }, { sparse => 1 } ],
+        [ { gcm_id        => 1 }, { sparse => 1 } ],
+    ],
+    pushes => [ [ { not_before => 1 } ] ],
+    bonds  => [ [ { created => 1 }, { expireAfterSeconds => $BOND_TTL } ] ],
+};
+
+# the queries of the calls, the push dispatcher and the event server, with
+# made-up values: collection => [ query ]
+our $HOT_QUERIES = {
+    users => [
+        { session_token => 'x' },
+        { google_id     => 'x' },
+        { other         => 'x' },
+        { other         => { '$in' => ['x'] } },
+        {
+            other         => 'x',
+            message       => { '$exists' => 1 },
+            message_taken => { '$exists' => 0 }
+        },
+        { gcm_id        => 'x' },
+    ],
+    pushes => [ { not_before => { '$lt' => 0 } } ],
+    bonds  => [
+        { _id => 'x', google_id => { '$ne' => 'x' }, created => { '$gt' => 0 } }
+    ],
+};
+
+# schema migrations, in order: [ version, description, sub taking the database ]
+our @MIGRATIONS = (
+    [ 1, "indexes for the hot queries", \&ensure_indexes ],
+    [ 2, "pending secrets in their own collection", \&move_secrets ],
+);
+
 our $api = [
     [
         0,
@@ -74,7 +167,19 @@ our $api = [
     [
         1,  #authorization required
         GET => qr(^/v1/sdp_message$), #r
-        \&get_sdp_message => []
+        \&get_sdp_message => ['wait']    # optional query parameter
+    ],
+
+    [
+        1,  # authorization required
+        POST => qr(^/v1/candidates$),
+        \&candidates => ['candidates']
+    ],
+
+    [
+        1,  # authorization required
+        GET => qr(^/v1/candidates$),
+        \&get_candidates => [ 'since', 'wait' ]    # optional query parameters
     ]
 ];
 
@@ -84,6 +189,10 @@ our $api = [
 
 Classic Perl half-assed OO.
 
+Dies unless the database has the indexes of the hot queries (see
+L</check_queries>), because without them every call scans the users. Run
+L</migrate> first.
+
 =cut
 
 sub new {
@@ -94,111 +203,464 @@ sub new {
 
     $self->{db} = $kwargs{mongodb} and $self->{db}->isa("MongoDB::Database")
       or die "You have to pass a MongoDB instance to Dyad::Server::new\n";
+    check_queries( $self->{db} );
 	
 	$log->info("Dyad Server ready.");
 	
     bless $self, $class;
 }
 
+=head2 migrate
+
+Takes a database and brings its schema up to date: runs the migrations in
+C<@Dyad::Server::MIGRATIONS> that it hasn't had yet, in order, and records its
+version in the C<migrations> collection. Safe to run any number of times, for
+instance before every start (see F<dyad-migrate.pl>).
+
+Returns the number of migrations that were run. Dies if one fails.
+
+=cut
+
+sub migrate {
+    my $db = shift;
+
+    my $schema  = $db->migrations->find_one( { _id => 'schema' } );
+    my $version = $schema ? $schema->{version} : 0;
+    my $count   = 0;
+    for my $migration (@MIGRATIONS) {
+        my ( $to, $description, $run ) = @$migration;
+        next if $to <= $version;
+
+        $log->info("Migrating the database to version $to: $description");
+        $run->($db);
+        $db->migrations->update(
+            { _id    => 'schema' },
+            { '$set' => { version => $to } },
+            { upsert => 1 }
+        );
+        $version = $to;
+        $count++;
+    }
+    return $count;
+}
+
+=head2 ensure_indexes
+
+Creates the indexes in C<$Dyad::Server::INDEXES> that a database doesn't have
+yet, in the background, and verifies that they are there with the right
+options. Creating a unique index fails when there are duplicates, for
+instance users that were upserted twice with the same Google id.
+
+Dies with the indexes that are missing afterwards.
+
+=cut
+
+sub ensure_indexes {
+    my $db = shift;
+
+    for my $collection ( sort keys %$INDEXES ) {
+        for my $index ( @{ $INDEXES->{$collection} } ) {
+            my ( $keys, $options ) = @$index;
+            eval {
+                $db->get_collection($collection)
+                  ->ensure_index( $keys, { %{ $options // {} }, background => 1 } );
+                1;
+            } or $log->error("Creating an index on $collection failed: $@");
+        }
+    }
+
+    my @missing = missing_indexes($db);
+    die "The database is missing these indexes: @missing\n" if @missing;
+}
+
+=head2 move_secrets
+
+Moves the secrets that wait for the other user of a dyad from the C<users>
+collection to the C<bonds> collection (see L</bond>), where they expire after
+C<$BOND_TTL> seconds from now, and drops the index on them.
+
+=cut
+
+sub move_secrets {
+    my $db = shift;
+
+    ensure_indexes($db);
+    my $users = $db->users->find( { secret => { '$exists' => 1 } } );
+    while ( my $user = $users->next ) {
+        $db->bonds->update(
+            { _id => hash_key( $user->{secret} ) },
+            { '$set' => { google_id => $user->{google_id}, created => DateTime->now } },
+            { upsert => 1 }
+        );
+    }
+    $db->users->update(
+        { secret => { '$exists' => 1 } },
+        { '$unset' => { secret => 1 } },
+        { multiple => 1 }
+    );
+    eval { $db->users->drop_index('secret_1'); 1 }
+      or $log->info("There was no index on the secrets of the users.");
+}
+
+=head2 missing_indexes
+
+Returns the indexes in C<$Dyad::Server::INDEXES> that a database doesn't have,
+or has with other options, as strings like C<users.google_id_1>.
+
+=cut
+
+sub missing_indexes {
+    my $db = shift;
+
+    my @missing;
+    for my $collection ( sort keys %$INDEXES ) {
+        my %existing = map { index_name( $_->{key} ) => $_ }
+          $db->get_collection($collection)->get_indexes;
+        for my $index ( @{ $INDEXES->{$collection} } ) {
+            my ( $keys, $options ) = @$index;
+            my $name  = index_name($keys);
+            my $found = $existing{$name};
+            push @missing, "$collection.$name"
+              unless $found
+              and !$found->{unique} == !$options->{unique}
+              and !$found->{sparse} == !$options->{sparse};
+        }
+    }
+    return @missing;
+}
+
+=head2 index_name
+
+Returns MongoDB's default name of an index on the given keys.
+
+=cut
+
+sub index_name {
+    my $keys = shift;
+
+    my @pairs =
+        ref $keys eq 'HASH'  ? %$keys
+      : ref $keys eq 'ARRAY' ? @$keys
+      :                        map { $_, $keys->FETCH($_) } $keys->Keys;
+    my @parts;
+    while ( my ( $key, $direction ) = splice @pairs, 0, 2 ) {
+        push @parts, "${key}_$direction";
+    }
+    return join '_', @parts;
+}
+
+=head2 check_queries
+
+Asks a database how it would run every query in
+C<$Dyad::Server::HOT_QUERIES>, and dies loudly if one of them would scan its
+whole collection instead of using an index. New queries of the calls belong
+in that list, with their index in C<$Dyad::Server::INDEXES>.
+
+=cut
+
+sub check_queries {
+    my $db = shift;
+
+    my @scans;
+    for my $collection ( sort keys %$HOT_QUERIES ) {
+        for my $query ( @{ $HOT_QUERIES->{$collection} } ) {
+            my $plan = $db->get_collection($collection)->find($query)->explain;
+            push @scans, "$collection " . JSON->new->canonical->encode($query)
+              if scans($plan);
+        }
+    }
+    return 1 unless @scans;
+
+    $log->error("Hot queries without an index: @scans");
+    die "These queries would scan their collection for lack of an index:\n"
+      . join( '', map { "    $_\n" } @scans )
+      . "Run Dyad::Server::migrate on the database (see dyad-migrate.pl).\n";
+}
+
+=head2 scans
+
+Returns whether a query plan, as returned by C<explain>, scans a whole
+collection. Knows the plans of MongoDB before 3.0 (C<BasicCursor>) and after
+(C<COLLSCAN> stages).
+
+=cut
+
+sub scans {
+    my $plan = shift;
+
+    return 0 unless ref $plan;
+    if ( ref $plan eq 'ARRAY' ) {
+        scans($_) and return 1 for @$plan;
+        return 0;
+    }
+    return 1 if ( $plan->{cursor} // '' ) =~ /^BasicCursor/;
+    return 1 if ( $plan->{stage}  // '' ) eq 'COLLSCAN';
+    for my $key (qw(queryPlanner winningPlan inputStage inputStages clauses)) {
+        return 1 if scans( $plan->{$key} );
+    }
+    return 0;
+}
+
 =head2 process_request
 
 Processes an FCGI request.
 
+A POST to C</v1/batch> runs several calls in one round trip. Its body looks
+like
+
+    { "calls": [ { "method": "POST", "path": "/v1/register", "body": { ... } },
+                 { "method": "POST", "path": "/v1/bond", "body": { ... } } ] }
+
+and the response contains the status and body of every call, in order:
+
+    { "responses": [ { "status": 200, "body": { ... } },
+                     { "status": 202, "body": "..." } ] }
+
+The calls are authorized with the batch request's session token, until a
+C</v1/register> call in the batch returns a new one.
+
+The parameters of a GET request are taken from its query string and are all
+optional.
+
+A call that dies is answered with a 500, so that one request can't take the
+FCGI process down.
+
 =cut
 
 sub process_request {
+    my $self = shift;
+
+    my $response = eval { $self->handle_request };
+    return $response if defined $response;
+    $log->error("Request failed: $@");
+    return http_response( 500,
+        "We're really sorry. This shouldn't have happened." );
+}
+
+=head2 handle_request
+
+Does the work of L</process_request>, which catches what dies in it.
+
+=cut
+
+sub handle_request {
     my $self = shift;
 
 	$log->info("Received $ENV{REQUEST_METHOD} request for $ENV{REQUEST_URI}");
 
-    for my $call ( @{$api} ) {
-        if (    $ENV{REQUEST_METHOD} eq $call->[1]
-            and $ENV{REQUEST_URI} =~ $call->[2] )
-        {
-        	$log->debug("Request matches entry '$call->[2]' in the dispatch table.");
-
-            my $google_id;
-            if ( $call->[0] ) {
-            	$log->debug("Request requires authorization.");
-            
-                my $session_token = $ENV{HTTP_X_DYAD_AUTHORIZATION};
-				unless ($session_token) {
-					$log->warning("Authorization failed: session token not present.");
-	                return http_response( 401, "Missing X-Dyad-Authorization header." );
-				}
-
-				$log->debug("Validating session token...");
-                # note: Devel::Cover fails after the following statement
-                # (please tell me why!)
-                my $user =
-                  $self->{db}->users->find_one(
-                    { session_token => $session_token } );
-                unless ($user) {
-                	$log->warning("Authorization failed: session token invalid.");
-                	return http_response( 401, "Invalid session token. Please re-register." );
-                }
-                
-                $google_id = $user->{google_id};
-                unless ($google_id) {
-                	$log->error("User with id $user->{id} has no attribute google_id! Have you been messing with the database?");
-                	return http_response(500, "We're really sorry. This shouldn't have happened.");
-                }
+    if ( $ENV{REQUEST_METHOD} eq 'POST' and $ENV{REQUEST_URI} =~ $BATCH_URI ) {
+        $log->debug("Request is a batch.");
+        my $body = post_body();
+        return http_response(@$body) if ref $body eq 'ARRAY';
+        return http_response(
+            $self->batch( $body->{calls}, $ENV{HTTP_X_DYAD_AUTHORIZATION} ) );
+    }
+
+    my $call = find_call( $ENV{REQUEST_METHOD}, $ENV{REQUEST_URI} );
+    unless ($call) {
+        $log->warning("Unknown request, returning 404.");
+        return http_response( 404, "Unknown request." );
+    }
 
-                $log->debug("Authorization succeeded.");
+    my $body;
+    given ( $call->[1] ) {
+        when ( 'GET' ) {
+            if ($ENV{CONTENT_LENGTH}) {
+                $log->warning("GET request has a body, aborting.");
+                return http_response( 400,
+                    "Request contains a body, but shouldn't" )
             }
+            $body = query_params( $ENV{REQUEST_URI} );
+        }
+        when ( 'POST' ) {
+            $body = post_body();
+            return http_response(@$body) if ref $body eq 'ARRAY';
+        }
+    }
 
-			$log->debug("Validating request parameters...");
-			
-            given ( $call->[1] ) {
-                when ( 'GET' ) {
-                	if ($ENV{CONTENT_LENGTH}) {
-						$log->warning("GET request has a body, aborting.");                    	
-                    	return http_response( 400,
-                        	"Request contains a body, but shouldn't" )
-                	}
-
-					$log->debug("GET request is valid, dispatching...");
-                    return http_response(
-                        $call->[3]->( $self->{db}, $google_id ) );
-                }
-                when ( 'POST' ) {
-                    my $body = &stdin;
-                    
-                    unless (defined $body) {
-                    	$log->warning("POST request has incorrect (or no) content length, aborting.");
-	                    return http_response( 400,
-    	                    "Body is empty or wrong content length." )
-                    }
-
-                    # parse request body into json
-                    $body = json_to_hashref($body);
-                    unless ($body) {
-                    	$log->warning("Request body contains invalid JSON, aborting.");
-                    	return http_response( 400, "Invalid JSON." );
-                	}
-                	
-					$log->debug("Looking for the following parameters: " . join(", ", @{$call->[4]}));
-                    my @params;
-                    for my $req ( @{$call->[4]} ) {
-                        if ( defined $body->{$req} ) {
-                            push @params, $body->{$req};
-                        }
-                        else {
-                        	$log->warning("Missing required parameter $req, aborting.");
-                            return http_response( 400,
-                                "Missing required parameter '$req'." );
-                        }
-                    }
-
-                    $log->debug("POST request is valid, dispatching...");
-                    return http_response(
-                        $call->[3]->( $self->{db}, @params, $google_id ) );
-                }
+    return http_response(
+        $self->dispatch( $call, $ENV{HTTP_X_DYAD_AUTHORIZATION}, $body ) );
+}
+
+=head2 dispatch
+
+Authorizes a single call from the dispatch table, collects its parameters from
+the (already parsed) request body or query string and runs it.
+
+Returns the tuple ($status_code, $body).
+
+=cut
+
+sub dispatch {
+    my $self = shift;
+    my $call = shift;
+
+    my @prepared = $self->prepare( $call, @_ );
+    return @prepared unless ref $prepared[0];
+
+    $log->debug("Request is valid, dispatching...");
+    return $call->[3]->( @{ $prepared[0] } );
+}
+
+=head2 prepare
+
+Does the work of L</dispatch> up to running the call: authorizes it with the
+given session token and collects its parameters from the given body.
+
+Session tokens are looked up in C<$Dyad::Server::session_cache> before going to
+the database. Its C<hits> and C<misses> counters tell how well it is sized.
+
+Returns an arrayref with the arguments of the call's subroutine, or the tuple
+($status_code, $body) of the error response.
+
+=cut
+
+sub prepare {
+    my $self          = shift;
+    my $call          = shift;
+    my $session_token = shift;
+    my $body          = shift;
+
+    my $google_id;
+    if ( $call->[0] ) {
+        $log->debug("Request requires authorization.");
+
+        unless ($session_token) {
+            $log->warning("Authorization failed: session token not present.");
+            return 401, "Missing X-Dyad-Authorization header.";
+        }
+
+        $log->debug("Validating session token...");
+        $google_id = $session_cache->get($session_token);
+        unless ( defined $google_id ) {
+            # note: Devel::Cover fails after the following statement
+            # (please tell me why!)
+            my $user =
+              $self->{db}->users->find_one(
+                { session_token => $session_token } );
+            unless ($user) {
+                $log->warning("Authorization failed: session token invalid.");
+                return 401, "Invalid session token. Please re-register.";
             }
+
+            $google_id = $user->{google_id};
+            unless ($google_id) {
+                $log->error("User with id $user->{id} has no attribute google_id! Have you been messing with the database?");
+                return 500, "We're really sorry. This shouldn't have happened.";
+            }
+            $session_cache->set( $session_token => $google_id );
         }
+
+        $log->debug("Authorization succeeded.");
     }
-    $log->warning("Unknown request, returning 404.");
-    return http_response( 404, "Unknown request." );
+
+    $log->debug("Validating request parameters...");
+
+    if ( $call->[1] eq 'GET' ) {
+        my @params = map { $body->{$_} } @{$call->[4]};
+        return [ $self->{db}, @params, $google_id ];
+    }
+
+    $log->debug("Looking for the following parameters: " . join(", ", @{$call->[4]}));
+    my @params;
+    for my $req ( @{$call->[4]} ) {
+        if ( defined $body->{$req} ) {
+            push @params, $body->{$req};
+        }
+        else {
+            $log->warning("Missing required parameter $req, aborting.");
+            return 400, "Missing required parameter '$req'.";
+        }
+    }
+
+    return [ $self->{db}, @params, $google_id ];
+}
+
+=head2 batch
+
+Runs the calls of a batch request one after the other, and collects their
+results. See L</process_request> for the format.
+
+=cut
+
+sub batch {
+    my $self          = shift;
+    my $calls         = shift;
+    my $session_token = shift;
+
+    my @invalid = check_batch($calls);
+    return @invalid if @invalid;
+
+    my @responses;
+    for my $request (@$calls) {
+        my ( $status, $body );
+        my ( $call, $params, $message ) = batch_call($request);
+
+        if ( not $call ) {
+            ( $status, $body ) = ( $params, $message );
+        }
+        else {
+            ( $status, $body ) =
+              $self->dispatch( $call, $session_token, $params );
+        }
+
+        # let the remaining calls use a freshly registered session
+        $session_token = $body->{session_token}
+          if $status == 200 and ref $body eq 'HASH' and $body->{session_token};
+
+        $log->info("Batched $status response");
+        push @responses, { status => $status, body => $body };
+    }
+
+    return 200, { responses => \@responses };
+}
+
+=head2 check_batch
+
+Returns the tuple ($status_code, $body) of the error response if the calls of
+a batch request aren't a non-empty arrayref of at most
+C<$Dyad::Server::MAX_BATCH_SIZE> calls, or nothing if they are.
+
+=cut
+
+sub check_batch {
+    my $calls = shift;
+
+    unless ( ref $calls eq 'ARRAY' and @$calls ) {
+        $log->warning("Batch has no calls, aborting.");
+        return 400, "Batch should contain a non-empty array 'calls'.";
+    }
+    if ( @$calls > $MAX_BATCH_SIZE ) {
+        $log->warning("Batch has too many calls, aborting.");
+        return 400, "A batch can contain at most $MAX_BATCH_SIZE calls.";
+    }
+    return;
+}
+
+=head2 batch_call
+
+Looks up a single call of a batch request in the dispatch table.
+
+Returns the tuple ($call, $params) with its entry and parameters, or
+(undef, $status_code, $body) with the error response if it's invalid.
+
+=cut
+
+sub batch_call {
+    my $request = shift;
+
+    my $call = ref $request eq 'HASH'
+      && find_call( $request->{method}, $request->{path} );
+
+    return undef, 404, "Unknown request." unless $call;
+    return undef, 400, "Request contains a body, but shouldn't"
+      if $call->[1] eq 'GET' and defined $request->{body};
+    return undef, 400, "Invalid JSON."
+      if $call->[1] eq 'POST' and ref $request->{body} ne 'HASH';
+    return $call,
+      $call->[1] eq 'GET'
+      ? query_params( $request->{path} )
+      : $request->{body};
 }
 
 =head1 INTERNAL SUBROUTINES
@@ -213,17 +675,37 @@ sub register_gcm;
 sub bond;
 sub sdp_message;
 sub get_sdp_message;
+sub candidates;
+sub get_candidates;
+sub find_call;
+sub query_params;
+sub google_request;
+sub cached_register;
+sub finish_register;
+sub new_session;
+sub take_sdp_message;
+sub sdp_message_of;
+sub candidates_of;
+sub wait_time;
+sub parse_body;
+sub gcm_push;
 sub stdin;
+sub post_body;
 sub http_response;
 sub json_to_hashref;
+sub binary_to_hashref;
 
 our @ISA       = qw(Exporter);
-our @EXPORT_OK = qw(register register_gcm bond sdp_message get_sdp_message stdin http_response json_to_hashref);
+our @EXPORT_OK = qw(register register_gcm bond sdp_message get_sdp_message candidates get_candidates find_call query_params google_request cached_register finish_register new_session take_sdp_message sdp_message_of candidates_of wait_time check_batch batch_call gcm_push stdin post_body parse_body http_response json_to_hashref binary_to_hashref hash_key);
 
 =head2 register
 
 Should be called with a valid Google OAuth2 token 
 
+Google's answer is kept in C<$Dyad::Server::google_cache> for a while. Its
+C<hits> counter is the number of calls to Google it saved, and its C<misses>
+counter the number of calls that were made.
+
 Returns the tuple ($status_code, $body) where $body might be a hashref or an
 error string.
 
@@ -233,38 +715,109 @@ sub register {
     my $db      = shift;
     my $token   = shift;
 
-    my $request = HTTP::Request->new(
+    my @cached = cached_register( $db, $token );
+    return @cached if @cached;
+    return finish_register( $db,
+        $http_client->request( google_request($token) ), $token );
+}
+
+=head2 cached_register
+
+Does L</register> with the Google id that C<$Dyad::Server::google_cache> has for
+the token, if it has one.
+
+Returns the tuple ($status_code, $body), or nothing if Google has to be asked.
+
+=cut
+
+sub cached_register {
+    my $db    = shift;
+    my $token = shift;
+
+    my $google_id = $google_cache->get( hash_key($token) );
+    return unless defined $google_id;
+    $log->debug("Google's answer for the token is cached.");
+    return 401, "Auth token rejected by Google." unless length $google_id;
+    return new_session( $db, $google_id );
+}
+
+=head2 google_request
+
+Returns the HTTP::Request with which L</register> asks Google whose OAuth2 token
+it got.
+
+=cut
+
+sub google_request {
+    my $token = shift;
+    return HTTP::Request->new(
         GET => $GOOGLE_URL,
-        [ Authorization => "OAuth $token" ]
+        [ Authorization => 'OAuth ' . encode( 'UTF-8', $token ) ]
     );
-    my $response = $http_client->request($request);
+}
+
+=head2 finish_register
+
+Does the rest of L</register> with Google's HTTP::Response and the token:
+caches Google's answer and stores a new session token for the Google id in it.
+Only answers about the token itself are cached, not failures of Google.
+
+=cut
+
+sub finish_register {
+    my $db       = shift;
+    my $response = shift;
+    my $token    = shift;
+
     if ( $response->is_success ) {
 
         my $json = json_to_hashref $response->decoded_content;
         return 500, "Google has a virus." unless $json;
         my $str = $response->as_string;
         $log->info("GOOGLE RETURNED: $str");
-        my $google_id     = $json->{id};
-        my $session_token = '';
-        $session_token .= chr( ( rand 93 ) + 33 ) for ( 1 .. 32 );
-
-        $db->users->update(
-            { google_id => $google_id },
-            {
-                '$set' => {
-                    session_token => $session_token
-                }
-            },
-            { upsert => 1 }
-        );
-
-        return 200, { session_token => $session_token };
+        $google_cache->set( hash_key($token) => $json->{id}, $GOOGLE_TTL )
+          if defined $token and defined $json->{id} and length $json->{id};
+        return new_session( $db, $json->{id} );
     }
     else {
+        $google_cache->set( hash_key($token) => '', $REJECTED_TOKEN_TTL )
+          if defined $token and ( $response->code == 401 or $response->code == 403 );
         return 401, "Auth token rejected by Google.";
     }
 }
 
+=head2 new_session
+
+Stores a new session token for a Google id, which replaces the old one.
+
+Returns the tuple ($status_code, $body) of L</register>.
+
+=cut
+
+sub new_session {
+    my $db        = shift;
+    my $google_id = shift;
+
+    my $session_token = '';
+    $session_token .= chr( ( rand 93 ) + 33 ) for ( 1 .. 32 );
+
+    # the old session token is no longer valid
+    my $user = $db->users->find_one( { google_id => $google_id } );
+    $session_cache->remove( $user->{session_token} ) if $user;
+
+    $db->users->update(
+        { google_id => $google_id },
+        {
+            '$set' => {
+                session_token => $session_token
+            }
+        },
+        { upsert => 1 }
+    );
+
+    return 200, { session_token => $session_token };
+}
+
 =head2 register_gcm
 
 Adds the supplied gcm id to the database.
@@ -296,7 +849,14 @@ sub register_gcm {
 
 =head2 bond
 
-Should be called with a couple's shared secret and a user id.
+Should be called with a couple's shared secret and a user id. When the other
+user is found, it gets a GCM push of type C<bonded>.
+
+A secret that waits for the other user is kept in the C<bonds> collection,
+under its SHA-256, for C<$BOND_TTL> seconds. Finding and removing it is a
+single atomic operation on its key, so the time it takes doesn't grow with
+the number of users or of secrets that were never matched. MongoDB removes
+the expired ones by itself.
 
 Returns the tuple ($status_code, $body) where $body is a status string.
 
@@ -306,72 +866,347 @@ sub bond {
     my $db        = shift;
     my $secret    = shift;
     my $google_id = shift;
+    my $key       = hash_key($secret);
 
-    # TODO: use timestamps
-    # in this case for selecting the most recent secret
-
-    # Retrieve an _other_ user with the same secret and unset it
-    # and set the other field (all in the same atomic operation!)
-    my $other = $db->run_command(
+    # Take the secret of an _other_ user that is still waiting
+    # (in the same atomic operation!)
+    my $pending = $db->run_command(
         {
-            findAndModify => 'users',
+            findAndModify => 'bonds',
             query         => {
-                secret    => $secret,
-                google_id => { '$ne' => $google_id }
+                _id       => $key,
+                google_id => { '$ne' => $google_id },
+                created =>
+                  { '$gt' => DateTime->now->subtract( seconds => $BOND_TTL ) }
             },
-            update => {
-                '$unset' => { secret => 1 },
-                '$set'   => { other  => $google_id }
-            }
+            remove => 1
+        }
+    )->{value};
+
+    my $other = $pending && $db->run_command(
+        {
+            findAndModify => 'users',
+            query         => { google_id => $pending->{google_id} },
+            update        => { '$set' => { other => $google_id } }
         }
     )->{value};
 
     if ($other) {
         $db->users->update(
             { google_id => $google_id },
-            {
-                '$set'   => { other  => $other->{google_id} },
-                '$unset' => { secret => 1 }
-            }
+            { '$set'    => { other => $other->{google_id} } }
         );
 
-        # TODO: send c2dm push to other.
+        Dyad::Server::Push::enqueue $db, $other->{gcm_id}, { type => 'bonded' }
+          if $other->{gcm_id};
 
         return 200, "Successfully bonded.";
     }
     else {
-        $db->users->update(
-            { google_id => $google_id },
-            { '$set'    => { secret => $secret } }
+        # a re-submitted secret waits $BOND_TTL seconds from now
+        $db->bonds->update(
+            { _id => $key },
+            { '$set' => { google_id => $google_id, created => DateTime->now } },
+            { upsert => 1 }
         );
         return 202, "Please wait for other to send secret";
     }
 }
 
+=head2 sdp_message
+
+Stores an SDP message for the other user of the dyad and queues a GCM push for
+it (see L<Dyad::Server::Push>), which contains the message itself if it fits.
+
+The message is relayed as it is. Clients may compress it (such messages start
+with a C<dzN:> prefix, C<dz2:> these days), which the server neither knows nor
+cares about.
+
+A new message starts a new session: the candidates that were trickled after
+the previous one (see L</candidates>) are dropped, and the message can be
+taken once (see L</get_sdp_message>).
+
+=cut
+
 sub sdp_message {
     my $db = shift;
     my $message = shift;
     my $google_id = shift;
     $db->users->update(
         { google_id => $google_id },
-        { '$set'  => { message => $message } }
+        {
+            '$set'   => { message    => $message },
+            '$unset' => { candidates => 1, message_taken => 1 }
+        }
     );
-    # TODO: send gcm push to other, containing sdp message
+
+    my $user  = $db->users->find_one( { google_id => $google_id } );
+    my $other = $user && defined $user->{other}
+      && $db->users->find_one( { google_id => $user->{other} } );
+    if ( $other and $other->{gcm_id} ) {
+        my $data = { type => 'sdp_message', message => $message };
+        delete $data->{message}
+          if length( encode_json $data ) > $MAX_GCM_PAYLOAD;
+        Dyad::Server::Push::enqueue $db, $other->{gcm_id}, $data;
+    }
+
     return 202, "Please wait for sdp answer";
 }
 
+=head2 get_sdp_message
+
+Returns the SDP message of the other user of the dyad, or a 404 if it isn't
+there yet.
+
+A message is handed out once. The GETs after the one that took it find
+nothing until the other user sends a new one, so that a device that sets up a
+new session doesn't pick up the description of the previous one.
+
+The optional C<wait> parameter asks to hold on to the call until the message
+arrives, for at most that many seconds (capped at
+C<$Dyad::Server::MAX_SDP_WAIT>). Only L<Dyad::Server::Event> does so: it
+parks the call and goes on serving the others. A process of the FCGI loop
+handles one request at a time, and waiting there would hold up every other
+client, including the other user whose message is waited for. So here the
+call is answered right away, and clients should pace their polls when a 404
+comes back sooner than they asked for.
+
+=cut
+
 sub get_sdp_message {
     my $db = shift;
+    my $wait = shift;
+    my $google_id = shift;
+
+    my @found = take_sdp_message( $db, $google_id );
+    return @found if @found;
+    return 404, "Please wait for other to send offer";
+}
+
+=head2 take_sdp_message
+
+Takes the message of the other user of a dyad for a Google id: returns the
+tuple ($status_code, $body) of L</get_sdp_message> and marks the message as
+taken in the same atomic operation, or returns nothing if there is no message
+that hasn't been taken.
+
+=cut
+
+sub take_sdp_message {
+    my $db        = shift;
     my $google_id = shift;
-    my $other = $db->users->find_one({other => $google_id});
-    if ($other && $other->{message}) {
-        return 200, $other->{message};
+
+    return sdp_message_of(
+        $db->run_command(
+            {
+                findAndModify => 'users',
+                query         => {
+                    other         => $google_id,
+                    message       => { '$exists' => 1 },
+                    message_taken => { '$exists' => 0 }
+                },
+                update => { '$set' => { message_taken => 1 } }
+            }
+        )->{value}
+    );
+}
+
+=head2 sdp_message_of
+
+Takes the user document of the other user of a dyad, if any, and returns the
+tuple ($status_code, $body) of L</get_sdp_message> if it has a message that
+hasn't been taken, or nothing if it hasn't.
+
+=cut
+
+sub sdp_message_of {
+    my $other = shift;
+    return 200, $other->{message}
+      if $other && $other->{message} && !$other->{message_taken};
+    return;
+}
+
+=head2 candidates
+
+Appends a batch of ICE candidates to the queue of the user, for the other user
+of the dyad. This lets a client send its SDP message as soon as it knows its
+credentials, and trickle its candidates after it as they are gathered, instead
+of gathering them all first. A batch is a string of C<a=candidate> lines, and
+the last one usually ends with C<a=end-of-candidates>; the server doesn't look
+inside.
+
+The queue belongs to the last SDP message, so that has to be sent first. It
+holds at most C<$Dyad::Server::MAX_CANDIDATE_BATCHES> batches. Both are
+conditions of the update itself, so concurrent calls can't get past them.
+
+=cut
+
+sub candidates {
+    my $db        = shift;
+    my $batch     = shift;
+    my $google_id = shift;
+
+    return 400, "Candidates should not be empty." unless length $batch;
+
+    my $user = $db->run_command(
+        {
+            findAndModify => 'users',
+            query         => {
+                google_id => $google_id,
+                message   => { '$exists' => 1 },
+
+                # room for one more batch
+                'candidates.' . ( $MAX_CANDIDATE_BATCHES - 1 ) =>
+                  { '$exists' => 0 }
+            },
+            update => { '$push' => { candidates => $batch } }
+        }
+    )->{value};
+    return 202, "Candidates queued." if $user;
+
+    $user = $db->users->find_one( { google_id => $google_id } );
+    return 409, "Please send an sdp message first."
+      unless $user and defined $user->{message};
+    return 413, "Too many candidate batches.";
+}
+
+=head2 get_candidates
+
+Returns the batches of candidates that the other user of the dyad has queued
+since its last SDP message, starting at the optional C<since> parameter: the
+number of batches the client already has. The body looks like
+
+    { "candidates": [ "a=candidate:...", ... ], "next": 3 }
+
+where C<next> is the C<since> of the next call.
+
+Like L</get_sdp_message>, it takes a C<wait> parameter, so that a client can
+follow the queue with one long-polling call after the other, and like it, it
+only waits in L<Dyad::Server::Event>. The FCGI loop answers right away.
+
+=cut
+
+sub get_candidates {
+    my $db        = shift;
+    my $since     = shift;
+    my $wait      = shift;
+    my $google_id = shift;
+
+    my @found =
+      candidates_of( $db->users->find_one( { other => $google_id } ), $since );
+    return @found if @found;
+    return 404, "No new candidates.";
+}
+
+=head2 candidates_of
+
+Takes the user document of the other user of a dyad, if any, and the C<since>
+parameter, and returns the tuple ($status_code, $body) of L</get_candidates>
+if there are new candidates, or nothing if there aren't.
+
+=cut
+
+sub candidates_of {
+    my $other = shift;
+    my $since = shift;
+
+    $since = 0 unless $since and $since =~ /^\d+$/;
+    my $queue = ( $other && $other->{candidates} ) // [];
+    return unless @$queue > $since;
+    return 200,
+      {
+        candidates => [ @$queue[ $since .. $#$queue ] ],
+        next       => scalar @$queue
+      };
+}
+
+=head2 wait_time
+
+Returns the number of seconds a long-polling call waits, given its C<wait>
+parameter: 0 if it's missing or invalid, and at most
+C<$Dyad::Server::MAX_SDP_WAIT>.
+
+=cut
+
+sub wait_time {
+    my $wait = shift;
+    $wait = 0 unless $wait and $wait =~ /^\d+(?:\.\d+)?$/;
+    $wait = $MAX_SDP_WAIT if $wait > $MAX_SDP_WAIT;
+    return $wait;
+}
+
+=head2 find_call
+
+Returns the entry of the dispatch table that matches the given request method
+and URI, or nothing if there is none.
+
+=cut
+
+sub find_call {
+    my $method = shift;
+    my $uri    = shift;
+
+    return unless defined $method and defined $uri;
+    ( my $path = $uri ) =~ s/\?.*//s;
+    for my $call ( @{$api} ) {
+        if ( $method eq $call->[1] and $path =~ $call->[2] ) {
+            $log->debug("Request matches entry '$call->[2]' in the dispatch table.");
+            return $call;
+        }
     }
-    else {
-        return 404, "Please wait for other to send offer";
+    return;
+}
+
+=head2 query_params
+
+Returns a hashref with the (unescaped) parameters of the query string of the
+given URI.
+
+=cut
+
+sub query_params {
+    my $uri = shift // '';
+    my ($query) = $uri =~ /\?(.*)$/s;
+    my %params;
+    for ( split /[&;]/, $query // '' ) {
+        my ( $key, $value ) = map {
+            ( my $s = $_ // '' ) =~ tr/+/ /;
+            $s =~ s/%([0-9A-Fa-f]{2})/chr hex $1/ge;
+            $s
+        } split /=/, $_, 2;
+        $params{$key} = $value // '' if length $key;
     }
+    return \%params;
 }
 
+=head2 gcm_push
+
+Sends a GCM message with the given data to one or more registration ids right
+away, without queueing it. Does nothing unless C<$Dyad::Server::GCM_API_KEY>
+is set.
+
+Returns the decoded response of the GCM server, or nothing if the push failed.
+
+=cut
+
+sub gcm_push {
+    my $gcm_ids = shift;
+    my $data    = shift;
+
+    $gcm_ids = [$gcm_ids] unless ref $gcm_ids eq 'ARRAY';
+    return unless $GCM_API_KEY and @$gcm_ids;
+
+    my ( $status, $result ) = Dyad::Server::Push->new(
+        url     => $GCM_URL,
+        api_key => $GCM_API_KEY,
+        ua      => $http_client
+    )->send( $gcm_ids, $data );
+    unless ( $status == 200 and $result ) {
+        $log->warning("GCM push failed: $status");
+        return;
+    }
+    return $result;
+}
 
 =head2 stdin
 
@@ -387,6 +1222,61 @@ sub stdin {
     return $body;
 }
 
+=head2 post_body
+
+Reads the body of a POST request from standard input and parses it according
+to its content type: the compact binary format (see L</binary_to_hashref>) or
+JSON, which is also assumed when there is no content type.
+
+Returns the parsed hashref, or an arrayref containing the ($status_code,
+$message) of the error response when the body is missing or invalid.
+
+=cut
+
+sub post_body {
+    return parse_body( $ENV{CONTENT_TYPE}, &stdin );
+}
+
+=head2 parse_body
+
+Does the work of L</post_body> for a given content type and body (which is
+undefined when it's missing or has the wrong length).
+
+=cut
+
+sub parse_body {
+    my $type = shift // '';
+    my $body = shift;
+    my $binary = $type =~ /^\Q$BINARY_TYPE\E\s*(?:;|$)/i;
+    unless ( $binary or $type =~ $JSON_TYPES ) {
+        $log->warning("POST request has unsupported content type $type, aborting.");
+        return [ 415, "Unsupported content type." ];
+    }
+
+    unless (defined $body) {
+        $log->warning("POST request has incorrect (or no) content length, aborting.");
+        return [ 400, "Body is empty or wrong content length." ];
+    }
+
+    if ($binary) {
+        $body = binary_to_hashref($body);
+        unless ($body) {
+            $log->warning("Request body is invalid binary, aborting.");
+            return [ 400, "Invalid binary body." ];
+        }
+        return $body;
+    }
+
+    # parse request body into json
+    $body = json_to_hashref($body);
+    unless ($body) {
+        $log->warning("Request body contains invalid JSON, aborting.");
+        return [ 400, "Invalid JSON." ];
+    }
+
+    return $body;
+}
+
 =head2 http_response
 
 Returns a proper CGI response given an http status code and an optional
@@ -434,6 +1324,61 @@ sub json_to_hashref {
     return $json;
 }
 
+=head2 binary_to_hashref
+
+Decodes a request body in Dyad's compact binary format: a version byte (1),
+followed by fields that consist of the length of the name, the name, the
+length of the value and the value. Names and values are UTF-8 strings and
+lengths are unsigned LEB128 varints.
+
+Returns 0 if the body is malformed, like json_to_hashref.
+
+=cut
+
+sub binary_to_hashref {
+    my $bytes = shift;
+
+    return 0 unless defined $bytes and length $bytes and ord $bytes == 1;
+    my $pos = 1;
+    my $end = length $bytes;
+
+    my $string = sub {
+        my ( $length, $shift ) = ( 0, 0 );
+        while (1) {
+            return if $pos >= $end or $shift > 28;
+            my $byte = ord substr $bytes, $pos++, 1;
+            $length |= ( $byte & 0x7f ) << $shift;
+            last unless $byte & 0x80;
+            $shift += 7;
+        }
+        return if $pos + $length > $end;
+        my $s = substr $bytes, $pos, $length;
+        $pos += $length;
+        return eval { decode( 'UTF-8', $s, Encode::FB_CROAK ) };
+    };
+
+    my %hash;
+    while ( $pos < $end ) {
+        my $name  = $string->();
+        my $value = $string->();
+        return 0 unless defined $name and defined $value;
+        $hash{$name} = $value;
+    }
+    return \%hash;
+}
+
+=head2 hash_key
+
+Returns the hex SHA-256 of a string, under which it is kept. The string is
+hashed as UTF-8, because Digest::SHA only takes bytes and the strings in
+request bodies are characters.
+
+=cut
+
+sub hash_key {
+    return sha256_hex( encode( 'UTF-8', shift ) );
+}
+
 =head1 AUTHOR
 
 Return to the Source, C<< <info at r2src.com> >>
@@ -0,0 +1,238 @@
+package Dyad::Server::Cache;
+our $VERSION = '0.01';
+
+=head1 NAME
+
+Dyad::Server::Cache - A bounded in-process cache with LRU eviction and expiry.
+
+=head1 SYNOPSIS
+
+    use Dyad::Server::Cache;
+
+    my $cache = Dyad::Server::Cache->new( max_size => 10_000, ttl => 60 );
+    $cache->set( $key => $value );
+    my $value = $cache->get($key);    # undef when missing or expired
+    $cache->remove($key);
+
+    printf "%d hits, %d misses\n", $cache->hits, $cache->misses;
+
+All operations take constant time. The least recently used entry is evicted
+when the cache is full.
+
+=cut
+
+use v5.14;
+use strict;
+use Time::HiRes qw(time);
+
+# the fields of an entry
+use constant {
+    KEY     => 0,
+    VALUE   => 1,
+    EXPIRES => 2,
+    PREV    => 3,
+    NEXT    => 4,
+};
+
+=head1 METHODS
+
+=head2 new
+
+Takes the optional arguments C<max_size> (the maximum number of entries,
+defaults to 10000) and C<ttl> (the number of seconds an entry stays valid,
+defaults to 60).
+
+=cut
+
+sub new {
+    my $class  = shift;
+    my %kwargs = @_;
+
+    my $self = {
+        max_size  => $kwargs{max_size} // 10_000,
+        ttl       => $kwargs{ttl}      // 60,
+        entries   => {},
+        hits      => 0,
+        misses    => 0,
+        evictions => 0,
+    };
+    die "max_size should be positive\n" unless $self->{max_size} > 0;
+
+    # a circular list with a sentinel: most recently used entries come first
+    my $head = [];
+    $head->[PREV] = $head->[NEXT] = $head;
+    $self->{head} = $head;
+
+    bless $self, $class;
+}
+
+=head2 get
+
+Returns the value stored for the key, or undef if there is none or it has
+expired. Counts as a hit or a miss.
+
+=cut
+
+sub get {
+    my $self = shift;
+    my $key  = shift;
+
+    my $entry = $self->{entries}->{$key};
+    if ( $entry and $entry->[EXPIRES] <= time ) {
+        $self->remove($key);
+        undef $entry;
+    }
+    unless ($entry) {
+        $self->{misses}++;
+        return;
+    }
+
+    $self->{hits}++;
+    _unlink($entry);
+    $self->_push_front($entry);
+    return $entry->[VALUE];
+}
+
+=head2 set
+
+Stores a value for the key, optionally with a ttl of its own. Evicts the least
+recently used entry if the cache is full.
+
+=cut
+
+sub set {
+    my $self  = shift;
+    my $key   = shift;
+    my $value = shift;
+    my $ttl   = shift // $self->{ttl};
+
+    $self->remove($key);
+    if ( keys %{ $self->{entries} } >= $self->{max_size} ) {
+        $self->remove( $self->{head}->[PREV]->[KEY] );
+        $self->{evictions}++;
+    }
+
+    my $entry = [ $key, $value, time + $ttl ];
+    $self->{entries}->{$key} = $entry;
+    $self->_push_front($entry);
+    return $value;
+}
+
+=head2 remove
+
+Removes the entry for the key, if any.
+
+=cut
+
+sub remove {
+    my $self = shift;
+    my $key  = shift;
+
+    return unless defined $key;
+    my $entry = delete $self->{entries}->{$key} or return;
+    _unlink($entry);
+    return $entry->[VALUE];
+}
+
+=head2 clear
+
+Removes all entries. The counters are left alone.
+
+=cut
+
+sub clear {
+    my $self = shift;
+
+    for my $entry ( values %{ $self->{entries} } ) {
+        @$entry = ();
+    }
+    $self->{entries} = {};
+    $self->{head}->[PREV] = $self->{head}->[NEXT] = $self->{head};
+}
+
+=head2 size
+
+Returns the number of entries, including ones that have expired but haven't
+been looked up since.
+
+=cut
+
+sub size {
+    return scalar keys %{ shift->{entries} };
+}
+
+=head2 hits
+
+=head2 misses
+
+=head2 evictions
+
+Counters for sizing the cache: the number of lookups that found a value, the
+number that didn't, and the number of entries that were thrown out to make
+room for new ones.
+
+=cut
+
+sub hits      { shift->{hits} }
+sub misses    { shift->{misses} }
+sub evictions { shift->{evictions} }
+
+=head2 stats
+
+Returns all counters and the size in a hashref, for logging.
+
+=cut
+
+sub stats {
+    my $self = shift;
+    return {
+        size      => $self->size,
+        hits      => $self->{hits},
+        misses    => $self->{misses},
+        evictions => $self->{evictions},
+    };
+}
+
+sub _push_front {
+    my $self  = shift;
+    my $entry = shift;
+
+    my $head = $self->{head};
+    $entry->[PREV]         = $head;
+    $entry->[NEXT]         = $head->[NEXT];
+    $head->[NEXT]->[PREV]  = $entry;
+    $head->[NEXT]          = $entry;
+}
+
+sub _unlink {
+    my $entry = shift;
+
+    $entry->[PREV]->[NEXT] = $entry->[NEXT];
+    $entry->[NEXT]->[PREV] = $entry->[PREV];
+    $entry->[PREV] = $entry->[NEXT] = undef;
+}
+
+# the list is circular, so break it up
+sub DESTROY {
+    my $self = shift;
+    $self->clear;
+    @{ $self->{head} } = ();
+}
+
+=head1 AUTHOR
+
+Return to the Source, C<< <info at r2src.com> >>
+
+=head1 LICENSE AND COPYRIGHT
+
+Copyright 2012 Return to the Source.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of either: the GNU General Public License as published
+by the Free Software Foundation; or the Artistic License.
+
+See http://dev.perl.org/licenses/ for more information.
+
+=cut
+
+1;    # End of Dyad::Server::Cache
@@ -0,0 +1,841 @@
+package Dyad::Server::Event;
+our $VERSION = '0.01';
+
+=head1 NAME
+
+Dyad::Server::Event - An event-driven Dyad Server that speaks HTTP itself.
+
+=head1 SYNOPSIS
+
+Instead of the FCGI loop, which handles one request at a time per process:
+
+    use Dyad::Server::Event;
+    use MongoDB::Connection;
+
+    my $conn   = MongoDB::Connection->new;
+    my $server = Dyad::Server::Event->new(
+        mongodb => $conn->dyad,
+        listen  => '0.0.0.0:3454',
+    );
+    $server->run;
+
+The server runs the same calls as L<Dyad::Server> (it is one), but never waits
+for them. A process serves any number of connections with a single poll loop,
+and the two kinds of calls that used to block it don't:
+
+=over 4
+
+=item * Long-polling calls (L<Dyad::Server/get_sdp_message> and
+L<Dyad::Server/get_candidates> with a C<wait>) are parked until the other user
+sends what they wait for. A parked call is answered right away when the other
+user's call is handled by the same process, and within
+C<$Dyad::Server::SDP_POLL_INTERVAL> seconds otherwise, because all parked calls
+are checked with a single query that often.
+
+=item * L<Dyad::Server/register> asks Google with the C<http> client passed to
+L</new>. That's any object with a C<request> method that takes an
+HTTP::Request and a callback, and calls the callback with the HTTP::Response
+later. The default is a L<Dyad::Server::Event::HTTP>, which runs in this
+server's loop.
+
+=back
+
+The other calls only make a few MongoDB queries, which stay synchronous.
+
+A benchmark that compares this server with the FCGI loop is in
+F<bench/server.pl>.
+
+=cut
+
+use v5.14;
+use strict;
+use Log::Any qw($log);
+use IO::Socket::INET;
+use IO::Poll qw(POLLIN POLLOUT POLLERR POLLHUP);
+use Errno qw(EAGAIN EWOULDBLOCK EINTR);
+use HTTP::Status qw(status_message);
+use Time::HiRes qw(time);
+use Dyad::Server
+  qw(find_call query_params parse_body http_response google_request cached_register finish_register take_sdp_message sdp_message_of candidates_of wait_time check_batch batch_call);
+use Dyad::Server::Event::HTTP;
+
+our @ISA = qw(Dyad::Server);
+
+# limits of the requests a connection can send
+our $MAX_HEADER_SIZE = 8192;
+our $MAX_BODY_SIZE   = 1 << 20;
+
+# bytes a connection may send ahead while one of its requests is in progress;
+# beyond that it isn't read until the response is out
+our $MAX_PIPELINED = $MAX_HEADER_SIZE + $MAX_BODY_SIZE;
+
+# seconds after which a connection without requests in progress is closed
+our $IDLE_TIMEOUT = 60;
+
+# calls that would block the loop, and the methods that run them instead
+my %deferred = (
+    \&Dyad::Server::register        => 'defer_register',
+    \&Dyad::Server::get_sdp_message => 'park_sdp_message',
+    \&Dyad::Server::get_candidates  => 'park_candidates',
+);
+
+# calls after which the other user may find what its parked calls wait for
+my %wakes = (
+    \&Dyad::Server::sdp_message => 1,
+    \&Dyad::Server::candidates  => 1,
+);
+
+=head1 METHODS
+
+=head2 new
+
+Takes the same C<mongodb> as L<Dyad::Server/new>, the address to C<listen> on
+(C<host:port>, or a listening socket) and optionally the C<http> client that
+L<Dyad::Server/register> uses (see L</SYNOPSIS>).
+
+=cut
+
+sub new {
+    my $class  = shift;
+    my %kwargs = @_;
+
+    my $self = Dyad::Server::new( $class, %kwargs );
+
+    my $listen = $kwargs{listen} // '0.0.0.0:3454';
+    $self->{listen} = ref $listen ? $listen : IO::Socket::INET->new(
+        LocalAddr => $listen,
+        Listen    => SOMAXCONN,
+        ReuseAddr => 1
+    ) or die "Can't listen on $listen: $!\n";
+    $self->{listen}->blocking(0);
+
+    $self->{poll}        = IO::Poll->new;
+    $self->{watched}     = {};    # fileno => { fh, read, write }
+    $self->{tickers}     = [];
+    $self->{connections} = {};    # fileno => connection
+    $self->{parked}      = {};    # id => parked call
+    $self->{waiting}     = {};    # google id of the other user => id => parked call
+    $self->{serial}      = 0;
+    $self->{requests}    = 0;
+
+    $self->{http} = $kwargs{http} // Dyad::Server::Event::HTTP->new( loop => $self );
+
+    $self->watch( $self->{listen}, read => sub { $self->accept_connections } );
+    $self->on_tick( sub { $self->recheck } );
+    $self->on_tick( sub { $self->close_idle } );
+    return $self;
+}
+
+=head2 port
+
+Returns the port the server listens on.
+
+=cut
+
+sub port { shift->{listen}->sockport }
+
+=head2 run
+
+Runs the loop until L</stop> is called.
+
+=cut
+
+sub run {
+    my $self = shift;
+
+    local $SIG{PIPE} = 'IGNORE';
+    $log->info("Dyad Server listening on port " . $self->port);
+    $self->{running} = 1;
+    $self->run_once while $self->{running};
+}
+
+=head2 stop
+
+Makes L</run> return after the current round of the loop.
+
+=cut
+
+sub stop { shift->{running} = 0 }
+
+=head2 run_once
+
+Waits for at most the given number of seconds (or until the next tick) for
+events, and handles them.
+
+=cut
+
+sub run_once {
+    my $self    = shift;
+    my $timeout = shift;
+
+    $self->{next_tick} //= time;
+    my $until_tick = $self->{next_tick} - time;
+    $timeout = $until_tick if not defined $timeout or $timeout > $until_tick;
+    $timeout = 0 if $timeout < 0;
+
+    my $poll = $self->{poll};
+    if ( $poll->poll($timeout) < 0 ) {
+        die "poll failed: $!\n" unless $! == EINTR;
+    }
+    for my $fh ( $poll->handles( POLLIN | POLLOUT | POLLERR | POLLHUP ) ) {
+        my $events = $poll->events($fh);
+        for my $mode ( [ read => POLLIN ], [ write => POLLOUT ] ) {
+            my ( $name, $flag ) = @$mode;
+            next unless $events & ( $flag | POLLERR | POLLHUP );
+
+            # an earlier callback may have stopped watching it
+            my $watched = defined fileno $fh && $self->{watched}->{ fileno $fh };
+            next unless $watched and $watched->{fh} == $fh and $watched->{$name};
+            $watched->{$name}->();
+        }
+    }
+
+    if ( time >= $self->{next_tick} ) {
+        $self->{next_tick} = time + $Dyad::Server::SDP_POLL_INTERVAL;
+        $_->() for @{ $self->{tickers} };
+    }
+}
+
+=head2 watch
+
+Takes a non-blocking handle and C<read> and/or C<write> callbacks, which are
+called when the handle is ready for it. An undefined callback stops watching
+for that.
+
+=cut
+
+sub watch {
+    my $self = shift;
+    my $fh   = shift;
+    my %callbacks = @_;
+
+    my $watched = $self->{watched}->{ fileno $fh } //= { fh => $fh };
+    $watched->{$_} = $callbacks{$_} for keys %callbacks;
+
+    my $mask = ( $watched->{read} ? POLLIN : 0 ) | ( $watched->{write} ? POLLOUT : 0 );
+    $self->{poll}->mask( $fh => $mask );
+    delete $self->{watched}->{ fileno $fh } unless $mask;
+}
+
+=head2 unwatch
+
+Stops watching a handle. Call it before closing the handle.
+
+=cut
+
+sub unwatch {
+    my $self = shift;
+    my $fh   = shift;
+
+    $self->{poll}->remove($fh);
+    delete $self->{watched}->{ fileno $fh } if defined fileno $fh;
+}
+
+=head2 on_tick
+
+Takes a callback that is called every C<$Dyad::Server::SDP_POLL_INTERVAL>
+seconds.
+
+=cut
+
+sub on_tick {
+    my $self = shift;
+    push @{ $self->{tickers} }, shift;
+}
+
+=head2 connections
+
+=head2 parked
+
+=head2 requests
+
+Return the number of open connections, of calls that are parked and of requests
+that were handled.
+
+=cut
+
+sub connections { scalar keys %{ shift->{connections} } }
+sub parked      { scalar keys %{ shift->{parked} } }
+sub requests    { shift->{requests} }
+
+=head1 INTERNAL METHODS
+
+=head2 accept_connections
+
+Accepts the connections that are waiting on the listening socket.
+
+=cut
+
+sub accept_connections {
+    my $self = shift;
+
+    while ( my $socket = $self->{listen}->accept ) {
+        $socket->blocking(0);
+        my $conn = {
+            socket => $socket,
+            fileno => fileno $socket,
+            in     => '',
+            out    => '',
+            active => time
+        };
+        $self->{connections}->{ $conn->{fileno} } = $conn;
+        $self->watch( $socket, read => sub { $self->read_from($conn) } );
+    }
+}
+
+=head2 read_from
+
+Reads what a connection sent, and handles it once there's a whole request.
+Stops reading a connection that sends more than C<$MAX_PIPELINED> bytes while
+one of its requests is in progress, until that one is answered.
+
+=cut
+
+sub read_from {
+    my $self = shift;
+    my $conn = shift;
+
+    my $n = sysread $conn->{socket}, $conn->{in}, 65536, length $conn->{in};
+    unless ($n) {
+        return if not defined $n and ( $! == EAGAIN or $! == EWOULDBLOCK or $! == EINTR );
+        return $self->close_connection($conn);
+    }
+    $conn->{active} = time;
+    if ( $conn->{busy} and length $conn->{in} > $MAX_PIPELINED ) {
+        $self->watch( $conn->{socket}, read => undef );
+        $conn->{paused} = 1;
+    }
+    $self->parse($conn);
+}
+
+=head2 parse
+
+Parses the next request of a connection, if it has sent all of it and no
+other request of it is in progress.
+
+=cut
+
+sub parse {
+    my $self = shift;
+    my $conn = shift;
+
+    return if $conn->{busy} or $conn->{closing};
+
+    unless ( $conn->{request} ) {
+        my $end = index $conn->{in}, "\r\n\r\n";
+        if ( $end < 0 ) {
+            return $self->reject( $conn, 400, "Request header too large." )
+              if length $conn->{in} > $MAX_HEADER_SIZE;
+            return;
+        }
+        my ( $line, @lines ) = split /\r\n/, substr $conn->{in}, 0, $end + 4, '';
+        my ( $method, $uri, $version ) = $line =~ m{^(\S+) (\S+) HTTP/(1\.[01])$}
+          or return $self->reject( $conn, 400, "Malformed request." );
+
+        my %headers;
+        for (@lines) {
+            my ( $name, $value ) = /^([^:\s]+):\s*(.*?)\s*$/
+              or return $self->reject( $conn, 400, "Malformed request." );
+            $headers{ lc $name } = $value;
+        }
+
+        my $connection = lc( $headers{connection} // '' );
+        $conn->{keep_alive} =
+          $version eq '1.1' ? $connection ne 'close' : $connection eq 'keep-alive';
+
+        return $self->reject( $conn, 411, "Chunked bodies aren't supported." )
+          if $headers{'transfer-encoding'};
+        my $length = $headers{'content-length'} // 0;
+        return $self->reject( $conn, 400, "Invalid content length." )
+          unless $length =~ /^\d+$/;
+        return $self->reject( $conn, 413, "Request body too large." )
+          if $length > $MAX_BODY_SIZE;
+
+        $conn->{request} = {
+            method  => $method,
+            uri     => $uri,
+            headers => \%headers,
+            length  => $length
+        };
+        if ( lc( $headers{expect} // '' ) eq '100-continue'
+            and length $conn->{in} < $length )
+        {
+            $conn->{out} .= "HTTP/1.1 100 Continue\r\n\r\n";
+            $self->write_to($conn);
+        }
+    }
+
+    my $request = $conn->{request};
+    return if length $conn->{in} < $request->{length};
+    $request->{body} = substr $conn->{in}, 0, $request->{length}, '';
+    delete $conn->{request};
+
+    $conn->{busy} = 1;
+    $self->{requests}++;
+    my $done = sub { $self->respond( $conn, @_ ) };
+
+    # the connection of the calls, for the ones that are parked
+    local $self->{conn} = $conn;
+    eval { $self->handle( $request, $done ); 1 } or $self->failed( $@, $done );
+}
+
+=head2 handle
+
+Does what L<Dyad::Server/process_request> does for an FCGI request, for a
+parsed request, and calls the callback with the ($status_code, $body) of the
+response.
+
+=cut
+
+sub handle {
+    my $self    = shift;
+    my $request = shift;
+    my $done    = shift;
+
+    my ( $method, $uri ) = @$request{qw(method uri)};
+    my $token = $request->{headers}->{'x-dyad-authorization'};
+    my $type  = $request->{headers}->{'content-type'};
+    my $bytes = length $request->{body} ? $request->{body} : undef;
+    $log->info("Received $method request for $uri");
+
+    if ( $method eq 'POST' and $uri =~ $Dyad::Server::BATCH_URI ) {
+        $log->debug("Request is a batch.");
+        my $body = parse_body( $type, $bytes );
+        return $done->(@$body) if ref $body eq 'ARRAY';
+        return $self->run_batch( $body->{calls}, $token, $done );
+    }
+
+    my $call = find_call( $method, $uri );
+    unless ($call) {
+        $log->warning("Unknown request, returning 404.");
+        return $done->( 404, "Unknown request." );
+    }
+
+    my $body;
+    if ( $call->[1] eq 'GET' ) {
+        if ( defined $bytes ) {
+            $log->warning("GET request has a body, aborting.");
+            return $done->( 400, "Request contains a body, but shouldn't" );
+        }
+        $body = query_params($uri);
+    }
+    else {
+        $body = parse_body( $type, $bytes );
+        return $done->(@$body) if ref $body eq 'ARRAY';
+    }
+
+    $self->run_call( $call, $token, $body, $done );
+}
+
+=head2 run_call
+
+Does what L<Dyad::Server/dispatch> does, but calls the callback with the
+result. Calls that would block are deferred.
+
+=cut
+
+sub run_call {
+    my $self          = shift;
+    my $call          = shift;
+    my $session_token = shift;
+    my $body          = shift;
+    my $done          = shift;
+
+    my @prepared = $self->prepare( $call, $session_token, $body );
+    return $done->(@prepared) unless ref $prepared[0];
+    my $args = $prepared[0];
+
+    if ( my $method = $deferred{ $call->[3] } ) {
+        return $self->$method( $done, @$args );
+    }
+
+    my @result = $call->[3]->(@$args);
+    $self->wake( $args->[-1] ) if $wakes{ $call->[3] } and $result[0] == 202;
+    $done->(@result);
+}
+
+=head2 run_batch
+
+Does what L<Dyad::Server/batch> does, but calls the callback with the result.
+The calls run one after the other, even if one of them is deferred.
+
+=cut
+
+sub run_batch {
+    my $self          = shift;
+    my $calls         = shift;
+    my $session_token = shift;
+    my $done          = shift;
+    my $responses     = shift;
+
+    unless ($responses) {
+        my @invalid = check_batch($calls);
+        return $done->(@invalid) if @invalid;
+        $responses = [];
+    }
+    return $done->( 200, { responses => $responses } ) if @$responses == @$calls;
+
+    my ( $call, $params, $message ) = batch_call( $calls->[ scalar @$responses ] );
+    my $conn = $self->{conn};
+    my $next = sub {
+        my ( $status, $body ) = @_;
+        local $self->{conn} = $conn;
+
+        # let the remaining calls use a freshly registered session
+        $session_token = $body->{session_token}
+          if $status == 200 and ref $body eq 'HASH' and $body->{session_token};
+
+        $log->info("Batched $status response");
+        push @$responses, { status => $status, body => $body };
+        $self->run_batch( $calls, $session_token, $done, $responses );
+    };
+    return $next->( $params, $message ) unless $call;
+    $self->run_call( $call, $session_token, $params, $next );
+}
+
+=head2 defer_register
+
+Runs L<Dyad::Server/register> with the C<http> client, unless Google's answer
+is cached.
+
+=cut
+
+sub defer_register {
+    my $self  = shift;
+    my $done  = shift;
+    my $db    = shift;
+    my $token = shift;
+
+    my @cached = cached_register( $db, $token );
+    return $done->(@cached) if @cached;
+
+    $self->{http}->request(
+        google_request($token),
+        sub {
+            my $response = shift;
+            my @result = eval { finish_register( $db, $response, $token ) };
+            return $self->failed( $@, $done ) unless @result;
+            $done->(@result);
+        }
+    );
+}
+
+=head2 park_sdp_message
+
+=head2 park_candidates
+
+Run L<Dyad::Server/get_sdp_message> and L<Dyad::Server/get_candidates>, and
+park them if they have to wait.
+
+=cut
+
+sub park_sdp_message {
+    my $self      = shift;
+    my $done      = shift;
+    my $db        = shift;
+    my $wait      = shift;
+    my $google_id = shift;
+
+    # a message is taken only once, by whichever call gets to it first
+    $self->park( $done, $google_id, $wait,
+        sub { sdp_message_of(shift) ? take_sdp_message( $db, $google_id ) : () },
+        404, "Please wait for other to send offer" );
+}
+
+sub park_candidates {
+    my $self      = shift;
+    my $done      = shift;
+    my $db        = shift;
+    my $since     = shift;
+    my $wait      = shift;
+    my $google_id = shift;
+
+    $self->park( $done, $google_id, $wait, sub { candidates_of( shift, $since ) },
+        404, "No new candidates." );
+}
+
+=head2 park
+
+Takes a callback, a Google id, a C<wait> parameter, a subroutine that looks
+for what the call waits for in the user document of the other user, and the
+response for when it isn't found in time. Calls the callback with what is
+found right away if it's there, or parks the call.
+
+=cut
+
+sub park {
+    my $self      = shift;
+    my $done      = shift;
+    my $google_id = shift;
+    my $wait      = shift;
+    my $find      = shift;
+    my @not_found = @_;
+
+    my $other  = $self->{db}->users->find_one( { other => $google_id } );
+    my @result = $find->($other);
+    return $done->(@result) if @result;
+
+    $wait = wait_time($wait);
+    return $done->(@not_found) if $wait < $Dyad::Server::SDP_POLL_INTERVAL;
+
+    my $parked = {
+        id        => ++$self->{serial},
+        done      => $done,
+        google_id => $google_id,
+        find      => $find,
+        not_found => \@not_found,
+        deadline  => time + $wait,
+        conn      => $self->{conn}
+    };
+    $self->{parked}->{ $parked->{id} } = $parked;
+    $parked->{conn}->{parked}->{ $parked->{id} } = $parked if $parked->{conn};
+    $self->wait_for( $parked, $other->{google_id} ) if $other;
+}
+
+=head2 wait_for
+
+Indexes a parked call by the Google id of the other user, so that L</wake> can
+find it.
+
+=cut
+
+sub wait_for {
+    my $self   = shift;
+    my $parked = shift;
+    my $other  = shift;
+
+    return if defined $parked->{other};
+    $parked->{other} = $other;
+    $self->{waiting}->{$other}->{ $parked->{id} } = $parked;
+}
+
+=head2 wake
+
+Takes the Google id of a user that just sent something, and answers the
+parked calls of the other user that find what they wait for.
+
+=cut
+
+sub wake {
+    my $self   = shift;
+    my $sender = shift;
+
+    my $waiting = $self->{waiting}->{$sender} or return;
+    for my $parked ( values %$waiting ) {
+        my @result = $parked->{find}->(
+            $self->{db}->users->find_one( { other => $parked->{google_id} } ) );
+        $self->unpark( $parked, @result ) if @result;
+    }
+}
+
+=head2 recheck
+
+Looks for what all parked calls wait for with a single query, and answers the
+ones that find it or that waited long enough. This catches what was sent to
+other processes.
+
+=cut
+
+sub recheck {
+    my $self = shift;
+
+    my @parked = values %{ $self->{parked} } or return;
+    my %ids = map { $_->{google_id} => 1 } @parked;
+    my %others = map { $_->{other} => $_ }
+      $self->{db}->users->find( { other => { '$in' => [ keys %ids ] } } )->all;
+
+    my $now = time;
+    for my $parked (@parked) {
+        my $other  = $others{ $parked->{google_id} };
+        my @result = $parked->{find}->($other);
+        if (@result) {
+            $self->unpark( $parked, @result );
+        }
+        elsif ( $now >= $parked->{deadline} ) {
+            $self->unpark( $parked, @{ $parked->{not_found} } );
+        }
+        elsif ($other) {
+            $self->wait_for( $parked, $other->{google_id} );
+        }
+    }
+}
+
+=head2 unpark
+
+Answers a parked call with the given ($status_code, $body).
+
+=cut
+
+sub unpark {
+    my $self   = shift;
+    my $parked = shift;
+
+    $self->forget($parked);
+    $parked->{done}->(@_);
+}
+
+=head2 forget
+
+Removes a parked call from the server and from its connection, without
+answering it.
+
+=cut
+
+sub forget {
+    my $self   = shift;
+    my $parked = shift;
+
+    delete $self->{parked}->{ $parked->{id} };
+    if ( defined $parked->{other} ) {
+        my $waiting = $self->{waiting}->{ $parked->{other} };
+        delete $waiting->{ $parked->{id} };
+        delete $self->{waiting}->{ $parked->{other} } unless %$waiting;
+    }
+    delete $parked->{conn}->{parked}->{ $parked->{id} } if $parked->{conn};
+}
+
+=head2 failed
+
+Logs an error of a call and answers it with a 500 response, so that one call
+can't take the server down.
+
+=cut
+
+sub failed {
+    my $self  = shift;
+    my $error = shift;
+    my $done  = shift;
+
+    $log->error("Call failed: $error");
+    $done->( 500, "We're really sorry. This shouldn't have happened." );
+}
+
+=head2 respond
+
+Sends the response with the given ($status_code, $body) to a connection, like
+L<Dyad::Server/http_response> would.
+
+=cut
+
+sub respond {
+    my $self = shift;
+    my $conn = shift;
+
+    return if $conn->{closed};
+
+    my ( $head, $content ) = split /\r\n\r\n/, http_response(@_), 2;
+    my ( $status, @headers ) = split /\r\n/, $head;
+    $status =~ s/^Status: //;
+    $content //= '';
+    utf8::encode($content) unless $head =~ m{application/json};
+
+    my $response = "HTTP/1.1 $status " . status_message($status) . "\r\n";
+    $response .= "$_\r\n" for @headers;
+    $response .= "Content-Length: " . length($content) . "\r\n";
+    $response .= "Connection: close\r\n" unless $conn->{keep_alive};
+    $conn->{out} .= "$response\r\n$content";
+    $conn->{closing} = 1 unless $conn->{keep_alive};
+    $conn->{busy}    = 0;
+    $conn->{active}  = time;
+    $self->write_to($conn);
+}
+
+=head2 reject
+
+Sends an error response to a connection and closes it, for requests that can't
+be parsed.
+
+=cut
+
+sub reject {
+    my $self = shift;
+    my $conn = shift;
+
+    $log->warning("Rejected request: $_[1]");
+    $conn->{keep_alive} = 0;
+    $self->respond( $conn, @_ );
+}
+
+=head2 write_to
+
+Writes what a connection has to send, for as far as it can without blocking,
+and goes on with the next request of the connection when it's done.
+
+=cut
+
+sub write_to {
+    my $self = shift;
+    my $conn = shift;
+
+    while ( length $conn->{out} ) {
+        my $n = syswrite $conn->{socket}, $conn->{out};
+        unless ( defined $n ) {
+            return $self->close_connection($conn)
+              unless $! == EAGAIN or $! == EWOULDBLOCK or $! == EINTR;
+            $self->watch( $conn->{socket}, write => sub { $self->write_to($conn) } );
+            return;
+        }
+        substr $conn->{out}, 0, $n, '';
+    }
+    $self->watch( $conn->{socket}, write => undef );
+
+    return $self->close_connection($conn) if $conn->{closing};
+    return if $conn->{busy};
+    $self->watch( $conn->{socket}, read => sub { $self->read_from($conn) } )
+      if delete $conn->{paused};
+    $self->parse($conn);
+}
+
+=head2 close_connection
+
+Closes a connection. Calls of it that are still in progress get nowhere, and
+the ones that are parked are forgotten.
+
+=cut
+
+sub close_connection {
+    my $self = shift;
+    my $conn = shift;
+
+    return if $conn->{closed};
+    $conn->{closed} = 1;
+    $self->forget($_) for values %{ $conn->{parked} // {} };
+    $self->unwatch( $conn->{socket} );
+    delete $self->{connections}->{ $conn->{fileno} };
+    close $conn->{socket};
+}
+
+=head2 close_idle
+
+Closes the connections that had nothing in progress for
+C<$Dyad::Server::Event::IDLE_TIMEOUT> seconds.
+
+=cut
+
+sub close_idle {
+    my $self = shift;
+
+    my $idle = time - $IDLE_TIMEOUT;
+    for my $conn ( values %{ $self->{connections} } ) {
+        $self->close_connection($conn)
+          if not $conn->{busy} and $conn->{active} < $idle;
+    }
+}
+
+=head1 AUTHOR
+
+Return to the Source, C<< <info at r2src.com> >>
+
+=head1 LICENSE AND COPYRIGHT
+
+Copyright 2012 Return to the Source.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of either: the GNU General Public License as published
+by the Free Software Foundation; or the Artistic License.
+
+See http://dev.perl.org/licenses/ for more information.
+
+=cut
+
+1;    # End of Dyad::Server::Event
@@ -0,0 +1,348 @@
+package Dyad::Server::Event::HTTP;
+our $VERSION = '0.01';
+
+=head1 NAME
+
+Dyad::Server::Event::HTTP - A non-blocking HTTP client for Dyad::Server::Event.
+
+=head1 SYNOPSIS
+
+    my $http = Dyad::Server::Event::HTTP->new( loop => $server );
+    $http->request(
+        HTTP::Request->new( GET => 'https://www.googleapis.com/oauth2/v2/userinfo' ),
+        sub {
+            my $response = shift;    # an HTTP::Response
+            ...
+        }
+    );
+
+Requests are sent as HTTP/1.0, one connection per request, and are read until
+the server closes the connection. Chunked responses, which servers shouldn't
+send to HTTP/1.0 clients but sometimes do, are decoded. Connection failures
+and timeouts result in a 500 response, like they do with LWP::UserAgent.
+
+Host names are still resolved synchronously. HTTPS needs IO::Socket::SSL.
+
+=cut
+
+use v5.14;
+use strict;
+use Log::Any qw($log);
+use IO::Socket::INET;
+use Socket qw(SOL_SOCKET SO_ERROR);
+use Errno qw(EAGAIN EWOULDBLOCK EINTR);
+use Time::HiRes qw(time);
+require HTTP::Response;
+
+# seconds a request may take, like LWP::UserAgent's timeout
+our $TIMEOUT = 30;
+
+=head1 METHODS
+
+=head2 new
+
+Takes the C<loop> (a L<Dyad::Server::Event>) to run in, and optionally a
+C<timeout> in seconds.
+
+=cut
+
+sub new {
+    my $class  = shift;
+    my %kwargs = @_;
+
+    my $self = {
+        loop     => $kwargs{loop},
+        timeout  => $kwargs{timeout} // $TIMEOUT,
+        requests => {},
+        serial   => 0
+    };
+    die "Dyad::Server::Event::HTTP needs a loop\n" unless $self->{loop};
+
+    bless $self, $class;
+    $self->{loop}->on_tick( sub { $self->expire } );
+    return $self;
+}
+
+=head2 request
+
+Takes an HTTP::Request and a callback, which is called with the
+HTTP::Response once it's there.
+
+=cut
+
+sub request {
+    my $self     = shift;
+    my $request  = shift;
+    my $callback = shift;
+
+    my ( $scheme, $host, $port, $path ) =
+      "${\ $request->uri }" =~ m{^(https?)://([^/:?#]+)(?::(\d+))?([^#]*)}i
+      or return $callback->( error( 400, "Unsupported URL" ) );
+    my $https = lc $scheme eq 'https';
+    $port //= $https ? 443 : 80;
+    $path = "/$path" unless $path =~ m{^/};
+
+    my $content = $request->content // '';
+    my $head = $request->method . " $path HTTP/1.0\r\n";
+    $head .= "Host: $host" . ( $port == ( $https ? 443 : 80 ) ? '' : ":$port" ) . "\r\n";
+    $head .= $request->headers->as_string("\r\n");
+    $head .= "Content-Length: " . length($content) . "\r\n" if length $content;
+
+    my $socket = IO::Socket::INET->new(
+        PeerAddr => $host,
+        PeerPort => $port,
+        Proto    => 'tcp',
+        Blocking => 0
+    ) or return $callback->( error( 500, "Can't connect to $host:$port: $!" ) );
+
+    my $pending = {
+        id       => ++$self->{serial},
+        socket   => $socket,
+        host     => $host,
+        https    => $https,
+        out      => "$head\r\n$content",
+        in       => '',
+        callback => $callback,
+        deadline => time + $self->{timeout}
+    };
+    $self->{requests}->{ $pending->{id} } = $pending;
+    $self->{loop}->watch( $socket, write => sub { $self->connected($pending) } );
+}
+
+=head1 INTERNAL METHODS
+
+=head2 connected
+
+Goes on with a request once its connection is made, with the TLS handshake for
+HTTPS.
+
+=cut
+
+sub connected {
+    my $self    = shift;
+    my $pending = shift;
+    my $socket  = $pending->{socket};
+
+    my $errno = unpack 'i', getsockopt( $socket, SOL_SOCKET, SO_ERROR );
+    if ($errno) {
+        local $! = $errno;
+        return $self->finish( $pending, error( 500, "Can't connect to $pending->{host}: $!" ) );
+    }
+
+    return $self->send($pending) unless $pending->{https};
+
+    unless ( eval { require IO::Socket::SSL } ) {
+        return $self->finish( $pending, error( 500, "HTTPS needs IO::Socket::SSL" ) );
+    }
+    $self->{loop}->unwatch($socket);
+    IO::Socket::SSL->start_SSL(
+        $socket,
+        SSL_startHandshake => 0,
+        SSL_hostname       => $pending->{host},
+        SSL_verifycn_name  => $pending->{host},
+        SSL_verifycn_scheme => 'http',
+    ) or return $self->finish( $pending, error( 500, "TLS failed: " . IO::Socket::SSL::errstr() ) );
+    $self->handshake($pending);
+}
+
+=head2 handshake
+
+Continues the TLS handshake of a request.
+
+=cut
+
+sub handshake {
+    my $self    = shift;
+    my $pending = shift;
+    my $socket  = $pending->{socket};
+
+    return $self->send($pending) if $socket->connect_SSL;
+    $self->wait_ssl( $pending, sub { $self->handshake($pending) } )
+      or $self->finish( $pending, error( 500, "TLS failed: " . IO::Socket::SSL::errstr() ) );
+}
+
+=head2 wait_ssl
+
+Watches the socket of a request for what IO::Socket::SSL wants, and returns
+whether it wants anything.
+
+=cut
+
+sub wait_ssl {
+    my $self     = shift;
+    my $pending  = shift;
+    my $callback = shift;
+
+    # $IO::Socket::SSL::SSL_ERROR, a dualvar of the code and its message
+    my $error = IO::Socket::SSL::errstr() or return 0;
+    if ( $error == IO::Socket::SSL::SSL_WANT_READ() ) {
+        $self->{loop}->watch( $pending->{socket}, read => $callback, write => undef );
+    }
+    elsif ( $error == IO::Socket::SSL::SSL_WANT_WRITE() ) {
+        $self->{loop}->watch( $pending->{socket}, write => $callback, read => undef );
+    }
+    else {
+        return 0;
+    }
+    return 1;
+}
+
+=head2 send
+
+Writes the request, for as far as it can without blocking, and starts reading
+the response when it's done.
+
+=cut
+
+sub send {
+    my $self    = shift;
+    my $pending = shift;
+    my $socket  = $pending->{socket};
+
+    while ( length $pending->{out} ) {
+        my $n = syswrite $socket, $pending->{out};
+        unless ( defined $n ) {
+            return $self->finish( $pending, error( 500, "Can't send request: $!" ) )
+              unless $! == EAGAIN or $! == EWOULDBLOCK or $! == EINTR;
+            my $again = sub { $self->send($pending) };
+            $self->{loop}->watch( $socket, write => $again, read => undef )
+              unless $pending->{https} and $self->wait_ssl( $pending, $again );
+            return;
+        }
+        substr $pending->{out}, 0, $n, '';
+    }
+    $self->{loop}->watch( $socket, read => sub { $self->receive($pending) }, write => undef );
+}
+
+=head2 receive
+
+Reads the response until the server closes the connection.
+
+=cut
+
+sub receive {
+    my $self    = shift;
+    my $pending = shift;
+    my $socket  = $pending->{socket};
+
+    while (1) {
+        my $n = sysread $socket, $pending->{in}, 65536, length $pending->{in};
+        last if defined $n and $n == 0;
+        unless ( defined $n ) {
+            return $self->finish( $pending, error( 500, "Can't read response: $!" ) )
+              unless $! == EAGAIN or $! == EWOULDBLOCK or $! == EINTR;
+            my $again = sub { $self->receive($pending) };
+            $self->wait_ssl( $pending, $again ) if $pending->{https};
+            return;
+        }
+    }
+
+    my ( $head, $content ) = split /\r?\n\r?\n/, $pending->{in}, 2;
+    my ( $status, @lines ) = split /\r?\n/, $head;
+    my ( $code, $message ) = $status =~ m{^HTTP/\d\.\d (\d{3}) ?(.*)$}
+      or return $self->finish( $pending, error( 500, "Malformed response" ) );
+    my ( @headers, $chunked );
+    for (@lines) {
+        my ( $name, $value ) = /^([^:]+):\s*(.*)$/ or next;
+        if ( lc $name eq 'transfer-encoding' ) {
+            $chunked = $value =~ /chunked/i;
+            next;
+        }
+        push @headers, $name, $value;
+    }
+    if ($chunked) {
+        $content = dechunk( $content // '' );
+        return $self->finish( $pending, error( 500, "Malformed chunked response" ) )
+          unless defined $content;
+    }
+    $self->finish( $pending,
+        HTTP::Response->new( $code, $message, \@headers, $content // '' ) );
+}
+
+=head2 dechunk
+
+Decodes a body with C<Transfer-Encoding: chunked>. Returns nothing if it is
+malformed or cut short.
+
+=cut
+
+sub dechunk {
+    my $chunked = shift;
+
+    my $content = '';
+    while ( $chunked =~ s/^([0-9a-fA-F]+)[^\r\n]*\r?\n// ) {
+        my $size = hex $1;
+        return $content unless $size;    # the trailer doesn't matter
+        return if length $chunked < $size;
+        $content .= substr $chunked, 0, $size, '';
+        $chunked =~ s/^\r?\n// or return;
+    }
+    return;
+}
+
+=head2 finish
+
+Closes the connection of a request and calls its callback with the response.
+
+=cut
+
+sub finish {
+    my $self     = shift;
+    my $pending  = shift;
+    my $response = shift;
+
+    return unless delete $self->{requests}->{ $pending->{id} };
+    $self->{loop}->unwatch( $pending->{socket} );
+    close $pending->{socket};
+    $pending->{callback}->($response);
+}
+
+=head2 expire
+
+Gives up on the requests that took too long.
+
+=cut
+
+sub expire {
+    my $self = shift;
+
+    my $now = time;
+    for my $pending ( values %{ $self->{requests} } ) {
+        $self->finish( $pending, error( 500, "Timeout" ) )
+          if $now >= $pending->{deadline};
+    }
+}
+
+=head2 error
+
+Returns an HTTP::Response for a request that failed in the client, like
+LWP::UserAgent does.
+
+=cut
+
+sub error {
+    my $code    = shift;
+    my $message = shift;
+
+    $log->warning("HTTP request failed: $message");
+    return HTTP::Response->new( $code, $message,
+        [ 'Client-Warning' => 'Internal response' ], $message );
+}
+
+=head1 AUTHOR
+
+Return to the Source, C<< <info at r2src.com> >>
+
+=head1 LICENSE AND COPYRIGHT
+
+Copyright 2012 Return to the Source.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of either: the GNU General Public License as published
+by the Free Software Foundation; or the Artistic License.
+
+See http://dev.perl.org/licenses/ for more information.
+
+=cut
+
+1;    # End of Dyad::Server::Event::HTTP
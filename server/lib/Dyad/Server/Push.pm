@@ -0,0 +1,395 @@
+package Dyad::Server::Push;
+our $VERSION = '0.01';
+
+=head1 NAME
+
+Dyad::Server::Push - A queue of GCM pushes, sent in batches by a separate process.
+
+=head1 SYNOPSIS
+
+Request handlers only queue their pushes, which costs a single insert:
+
+    use Dyad::Server::Push;
+
+    Dyad::Server::Push::enqueue( $db, $gcm_id, { type => 'bonded' } );
+
+A dispatcher process sends them:
+
+    my $push = Dyad::Server::Push->new(
+        mongodb => $db,
+        url     => 'https://android.googleapis.com/gcm/send',
+        api_key => $api_key,
+    );
+    while (1) {
+        sleep 1 unless $push->dispatch;
+    }
+
+Pushes that carry the same data go out together, in multicast requests of at
+most C<$Dyad::Server::Push::MAX_MULTICAST> registration ids. Pushes that GCM
+can't deliver right now, or that are turned away because of a rate limit, are
+tried again later with exponential backoff. Canonical registration ids that
+GCM hands back replace the old ones in the C<users> collection, and
+registration ids that GCM doesn't know anymore are removed from it.
+
+Any number of dispatchers can share a queue. A dispatcher claims the pushes
+it is about to send by putting them off for C<$Dyad::Server::Push::LEASE>
+seconds, in one update that only takes the ones that are still due, so no
+other dispatcher sends them too. The pushes of a dispatcher that dies on the
+way are due again once their lease is up.
+
+=cut
+
+use v5.14;
+use strict;
+use JSON;
+use Log::Any qw($log);
+use LWP::UserAgent;
+use Sys::Hostname;
+use Time::HiRes qw(time);
+require HTTP::Request;
+
+# registration ids per multicast request, the most GCM accepts
+our $MAX_MULTICAST = 1000;
+
+# pushes taken from the queue per dispatch
+our $MAX_DISPATCH = 10_000;
+
+# seconds a dispatcher has to send the pushes it claimed
+our $LEASE = 60;
+
+# tries per push, and the wait before the second one (in seconds), which
+# doubles with every try up to $MAX_BACKOFF
+our $MAX_ATTEMPTS = 5;
+our $BACKOFF      = 1;
+our $MAX_BACKOFF  = 300;
+
+# errors after which GCM may well deliver the push later
+my $RETRY_ERRORS = qr/^(?:Unavailable|InternalServerError)$/;
+
+# errors after which the registration id is of no more use
+my $GONE_ERRORS = qr/^(?:NotRegistered|InvalidRegistration)$/;
+
+my $json = JSON->new->canonical;
+
+=head1 FUNCTIONS
+
+=head2 enqueue
+
+Takes a database, a registration id or an arrayref of them, and a hashref of
+data, and queues a push of the data to every registration id in the
+C<pushes> collection.
+
+Returns the number of pushes queued.
+
+=cut
+
+sub enqueue {
+    my $db      = shift;
+    my $gcm_ids = shift;
+    my $data    = shift;
+
+    $gcm_ids = [$gcm_ids] unless ref $gcm_ids eq 'ARRAY';
+    my $payload = $json->encode($data);
+    my $now     = time;
+    for my $gcm_id (@$gcm_ids) {
+        $db->pushes->insert(
+            {
+                gcm_id     => $gcm_id,
+                payload    => $payload,
+                attempts   => 0,
+                not_before => $now
+            }
+        );
+    }
+    return scalar @$gcm_ids;
+}
+
+=head1 METHODS
+
+=head2 new
+
+Takes the GCM C<url> and C<api_key>, and optionally the C<mongodb> database
+that holds the queue and the users (needed for L</dispatch>) and the C<ua>
+(an LWP::UserAgent) to send with.
+
+=cut
+
+sub new {
+    my $class  = shift;
+    my %kwargs = @_;
+
+    my $self = {
+        db        => $kwargs{mongodb},
+        url       => $kwargs{url},
+        api_key   => $kwargs{api_key},
+        ua        => $kwargs{ua} // LWP::UserAgent->new,
+        requests  => 0,
+        sent      => 0,
+        retried   => 0,
+        failed    => 0,
+        canonical => 0,
+        leases    => 0,
+    };
+    die "Dyad::Server::Push needs a url and an api_key\n"
+      unless $self->{url} and $self->{api_key};
+
+    bless $self, $class;
+}
+
+=head2 dispatch
+
+Claims the pushes that are due (see L</claim>) and sends them, grouped by
+their data. A registration id that has the same data queued more than once
+gets it once.
+
+Returns the number of pushes that were claimed, so that a dispatcher knows
+when to take a break.
+
+=cut
+
+sub dispatch {
+    my $self = shift;
+    my $pushes = $self->{db}->pushes;
+
+    my @due = $self->claim;
+    return 0 unless @due;
+
+    my ( %groups, @payloads );
+    for my $push (@due) {
+        my $group = $groups{ $push->{payload} } //= do {
+            push @payloads, $push->{payload};
+            { seen => {}, pushes => [] };
+        };
+        if ( $group->{seen}->{ $push->{gcm_id} }++ ) {
+            $pushes->remove( { _id => $push->{_id} } );
+            next;
+        }
+        push @{ $group->{pushes} }, $push;
+    }
+
+    for my $payload (@payloads) {
+        my $data  = $json->decode($payload);
+        my @group = @{ $groups{$payload}->{pushes} };
+        while ( my @batch = splice @group, 0, $MAX_MULTICAST ) {
+            $self->send_batch( $data, \@batch );
+        }
+    }
+    return scalar @due;
+}
+
+=head2 claim
+
+Takes at most C<$MAX_DISPATCH> pushes that are due and puts them off for
+C<$LEASE> seconds, marked with a lease of this dispatcher. Pushes that another
+dispatcher claims at the same time are left to it: the update only takes
+pushes that are still due.
+
+Returns the pushes that this dispatcher got.
+
+=cut
+
+sub claim {
+    my $self   = shift;
+    my $pushes = $self->{db}->pushes;
+
+    my $now = time;
+    my @ids = map { $_->{_id} }
+      $pushes->find( { not_before => { '$lt' => $now } } )
+      ->limit($MAX_DISPATCH)->all;
+    return unless @ids;
+
+    my $lease = join ':', hostname, $$, ++$self->{leases};
+    $pushes->update(
+        { _id => { '$in' => \@ids }, not_before => { '$lt' => $now } },
+        { '$set' => { not_before => $now + $LEASE, lease => $lease } },
+        { multiple => 1 }
+    );
+    return $pushes->find( { _id => { '$in' => \@ids }, lease => $lease } )->all;
+}
+
+=head2 send
+
+Sends a hashref of data to an arrayref of registration ids in a single
+multicast request.
+
+Returns the tuple ($status_code, $result, $retry_after), where $result is the
+decoded response of GCM, if any, and $retry_after is the number of seconds
+GCM asked to wait, if it did.
+
+=cut
+
+sub send {
+    my $self    = shift;
+    my $gcm_ids = shift;
+    my $data    = shift;
+
+    my $request = HTTP::Request->new(
+        POST => $self->{url},
+        [
+            Authorization  => "key=$self->{api_key}",
+            'Content-Type' => 'application/json'
+        ],
+        encode_json { registration_ids => $gcm_ids, data => $data }
+    );
+    my $response = $self->{ua}->request($request);
+    $self->{requests}++;
+
+    my $result = eval { decode_json $response->decoded_content };
+    my $retry_after = $response->header('Retry-After');
+    undef $retry_after unless defined $retry_after and $retry_after =~ /^\d+$/;
+    return $response->code, ( ref $result eq 'HASH' ? $result : undef ),
+      $retry_after;
+}
+
+=head2 send_batch
+
+Sends data to a batch of queued pushes and settles every push in it:
+it is done, tried again later, or given up on.
+
+=cut
+
+sub send_batch {
+    my $self  = shift;
+    my $data  = shift;
+    my $batch = shift;
+
+    my ( $status, $result, $retry_after ) =
+      $self->send( [ map { $_->{gcm_id} } @$batch ], $data );
+
+    if ( $status == 200 and $result and ref $result->{results} eq 'ARRAY' ) {
+        for my $i ( 0 .. $#$batch ) {
+            my $push  = $batch->[$i];
+            my $r     = $result->{results}->[$i] // {};
+            my $error = $r->{error} // '';
+            if ( defined $r->{message_id} ) {
+                $self->{sent}++;
+                $self->replace( $push->{gcm_id}, $r->{registration_id} )
+                  if $r->{registration_id};
+                $self->{db}->pushes->remove( { _id => $push->{_id} } );
+            }
+            elsif ( $error =~ $RETRY_ERRORS ) {
+                $self->retry( $push, $retry_after );
+            }
+            else {
+                $self->replace( $push->{gcm_id}, undef )
+                  if $error =~ $GONE_ERRORS;
+                $self->give_up( $push, $error || 'no result' );
+            }
+        }
+    }
+    elsif ( $status == 429 or $status >= 500 ) {
+        $log->warning("GCM push failed with $status, trying again later.");
+        $self->retry( $_, $retry_after ) for @$batch;
+    }
+    else {
+        $log->error("GCM rejected a push with $status.");
+        $self->give_up( $_, $status ) for @$batch;
+    }
+}
+
+=head2 retry
+
+Puts a push back in the queue until its backoff, or the given number of
+seconds, has passed. Gives up on it after C<$MAX_ATTEMPTS> tries.
+
+=cut
+
+sub retry {
+    my $self        = shift;
+    my $push        = shift;
+    my $retry_after = shift;
+
+    my $attempts = $push->{attempts} + 1;
+    return $self->give_up( $push, "$attempts attempts" )
+      if $attempts >= $MAX_ATTEMPTS;
+
+    my $backoff = $BACKOFF * 2**( $attempts - 1 );
+    $backoff = $MAX_BACKOFF if $backoff > $MAX_BACKOFF;
+    $backoff = $retry_after if defined $retry_after and $retry_after > $backoff;
+    $self->{db}->pushes->update(
+        { _id => $push->{_id} },
+        {
+            '$set' => { not_before => time + $backoff },
+            '$inc' => { attempts   => 1 }
+        }
+    );
+    $self->{retried}++;
+}
+
+=head2 give_up
+
+Removes a push from the queue without sending it.
+
+=cut
+
+sub give_up {
+    my $self   = shift;
+    my $push   = shift;
+    my $reason = shift;
+
+    $log->warning("Giving up on GCM push to $push->{gcm_id}: $reason");
+    $self->{db}->pushes->remove( { _id => $push->{_id} } );
+    $self->{failed}++;
+}
+
+=head2 replace
+
+Replaces a registration id of the users with its canonical id, or removes it
+if there is none.
+
+=cut
+
+sub replace {
+    my $self      = shift;
+    my $old       = shift;
+    my $canonical = shift;
+
+    $self->{db}->users->update(
+        { gcm_id => $old },
+        defined $canonical
+        ? { '$set'   => { gcm_id => $canonical } }
+        : { '$unset' => { gcm_id => 1 } },
+        { multiple => 1 }
+    );
+    $self->{canonical}++ if defined $canonical;
+}
+
+=head2 requests
+
+=head2 sent
+
+=head2 retried
+
+=head2 failed
+
+=head2 canonical_ids
+
+Return the number of multicast requests made, pushes delivered to GCM, pushes
+put back for another try, pushes given up on, and registration ids replaced by
+their canonical ids.
+
+=cut
+
+sub requests      { shift->{requests} }
+sub sent          { shift->{sent} }
+sub retried       { shift->{retried} }
+sub failed        { shift->{failed} }
+sub canonical_ids { shift->{canonical} }
+
+=head1 AUTHOR
+
+Return to the Source, C<< <info at r2src.com> >>
+
+=head1 LICENSE AND COPYRIGHT
+
+Copyright 2012 Return to the Source.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of either: the GNU General Public License as published
+by the Free Software Foundation; or the Artistic License.
+
+See http://dev.perl.org/licenses/ for more information.
+
+=cut
+
+1;    # End of Dyad::Server::Push
@@ -0,0 +1,51 @@
+package Mock::GCM;
+
+use JSON;
+use base qw(HTTP::Server::Simple::CGI);
+
+our $VERSION = '0.01';
+
+# The result for a registration id depends on how it starts:
+#   canonical_    delivered, with the canonical id 'new_<id>'
+#   unregistered_ NotRegistered
+#   unavailable_  Unavailable
+#   throttled_    the whole request gets a 503 with a Retry-After the first
+#                 time such an id is seen
+# multicast_id counts the requests.
+my $requests = 0;
+my %throttled;
+
+sub handle_request {
+    my ($self, $cgi) = @_;
+    my $key = $ENV{HTTP_AUTHORIZATION};
+    my $body = eval { decode_json $cgi->param('POSTDATA') };
+    $requests++;
+
+    if ($key ne 'key=valid_key') {
+        print "HTTP/1.1 401 Unauthorized\r\n\r\n";
+    } elsif (not $body or ref $body->{registration_ids} ne 'ARRAY') {
+        print "HTTP/1.1 400 Bad Request\r\n\r\n";
+    } elsif (grep { /^throttled_/ and not $throttled{$_}++ } @{$body->{registration_ids}}) {
+        print "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n\r\n";
+    } else {
+        my @ids = @{$body->{registration_ids}};
+        my @results = map {
+              /^canonical_/    ? { message_id => "msg_$_", registration_id => "new_$_" }
+            : /^unregistered_/ ? { error => 'NotRegistered' }
+            : /^unavailable_/  ? { error => 'Unavailable' }
+            :                    { message_id => "msg_$_" }
+        } @ids;
+        my $failure = grep { $_->{error} } @results;
+        print "HTTP/1.1 200 OK\r\n";
+        print "Content-Type: application/json\r\n\r\n";
+        print encode_json {
+            multicast_id  => $requests,
+            success       => @ids - $failure,
+            failure       => $failure,
+            canonical_ids => scalar grep({ $_->{registration_id} } @results),
+            results       => \@results,
+        };
+    }
+}
+
+1;
@@ -10,10 +10,11 @@ sub handle_request {
     my $token = $ENV{HTTP_AUTHORIZATION};
     
     $token =~ s/OAuth //;
-    if ($token eq 'valid_token') {
+    # valid_token_<id> is the token of user <id>
+    if ($token =~ /^valid_token(?:_(\w+))?$/) {
         print "HTTP/1.1 200 Google says OK\r\n";
         print "Content-Type: application/json\r\n\r\n";
-        print encode_json {id => 1};
+        print encode_json {id => $1 // 1};
     } else {
         print "HTTP/1.1 401 Something went wrong\r\n";
         print "Content-Type: application/json\r\n\r\n";
@@ -0,0 +1,43 @@
+use strict;
+use Test::More tests => 17;
+use Time::HiRes qw(sleep);
+use Dyad::Server::Cache;
+
+ok not( defined eval { Dyad::Server::Cache->new( max_size => 0 ); 1 } ),
+  "A cache has to have room for at least one entry.";
+
+my $cache = Dyad::Server::Cache->new( max_size => 2, ttl => 60 );
+
+is $cache->get('a'), undef, "Looking up a missing key returns undef.";
+$cache->set( a => 1 );
+is $cache->get('a'), 1, "Looking up a stored key returns its value.";
+is $cache->hits,   1, "Successful lookups are counted as hits.";
+is $cache->misses, 1, "Failed lookups are counted as misses.";
+
+$cache->set( a => 2 );
+is $cache->get('a'), 2, "Storing a key again replaces its value.";
+is $cache->size, 1, "Storing a key again doesn't add an entry.";
+
+# eviction
+$cache->set( b => 1 );
+$cache->get('a');
+$cache->set( c => 1 );
+is $cache->size, 2, "The cache doesn't grow beyond its maximum size.";
+is $cache->get('b'), undef, "The least recently used entry is evicted.";
+is $cache->get('a'), 2, "Recently used entries are kept.";
+is $cache->evictions, 1, "Evictions are counted.";
+
+# removal
+is $cache->remove('a'), 2, "Removing a key returns its value.";
+is $cache->get('a'), undef, "Removed keys can't be looked up.";
+$cache->clear;
+is $cache->size, 0, "Clearing the cache removes all entries.";
+
+# expiry
+$cache = Dyad::Server::Cache->new( ttl => 0.2 );
+$cache->set( a => 1 );
+$cache->set( b => 1, 60 );
+sleep 0.3;
+is $cache->get('a'), undef, "Expired entries can't be looked up.";
+is $cache->size, 1, "Expired entries are removed when they are looked up.";
+is $cache->get('b'), 1, "Entries can have a ttl of their own.";
@@ -0,0 +1,246 @@
+use strict;
+use JSON;
+use lib 't';    # the Mock::Google module lives in the test directory
+use Mock::Google;
+use IO::Socket::INET;
+use HTTP::Tiny;
+use Time::HiRes qw(time);
+use Test::More tests => 31;
+use MongoDB;
+use Dyad::Server::Event;
+
+my $GOOGLE_PORT = 8896;
+$Dyad::Server::GOOGLE_URL = "http://localhost:$GOOGLE_PORT";
+my $DB_NAME = 'testdb';
+
+my $listen = IO::Socket::INET->new(
+    LocalAddr => '127.0.0.1',
+    Listen    => 128,
+    ReuseAddr => 1
+) or die "Can't listen: $!";
+my $url = 'http://127.0.0.1:' . $listen->sockport;
+
+my $google = Mock::Google->new($GOOGLE_PORT)->background();
+my $server = fork;
+die "Can't fork: $!" unless defined $server;
+unless ($server) {
+    my $db = MongoDB::Connection->new->$DB_NAME;
+    $db->users->remove;
+    Dyad::Server::migrate($db);
+    Dyad::Server::Event->new( mongodb => $db, listen => $listen )->run;
+    exit 0;
+}
+close $listen;
+
+my $http = HTTP::Tiny->new( timeout => 10 );
+
+sub call {
+    my ( $method, $path, $body, $token ) = @_;
+    my $response = $http->request(
+        $method, "$url$path",
+        {
+            headers => {
+                ( $token ? ( 'X-Dyad-Authorization' => $token ) : () ),
+                ( defined $body ? ( 'Content-Type' => 'application/json' ) : () )
+            },
+            ( defined $body ? ( content => ref $body ? encode_json $body : $body ) : () )
+        }
+    );
+    my $content = $response->{content};
+    $content = decode_json $content
+      if ( $response->{headers}->{'content-type'} // '' ) eq 'application/json';
+    return $response->{status}, $content;
+}
+
+# sends a raw request on a new connection, for reading its response later
+sub send_raw {
+    my $socket = IO::Socket::INET->new( PeerAddr => '127.0.0.1', PeerPort => ( split /:/, $url )[2] )
+      or die "Can't connect: $!";
+    print $socket shift;
+    return $socket;
+}
+
+sub read_raw {
+    my $socket = shift;
+    local $/;
+    return scalar <$socket>;
+}
+
+############
+# Register #
+############
+
+my ( $status, $body ) = call POST => '/v1/register', { token => 'valid_token' };
+is $status, 200, "Registering with a valid token succeeds.";
+like $body->{session_token}, qr/^.{32}$/, "The response contains a session token.";
+my $alice = $body->{session_token};
+
+( $status, $body ) = call POST => '/v1/register', { token => 'invalid_token' };
+is $status, 401, "Tokens that Google rejects are rejected.";
+
+##########
+# Errors #
+##########
+
+( $status, $body ) = call GET => '/v1/nothing';
+is $status, 404, "Unknown requests result in a 404 response.";
+( $status, $body ) = call POST => '/v1/bond', { secret => 'secret' };
+is $status, 401, "Calls that need authorization need a session token.";
+( $status, $body ) = call POST => '/v1/bond', 'invalid', $alice;
+is $status, 400, "Invalid JSON results in a 400 response.";
+( $status, $body ) = call POST => '/v1/bond', {}, $alice;
+is $status, 400, "Missing parameters result in a 400 response.";
+
+my $response = read_raw send_raw
+  "POST /v1/bond HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n";
+like $response, qr{^HTTP/1.1 411 }, "Chunked bodies are rejected.";
+like $response, qr{\r\nConnection: close\r\n}, "...and the connection is closed.";
+
+#########
+# Batch #
+#########
+
+( $status, $body ) = call POST => '/v1/batch',
+  {
+    calls => [
+        { method => 'POST', path => '/v1/register', body => { token => 'valid_token' } },
+        { method => 'POST', path => '/v1/bond', body => { secret => 'secret' } }
+    ]
+  };
+is $status, 200, "A batch succeeds.";
+is_deeply [ map { $_->{status} } @{ $body->{responses} } ], [ 200, 202 ],
+  "The calls of a batch run in order, also after a call to Google.";
+$alice = $body->{responses}->[0]->{body}->{session_token};
+
+( $status, $body ) = call POST => '/v1/batch',
+  { calls => [ { method => 'GET', path => '/v1/nothing' } ] };
+is_deeply $body->{responses}, [ { status => 404, body => "Unknown request." } ],
+  "Invalid calls of a batch get error responses.";
+
+##############
+# Keep-alive #
+##############
+
+$response = read_raw send_raw
+  "GET /v1/nothing HTTP/1.1\r\nHost: x\r\n\r\n"
+  . "GET /v1/nothing HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n";
+is scalar( () = $response =~ m{HTTP/1.1 404 }g ), 2,
+  "Requests on the same connection are answered in order.";
+
+my $socket = send_raw "POST /v1/bond HTTP/1.1\r\nHost: x\r\nConnection: close\r\n"
+  . "X-Dyad-Authorization: $alice\r\nContent-Type: application/json\r\n"
+  . "Content-Length: 19\r\nExpect: 100-continue\r\n\r\n";
+sysread $socket, $response, 1024;
+is $response, "HTTP/1.1 100 Continue\r\n\r\n",
+  "Expect: 100-continue is answered before the body is sent.";
+print $socket '{"secret":"secret"}';
+like read_raw($socket), qr{^HTTP/1.1 202 }, "...and the body is read after it.";
+
+##############
+# Long polls #
+##############
+
+( $status, $body ) = call POST => '/v1/register', { token => 'valid_token_alice' };
+$alice = $body->{session_token};
+( $status, $body ) = call POST => '/v1/register', { token => 'valid_token_bob' };
+my $bob = $body->{session_token};
+call POST => '/v1/bond', { secret => 'pair' }, $alice;
+( $status, $body ) = call POST => '/v1/bond', { secret => 'pair' }, $bob;
+is $status, 200, "Two users can bond.";
+
+( $status, $body ) = call GET => '/v1/sdp_message', undef, $alice;
+is $status, 404, "There is no SDP message before the other user sends one.";
+
+my $start = time;
+( $status, $body ) = call GET => '/v1/sdp_message?wait=1', undef, $alice;
+is $status, 404, "A long poll gives up after its wait.";
+ok time - $start >= 0.9, "...which is honoured.";
+
+sub poll {
+    send_raw "GET $_[0] HTTP/1.1\r\nHost: x\r\nConnection: close\r\n"
+      . "X-Dyad-Authorization: $alice\r\n\r\n";
+}
+
+my $poll = poll '/v1/sdp_message?wait=10';
+$start = time;
+( $status, $body ) = call GET => '/v1/nothing';
+is $status, 404, "Other requests are served while a long poll is parked.";
+
+call POST => '/v1/sdp_message', { message => 'v=0' }, $bob;
+$response = read_raw $poll;
+like $response, qr{^HTTP/1.1 200 .*\r\n\r\nv=0$}s,
+  "A parked poll gets the SDP message of the other user...";
+ok time - $start < 5, "...as soon as it's sent.";
+( $status, $body ) = call GET => '/v1/sdp_message', undef, $alice;
+is $status, 404, "...and nobody else gets it.";
+
+$poll = poll '/v1/candidates?since=0&wait=10';
+call POST => '/v1/candidates', { candidates => 'a=candidate:1' }, $bob;
+$response = read_raw $poll;
+my ($json) = $response =~ /\r\n\r\n(.*)$/s;
+is_deeply decode_json($json), { candidates => ['a=candidate:1'], next => 1 },
+  "A parked poll gets the candidates of the other user.";
+
+# a client that hangs up while it's parked
+close poll '/v1/candidates?since=1&wait=10';
+call POST => '/v1/candidates', { candidates => 'a=candidate:2' }, $bob;
+
+is $http->get("$url/v1/sdp_message")->{status}, 401,
+  "The server is still up.";
+
+#######################
+# Resources of a loop #
+#######################
+
+# a loop in this process, to look inside
+my $db = MongoDB::Connection->new->$DB_NAME;
+Dyad::Server::migrate($db);
+my $loop = Dyad::Server::Event->new( mongodb => $db, listen => '127.0.0.1:0' );
+my $carol = 'c' x 32;
+$db->users->insert( { google_id => 'carol', session_token => $carol } );
+$db->users->insert( { google_id => 'dave',  other         => 'carol' } );
+
+sub spin {
+    my $until = shift;
+    my $end   = time + 5;
+    $loop->run_once(0.05) until $until->() or time > $end;
+}
+
+sub park_carol {
+    my $socket = IO::Socket::INET->new( PeerAddr => '127.0.0.1', PeerPort => $loop->port )
+      or die "Can't connect: $!";
+    print $socket "GET /v1/sdp_message?wait=10 HTTP/1.1\r\nHost: x\r\n"
+      . "X-Dyad-Authorization: $carol\r\n\r\n";
+    return $socket;
+}
+
+my $parked = park_carol;
+spin sub { $loop->parked };
+is $loop->parked, 1, "A long poll is parked.";
+close $parked;
+spin sub { !$loop->connections };
+is $loop->parked, 0, "A long poll is forgotten when its connection closes...";
+is_deeply $loop->{waiting}, {}, "...and doesn't wait for the other user anymore.";
+
+$parked = park_carol;
+spin sub { $loop->parked };
+$parked->blocking(0);
+my $junk = 'x' x 65536;
+for ( 1 .. 40 ) {
+    syswrite $parked, $junk;
+    $loop->run_once(0);
+}
+my ($conn) = values %{ $loop->{connections} };
+ok length $conn->{in} <= $Dyad::Server::Event::MAX_PIPELINED + length $junk,
+  "A connection can't send much more than a request while it waits.";
+close $parked;
+
+is Dyad::Server::Event::HTTP::dechunk("3\r\nabc\r\na;x=1\r\n0123456789\r\n0\r\n\r\n"),
+  'abc0123456789', "Chunked responses are decoded.";
+ok !defined Dyad::Server::Event::HTTP::dechunk("5\r\nab"),
+  "...unless they are cut short.";
+
+$db->users->remove( { google_id => $_ } ) for qw(carol dave);
+
+kill 15, $server, $google;
+waitpid $server, 0;
@@ -0,0 +1,61 @@
+use strict;
+use Test::More tests => 18;
+use MongoDB;
+use Digest::SHA qw(sha256_hex);
+use Dyad::Server;
+
+my $DB_NAME = 'testdb_migrate';
+
+my $conn = MongoDB::Connection->new;
+my $db   = $conn->$DB_NAME;
+$db->get_collection($_)->drop_indexes for qw(users pushes bonds);
+$db->migrations->remove;
+
+ok !eval { Dyad::Server::check_queries($db); 1 },
+  "Checking the queries of a database without indexes dies.";
+like $@, qr/users \{"session_token":"x"\}/, "...and names the queries that scan.";
+ok !eval { Dyad::Server->new( mongodb => $db ); 1 },
+  "A server doesn't start on a database without indexes.";
+is_deeply [ grep { /^users\./ } Dyad::Server::missing_indexes($db) ],
+  [qw(users.google_id_1 users.session_token_1 users.other_1 users.gcm_id_1)],
+  "All indexes of the users are missing.";
+
+is Dyad::Server::migrate($db), scalar @Dyad::Server::MIGRATIONS,
+  "Migrating a new database runs all migrations.";
+is $db->migrations->find_one( { _id => 'schema' } )->{version},
+  $Dyad::Server::MIGRATIONS[-1]->[0], "The version of the schema is recorded.";
+is Dyad::Server::migrate($db), 0, "Migrating again runs nothing.";
+
+is_deeply [ Dyad::Server::missing_indexes($db) ], [], "All indexes are there.";
+my %indexes = map { $_->{name} => $_ } $db->users->get_indexes;
+ok $indexes{google_id_1}->{unique}, "Google ids are unique.";
+ok $indexes{session_token_1}->{unique} && $indexes{session_token_1}->{sparse},
+  "Session tokens are unique, but not every user has one.";
+ok eval { Dyad::Server::check_queries($db) }, "No hot query scans its collection.";
+ok eval { Dyad::Server->new( mongodb => $db ) }, "A server starts on a migrated database.";
+
+# a database of version 1, with the secrets on the users
+$db->users->remove;
+$db->bonds->remove;
+$db->migrations->update( { _id => 'schema' }, { '$set' => { version => 1 } } );
+$db->users->ensure_index( { secret => 1 }, { sparse => 1 } );
+$db->users->insert( { google_id => 1, secret => 'secret' } );
+$db->users->insert( { google_id => 2 } );
+$db->users->insert( { google_id => 3, secret => "\x{263a}" } );
+
+is Dyad::Server::migrate($db), 1, "A database of version 1 has one migration to go.";
+is $db->bonds->find_one( { _id => sha256_hex('secret') } )->{google_id}, 1,
+  "Waiting secrets are moved to the bonds, under their hash.";
+is $db->bonds->find_one( { _id => sha256_hex("\xe2\x98\xba") } )->{google_id}, 3,
+  "...which is the hash of their UTF-8 bytes.";
+is $db->users->find( { secret => { '$exists' => 1 } } )->count, 0,
+  "...and are gone from the users.";
+ok !grep( { $_->{name} eq 'secret_1' } $db->users->get_indexes ),
+  "The index on the secrets of the users is dropped.";
+my ($ttl) = grep { $_->{name} eq 'created_1' } $db->bonds->get_indexes;
+is $ttl->{expireAfterSeconds}, $Dyad::Server::BOND_TTL, "Bonds expire.";
+
+$db->users->remove;
+$db->bonds->remove;
+$db->get_collection($_)->drop_indexes for qw(users pushes bonds);
+$db->migrations->remove;
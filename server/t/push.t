@@ -0,0 +1,185 @@
+use strict;
+use JSON;
+use lib 't';    # the Mock::GCM module lives in the test directory
+use Mock::GCM;
+use Test::More tests => 33;
+use MongoDB;
+use Dyad::Server qw(bond sdp_message);
+use Dyad::Server::Push;
+
+my $PORT    = 8897;
+my $URL     = "http://localhost:$PORT";
+my $DB_NAME = 'testdb';
+
+my $conn   = MongoDB::Connection->new;
+my $db     = $conn->$DB_NAME;
+my $users  = $db->users;
+my $pushes = $db->pushes;
+$users->remove;
+$pushes->remove;
+
+# makes every queued push due
+sub due { $pushes->update( {}, { '$set' => { not_before => 0 } }, { multiple => 1 } ) }
+
+ok not( defined eval { Dyad::Server::Push->new( url => $URL ); 1 } ),
+  "You have to pass an API key to the constructor.";
+
+my $pid  = Mock::GCM->new($PORT)->background();
+my $push = Dyad::Server::Push->new(
+    mongodb => $db,
+    url     => $URL,
+    api_key => 'valid_key'
+);
+
+####################
+# Tests of enqueue #
+####################
+
+is Dyad::Server::Push::enqueue( $db, [ 'gcm_a', 'gcm_b', 'gcm_c' ], { type => 'test' } ),
+  3, "Enqueueing returns the number of pushes queued.";
+Dyad::Server::Push::enqueue $db, 'gcm_a', { type => 'test' };
+Dyad::Server::Push::enqueue $db, 'gcm_a', { type => 'other' };
+is scalar( () = $pushes->find->all ), 5, "Every push is stored in the queue.";
+is $push->requests, 0, "Enqueueing doesn't send anything.";
+
+#####################
+# Tests of dispatch #
+#####################
+
+{
+    local $Dyad::Server::Push::MAX_MULTICAST = 2;
+    is $push->dispatch, 5, "Dispatching returns the number of pushes that were due.";
+}
+is $push->requests, 3, "Pushes with the same data are sent in multicasts of limited size.";
+is $push->sent, 4, "A registration id gets the same data only once.";
+is scalar( () = $pushes->find->all ), 0, "Sent pushes leave the queue.";
+is $push->dispatch, 0, "Dispatching an empty queue returns 0.";
+
+# canonical ids
+$users->insert( { google_id => 1, gcm_id => 'canonical_1' } );
+Dyad::Server::Push::enqueue $db, 'canonical_1', { type => 'test' };
+$push->dispatch;
+is $users->find_one( { google_id => 1 } )->{gcm_id}, 'new_canonical_1',
+  "A canonical id replaces the registration id of the user.";
+is $push->canonical_ids, 1, "Canonical ids are counted.";
+
+# unregistered ids
+$users->insert( { google_id => 2, gcm_id => 'unregistered_2' } );
+Dyad::Server::Push::enqueue $db, 'unregistered_2', { type => 'test' };
+$push->dispatch;
+ok !exists $users->find_one( { google_id => 2 } )->{gcm_id},
+  "A registration id that GCM doesn't know is removed from the user.";
+is $push->failed, 1, "Pushes that are given up on are counted.";
+is scalar( () = $pushes->find->all ), 0, "Pushes that are given up on leave the queue.";
+
+# unavailable
+Dyad::Server::Push::enqueue $db, 'unavailable_3', { type => 'test' };
+$push->dispatch;
+my ($retry) = $pushes->find->all;
+is $retry->{attempts}, 1, "An unavailable push stays in the queue for another try.";
+ok $retry->{not_before} > time, "The next try is put off.";
+is $push->dispatch, 0, "Pushes that are put off aren't due.";
+is $push->retried, 1, "Pushes that are tried again are counted.";
+
+{
+    local $Dyad::Server::Push::MAX_ATTEMPTS = 2;
+    due;
+    $push->dispatch;
+    is scalar( () = $pushes->find->all ), 0,
+      "A push is given up on after too many tries.";
+    is $push->failed, 2, "...and counted as failed.";
+}
+
+# rate limits
+Dyad::Server::Push::enqueue $db, [ 'throttled_4', 'gcm_5' ], { type => 'test' };
+$push->dispatch;
+is scalar( () = $pushes->find( { attempts => 1 } )->all ), 2,
+  "All pushes of a throttled request are tried again.";
+due;
+$push->dispatch;
+is scalar( () = $pushes->find->all ), 0, "Throttled pushes are sent later.";
+
+# invalid key
+my $invalid = Dyad::Server::Push->new(
+    mongodb => $db,
+    url     => $URL,
+    api_key => 'invalid_key'
+);
+Dyad::Server::Push::enqueue $db, 'gcm_6', { type => 'test' };
+$invalid->dispatch;
+is $invalid->failed, 1, "Pushes that GCM rejects are given up on.";
+is scalar( () = $pushes->find->all ), 0, "...and leave the queue.";
+
+##################################
+# Tests of pushes by Dyad::Server #
+##################################
+
+$users->remove;
+$db->bonds->remove;
+$users->insert( { google_id => 7 } );
+$users->insert( { google_id => 8, gcm_id => 'gcm_8' } );
+
+bond $db, 'secret', 7;
+bond $db, 'secret', 8;
+is scalar( () = $pushes->find->all ), 0,
+  "Nothing is queued for a user without a GCM id.";
+
+# the web server has no API key, only the dispatcher has
+ok !defined $Dyad::Server::GCM_API_KEY, "There is no API key.";
+$users->update( { google_id => 7 }, { '$set' => { gcm_id => 'gcm_7' } } );
+bond $db, 'secret', 7;
+bond $db, 'secret', 8;
+my ($bonded) = $pushes->find->all;
+is_deeply [ $bonded->{gcm_id}, decode_json $bonded->{payload} ],
+  [ 'gcm_7', { type => 'bonded' } ],
+  "Bonding queues a push to the other user.";
+$pushes->remove;
+
+sdp_message $db, 'v=0', 7;
+my ($message) = $pushes->find->all;
+is_deeply [ $message->{gcm_id}, decode_json $message->{payload} ],
+  [ 'gcm_8', { type => 'sdp_message', message => 'v=0' } ],
+  "An SDP message queues a push to the other user.";
+$pushes->remove;
+
+########################
+# Tests of dispatchers #
+########################
+
+# a user agent that lets another dispatcher run while a request is on its way
+{
+    package Concurrent;
+    sub new { my ( $class, $ua ) = @_; bless { ua => $ua }, $class }
+    sub request {
+        my ( $self, $request ) = @_;
+        $self->{claimed} //= [ $self->{other}->claim ];
+        $self->{ua}->request($request);
+    }
+}
+
+my $ua    = Concurrent->new( LWP::UserAgent->new );
+my $first = Dyad::Server::Push->new(
+    mongodb => $db,
+    url     => $URL,
+    api_key => 'valid_key',
+    ua      => $ua
+);
+$ua->{other} = Dyad::Server::Push->new(
+    mongodb => $db,
+    url     => $URL,
+    api_key => 'valid_key'
+);
+Dyad::Server::Push::enqueue $db, [ 'gcm_a', 'gcm_b' ], { type => 'test' };
+is $first->dispatch, 2, "A dispatcher claims the pushes that are due.";
+is scalar @{ $ua->{claimed} }, 0, "...which another dispatcher can't claim while it sends them.";
+is $first->sent, 2, "...and sends them.";
+
+Dyad::Server::Push::enqueue $db, 'gcm_a', { type => 'test' };
+$ua->{other}->claim;
+is $push->dispatch, 0, "Pushes that another dispatcher claimed aren't due.";
+due;
+is $push->dispatch, 1, "...until its lease is up.";
+
+kill 15, $pid;
+$users->remove;
+$pushes->remove;
@@ -2,8 +2,12 @@ use strict;
 use JSON;
 use lib 't';    # the Mock::Google module lives in the test directory
 use Mock::Google;
-use Test::More tests => 67;
-use Dyad::Server qw(register register_gcm bond sdp_message get_sdp_message http_response json_to_hashref);
+use Mock::GCM;
+use Time::HiRes qw(time);
+use DateTime;
+use Digest::SHA qw(sha256_hex);
+use Test::More tests => 141;
+use Dyad::Server qw(register register_gcm bond sdp_message get_sdp_message candidates get_candidates query_params gcm_push http_response json_to_hashref binary_to_hashref);
 
 my $PORT = 8899;
 $Dyad::Server::GOOGLE_URL = "http://localhost:$PORT";
@@ -12,6 +16,7 @@ my $DB_NAME = 'testdb';
 my $conn  = MongoDB::Connection->new;
 my $db    = $conn->$DB_NAME;
 my $users = $db->users;
+Dyad::Server::migrate($db);
 
 ################
 # Tests of new #
@@ -70,6 +75,14 @@ $response = $server->process_request;
 is $response, http_response( 200, "ok" ),
   "Successful GET processing with authorization.";
 
+my $hits = $Dyad::Server::session_cache->hits;
+$users->update( { google_id => 1 }, { '$unset' => { session_token => 1 } } );
+$response = $server->process_request;
+is $response, http_response( 200, "ok" ),
+  "Validated session tokens are cached.";
+is $Dyad::Server::session_cache->hits, $hits + 1,
+  "Cached session tokens are counted as hits.";
+
 delete $ENV{HTTP_X_DYAD_AUTHORIZATION};
 $response = $server->process_request;
 like $response, qr/Status: 401/,
@@ -80,6 +93,11 @@ $response = $server->process_request;
 like $response, qr/Status: 401/,
   "Unknown Session Token when calling authorized method => 401.";
 
+# a call that dies doesn't take the FCGI process down
+$Dyad::Server::api = [ [ 0, GET => '^/url$', sub { die "oops\n" } => [] ] ];
+$response = eval { $server->process_request };
+like $response, qr/Status: 500/, "A call that dies results in 500 status.";
+
 # POST - no authorization
 $Dyad::Server::api = [
     [
@@ -128,6 +146,88 @@ $response = $server->process_request;
 like $response, qr/Status: 400/,
 "Missing body results in 400 status.";
 
+# POST - batch
+$Dyad::Server::api = [
+    [
+        0,
+        POST => '^/url$',
+        sub {
+            shift;
+            return 200, { session_token => 'batch_token', arg => shift };
+          } => ["arg1"]
+    ],
+    [
+        1,
+        GET => '^/url$',
+        sub {
+            shift;
+            return 200, "hello " . shift;
+          } => []
+    ]
+];
+$users->insert( { google_id => 5, session_token => 'batch_token' } );
+delete $ENV{HTTP_X_DYAD_AUTHORIZATION};
+$ENV{REQUEST_METHOD} = 'POST';
+$ENV{REQUEST_URI}    = '/v1/batch';
+
+local *STDIN = set_stdin(
+    encode_json {
+        calls => [
+            { method => 'POST', path => '/url', body => { arg1 => 'value1' } },
+            { method => 'GET',  path => '/url' },
+            { method => 'GET',  path => '/wrong_url' },
+            { method => 'POST', path => '/url' },
+        ]
+    }
+);
+$response = $server->process_request;
+like $response, qr/Status: 200/, "Batch request results in 200 status.";
+my ($batch) = $response =~ /\r\n\r\n(.*)$/s;
+my @responses = @{ decode_json($batch)->{responses} };
+is scalar @responses, 4, "There is a response for every call in the batch.";
+is_deeply $responses[0],
+  { status => 200, body => { session_token => 'batch_token', arg => 'value1' } },
+  "Batched POST is parsed and dispatched.";
+is_deeply $responses[1], { status => 200, body => "hello 5" },
+  "Batched calls are authorized with a session token returned earlier in the batch.";
+is $responses[2]->{status}, 404, "Unknown batched call results in 404 status.";
+is $responses[3]->{status}, 400, "Batched POST without body results in 400 status.";
+
+local *STDIN = set_stdin('{ "calls": [] }');
+$response = $server->process_request;
+like $response, qr/Status: 400/, "Empty batch results in 400 status.";
+
+local *STDIN = set_stdin( encode_json { calls => [ ( { method => 'GET', path => '/url' } ) x 17 ] } );
+$response = $server->process_request;
+like $response, qr/Status: 400/, "Oversized batch results in 400 status.";
+
+local *STDIN = set_stdin('invalid json');
+$response = $server->process_request;
+like $response, qr/Status: 400/, "Batch with invalid JSON results in 400 status.";
+
+# POST - content types
+$ENV{REQUEST_URI}  = '/url';
+$ENV{CONTENT_TYPE} = 'application/x-dyad-binary';
+local *STDIN = set_stdin("\x01\x04arg1\x06value1");
+$response = $server->process_request;
+like $response, qr/"arg":"value1"/, "Binary POST body is decoded.";
+
+local *STDIN = set_stdin('{ "arg1": "value1" }');
+$response = $server->process_request;
+like $response, qr/Status: 400/,
+  "JSON body with binary content type results in 400 status.";
+
+$ENV{CONTENT_TYPE} = 'application/json; charset=UTF-8';
+local *STDIN = set_stdin('{ "arg1": "value1" }');
+$response = $server->process_request;
+like $response, qr/Status: 200/, "JSON content type with charset is accepted.";
+
+$ENV{CONTENT_TYPE} = 'application/xml';
+local *STDIN = set_stdin('{ "arg1": "value1" }');
+$response = $server->process_request;
+like $response, qr/Status: 415/, "Unsupported content type results in 415 status.";
+delete $ENV{CONTENT_TYPE};
+
 $users->remove;
 
 #####################
@@ -153,8 +253,10 @@ ok defined $user, "After registering the user is present in the database.";
 is undef, $cursor->next, "There is only one user inserted in the database.";
 is $user->{google_id}, 1, "The id returned by the google server is stored.";
 is $user->{session_token}, $stoken, "A session token is generated and stored.";
+is $Dyad::Server::google_cache->misses, 1, "Registering with a new token asks Google.";
 
 # re-registration
+$Dyad::Server::session_cache->set( $stoken => 1 );
 ( $status, $body ) = register $db, 'valid_token';
 is $status, 200, "Re-registering with a valid token succeeds.";
 ok defined $body, "There is a body in the response";
@@ -170,6 +272,10 @@ is undef, $cursor->next, "There is still only one user in the database.";
 is $user->{google_id}, 1, "The id returned by the google server is stored.";
 is $user->{session_token}, $body->{session_token},
   "A new session token is generated and stored.";
+is $Dyad::Server::session_cache->get($stoken), undef,
+  "Re-registering removes the old session token from the cache.";
+is $Dyad::Server::google_cache->hits, 1,
+  "Re-registering with the same token doesn't ask Google again.";
 
 # invalid registration
 $users->remove;
@@ -177,8 +283,38 @@ $users->remove;
 is $status, 401, "Registering with a invalid token fails.";
 ok defined $body, "There is a body in the response";
 is undef, $users->find_one, "Failed registrations do not touch the database.";
+( $status, $body ) = register $db, 'invalid_token';
+is $status, 401, "Registering with a rejected token fails again.";
+is $Dyad::Server::google_cache->hits, 2, "...without asking Google.";
+
+{
+    local $Dyad::Server::REJECTED_TOKEN_TTL = 0;
+    register $db, 'invalid_token_2';
+    register $db, 'invalid_token_2';
+    is $Dyad::Server::google_cache->misses, 4,
+      "Google is asked again when the cached answer has expired.";
+}
+
+# tokens are characters, like everything decode_json returns
+( $status, $body ) = eval { register $db, "\x{263a}" };
+is $status, 401, "Registering with a non-ASCII token fails like any invalid one.";
+( $status, $body ) = eval { register $db, "\x{263a}" };
+is $status, 401, "...and fails again.";
+is Dyad::Server::hash_key("\x{263a}"), sha256_hex("\xe2\x98\xba"),
+  "Strings are hashed as UTF-8.";
 
 kill 15, $pid;
+waitpid $pid, 0;
+
+( $status, $body ) = register $db, 'valid_token';
+is $status, 200, "Cached tokens can register while Google is unreachable.";
+is $users->find_one->{session_token}, $body->{session_token},
+  "...and get a new session token.";
+$users->remove;
+my $cached = $Dyad::Server::google_cache->size;
+( $status, $body ) = register $db, 'valid_token_2';
+is $status, 401, "New tokens can't register while Google is unreachable.";
+is $Dyad::Server::google_cache->size, $cached, "...and that isn't cached.";
 
 #########################
 # Tests of register_gcm #
@@ -207,8 +343,11 @@ my ( $token1, $token2 );
 $token1 .= 'a' for ( 1 .. 32 );
 $token2 .= 'b' for ( 1 .. 32 );
 
+my $bonds = $db->bonds;
+
 # user submitting existing secret
 $users->remove;
+$bonds->remove;
 $users->batch_insert(
     [
         {
@@ -218,12 +357,18 @@ $users->batch_insert(
         },
         {
             google_id     => 2,
-            secret        => 'secret',
             session_token => $token2,
             c2dm_id       => 'a'
         }
     ]
 );
+$bonds->insert(
+    {
+        _id       => sha256_hex('secret'),
+        google_id => 2,
+        created   => DateTime->now
+    }
+);
 
 ( $status, $body ) = bond $db, 'secret', 1;
 my $user1 = $users->find_one( { google_id => 1 } );
@@ -233,7 +378,7 @@ is $status, 200, "Bonding results in a 200 response.";
 ok defined $body, "Response has a body.";
 is $user1->{other}, $user2->{google_id}, "User 1 is now bonded to user 2.";
 is $user2->{other}, $user1->{google_id}, "User 2 is now bonded to user 1.";
-ok not( exists $user2->{secret} ), "The secret has disappeared.";
+is $bonds->find->count, 0, "The secret has disappeared.";
 
 # user submitting new secret
 $users->remove;
@@ -246,26 +391,47 @@ $users->insert(
 );
 ( $status, $body ) = bond $db, 'secret', 1;
 $user1 = $users->find_one( { google_id => 1 } );
-$user2 = $users->find_one( { google_id => 2 } );
+my $bond = $bonds->find_one( { _id => sha256_hex('secret') } );
 
 is $status, 202, "New secret results in 202 response.";
 ok defined $body, "Response has a body.";
-is $user1->{secret}, 'secret', "Secret is inserted in the database";
+is $bond->{google_id}, 1, "Secret is inserted in the database under its hash";
+ok !exists $user1->{secret}, "...and not with the user.";
 
 # user re-submits secret
-$users->remove;
-$users->insert(
-    {
-        google_id     => 1,
-        secret        => 'secret',
-        session_token => $token1,
-        c2dm_id       => 'a'
-    }
-);
+$bonds->update( { _id => sha256_hex('secret') },
+    { '$set' => { created => DateTime->now->subtract( seconds => 10 ) } } );
 ( $status, $body ) = bond $db, 'secret', 1;
-$user1 = $users->find_one( { google_id => 1 } );
+$bond = $bonds->find_one( { _id => sha256_hex('secret') } );
 
 is $status, 202, "Re-submitting same secret results in 202 response.";
+ok $bond->{created} > DateTime->now->subtract( seconds => 5 ),
+  "...and makes it wait longer.";
+is $bonds->find->count, 1, "...without storing it twice.";
+
+# secret of another user that expired
+$users->insert( { google_id => 2, session_token => $token2 } );
+$bonds->update( { _id => sha256_hex('secret') },
+    { '$set' => { created => DateTime->now->subtract( seconds => $Dyad::Server::BOND_TTL + 1 ) } } );
+( $status, $body ) = bond $db, 'secret', 2;
+$user2 = $users->find_one( { google_id => 2 } );
+
+is $status, 202, "An expired secret doesn't bond.";
+ok !exists $user2->{other}, "...so the user has no other.";
+is $bonds->find_one( { _id => sha256_hex('secret') } )->{google_id}, 2,
+  "...and now waits with it.";
+
+# secrets are characters, like everything decode_json returns
+$users->remove;
+$bonds->remove;
+$users->insert( { google_id => 1, session_token => $token1 } );
+$users->insert( { google_id => 2, session_token => $token2 } );
+( $status, $body ) = eval { bond $db, "caf\x{e9} \x{263a}", 1 };
+is $status, 202, "A non-ASCII secret waits like any other.";
+ok $bonds->find_one( { _id => sha256_hex("caf\xc3\xa9 \xe2\x98\xba") } ),
+  "...under the hash of its UTF-8 bytes.";
+( $status, $body ) = eval { bond $db, "caf\x{e9} \x{263a}", 2 };
+is $status, 200, "...and bonds.";
 
 ########################
 # Tests of sdp_message #
@@ -317,12 +483,111 @@ $users->batch_insert(
         }
     ]
 );
-( $status, $body ) = get_sdp_message $db, 2;
+( $status, $body ) = get_sdp_message $db, undef, 2;
 $user1 = $users->find_one( { google_id => 1 } );
 
 is $status, 200, "Getting sdp message results in a 200 response.";
 ok defined $body, "Response has a body.";
 is $user1->{message}, $body, "Right SDP Message is returned in the body.";
+( $status, $body ) = get_sdp_message $db, undef, 2;
+is $status, 404, "An sdp message is only handed out once.";
+sdp_message $db, "$sdp_message 2", 1;
+( $status, $body ) = get_sdp_message $db, undef, 2;
+is $body, "$sdp_message 2", "...until the other user sends a new one.";
+
+# compressed messages are relayed as they are
+my $compressed = 'dz1:S0lN0y1LLMlMzS3h5UrNz0nLLy0BAA==';
+sdp_message $db, $compressed, 2;
+( $status, $body ) = get_sdp_message $db, undef, 1;
+is $body, $compressed, "Compressed SDP message is relayed unchanged.";
+$users->update( { google_id => 2 }, { '$unset' => { message => 1 } } );
+
+sdp_message $db, $sdp_message, 1;
+my $start = time;
+( $status, $body ) = get_sdp_message $db, 30, 2;
+is $status, 200, "Waiting for an sdp message that is there results in a 200 response.";
+ok time - $start < 1, "Waiting for an sdp message that is there returns immediately.";
+
+# get message before it is sent
+( $status, $body ) = get_sdp_message $db, undef, 1;
+is $status, 404, "Getting an sdp message that isn't sent results in a 404 response.";
+
+$start = time;
+( $status, $body ) = get_sdp_message $db, 1, 1;
+is $status, 404, "Waiting for an sdp message that isn't sent results in a 404 response.";
+ok time - $start < 0.5, "...right away, because the FCGI loop can't wait.";
+
+#######################
+# Tests of candidates #
+#######################
+
+# user 1 has sent an sdp message, user 2 hasn't
+( $status, $body ) = candidates $db, "a=candidate:2", 2;
+is $status, 409, "Trickling candidates before an sdp message results in a 409 response.";
+
+( $status, $body ) = candidates $db, "", 1;
+is $status, 400, "Trickling no candidates results in a 400 response.";
+
+my @batches = ( "a=candidate:1 1 udp 1 192.0.2.1 9 typ host\r\n",
+    "a=candidate:2 1 udp 1 192.0.2.2 9 typ relay\r\na=end-of-candidates\r\n" );
+( $status, $body ) = candidates $db, $batches[0], 1;
+is $status, 202, "Trickling candidates results in a 202 response.";
+candidates $db, $batches[1], 1;
+is_deeply $users->find_one( { google_id => 1 } )->{candidates}, \@batches,
+  "Trickled candidates are appended to the queue.";
+
+( $status, $body ) = get_candidates $db, undef, undef, 2;
+is $status, 200, "Getting candidates results in a 200 response.";
+is_deeply $body->{candidates}, \@batches, "All queued candidates are returned.";
+is $body->{next}, 2, "The next batch to ask for is returned.";
+
+( $status, $body ) = get_candidates $db, 1, undef, 2;
+is_deeply $body->{candidates}, [ $batches[1] ],
+  "Only the candidates since the given batch are returned.";
+
+( $status, $body ) = get_candidates $db, 2, undef, 2;
+is $status, 404, "Getting candidates when there are no new ones results in a 404 response.";
+
+$start = time;
+( $status, $body ) = get_candidates $db, 2, 1, 2;
+is $status, 404, "Waiting for new candidates that aren't sent results in a 404 response.";
+ok time - $start < 0.5, "...right away, because the FCGI loop can't wait.";
+
+{
+    local $Dyad::Server::MAX_CANDIDATE_BATCHES = 2;
+    ( $status, $body ) = candidates $db, "a=candidate:3", 1;
+    is $status, 413, "Trickling more batches than allowed results in a 413 response.";
+    is scalar @{ $users->find_one( { google_id => 1 } )->{candidates} }, 2,
+      "...and leaves the queue as it is.";
+}
+{
+    local $Dyad::Server::MAX_CANDIDATE_BATCHES = 3;
+    ( $status, $body ) = candidates $db, "a=candidate:3", 1;
+    is $status, 202, "The last batch that is allowed is queued.";
+}
+
+sdp_message $db, $sdp_message, 1;
+( $status, $body ) = get_candidates $db, undef, undef, 2;
+is $status, 404, "A new sdp message drops the candidates of the previous one.";
+
+# push to other
+my $GCM_PORT = 8898;
+$pid = Mock::GCM->new($GCM_PORT)->background();
+$Dyad::Server::GCM_URL = "http://localhost:$GCM_PORT";
+
+is gcm_push( 'gcm_id', { type => 'test' } ), undef,
+  "GCM pushes are not sent without an API key.";
+
+$Dyad::Server::GCM_API_KEY = 'valid_key';
+my $result = gcm_push( [ 'gcm_a', 'gcm_b' ], { type => 'test' } );
+is $result->{success}, 2, "GCM push is sent to every registration id.";
+
+$Dyad::Server::GCM_API_KEY = 'invalid_key';
+is gcm_push( 'gcm_id', { type => 'test' } ), undef,
+  "Failed GCM push returns nothing.";
+
+kill 15, $pid;
+$Dyad::Server::GCM_API_KEY = undef;
 
 
 ######################
@@ -379,6 +644,16 @@ is $user1->{message}, $body, "Right SDP Message is returned in the body.";
 #is $body,      undef, "returns undef when body is malformed json";
 #isnt $message, undef, "error message is defined when body is malformed json";
 
+#########################
+# Tests of query_params #
+#########################
+
+is_deeply query_params('/v1/sdp_message?wait=30&a+b=c%20d&flag'),
+  { wait => 30, 'a b' => 'c d', flag => '' },
+  "Query parameters are split and unescaped.";
+is_deeply query_params('/v1/sdp_message'), {},
+  "URI without query string has no parameters.";
+
 ##########################
 # Tests of http_response #
 ##########################
@@ -417,3 +692,19 @@ is ref $hashref, 'HASH', "Returns a hashref.";
 is $hashref->{valid}, "json_string", "The returned hash contains the JSON key.";
 is json_to_hashref("invalid"), 0, "Returns 0 on invalid JSON strings.";
 is json_to_hashref('["json", "array"]'), 0, "Returns 0 on JSON arrays.";
+
+##############################
+# Tests of binary_to_hashref #
+##############################
+
+is_deeply binary_to_hashref("\x01\x05token\x03abc\x06secret\x00"),
+  { token => 'abc', secret => '' }, "Returns a hashref with all fields.";
+is_deeply binary_to_hashref( "\x01\x07message\x80\x01" . ( 'a' x 128 ) ),
+  { message => 'a' x 128 }, "Lengths are varints.";
+is_deeply binary_to_hashref("\x01\x01k\x02\xc3\xa9"), { k => "\x{e9}" },
+  "Strings are decoded from UTF-8.";
+is binary_to_hashref("\x02\x01k\x01v"), 0, "Returns 0 on unknown versions.";
+is binary_to_hashref("\x01\x01k\x05v"), 0, "Returns 0 on truncated bodies.";
+is binary_to_hashref("\x01\x01k"), 0, "Returns 0 on fields without value.";
+is binary_to_hashref("\x01\x01k\x01\xff"), 0, "Returns 0 on invalid UTF-8.";
+is binary_to_hashref(''), 0, "Returns 0 on empty bodies.";